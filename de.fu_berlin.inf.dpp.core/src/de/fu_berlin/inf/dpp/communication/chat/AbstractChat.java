@@ -1,6 +1,7 @@
 package de.fu_berlin.inf.dpp.communication.chat;
 
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.jivesoftware.smackx.ChatState;
@@ -31,6 +32,38 @@ public abstract class AbstractChat implements IChat {
         return history.getEntries();
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ChatElement> getHistory(long fromIndex, int count) {
+        return history.getEntries(fromIndex, count);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public long getHistoryStartIndex() {
+        return history.getFirstIndex();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getHistorySize() {
+        return history.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Set<JID> getHistorySenders() {
+        return history.getSenders();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -39,6 +72,14 @@ public abstract class AbstractChat implements IChat {
         history.clear();
     }
 
+    /**
+     * Deletes the parts of the history that were moved to disk. Must be called
+     * when the chat is no longer used.
+     */
+    protected void disposeHistory() {
+        history.dispose();
+    }
+
     /**
      * {@inheritDoc}
      */
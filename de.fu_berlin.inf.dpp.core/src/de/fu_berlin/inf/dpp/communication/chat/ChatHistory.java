@@ -1,43 +1,576 @@
 package de.fu_berlin.inf.dpp.communication.chat;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.jivesoftware.smackx.ChatState;
+
+import de.fu_berlin.inf.dpp.communication.chat.ChatElement.ChatElementType;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
 
 /**
  * This class describes the history of incoming messages of a chat. It saves
- * entries in the form of {@link ChatElement} instances.
+ * entries in the form of {@link ChatElement} instances.
+ * <p>
+ * Only the most recent entries are kept in memory. Older entries are moved in
+ * segments to files in a private segment directory and are read back on
+ * demand. Each segment is indexed by the time range and the senders of its
+ * entries so queries can skip segments that cannot contain matching entries.
+ * The segments are deleted when the history is cleared or disposed.
+ * <p>
+ * Entries are addressed by their index, the first entry ever added has the
+ * index 0. Clearing the history does not reset the index.
+ * <p>
+ * This class is thread safe.
  */
 public class ChatHistory {
-    private List<ChatElement> history = Collections
-        .synchronizedList(new LinkedList<ChatElement>());
+
+    private static final Logger LOG = Logger.getLogger(ChatHistory.class);
+
+    /** Default number of entries that are kept in memory. */
+    public static final int DEFAULT_CAPACITY = 1000;
+
+    private static final int MAX_SEGMENT_SIZE = 250;
+
+    /**
+     * Describes a segment of entries that has been written to disk.
+     */
+    private static class Segment {
+        private final File file;
+        private final long firstIndex;
+        private final int size;
+        private final long firstDate;
+        private final long lastDate;
+        private final Set<JID> senders;
+
+        private Segment(File file, long firstIndex, int size, long firstDate,
+            long lastDate, Set<JID> senders) {
+            this.file = file;
+            this.firstIndex = firstIndex;
+            this.size = size;
+            this.firstDate = firstDate;
+            this.lastDate = lastDate;
+            this.senders = senders;
+        }
+
+        private boolean overlaps(long from, long to) {
+            return firstDate <= to && lastDate >= from;
+        }
+    }
+
+    private final int capacity;
+
+    private final int segmentSize;
+
+    /** directory for the segments or <code>null</code> to discard entries */
+    private File segmentDirectory;
+
+    /** segment directory used by histories created with the default settings */
+    private static volatile File defaultSegmentDirectory;
+
+    /** the most recent entries, the oldest entry is at the head */
+    private final ArrayDeque<ChatElement> recent;
+
+    /** the segments on disk in ascending index order */
+    private final List<Segment> segments = new ArrayList<Segment>();
+
+    /** senders of all entries, including those stored in segments */
+    private final Set<JID> senders = new LinkedHashSet<JID>();
+
+    /** index of the oldest available entry */
+    private long firstIndex;
+
+    /** index of the next entry to add */
+    private long nextIndex;
+
+    /**
+     * Creates a chat history that keeps {@value #DEFAULT_CAPACITY} entries in
+     * memory and moves older entries to the
+     * {@linkplain #setDefaultSegmentDirectory default segment directory}.
+     */
+    public ChatHistory() {
+        this(DEFAULT_CAPACITY, defaultSegmentDirectory);
+    }
+
+    /**
+     * Creates a chat history.
+     *
+     * @param capacity
+     *            the number of entries to keep in memory
+     * @param segmentDirectory
+     *            the directory to move the entries to that do not fit into
+     *            memory anymore or <code>null</code> to discard them
+     */
+    public ChatHistory(int capacity, File segmentDirectory) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: "
+                + capacity);
+
+        this.capacity = capacity;
+        this.segmentSize = Math.max(1,
+            Math.min(MAX_SEGMENT_SIZE, capacity / 4));
+        this.segmentDirectory = segmentDirectory;
+        this.recent = new ArrayDeque<ChatElement>(capacity);
+    }
 
     /**
      * Adds a new {@link ChatElement}
-     * 
+     *
      * @param entry
      *            that describes the chat message
      */
-    public void addEntry(ChatElement entry) {
-        history.add(entry);
+    public synchronized void addEntry(ChatElement entry) {
+        if (recent.size() >= capacity)
+            evict();
+
+        recent.addLast(entry);
+        nextIndex++;
+
+        if (entry.getSender() != null)
+            senders.add(entry.getSender());
     }
 
     /**
-     * Returns all added {@link ChatElement}s
-     * 
+     * Returns all added {@link ChatElement}s. This reads all entries that have
+     * been moved to disk back into memory, consider to use
+     * {@link #getEntries(long, int)} instead.
+     *
      * @return
      */
-    public List<ChatElement> getEntries() {
-        synchronized (history) {
-            return new ArrayList<ChatElement>(history);
+    public synchronized List<ChatElement> getEntries() {
+        return getEntries(firstIndex, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns up to <code>count</code> {@link ChatElement}s starting at the
+     * given index.
+     *
+     * @param fromIndex
+     *            the index of the first entry to return, must not be less than
+     *            {@link #getFirstIndex()}
+     * @param count
+     *            the maximum number of entries to return
+     * @return a list of the requested entries which may contain less than
+     *         <code>count</code> entries if not enough entries are available or
+     *         entries could not be read from disk
+     */
+    public synchronized List<ChatElement> getEntries(long fromIndex,
+        int count) {
+        if (fromIndex < firstIndex)
+            throw new IndexOutOfBoundsException("index " + fromIndex
+                + " is no longer available, first available index is "
+                + firstIndex);
+
+        if (count < 0)
+            throw new IllegalArgumentException("count is negative: " + count);
+
+        final long toIndex = Math.min(nextIndex, fromIndex + count);
+
+        if (fromIndex >= toIndex)
+            return new ArrayList<ChatElement>(0);
+
+        final List<ChatElement> result = new ArrayList<ChatElement>(
+            (int) (toIndex - fromIndex));
+
+        final long recentStartIndex = nextIndex - recent.size();
+
+        for (Segment segment : segments) {
+            final long segmentEndIndex = segment.firstIndex + segment.size;
+
+            if (segmentEndIndex <= fromIndex)
+                continue;
+
+            if (segment.firstIndex >= toIndex)
+                break;
+
+            final List<ChatElement> elements = readSegment(segment);
+
+            final int from = (int) Math.max(0, fromIndex - segment.firstIndex);
+            final int to = (int) Math.min(elements.size(), toIndex
+                - segment.firstIndex);
+
+            if (from < to)
+                result.addAll(elements.subList(from, to));
+        }
+
+        if (toIndex > recentStartIndex) {
+            long index = recentStartIndex;
+
+            for (ChatElement element : recent) {
+                if (index >= toIndex)
+                    break;
+
+                if (index >= fromIndex)
+                    result.add(element);
+
+                index++;
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns all {@link ChatElement}s whose date is in the given range.
+     *
+     * @param from
+     *            the start of the range (inclusive)
+     * @param to
+     *            the end of the range (inclusive)
+     * @return a list of the matching entries in the order they were added
+     */
+    public synchronized List<ChatElement> getEntries(Date from, Date to) {
+        final long fromTime = from.getTime();
+        final long toTime = to.getTime();
+
+        final List<ChatElement> result = new ArrayList<ChatElement>();
+
+        for (Segment segment : segments) {
+            if (!segment.overlaps(fromTime, toTime))
+                continue;
+
+            for (ChatElement element : readSegment(segment))
+                if (isInRange(element, fromTime, toTime))
+                    result.add(element);
+        }
+
+        for (ChatElement element : recent)
+            if (isInRange(element, fromTime, toTime))
+                result.add(element);
+
+        return result;
+    }
+
+    /**
+     * Returns all {@link ChatElement}s caused by the given sender.
+     *
+     * @param sender
+     *            the sender of the entries
+     * @return a list of the matching entries in the order they were added
+     */
+    public synchronized List<ChatElement> getEntries(JID sender) {
+        final List<ChatElement> result = new ArrayList<ChatElement>();
+
+        if (!senders.contains(sender))
+            return result;
+
+        for (Segment segment : segments) {
+            if (!segment.senders.contains(sender))
+                continue;
+
+            for (ChatElement element : readSegment(segment))
+                if (sender.equals(element.getSender()))
+                    result.add(element);
         }
+
+        for (ChatElement element : recent)
+            if (sender.equals(element.getSender()))
+                result.add(element);
+
+        return result;
+    }
+
+    /**
+     * Returns the senders of all entries in this history.
+     *
+     * @return an unmodifiable snapshot of the senders
+     */
+    public synchronized Set<JID> getSenders() {
+        return Collections.unmodifiableSet(new HashSet<JID>(senders));
+    }
+
+    /**
+     * Returns the index of the oldest entry that is still available.
+     */
+    public synchronized long getFirstIndex() {
+        return firstIndex;
+    }
+
+    /**
+     * Returns the number of available entries.
+     */
+    public synchronized int size() {
+        return (int) (nextIndex - firstIndex);
     }
 
     /**
      * Removes all added {@link ChatElement}s from the {@link ChatHistory}
      */
-    public void clear() {
-        history.clear();
+    public synchronized void clear() {
+        for (Segment segment : segments)
+            deleteSegment(segment);
+
+        segments.clear();
+        recent.clear();
+        senders.clear();
+        firstIndex = nextIndex;
+    }
+
+    /**
+     * Deletes all segments of this history. Entries that do not fit into
+     * memory anymore are discarded from now on.
+     */
+    public synchronized void dispose() {
+        for (Segment segment : segments)
+            deleteSegment(segment);
+
+        segments.clear();
+        firstIndex = nextIndex - recent.size();
+        segmentDirectory = null;
+    }
+
+    /**
+     * Sets the directory the segments of histories created with
+     * {@link #ChatHistory()} are written to. The directory should only be
+     * accessible by the current user as the segments contain the chat messages
+     * in plain text. If set to <code>null</code> these histories discard the
+     * entries that do not fit into memory.
+     */
+    public static void setDefaultSegmentDirectory(File directory) {
+        defaultSegmentDirectory = directory;
+    }
+
+    private boolean isInRange(ChatElement element, long from, long to) {
+        if (element.getDate() == null)
+            return false;
+
+        final long time = element.getDate().getTime();
+        return time >= from && time <= to;
+    }
+
+    /**
+     * Removes the oldest entries from memory and writes them to a new segment
+     * if possible.
+     */
+    private void evict() {
+        final List<ChatElement> elements = new ArrayList<ChatElement>(
+            segmentSize);
+
+        for (int i = 0; i < segmentSize && !recent.isEmpty(); i++)
+            elements.add(recent.pollFirst());
+
+        final long segmentFirstIndex = nextIndex - recent.size()
+            - elements.size();
+
+        Segment segment = null;
+
+        if (segmentDirectory != null)
+            segment = writeSegment(segmentFirstIndex, elements);
+
+        if (segment != null) {
+            segments.add(segment);
+            return;
+        }
+
+        /*
+         * the entries are lost, so all older segments are unreachable by index
+         * as well
+         */
+        for (Segment unreachable : segments)
+            deleteSegment(unreachable);
+
+        segments.clear();
+        firstIndex = segmentFirstIndex + elements.size();
+    }
+
+    private Segment writeSegment(long segmentFirstIndex,
+        List<ChatElement> elements) {
+
+        File file = null;
+        DataOutputStream out = null;
+
+        long firstDate = Long.MAX_VALUE;
+        long lastDate = Long.MIN_VALUE;
+
+        final Set<JID> segmentSenders = new HashSet<JID>();
+
+        boolean failed = false;
+
+        try {
+            createPrivateDirectory(segmentDirectory);
+
+            file = File.createTempFile("history", ".seg", segmentDirectory);
+            makePrivate(file);
+
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(file)));
+
+            out.writeInt(elements.size());
+
+            for (ChatElement element : elements) {
+                writeElement(out, element);
+
+                if (element.getDate() != null) {
+                    firstDate = Math.min(firstDate, element.getDate()
+                        .getTime());
+                    lastDate = Math.max(lastDate, element.getDate().getTime());
+                }
+
+                if (element.getSender() != null)
+                    segmentSenders.add(element.getSender());
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            LOG.error("could not write chat history segment, discarding "
+                + elements.size() + " entries", e);
+            failed = true;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+
+        if (failed) {
+            if (file != null)
+                file.delete();
+
+            return null;
+        }
+
+        return new Segment(file, segmentFirstIndex, elements.size(),
+            firstDate, lastDate, segmentSenders);
+    }
+
+    private List<ChatElement> readSegment(Segment segment) {
+        final List<ChatElement> elements = new ArrayList<ChatElement>(
+            segment.size);
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(segment.file)));
+
+            final int size = in.readInt();
+
+            if (size != segment.size)
+                throw new IOException("segment is corrupted, expected "
+                    + segment.size + " entries, but found " + size);
+
+            for (int i = 0; i < size; i++)
+                elements.add(readElement(in));
+
+        } catch (IOException e) {
+            LOG.error("could not read chat history segment: " + segment.file,
+                e);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        return elements;
+    }
+
+    private static void createPrivateDirectory(File directory)
+        throws IOException {
+
+        if (directory.isDirectory())
+            return;
+
+        if (!directory.mkdirs() && !directory.isDirectory())
+            throw new IOException("could not create directory: " + directory);
+
+        makePrivate(directory);
+    }
+
+    /**
+     * Restricts the access to the given file to the owner where supported.
+     */
+    private static void makePrivate(File file) {
+        file.setReadable(false, false);
+        file.setWritable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(true, true);
+
+        if (file.isDirectory()) {
+            file.setExecutable(false, false);
+            file.setExecutable(true, true);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        if (!segment.file.delete())
+            LOG.warn("could not delete chat history segment: " + segment.file);
+    }
+
+    private static void writeElement(DataOutputStream out, ChatElement element)
+        throws IOException {
+
+        out.writeByte(element.getChatElementType().ordinal());
+        out.writeLong(element.getDate() == null ? -1 : element.getDate()
+            .getTime());
+
+        writeString(out, element.getSender() == null ? null : element
+            .getSender().toString());
+        writeString(out, element.getMessage());
+        writeString(out, element.getChatState() == null ? null : element
+            .getChatState().name());
+    }
+
+    private static ChatElement readElement(DataInputStream in)
+        throws IOException {
+
+        final ChatElementType type = ChatElementType.values()[in.readByte()];
+        final long time = in.readLong();
+        final String jid = readString(in);
+        final String message = readString(in);
+        final String state = readString(in);
+
+        final Date date = time == -1 ? null : new Date(time);
+        final JID sender = jid == null ? null : new JID(jid);
+
+        if (type == ChatElementType.MESSAGE)
+            return new ChatElement(message, sender, date);
+
+        if (type == ChatElementType.STATECHANGE)
+            return new ChatElement(sender, date, state == null ? null
+                : ChatState.valueOf(state));
+
+        return new ChatElement(sender, date, type);
+    }
+
+    /*
+     * DataOutput.writeUTF is limited to 64 KiB which may not be sufficient for
+     * chat messages
+     */
+    private static void writeString(DataOutputStream out, String value)
+        throws IOException {
+
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        final byte[] data = value.getBytes("UTF-8");
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        final int length = in.readInt();
+
+        if (length == -1)
+            return null;
+
+        if (length < 0)
+            throw new IOException("invalid string length: " + length);
+
+        final byte[] data = new byte[length];
+        in.readFully(data);
+        return new String(data, "UTF-8");
     }
 }
@@ -79,6 +79,39 @@ public interface IChat {
      */
     public List<ChatElement> getHistory();
 
+    /**
+     * Returns a page of the chat history for this chat.
+     * 
+     * @param fromIndex
+     *            the index of the first entry to return, must not be less than
+     *            {@link #getHistoryStartIndex()}
+     * @param count
+     *            the maximum number of entries to return
+     * @return the requested part of the chat history
+     */
+    public List<ChatElement> getHistory(long fromIndex, int count);
+
+    /**
+     * Returns the index of the oldest entry in the chat history.
+     * 
+     * @return the index of the oldest entry in the chat history
+     */
+    public long getHistoryStartIndex();
+
+    /**
+     * Returns the number of entries in the chat history.
+     * 
+     * @return the number of entries in the chat history
+     */
+    public int getHistorySize();
+
+    /**
+     * Returns the senders of all entries in the chat history.
+     * 
+     * @return the senders of all entries in the chat history
+     */
+    public Set<JID> getHistorySenders();
+
     /**
      * Clears the current chat history.
      */
@@ -211,7 +211,7 @@ public class MultiUserChat extends AbstractChat {
          */
         // this.setCurrentState(ChatState.gone);
 
-        clearHistory();
+        disposeHistory();
 
         // TODO just leave as the room is not persistent
         try {
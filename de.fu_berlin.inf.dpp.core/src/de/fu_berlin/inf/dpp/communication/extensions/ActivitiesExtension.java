@@ -69,6 +69,10 @@ public class ActivitiesExtension extends SarosSessionPacketExtension {
     @XStreamAsAttribute
     private final int sequenceNumber;
 
+    @XStreamAlias("ack")
+    @XStreamAsAttribute
+    private final Integer acknowledgedSequenceNumber;
+
     /**
      * Creates an object that can be transformed into a
      * {@linkplain PacketExtension} using the provider of this extension. All
@@ -85,12 +89,16 @@ public class ActivitiesExtension extends SarosSessionPacketExtension {
      * @param sequenceNumber
      *            the sequence number of the <b>first</b> {@linkplain IActivity
      *            activity}
+     * @param acknowledgedSequenceNumber
+     *            the sequence number of the next {@linkplain IActivity
+     *            activity} the sender expects from the recipient
      */
     public ActivitiesExtension(String sessionID, List<IActivity> activities,
-        int sequenceNumber) {
+        int sequenceNumber, int acknowledgedSequenceNumber) {
         super(sessionID);
         this.activities = activities;
         this.sequenceNumber = sequenceNumber;
+        this.acknowledgedSequenceNumber = acknowledgedSequenceNumber;
     }
 
     /**
@@ -118,6 +126,22 @@ public class ActivitiesExtension extends SarosSessionPacketExtension {
         return sequenceNumber;
     }
 
+    /**
+     * Returns the sequence number of the next {@linkplain IActivity activity}
+     * the sender of this extension expects from the recipient, i.e. all
+     * activities with a lower sequence number were received by the sender.
+     * 
+     * <p>
+     * An extension without any activities only carries this acknowledgement.
+     * </p>
+     * 
+     * @return the acknowledged sequence number or <code>null</code> if the
+     *         sender does not acknowledge received activities
+     */
+    public Integer getAcknowledgedSequenceNumber() {
+        return acknowledgedSequenceNumber;
+    }
+
     /**
      * @JTourBusStop 5, Creating a new Activity type, XStream registration:
      * 
@@ -0,0 +1,65 @@
+package de.fu_berlin.inf.dpp.communication.extensions;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+import com.thoughtworks.xstream.annotations.XStreamImplicit;
+
+/**
+ * Announces the archive of a project negotiation. The archive is transferred
+ * in chunks of the given size, the receiver can verify each chunk with its
+ * checksum and request missing or corrupted chunks again.
+ */
+@XStreamAlias(/* ProjectNegotiationArchive */"PNA")
+public class ProjectNegotiationArchiveExtension extends
+    ProjectNegotiationExtension {
+
+    public static final Provider PROVIDER = new Provider();
+
+    @XStreamAlias("s")
+    @XStreamAsAttribute
+    private final long archiveSize;
+
+    @XStreamAlias("cs")
+    @XStreamAsAttribute
+    private final int chunkSize;
+
+    @XStreamImplicit(itemFieldName = "c")
+    private final List<String> checksums;
+
+    public ProjectNegotiationArchiveExtension(String sessionID,
+        String negotiationID, long archiveSize, int chunkSize,
+        List<String> checksums) {
+        super(sessionID, negotiationID);
+        this.archiveSize = archiveSize;
+        this.chunkSize = chunkSize;
+        this.checksums = checksums;
+    }
+
+    public long getArchiveSize() {
+        return archiveSize;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the checksums of all chunks in their order in the archive.
+     */
+    public List<String> getChecksums() {
+        // XStream does not create empty implicit collections
+        return checksums == null ? Collections.<String> emptyList() : checksums;
+    }
+
+    public static class Provider
+        extends
+        ProjectNegotiationExtension.Provider<ProjectNegotiationArchiveExtension> {
+
+        private Provider() {
+            super("pna", ProjectNegotiationArchiveExtension.class);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package de.fu_berlin.inf.dpp.communication.extensions;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamImplicit;
+
+/**
+ * Requests chunks of the archive announced by a
+ * {@link ProjectNegotiationArchiveExtension}. An empty request acknowledges
+ * that the archive was received completely.
+ */
+@XStreamAlias(/* ProjectNegotiationArchiveRequest */"PNAR")
+public class ProjectNegotiationArchiveRequestExtension extends
+    ProjectNegotiationExtension {
+
+    public static final Provider PROVIDER = new Provider();
+
+    @XStreamImplicit(itemFieldName = "c")
+    private final List<Integer> chunks;
+
+    public ProjectNegotiationArchiveRequestExtension(String sessionID,
+        String negotiationID, List<Integer> chunks) {
+        super(sessionID, negotiationID);
+        this.chunks = chunks;
+    }
+
+    /**
+     * Returns the indices of the requested chunks in ascending order.
+     */
+    public List<Integer> getChunks() {
+        // XStream does not create empty implicit collections
+        return chunks == null ? Collections.<Integer> emptyList() : chunks;
+    }
+
+    public static class Provider
+        extends
+        ProjectNegotiationExtension.Provider<ProjectNegotiationArchiveRequestExtension> {
+
+        private Provider() {
+            super("pnar", ProjectNegotiationArchiveRequestExtension.class);
+        }
+    }
+}
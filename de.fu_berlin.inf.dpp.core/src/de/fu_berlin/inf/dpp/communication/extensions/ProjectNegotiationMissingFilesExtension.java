@@ -1,9 +1,11 @@
 package de.fu_berlin.inf.dpp.communication.extensions;
 
+import java.util.Collections;
 import java.util.List;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
 
+import de.fu_berlin.inf.dpp.negotiation.ChunkSignature;
 import de.fu_berlin.inf.dpp.negotiation.FileList;
 
 //TODO Move to core (package communication.extensions)
@@ -16,23 +18,39 @@ public class ProjectNegotiationMissingFilesExtension extends
 
     private final List<FileList> fileLists;
 
+    private final List<ChunkSignature> chunkSignatures;
+
+    /**
+     * @param fileLists
+     *            the files that are missing or differ, one list per project
+     * @param chunkSignatures
+     *            the chunk signatures of files that differ and should be
+     *            transferred as delta, may be <code>null</code>
+     */
     public ProjectNegotiationMissingFilesExtension(String sessionID,
-        String negotiationID, List<FileList> fileLists) {
+        String negotiationID, List<FileList> fileLists,
+        List<ChunkSignature> chunkSignatures) {
         super(sessionID, negotiationID);
         this.fileLists = fileLists;
+        this.chunkSignatures = chunkSignatures;
     }
 
     public List<FileList> getFileLists() {
         return fileLists;
     }
 
+    public List<ChunkSignature> getChunkSignatures() {
+        return chunkSignatures == null ? Collections
+            .<ChunkSignature> emptyList() : chunkSignatures;
+    }
+
     public static class Provider
         extends
         ProjectNegotiationExtension.Provider<ProjectNegotiationMissingFilesExtension> {
 
         private Provider() {
             super("pnmf", ProjectNegotiationMissingFilesExtension.class,
-                FileList.class);
+                FileList.class, ChunkSignature.class);
         }
     }
 }
@@ -33,7 +33,7 @@ import com.thoughtworks.xstream.annotations.XStreamConverter;
 
 import de.fu_berlin.inf.dpp.activities.SPath;
 import de.fu_berlin.inf.dpp.activities.TextEditActivity;
-import de.fu_berlin.inf.dpp.misc.xstream.UrlEncodingStringConverter;
+import de.fu_berlin.inf.dpp.misc.xstream.XmlTextConverter;
 import de.fu_berlin.inf.dpp.session.User;
 
 /**
@@ -46,7 +46,7 @@ public class DeleteOperation implements ITextOperation {
     /**
      * the text to be deleted.
      */
-    @XStreamConverter(UrlEncodingStringConverter.class)
+    @XStreamConverter(XmlTextConverter.class)
     private String text;
 
     /**
@@ -2,7 +2,9 @@ package de.fu_berlin.inf.dpp.context;
 
 import java.io.File;
 import java.util.List;
+import java.util.UUID;
 
+import org.apache.commons.io.FileUtils;
 import org.apache.log4j.Logger;
 import org.picocontainer.ComponentMonitor;
 import org.picocontainer.MutablePicoContainer;
@@ -14,6 +16,7 @@ import org.picocontainer.injectors.ConstructorInjection;
 import org.picocontainer.injectors.Reinjector;
 
 import de.fu_berlin.inf.dpp.account.XMPPAccountStore;
+import de.fu_berlin.inf.dpp.communication.chat.ChatHistory;
 import de.fu_berlin.inf.dpp.communication.extensions.ActivitiesExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.CancelInviteExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.CancelProjectNegotiationExtension;
@@ -29,6 +32,8 @@ import de.fu_berlin.inf.dpp.communication.extensions.KickUserExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.LeaveSessionExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.PingExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.PongExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationArchiveExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationArchiveRequestExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationMissingFilesExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationOfferingExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.SessionStatusRequestExtension;
@@ -41,6 +46,7 @@ import de.fu_berlin.inf.dpp.communication.extensions.UserListReceivedExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.VersionExchangeExtension;
 import de.fu_berlin.inf.dpp.net.util.XMPPUtils;
 import de.fu_berlin.inf.dpp.net.xmpp.XMPPConnectionService;
+import de.fu_berlin.inf.dpp.net.xmpp.discovery.DiscoveryManager;
 
 /**
  * @JTourBusStop 5, Some Basics:
@@ -78,7 +84,14 @@ public class ContainerContext implements IContainerContext {
 
     private static final String SAROS_XMPP_ACCOUNT_FILE = "config.dat";
 
+    private static final String SAROS_DISCOVERY_CACHE_FILE = "discovery.cache";
+
+    private static final String SAROS_CHAT_HISTORY_DIRECTORY = "chat";
+
     private final List<IContextFactory> factories;
+
+    /** directory of the chat history segments of this context */
+    private File chatHistoryDirectory;
     /**
      * A caching container which holds all the singletons in Saros.
      */
@@ -140,6 +153,9 @@ public class ContainerContext implements IContainerContext {
             Class.forName(ProjectNegotiationOfferingExtension.class.getName());
             Class.forName(ProjectNegotiationMissingFilesExtension.class
                 .getName());
+            Class.forName(ProjectNegotiationArchiveExtension.class.getName());
+            Class.forName(ProjectNegotiationArchiveRequestExtension.class
+                .getName());
 
             // General session extensions
             Class.forName(ActivitiesExtension.class.getName());
@@ -186,6 +202,10 @@ public class ContainerContext implements IContainerContext {
 
         initAccountStore(container.getComponent(XMPPAccountStore.class));
 
+        initDiscoveryManager(container.getComponent(DiscoveryManager.class));
+
+        initChatHistory();
+
         installPacketExtensionProviders();
 
         XMPPUtils.setDefaultConnectionService(container
@@ -223,10 +243,63 @@ public class ContainerContext implements IContainerContext {
         LOG.info("disposing context...");
         disposed = true;
         container.dispose();
+        disposeChatHistory();
         LOG.info("successfully disposed context");
     }
 
     private void initAccountStore(XMPPAccountStore store) {
+        File sarosDataDir = getSarosDataDirectory();
+
+        if (sarosDataDir == null) {
+            LOG.warn("home directory not set, cannot save and load account data");
+            return;
+        }
+
+        File accountFile = new File(sarosDataDir, SAROS_XMPP_ACCOUNT_FILE);
+
+        store.setAccountFile(accountFile, System.getProperty("user.name"));
+    }
+
+    private void initDiscoveryManager(DiscoveryManager discoveryManager) {
+        File sarosDataDir = getSarosDataDirectory();
+
+        if (sarosDataDir == null) {
+            LOG.warn("home directory not set, cannot save and load discovery cache");
+            return;
+        }
+
+        discoveryManager.setCacheFile(new File(sarosDataDir,
+            SAROS_DISCOVERY_CACHE_FILE));
+    }
+
+    private void initChatHistory() {
+        File sarosDataDir = getSarosDataDirectory();
+
+        if (sarosDataDir == null) {
+            LOG.warn("home directory not set, chat history is kept in memory only");
+            return;
+        }
+
+        // one directory per context, so it can be deleted as a whole
+        chatHistoryDirectory = new File(new File(sarosDataDir,
+            SAROS_CHAT_HISTORY_DIRECTORY), UUID.randomUUID().toString());
+
+        ChatHistory.setDefaultSegmentDirectory(chatHistoryDirectory);
+    }
+
+    private void disposeChatHistory() {
+        if (chatHistoryDirectory == null)
+            return;
+
+        ChatHistory.setDefaultSegmentDirectory(null);
+
+        if (!FileUtils.deleteQuietly(chatHistoryDirectory)
+            && chatHistoryDirectory.exists())
+            LOG.warn("could not delete chat history directory: "
+                + chatHistoryDirectory);
+    }
+
+    private File getSarosDataDirectory() {
         // see http://bugs.java.com/bugdatabase/view_bug.do?bug_id=4787931
 
         String os = System.getProperty("os.name");
@@ -249,15 +322,10 @@ public class ContainerContext implements IContainerContext {
         if (homeDirectory == null)
             homeDirectory = System.getProperty("user.home");
 
-        if (homeDirectory == null) {
-            LOG.warn("home directory not set, cannot save and load account data");
-            return;
-        }
-
-        File sarosDataDir = new File(homeDirectory, SAROS_DATA_DIRECTORY);
-        File accountFile = new File(sarosDataDir, SAROS_XMPP_ACCOUNT_FILE);
+        if (homeDirectory == null)
+            return null;
 
-        store.setAccountFile(accountFile, System.getProperty("user.name"));
+        return new File(homeDirectory, SAROS_DATA_DIRECTORY);
     }
 
     @Override
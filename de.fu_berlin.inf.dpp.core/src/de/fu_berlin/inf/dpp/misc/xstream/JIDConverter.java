@@ -18,11 +18,11 @@ public class JIDConverter extends AbstractSingleValueConverter {
 
     @Override
     public Object fromString(String str) {
-        return new JID(URLCodec.decode(str));
+        return new JID(XmlCodec.decode(str));
     }
 
     @Override
     public String toString(Object obj) {
-        return URLCodec.encode(((JID) obj).toString());
+        return XmlCodec.encode(((JID) obj).toString(), true);
     }
 }
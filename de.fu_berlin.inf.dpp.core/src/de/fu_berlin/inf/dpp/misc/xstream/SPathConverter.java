@@ -1,9 +1,15 @@
 package de.fu_berlin.inf.dpp.misc.xstream;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.apache.log4j.Logger;
 import org.picocontainer.Startable;
 
+import com.thoughtworks.xstream.converters.ConversionException;
 import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.DataHolder;
 import com.thoughtworks.xstream.converters.MarshallingContext;
 import com.thoughtworks.xstream.converters.UnmarshallingContext;
 import com.thoughtworks.xstream.io.HierarchicalStreamReader;
@@ -26,20 +32,53 @@ import de.fu_berlin.inf.dpp.session.ISarosSession;
  * {@linkplain IPath relative path} <code>"src/Main.java"</code>:
  * 
  * <pre>
- * &lt;SPath i="projA" p="src/Main.java" /&gt;
+ * &lt;SPath d="0" i="projA" p="src/Main.java" /&gt;
  * </pre>
+ * <p>
+ * Every distinct path is only written once per marshalled object graph (i.e
+ * once per activities packet). Later occurrences just reference the first one
+ * by its dictionary id:
+ *
+ * <pre>
+ * &lt;SPath d="0" /&gt;
+ * </pre>
+ *
+ * In addition the encoded and decoded paths are cached for the lifetime of the
+ * session, so paths that are send or received over and over again are neither
+ * encoded nor parsed again.
  */
 @Component
 public class SPathConverter implements Converter, Startable {
 
     private static final Logger LOG = Logger.getLogger(SPathConverter.class);
 
+    /**
+     * Marker for dictionary entries whose project is not shared (anymore).
+     */
+    private static final Object NULL_PATH = new Object();
+
     private static final String PATH = "p";
     private static final String PROJECT_ID = "i";
+    private static final String DICTIONARY_ID = "d";
+
+    /**
+     * Upper bound for the session caches, they are cleared if the bound is
+     * exceeded.
+     */
+    private static final int MAX_CACHE_SIZE = 4096;
 
     private final ISarosSession session;
     private final IPathFactory pathFactory;
 
+    /** key for the per marshalling / unmarshalling dictionary */
+    private final Object dictionaryKey = new Object();
+
+    /** project relative path -> encoded path */
+    private final Map<IPath, String> encodedPaths = new ConcurrentHashMap<IPath, String>();
+
+    /** project id + encoded path -> decoded path */
+    private final Map<String, SPath> decodedPaths = new ConcurrentHashMap<String, SPath>();
+
     public SPathConverter(ISarosSession session, IPathFactory pathFactory) {
         this.session = session;
         this.pathFactory = pathFactory;
@@ -53,6 +92,8 @@ public class SPathConverter implements Converter, Startable {
     @Override
     public void stop() {
         ActivitiesExtension.PROVIDER.unregisterConverter(this);
+        encodedPaths.clear();
+        decodedPaths.clear();
     }
 
     @SuppressWarnings("rawtypes")
@@ -75,20 +116,63 @@ public class SPathConverter implements Converter, Startable {
             return;
         }
 
-        String p = URLCodec.encode(pathFactory.fromPath(spath
-            .getProjectRelativePath()));
+        Map<SPath, Integer> dictionary = getDictionary(context);
+
+        Integer d = dictionary.get(spath);
 
+        if (d != null) {
+            writer.addAttribute(DICTIONARY_ID, String.valueOf(d));
+            return;
+        }
+
+        d = dictionary.size();
+        dictionary.put(spath, d);
+
+        writer.addAttribute(DICTIONARY_ID, String.valueOf(d));
         writer.addAttribute(PROJECT_ID, i);
-        writer.addAttribute(PATH, p);
+        writer.addAttribute(PATH, encode(spath.getProjectRelativePath()));
     }
 
     @Override
     public Object unmarshal(HierarchicalStreamReader reader,
         UnmarshallingContext context) {
 
+        String d = reader.getAttribute(DICTIONARY_ID);
         String i = reader.getAttribute(PROJECT_ID);
-        String p = URLCodec.decode(reader.getAttribute(PATH));
 
+        if (d != null && i == null) {
+            Object entry = getDictionary(context).get(d);
+
+            if (entry == null)
+                throw new ConversionException("unknown path reference: " + d);
+
+            return entry == NULL_PATH ? null : entry;
+        }
+
+        SPath spath = decode(i, reader.getAttribute(PATH));
+
+        if (d != null)
+            getDictionary(context).put(d, spath == null ? NULL_PATH : spath);
+
+        return spath;
+    }
+
+    private String encode(IPath path) {
+        String p = encodedPaths.get(path);
+
+        if (p != null)
+            return p;
+
+        p = XmlCodec.encode(pathFactory.fromPath(path), true);
+
+        if (encodedPaths.size() >= MAX_CACHE_SIZE)
+            encodedPaths.clear();
+
+        encodedPaths.put(path, p);
+        return p;
+    }
+
+    private SPath decode(String i, String p) {
         IProject project = session.getProject(i);
         if (project == null) {
             LOG.error("Could not create SPath because there is no shared project for id '"
@@ -96,8 +180,32 @@ public class SPathConverter implements Converter, Startable {
             return null;
         }
 
-        IPath path = pathFactory.fromString(p);
+        String key = i + ":" + p;
+
+        SPath spath = decodedPaths.get(key);
+
+        // the project may have been replaced in the meantime
+        if (spath != null && spath.getProject().equals(project))
+            return spath;
+
+        spath = new SPath(project, pathFactory.fromString(XmlCodec.decode(p)));
+
+        if (decodedPaths.size() >= MAX_CACHE_SIZE)
+            decodedPaths.clear();
+
+        decodedPaths.put(key, spath);
+        return spath;
+    }
+
+    @SuppressWarnings("unchecked")
+    private <K, V> Map<K, V> getDictionary(DataHolder context) {
+        Map<K, V> dictionary = (Map<K, V>) context.get(dictionaryKey);
+
+        if (dictionary == null) {
+            dictionary = new HashMap<K, V>();
+            context.put(dictionaryKey, dictionary);
+        }
 
-        return new SPath(project, path);
+        return dictionary;
     }
 }
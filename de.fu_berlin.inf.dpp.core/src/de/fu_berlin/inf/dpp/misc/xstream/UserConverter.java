@@ -1,5 +1,8 @@
 package de.fu_berlin.inf.dpp.misc.xstream;
 
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
 import org.picocontainer.Startable;
 
 import com.thoughtworks.xstream.converters.basic.AbstractSingleValueConverter;
@@ -13,13 +16,25 @@ import de.fu_berlin.inf.dpp.session.User;
 /**
  * Converts session-dependent User objects to session-independent XML
  * representations, and vice versa.
+ * <p>
+ * As every activity contains its source user, the encoded and decoded JIDs are
+ * cached for the lifetime of the session.
  */
 @Component
 public class UserConverter extends AbstractSingleValueConverter implements
     Startable {
 
+    /**
+     * Upper bound for the caches, they are cleared if the bound is exceeded.
+     */
+    private static final int MAX_CACHE_SIZE = 256;
+
     private ISarosSession session;
 
+    private final Map<JID, String> encodedJIDs = new ConcurrentHashMap<JID, String>();
+
+    private final Map<String, JID> decodedJIDs = new ConcurrentHashMap<String, JID>();
+
     public UserConverter(ISarosSession session) {
         this.session = session;
     }
@@ -32,6 +47,8 @@ public class UserConverter extends AbstractSingleValueConverter implements
     @Override
     public void stop() {
         ActivitiesExtension.PROVIDER.unregisterConverter(this);
+        encodedJIDs.clear();
+        decodedJIDs.clear();
     }
 
     @SuppressWarnings({ "rawtypes" })
@@ -43,12 +60,33 @@ public class UserConverter extends AbstractSingleValueConverter implements
     @Override
     public String toString(Object obj) {
         JID jid = ((User) obj).getJID();
-        return URLCodec.encode(jid.toString());
+
+        String str = encodedJIDs.get(jid);
+
+        if (str == null) {
+            str = XmlCodec.encode(jid.toString(), true);
+            put(encodedJIDs, jid, str);
+        }
+
+        return str;
     }
 
     @Override
     public Object fromString(String str) {
-        JID jid = new JID(URLCodec.decode(str));
+        JID jid = decodedJIDs.get(str);
+
+        if (jid == null) {
+            jid = new JID(XmlCodec.decode(str));
+            put(decodedJIDs, str, jid);
+        }
+
         return session.getUser(jid);
     }
+
+    private static <K, V> void put(Map<K, V> cache, K key, V value) {
+        if (cache.size() >= MAX_CACHE_SIZE)
+            cache.clear();
+
+        cache.put(key, value);
+    }
 }
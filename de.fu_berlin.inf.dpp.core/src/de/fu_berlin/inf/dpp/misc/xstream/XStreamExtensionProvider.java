@@ -110,7 +110,7 @@ public class XStreamExtensionProvider<T> implements PacketExtensionProvider,
             xstream.setClassLoader(getClass().getClassLoader());
 
         xstream.registerConverter(BooleanConverter.BINARY);
-        xstream.registerConverter(new UrlEncodingStringConverter());
+        xstream.registerConverter(new XmlStringConverter());
         xstream.processAnnotations(XStreamPacketExtension.class);
         xstream.processAnnotations(classes);
         xstream.alias(elementName, XStreamPacketExtension.class);
@@ -0,0 +1,157 @@
+package de.fu_berlin.inf.dpp.misc.xstream;
+
+/**
+ * Escapes the characters of a string that cannot be transported unchanged in
+ * an XML document. All other characters, including the XML markup characters
+ * which are already handled by the XML writer, are left untouched, so strings
+ * that need no escaping are neither copied nor expanded.
+ * <p>
+ * Escaped characters are written as <tt>%XX</tt> if they are less than
+ * <tt>0x100</tt> and as <tt>%uXXXX</tt> otherwise. Affected characters are the
+ * escape character itself, the control characters except carriage return,
+ * unpaired surrogates, <tt>0xFFFE</tt> and <tt>0xFFFF</tt>. Tabs and line feeds
+ * are only escaped on request as they are normalized in attribute values.
+ */
+class XmlCodec {
+
+    private static final char ESCAPE = '%';
+
+    private static final char UNICODE = 'u';
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    /**
+     * Escapes the given string.
+     *
+     * @param data
+     *            the string to escape
+     * @param escapeWhitespace
+     *            if <code>true</code> tabs and line feeds are escaped too,
+     *            which is necessary if the string is used as attribute value
+     * @return the escaped string, which is the given string itself if nothing
+     *         had to be escaped
+     */
+    static String encode(String data, boolean escapeWhitespace) {
+        final int length = data.length();
+
+        int i = 0;
+
+        while (i < length && !mustEscape(data, i, escapeWhitespace))
+            i++;
+
+        if (i == length)
+            return data;
+
+        final StringBuilder builder = new StringBuilder(length + 16);
+
+        builder.append(data, 0, i);
+
+        for (; i < length; i++) {
+            final char c = data.charAt(i);
+
+            if (!mustEscape(data, i, escapeWhitespace)) {
+                builder.append(c);
+                continue;
+            }
+
+            builder.append(ESCAPE);
+
+            if (c < 0x100) {
+                appendHex(builder, c, 2);
+            } else {
+                builder.append(UNICODE);
+                appendHex(builder, c, 4);
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Reverts the escaping of {@link #encode}.
+     *
+     * @throws IllegalArgumentException
+     *             if the string contains a malformed escape sequence
+     */
+    static String decode(String data) {
+        int i = data.indexOf(ESCAPE);
+
+        if (i == -1)
+            return data;
+
+        final int length = data.length();
+        final StringBuilder builder = new StringBuilder(length);
+
+        builder.append(data, 0, i);
+
+        while (i < length) {
+            final char c = data.charAt(i++);
+
+            if (c != ESCAPE) {
+                builder.append(c);
+                continue;
+            }
+
+            int digits = 2;
+
+            if (i < length && data.charAt(i) == UNICODE) {
+                digits = 4;
+                i++;
+            }
+
+            if (i + digits > length)
+                throw new IllegalArgumentException(
+                    "truncated escape sequence at index " + (i - 1) + ": "
+                        + data);
+
+            int value = 0;
+
+            for (int end = i + digits; i < end; i++) {
+                final int digit = Character.digit(data.charAt(i), 16);
+
+                if (digit == -1)
+                    throw new IllegalArgumentException(
+                        "malformed escape sequence at index " + i + ": "
+                            + data);
+
+                value = (value << 4) | digit;
+            }
+
+            builder.append((char) value);
+        }
+
+        return builder.toString();
+    }
+
+    private static boolean mustEscape(String data, int index,
+        boolean escapeWhitespace) {
+
+        final char c = data.charAt(index);
+
+        if (c >= 0x20 && c < 0xD800)
+            return c == ESCAPE;
+
+        if (c < 0x20) {
+            if (c == '\r')
+                return false;
+
+            return escapeWhitespace || (c != '\t' && c != '\n');
+        }
+
+        if (Character.isHighSurrogate(c))
+            return index + 1 == data.length()
+                || !Character.isLowSurrogate(data.charAt(index + 1));
+
+        if (Character.isLowSurrogate(c))
+            return index == 0
+                || !Character.isHighSurrogate(data.charAt(index - 1));
+
+        return c == 0xFFFE || c == 0xFFFF;
+    }
+
+    private static void appendHex(StringBuilder builder, int value,
+        int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4)
+            builder.append(HEX_DIGITS[(value >> shift) & 0xF]);
+    }
+}
@@ -0,0 +1,43 @@
+package de.fu_berlin.inf.dpp.misc.xstream;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.basic.AbstractSingleValueConverter;
+
+/**
+ * Converter for strings that escapes only the characters XML cannot transport
+ * unchanged. The strings can be used as attribute values.
+ *
+ * @see XmlTextConverter
+ */
+public class XmlStringConverter extends AbstractSingleValueConverter {
+
+    private final boolean escapeWhitespace;
+
+    public XmlStringConverter() {
+        this(true);
+    }
+
+    XmlStringConverter(boolean escapeWhitespace) {
+        this.escapeWhitespace = escapeWhitespace;
+    }
+
+    @SuppressWarnings({ "rawtypes" })
+    @Override
+    public boolean canConvert(Class clazz) {
+        return clazz.equals(String.class);
+    }
+
+    @Override
+    public Object fromString(String s) {
+        try {
+            return XmlCodec.decode(s);
+        } catch (IllegalArgumentException e) {
+            throw new ConversionException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public String toString(Object obj) {
+        return XmlCodec.encode((String) obj, escapeWhitespace);
+    }
+}
@@ -0,0 +1,13 @@
+package de.fu_berlin.inf.dpp.misc.xstream;
+
+/**
+ * Converter for strings that are written as element content, e.g. the text of
+ * text operations. Unlike {@link XmlStringConverter} it keeps tabs and line
+ * feeds as they are, so it <b>must not</b> be used for attribute values.
+ */
+public class XmlTextConverter extends XmlStringConverter {
+
+    public XmlTextConverter() {
+        super(false);
+    }
+}
@@ -0,0 +1,172 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+/**
+ * Utility methods to transfer an archive in chunks. Each chunk is identified by
+ * its index and verified with the MD5 checksum of its content.
+ */
+final class ArchiveChunks {
+
+    /** separates the transfer id from the chunk index in the description */
+    static final char INDEX_SEPARATOR = '#';
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private ArchiveChunks() {
+        // NOP
+    }
+
+    /**
+     * Returns the number of chunks of an archive with the given size.
+     */
+    static int getChunkCount(final long archiveSize, final int chunkSize) {
+        return (int) ((archiveSize + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Returns the transfer description of the chunk with the given index.
+     */
+    static String getDescription(final String transferID, final int index) {
+        return transferID + INDEX_SEPARATOR + index;
+    }
+
+    /**
+     * Returns the chunk index of the given transfer description.
+     *
+     * @return the index or -1 if the description does not belong to a chunk
+     *         of the given transfer
+     */
+    static int getIndex(final String transferID, final String description) {
+        if (description == null
+            || description.length() <= transferID.length() + 1
+            || !description.startsWith(transferID)
+            || description.charAt(transferID.length()) != INDEX_SEPARATOR)
+            return -1;
+
+        try {
+            return Integer.parseInt(description.substring(transferID
+                .length() + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Opens a stream that reads the chunk with the given index.
+     */
+    static InputStream openChunk(final File archive, final int chunkSize,
+        final int index) throws IOException {
+
+        final FileInputStream in = new FileInputStream(archive);
+
+        try {
+            in.getChannel().position((long) index * chunkSize);
+        } catch (IOException e) {
+            IOUtils.closeQuietly(in);
+            throw e;
+        }
+
+        return new BoundedInputStream(in, chunkSize);
+    }
+
+    /**
+     * Returns the size of the chunk with the given index.
+     */
+    static long getChunkSize(final long archiveSize, final int chunkSize,
+        final int index) {
+        return Math.min(chunkSize, archiveSize - (long) index * chunkSize);
+    }
+
+    /**
+     * Computes the checksums of all chunks of the given archive.
+     */
+    static List<String> computeChecksums(final File archive,
+        final int chunkSize) throws IOException {
+
+        final int chunks = getChunkCount(archive.length(), chunkSize);
+        final List<String> checksums = new ArrayList<String>(chunks);
+
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        final InputStream in = new FileInputStream(archive);
+
+        try {
+            for (int i = 0; i < chunks; i++)
+                checksums.add(checksum(new BoundedInputStream(in, chunkSize),
+                    buffer));
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        return checksums;
+    }
+
+    /**
+     * Computes the checksum of the given chunk file.
+     */
+    static String computeChecksum(final File chunk) throws IOException {
+        final InputStream in = new FileInputStream(chunk);
+
+        try {
+            return checksum(in, new byte[BUFFER_SIZE]);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Concatenates the given chunk files to the archive.
+     */
+    static void join(final List<File> chunks, final File archive)
+        throws IOException {
+
+        final OutputStream out = new FileOutputStream(archive);
+
+        try {
+            for (final File chunk : chunks) {
+                final InputStream in = new FileInputStream(chunk);
+
+                try {
+                    IOUtils.copyLarge(in, out);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String checksum(final InputStream in, final byte[] buffer)
+        throws IOException {
+
+        final MessageDigest digest;
+
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        int read;
+
+        while ((read = in.read(buffer)) != -1)
+            digest.update(buffer, 0, read);
+
+        return new String(Hex.encodeHex(digest.digest()));
+    }
+}
@@ -0,0 +1,89 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+
+/**
+ * The checksums of the content defined chunks of a file that already exists
+ * on the receiving side of a project negotiation. The sending side uses them
+ * to transfer only the chunks that are missing, see {@link FileDelta}.
+ */
+@XStreamAlias("CHUNKS")
+public class ChunkSignature {
+
+    @XStreamAlias("pid")
+    @XStreamAsAttribute
+    private final String projectID;
+
+    @XStreamAlias("path")
+    @XStreamAsAttribute
+    private final String path;
+
+    /** the concatenated MD5 checksums of all chunks, Base64 encoded */
+    @XStreamAlias("h")
+    private final String checksums;
+
+    /**
+     * @param projectID
+     *            the id of the project the file belongs to
+     * @param path
+     *            the project relative path of the file
+     * @param checksums
+     *            the MD5 checksums of the chunks of the file
+     */
+    public ChunkSignature(String projectID, String path,
+        List<byte[]> checksums) {
+        this.projectID = projectID;
+        this.path = path;
+
+        final int size = FileDelta.CHECKSUM_SIZE;
+        final byte[] data = new byte[checksums.size() * size];
+
+        for (int i = 0; i < checksums.size(); i++)
+            System.arraycopy(checksums.get(i), 0, data, i * size, size);
+
+        this.checksums = new String(Base64.encodeBase64(data));
+    }
+
+    public String getProjectID() {
+        return projectID;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the checksums of all chunks as hex strings.
+     */
+    Set<String> getChecksums() {
+        final Set<String> result = new HashSet<String>();
+
+        if (checksums == null)
+            return result;
+
+        final byte[] data = Base64.decodeBase64(checksums.getBytes());
+        final int size = FileDelta.CHECKSUM_SIZE;
+        final byte[] checksum = new byte[size];
+
+        for (int i = 0; i < data.length / size; i++) {
+            System.arraycopy(data, i * size, checksum, 0, size);
+            result.add(new String(Hex.encodeHex(checksum)));
+        }
+
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "ChunkSignature [projectID=" + projectID + ", path=" + path
+            + "]";
+    }
+}
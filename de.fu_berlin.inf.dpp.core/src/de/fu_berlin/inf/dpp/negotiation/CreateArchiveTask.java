@@ -1,13 +1,31 @@
 package de.fu_berlin.inf.dpp.negotiation;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -21,25 +39,82 @@ import de.fu_berlin.inf.dpp.filesystem.IWorkspaceRunnable;
 import de.fu_berlin.inf.dpp.monitoring.IProgressMonitor;
 import de.fu_berlin.inf.dpp.monitoring.NullProgressMonitor;
 import de.fu_berlin.inf.dpp.util.CoreUtils;
+import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
 
 // TODO java doc
 public class CreateArchiveTask implements IWorkspaceRunnable {
 
     private static final int BUFFER_SIZE = 32 * 1024;
 
+    /**
+     * the monitor is updated and checked for cancellation after this amount of
+     * bytes was read
+     */
+    private static final long PROGRESS_INTERVAL_BYTES = 1024 * 1024;
+
+    /** number of threads used to compress the files */
+    static final int THREADS = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.negotiation.ARCHIVE_THREADS", Runtime
+            .getRuntime().availableProcessors());
+
+    /**
+     * larger files are not held in memory, they are compressed while they are
+     * written to the archive
+     */
+    private static final long MAX_PARALLEL_ENTRY_SIZE = 1024 * 1024;
+
+    /** larger archives are written sequentially as they need ZIP64 */
+    private static final long MAX_PARALLEL_ARCHIVE_SIZE = 0xFFFFFFFFL;
+
+    /** minimum time between two sub task updates of the monitor */
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
+    /**
+     * file extensions of formats whose content is already compressed, these
+     * files are stored without being deflated again
+     */
+    private static final Set<String> COMPRESSED_FILE_EXTENSIONS = new HashSet<String>(
+        Arrays.asList("7z", "apk", "avi", "bz2", "docx", "ear", "flv",
+            "gif", "gz", "jar", "jpeg", "jpg", "mkv", "mov", "mp3", "mp4",
+            "ogg", "pdf", "png", "pptx", "rar", "tgz", "war", "webm", "webp",
+            "xlsx", "xz", "zip"));
+
     private static final Logger LOG = Logger.getLogger(CreateArchiveTask.class);
 
     private final File archive;
     private final List<IFile> files;
     private final List<String> alias;
     private final IProgressMonitor monitor;
+    private final int threads;
+    private final ProjectNegotiationCache cache;
+    private final Map<String, ChunkSignature> signatures;
 
     public CreateArchiveTask(final File archive, final List<IFile> files,
         final List<String> alias, final IProgressMonitor monitor) {
+        this(archive, files, alias, monitor, THREADS, null, null);
+    }
+
+    /**
+     * @param threads
+     *            the number of threads used to compress the files
+     * @param cache
+     *            cache of already compressed files or <code>null</code>
+     * @param signatures
+     *            chunk signatures of files the receiver already has, keyed by
+     *            entry name, these files are written as {@link FileDelta
+     *            delta} if possible, may be <code>null</code>
+     */
+    CreateArchiveTask(final File archive, final List<IFile> files,
+        final List<String> alias, final IProgressMonitor monitor,
+        final int threads, final ProjectNegotiationCache cache,
+        final Map<String, ChunkSignature> signatures) {
         this.archive = archive;
         this.files = files;
         this.alias = alias;
         this.monitor = monitor;
+        this.threads = threads;
+        this.cache = cache;
+        this.signatures = signatures;
     }
 
     @Override
@@ -53,98 +128,511 @@ public class CreateArchiveTask implements IWorkspaceRunnable {
 
         assert files.size() == alias.size();
 
-        long totalSize = getTotalFileSize(files);
+        final long totalSize = getTotalFileSize(files);
 
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
 
-        final Iterator<IFile> fileIt = files.iterator();
-        final Iterator<String> aliasIt = alias == null ? null : alias
-            .iterator();
-
-        long totalRead = 0L;
+        final List<String> entryNames = getEntryNames();
 
         boolean cleanup = true;
 
-        byte[] buffer = new byte[BUFFER_SIZE];
-
-        ZipOutputStream zipStream = null;
+        OutputStream out = null;
 
         monitor.beginTask("Compressing files...", 100 /* percent */);
 
         try {
-            zipStream = new ZipOutputStream(new BufferedOutputStream(
-                new FileOutputStream(archive), BUFFER_SIZE));
+            out = new BufferedOutputStream(new FileOutputStream(archive),
+                BUFFER_SIZE);
+
+            final boolean parallel = threads > 1 && files.size() > 1;
+
+            // cached entries can only be written by the zip archive writer
+            if ((parallel || cache != null)
+                && files.size() <= ZipArchiveWriter.MAX_ENTRIES
+                && totalSize < MAX_PARALLEL_ARCHIVE_SIZE)
+                compressParallel(monitor, entryNames, totalSize, out);
+            else
+                compress(monitor, entryNames, totalSize, out);
+
+            out.flush();
+            cleanup = false;
+        } finally {
+            IOUtils.closeQuietly(out);
+            if (cleanup && archive != null && archive.exists()
+                && !archive.delete())
+                LOG.warn("could not delete archive file: " + archive);
 
-            while (fileIt.hasNext()) {
+            monitor.done();
+        }
 
-                IFile file = fileIt.next();
+        stopWatch.stop();
 
-                String entryName = null;
+        LOG.debug(String.format("created archive %s I/O: [%s]",
+            archive.getAbsolutePath(),
+            CoreUtils.throughput(archive.length(), stopWatch.getTime())));
 
-                final String originalEntryName = file.getFullPath().toString();
+    }
+
+    /**
+     * Compresses all files one after another on the current thread.
+     */
+    private void compress(final IProgressMonitor monitor,
+        final List<String> entryNames, final long totalSize,
+        final OutputStream out) throws IOException,
+        OperationCanceledException {
+
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        final ZipOutputStream zipStream = new ZipOutputStream(out);
+
+        for (int i = 0; i < files.size(); i++) {
+
+            final IFile file = files.get(i);
+
+            final String originalEntryName = file.getFullPath().toString();
+
+            beginEntry(monitor, originalEntryName);
+
+            final byte[] delta = createDelta(file, entryNames.get(i));
+
+            if (delta != null) {
+                zipStream.setLevel(Deflater.DEFAULT_COMPRESSION);
+                zipStream.putNextEntry(new ZipEntry(FileDelta.ENTRY_PREFIX
+                    + entryNames.get(i)));
+                zipStream.write(delta);
+                zipStream.closeEntry();
+
+                totalRead += file.getSize();
+                updateMonitor(monitor, totalRead, totalSize);
+                continue;
+            }
+
+            if (isCompressed(file.getName()))
+                zipStream.setLevel(Deflater.NO_COMPRESSION);
+            else
+                zipStream.setLevel(Deflater.DEFAULT_COMPRESSION);
+
+            zipStream.putNextEntry(new ZipEntry(entryNames.get(i)));
+
+            InputStream in = null;
+
+            try {
+
+                int read = 0;
+
+                in = file.getContents();
+
+                while ((read = in.read(buffer)) > 0) {
 
-                if (aliasIt != null && aliasIt.hasNext())
-                    entryName = aliasIt.next();
+                    zipStream.write(buffer, 0, read);
 
-                if (entryName == null)
-                    entryName = originalEntryName;
+                    totalRead += read;
 
-                if (LOG.isTraceEnabled())
-                    LOG.trace("compressing file: " + originalEntryName);
+                    if (totalRead < nextProgressUpdate)
+                        continue;
 
-                monitor.subTask("compressing file: " + originalEntryName);
+                    nextProgressUpdate = totalRead + PROGRESS_INTERVAL_BYTES;
 
-                zipStream.putNextEntry(new ZipEntry(entryName));
+                    if (monitor.isCanceled())
+                        throw new OperationCanceledException(
+                            "compressing of file '" + originalEntryName
+                                + "' was canceled");
 
-                InputStream in = null;
+                    updateMonitor(monitor, totalRead, totalSize);
+                }
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+            zipStream.closeEntry();
+        }
 
-                try {
+        updateMonitor(monitor, totalRead, totalSize);
 
-                    int read = 0;
+        zipStream.finish();
+    }
+
+    /**
+     * Reads and compresses the files on a worker pool. The compressed entries
+     * are written in their original order by the current thread while the
+     * workers already process the next files. Large files are compressed
+     * while they are written so only small files are held in memory. Small
+     * files that are found unchanged in the cache are not compressed again.
+     */
+    private void compressParallel(final IProgressMonitor monitor,
+        final List<String> entryNames, final long totalSize,
+        final OutputStream out) throws IOException,
+        OperationCanceledException {
 
-                    in = file.getContents();
+        final byte[] buffer = new byte[BUFFER_SIZE];
 
-                    while ((read = in.read(buffer)) > 0) {
+        final ZipArchiveWriter writer = new ZipArchiveWriter(out);
 
-                        if (monitor.isCanceled())
-                            throw new OperationCanceledException(
-                                "compressing of file '" + originalEntryName
-                                    + "' was canceled");
+        final ExecutorService executor = Executors.newFixedThreadPool(
+            Math.max(1, threads), new NamedThreadFactory("CreateArchive-"));
 
-                        zipStream.write(buffer, 0, read);
+        final LinkedList<Future<CompressedEntry>> pendingEntries = new LinkedList<Future<CompressedEntry>>();
 
-                        totalRead += read;
+        int nextFileToSubmit = 0;
 
-                        updateMonitor(monitor, totalRead, totalSize);
+        try {
+            for (int i = 0; i < files.size(); i++) {
+
+                while (nextFileToSubmit < files.size()
+                    && pendingEntries.size() < Math.max(1, threads) * 2) {
+
+                    // files that may be written as delta are read later
+                    if (hasSignature(entryNames.get(nextFileToSubmit))) {
+                        pendingEntries.add(null);
+                        nextFileToSubmit++;
+                        continue;
                     }
-                } finally {
-                    IOUtils.closeQuietly(in);
+
+                    pendingEntries.add(executor.submit(new CompressTask(files
+                        .get(nextFileToSubmit++), cache)));
                 }
-                zipStream.closeEntry();
+
+                final IFile file = files.get(i);
+
+                final String originalEntryName = file.getFullPath().toString();
+
+                beginEntry(monitor, originalEntryName);
+
+                final Future<CompressedEntry> pendingEntry = pendingEntries
+                    .removeFirst();
+
+                final byte[] delta = pendingEntry == null ? createDelta(file,
+                    entryNames.get(i)) : null;
+
+                final CompressedEntry entry = pendingEntry == null ? null
+                    : getEntry(pendingEntry);
+
+                if (delta != null) {
+                    writer.writeEntry(FileDelta.ENTRY_PREFIX
+                        + entryNames.get(i), new ByteArrayInputStream(delta),
+                        Deflater.DEFAULT_COMPRESSION, buffer);
+
+                    totalRead += file.getSize();
+                } else if (entry != null) {
+                    writer.writeEntry(entryNames.get(i), entry.method,
+                        entry.crc, entry.size, entry.data, entry.length);
+
+                    totalRead += entry.size;
+                } else {
+                    int level = Deflater.DEFAULT_COMPRESSION;
+
+                    if (isCompressed(file.getName()))
+                        level = Deflater.NO_COMPRESSION;
+
+                    InputStream in = null;
+
+                    try {
+                        in = new MonitoredInputStream(file.getContents(),
+                            monitor, totalSize);
+                        writer.writeEntry(entryNames.get(i), in, level, buffer);
+                    } catch (CanceledIOException e) {
+                        throw new OperationCanceledException(
+                            "compressing of file '" + originalEntryName
+                                + "' was canceled");
+                    } finally {
+                        IOUtils.closeQuietly(in);
+                    }
+                }
+
+                updateMonitor(monitor, totalRead, totalSize);
             }
 
-            zipStream.finish();
-            cleanup = false;
+            writer.finish();
         } finally {
-            IOUtils.closeQuietly(zipStream);
-            if (cleanup && archive != null && archive.exists()
-                && !archive.delete())
-                LOG.warn("could not delete archive file: " + archive);
+            executor.shutdownNow();
+        }
+    }
 
-            monitor.done();
+    private void beginEntry(final IProgressMonitor monitor,
+        final String originalEntryName) throws OperationCanceledException {
+
+        if (LOG.isTraceEnabled())
+            LOG.trace("compressing file: " + originalEntryName);
+
+        if (monitor.isCanceled())
+            throw new OperationCanceledException("compressing of file '"
+                + originalEntryName + "' was canceled");
+
+        final long currentTime = System.currentTimeMillis();
+
+        if (currentTime - lastSubTaskTime >= PROGRESS_INTERVAL_MILLIS) {
+            monitor.subTask("compressing file: " + originalEntryName);
+            lastSubTaskTime = currentTime;
         }
+    }
 
-        stopWatch.stop();
+    private boolean hasSignature(final String entryName) {
+        return signatures != null && signatures.containsKey(entryName);
+    }
 
-        LOG.debug(String.format("created archive %s I/O: [%s]",
-            archive.getAbsolutePath(),
-            CoreUtils.throughput(archive.length(), stopWatch.getTime())));
+    /**
+     * Creates the delta of the given file if the receiver already has a
+     * version of it.
+     *
+     * @return the delta or <code>null</code> if the file must be written
+     *         completely
+     */
+    private byte[] createDelta(final IFile file, final String entryName)
+        throws IOException {
 
+        if (!hasSignature(entryName)
+            || file.getSize() > FileDelta.MAX_FILE_SIZE)
+            return null;
+
+        final byte[] content;
+
+        InputStream in = null;
+
+        try {
+            in = file.getContents();
+            content = IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        final byte[] delta = FileDelta.create(content,
+            signatures.get(entryName));
+
+        if (delta != null && LOG.isTraceEnabled())
+            LOG.trace("writing delta of file " + entryName + ", size: "
+                + delta.length + " of " + content.length);
+
+        return delta;
+    }
+
+    private static CompressedEntry getEntry(
+        final Future<CompressedEntry> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(
+                "interrupted while compressing files");
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+
+            throw new IOException("failed to compress file", cause);
+        }
+    }
+
+    private List<String> getEntryNames() {
+        final List<String> entryNames = new ArrayList<String>(files.size());
+
+        final Iterator<String> aliasIt = alias == null ? null : alias
+            .iterator();
+
+        for (final IFile file : files) {
+            String entryName = null;
+
+            if (aliasIt != null && aliasIt.hasNext())
+                entryName = aliasIt.next();
+
+            if (entryName == null)
+                entryName = file.getFullPath().toString();
+
+            entryNames.add(entryName);
+        }
+
+        return entryNames;
+    }
+
+    /**
+     * Counts the bytes of a file that is compressed while it is written to the
+     * archive, updates the monitor and checks it for cancellation like
+     * {@link #compress} does.
+     */
+    private class MonitoredInputStream extends FilterInputStream {
+
+        private final IProgressMonitor monitor;
+        private final long totalSize;
+
+        private MonitoredInputStream(final InputStream in,
+            final IProgressMonitor monitor, final long totalSize) {
+            super(in);
+            this.monitor = monitor;
+            this.totalSize = totalSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+
+            if (b != -1)
+                count(1);
+
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int read = super.read(b, off, len);
+
+            if (read > 0)
+                count(read);
+
+            return read;
+        }
+
+        private void count(final int read) throws IOException {
+            totalRead += read;
+
+            if (totalRead < nextProgressUpdate)
+                return;
+
+            nextProgressUpdate = totalRead + PROGRESS_INTERVAL_BYTES;
+
+            if (monitor.isCanceled())
+                throw new CanceledIOException();
+
+            updateMonitor(monitor, totalRead, totalSize);
+        }
+    }
+
+    /**
+     * Thrown by a {@link MonitoredInputStream} to abort the entry that is
+     * currently written.
+     */
+    private static class CanceledIOException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * A file that was compressed in memory.
+     */
+    static final class CompressedEntry {
+        int method;
+        long crc;
+        long size;
+        byte[] data;
+        int length;
+    }
+
+    /**
+     * Reads and compresses a file in memory. Returns <code>null</code> if the
+     * file is too large to be held in memory.
+     */
+    private static class CompressTask implements Callable<CompressedEntry> {
+
+        private final IFile file;
+        private final ProjectNegotiationCache cache;
+
+        private CompressTask(final IFile file,
+            final ProjectNegotiationCache cache) {
+            this.file = file;
+            this.cache = cache;
+        }
+
+        @Override
+        public CompressedEntry call() throws IOException {
+            if (file.getSize() > MAX_PARALLEL_ENTRY_SIZE)
+                return null;
+
+            final byte[] content;
+
+            InputStream in = null;
+
+            try {
+                in = file.getContents();
+                content = IOUtils.toByteArray(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+
+            final CRC32 crc = new CRC32();
+            crc.update(content);
+
+            final String path = file.getFullPath().toString();
+
+            if (cache != null) {
+                final CompressedEntry cached = cache.getCompressedEntry(path,
+                    crc.getValue(), content.length);
+
+                if (cached != null)
+                    return cached;
+            }
+
+            final CompressedEntry entry = new CompressedEntry();
+
+            entry.method = ZipEntry.STORED;
+            entry.crc = crc.getValue();
+            entry.size = content.length;
+            entry.data = content;
+            entry.length = content.length;
+
+            if (!isCompressed(file.getName()))
+                deflate(content, entry);
+
+            if (cache != null) {
+                // do not keep the unused part of the output buffer
+                if (entry.data.length != entry.length)
+                    entry.data = Arrays.copyOf(entry.data, entry.length);
+
+                cache.putCompressedEntry(path, entry);
+            }
+
+            return entry;
+        }
+
+        private static void deflate(final byte[] content,
+            final CompressedEntry entry) {
+            /*
+             * the output buffer has the size of the input, if it does not
+             * suffice the file is stored instead
+             */
+            final byte[] deflated = new byte[content.length];
+            final Deflater deflater = new Deflater(
+                Deflater.DEFAULT_COMPRESSION, true);
+
+            try {
+                deflater.setInput(content);
+                deflater.finish();
+
+                final int length = deflater.deflate(deflated);
+
+                if (deflater.finished()) {
+                    entry.method = ZipEntry.DEFLATED;
+                    entry.data = deflated;
+                    entry.length = length;
+                }
+            } finally {
+                deflater.end();
+            }
+        }
     }
 
     private int lastWorked = 0;
 
+    private long totalRead = 0L;
+
+    private long nextProgressUpdate = PROGRESS_INTERVAL_BYTES;
+
+    private long lastSubTaskTime = 0L;
+
+    /**
+     * Returns whether the file with the given name is stored in a format that
+     * is already compressed, judging by its file extension.
+     */
+    static boolean isCompressed(final String name) {
+        final int extensionIdx = name.lastIndexOf('.');
+
+        if (extensionIdx == -1)
+            return false;
+
+        return COMPRESSED_FILE_EXTENSIONS.contains(name.substring(
+            extensionIdx + 1).toLowerCase(Locale.ENGLISH));
+    }
+
     private void updateMonitor(final IProgressMonitor monitor,
         final long totalRead, final long totalSize) {
 
@@ -1,5 +1,6 @@
 package de.fu_berlin.inf.dpp.negotiation;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -8,6 +9,7 @@ import java.util.Map;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 
 import de.fu_berlin.inf.dpp.exceptions.OperationCanceledException;
@@ -24,6 +26,9 @@ public class DecompressArchiveTask implements IWorkspaceRunnable {
     private static final Logger LOG = Logger
         .getLogger(DecompressArchiveTask.class);
 
+    /** minimum time between two sub task updates of the monitor */
+    private static final long PROGRESS_INTERVAL_MILLIS = 100;
+
     private final File file;
     private final IProgressMonitor monitor;
     private final Map<String, IProject> idToProjectMapping;
@@ -34,6 +39,9 @@ public class DecompressArchiveTask implements IWorkspaceRunnable {
      * {@link IWorkspace#run}. All necessary folders will be created on the fly.
      * </P> <b>Important:</b> Existing files will be <b>overwritten without
      * confirmation</b>!
+     * <p>
+     * Entries that contain a {@link FileDelta delta} are applied to the
+     * existing file.
      * 
      * @param file
      *            Zip file containing the compressed data
@@ -68,6 +76,8 @@ public class DecompressArchiveTask implements IWorkspaceRunnable {
 
         ZipFile zipFile = null;
 
+        long lastSubTaskTime = 0L;
+
         try {
 
             zipFile = new ZipFile(file);
@@ -80,12 +90,16 @@ public class DecompressArchiveTask implements IWorkspaceRunnable {
 
                 final ZipEntry entry = entries.nextElement();
 
-                final String entryName = entry.getName();
+                final boolean isDelta = entry.getName().startsWith(
+                    FileDelta.ENTRY_PREFIX);
+
+                final String entryName = isDelta ? entry.getName().substring(
+                    FileDelta.ENTRY_PREFIX.length()) : entry.getName();
 
                 if (monitor.isCanceled())
                     throw new OperationCanceledException();
 
-                final int delimiterIdx = entry.getName().indexOf(delimiter);
+                final int delimiterIdx = entryName.indexOf(delimiter);
 
                 if (delimiterIdx == -1) {
                     LOG.warn("skipping zip entry " + entryName
@@ -114,9 +128,17 @@ public class DecompressArchiveTask implements IWorkspaceRunnable {
 
                 FileSystem.createFolder(decompressedFile);
 
-                monitor.subTask("decompressing: " + path);
+                final long currentTime = System.currentTimeMillis();
+
+                if (currentTime - lastSubTaskTime >= PROGRESS_INTERVAL_MILLIS) {
+                    monitor.subTask("decompressing: " + path);
+                    lastSubTaskTime = currentTime;
+                }
 
-                final InputStream in = zipFile.getInputStream(entry);
+                InputStream in = zipFile.getInputStream(entry);
+
+                if (isDelta)
+                    in = applyDelta(decompressedFile, in);
 
                 /*
                  * FIXME make it possible to cancel the task during
@@ -145,4 +167,29 @@ public class DecompressArchiveTask implements IWorkspaceRunnable {
             }
         }
     }
+
+    /**
+     * Returns the content of the given file after the delta was applied to its
+     * current content.
+     */
+    private static InputStream applyDelta(final IFile file,
+        final InputStream delta) throws IOException {
+
+        if (!file.exists())
+            throw new IOException("cannot apply delta, file does not exist: "
+                + file);
+
+        final byte[] content;
+
+        InputStream in = null;
+
+        try {
+            in = file.getContents();
+            content = IOUtils.toByteArray(in);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        return new ByteArrayInputStream(FileDelta.apply(content, delta));
+    }
 }
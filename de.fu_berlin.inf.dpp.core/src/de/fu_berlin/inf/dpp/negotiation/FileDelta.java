@@ -0,0 +1,250 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Transfers only the changed parts of a file that already exists on the
+ * receiving side. Both sides split the file into content defined chunks, so
+ * an insertion or deletion only changes the chunks around it. The receiver
+ * sends the checksums of its chunks as a {@link ChunkSignature}, the sender
+ * answers with a delta that refers to the chunks the receiver already has and
+ * contains the data of all other chunks.
+ * <p>
+ * The chunk boundaries are found with a gear based rolling hash. Chunks are
+ * between {@value #MIN_CHUNK_SIZE} and {@value #MAX_CHUNK_SIZE} bytes long
+ * and about 10 KiB on average.
+ */
+final class FileDelta {
+
+    /** prefix of archive entries that contain a delta instead of a file */
+    static final String ENTRY_PREFIX = "#delta#";
+
+    /** larger files are always transferred completely */
+    static final long MAX_FILE_SIZE = 16 * 1024 * 1024;
+
+    static final int CHECKSUM_SIZE = 16;
+
+    static final int MIN_CHUNK_SIZE = 2 * 1024;
+
+    static final int MAX_CHUNK_SIZE = 64 * 1024;
+
+    /** a boundary is found on average every 8 KiB after the minimum size */
+    private static final long BOUNDARY_MASK = 0x1FFFL << 51;
+
+    private static final long[] GEAR = new long[256];
+
+    private static final int OP_COPY = 0;
+
+    private static final int OP_DATA = 1;
+
+    private static final int OP_END = 2;
+
+    static {
+        // both sides must use the same table
+        final Random random = new Random(0x5A705L);
+
+        for (int i = 0; i < GEAR.length; i++)
+            GEAR[i] = random.nextLong();
+    }
+
+    private FileDelta() {
+        // NOP
+    }
+
+    /**
+     * Creates the chunk signature of the given file content.
+     */
+    static ChunkSignature createSignature(final String projectID,
+        final String path, final byte[] content) {
+
+        final List<byte[]> checksums = new ArrayList<byte[]>();
+        final MessageDigest digest = createDigest();
+
+        int start = 0;
+
+        for (final int end : getChunkBoundaries(content)) {
+            digest.update(content, start, end - start);
+            checksums.add(digest.digest());
+            start = end;
+        }
+
+        return new ChunkSignature(projectID, path, checksums);
+    }
+
+    /**
+     * Creates the delta that turns the content described by the given
+     * signature into the given content.
+     *
+     * @return the delta or <code>null</code> if it is not smaller than the
+     *         content itself
+     */
+    static byte[] create(final byte[] content, final ChunkSignature signature)
+        throws IOException {
+
+        final Set<String> remoteChecksums = signature.getChecksums();
+        final MessageDigest digest = createDigest();
+
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(
+            content.length / 4 + 64);
+        final DataOutputStream out = new DataOutputStream(buffer);
+
+        int start = 0;
+        int dataStart = 0;
+        int copies = 0;
+
+        for (final int end : getChunkBoundaries(content)) {
+            digest.update(content, start, end - start);
+
+            final byte[] checksum = digest.digest();
+
+            if (remoteChecksums.contains(new String(Hex.encodeHex(checksum)))) {
+                writeData(out, content, dataStart, start);
+                out.writeByte(OP_COPY);
+                out.write(checksum);
+                dataStart = end;
+                copies++;
+            }
+
+            start = end;
+        }
+
+        writeData(out, content, dataStart, content.length);
+        out.writeByte(OP_END);
+        out.flush();
+
+        if (copies == 0 || buffer.size() >= content.length)
+            return null;
+
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Applies the given delta to the local content.
+     *
+     * @return the new content
+     * @throws IOException
+     *             if the delta is malformed or refers to a chunk that does not
+     *             exist in the local content
+     */
+    static byte[] apply(final byte[] content, final InputStream delta)
+        throws IOException {
+
+        final Map<String, int[]> chunks = new HashMap<String, int[]>();
+        final MessageDigest digest = createDigest();
+
+        int start = 0;
+
+        for (final int end : getChunkBoundaries(content)) {
+            digest.update(content, start, end - start);
+            chunks.put(new String(Hex.encodeHex(digest.digest())), new int[] {
+                start, end - start });
+            start = end;
+        }
+
+        final DataInputStream in = new DataInputStream(delta);
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(
+            content.length + 1024);
+
+        final byte[] checksum = new byte[CHECKSUM_SIZE];
+
+        for (;;) {
+            final int op = in.readUnsignedByte();
+
+            switch (op) {
+            case OP_COPY:
+                in.readFully(checksum);
+
+                final int[] chunk = chunks.get(new String(Hex
+                    .encodeHex(checksum)));
+
+                if (chunk == null)
+                    throw new IOException("delta refers to an unknown chunk, "
+                        + "the local file was changed");
+
+                out.write(content, chunk[0], chunk[1]);
+                break;
+            case OP_DATA:
+                final int length = in.readInt();
+
+                if (length < 0 || length > MAX_FILE_SIZE)
+                    throw new IOException("malformed delta, data length: "
+                        + length);
+
+                final byte[] data = new byte[length];
+                in.readFully(data);
+                out.write(data);
+                break;
+            case OP_END:
+                return out.toByteArray();
+            default:
+                throw new IOException("malformed delta, unknown operation: "
+                    + op);
+            }
+        }
+    }
+
+    /**
+     * Returns the exclusive end offsets of all chunks of the given content.
+     */
+    static List<Integer> getChunkBoundaries(final byte[] content) {
+        final List<Integer> boundaries = new ArrayList<Integer>(
+            content.length / (MIN_CHUNK_SIZE * 4) + 1);
+
+        int start = 0;
+        long hash = 0;
+
+        for (int i = 0; i < content.length; i++) {
+            hash = (hash << 1) + GEAR[content[i] & 0xFF];
+
+            final int length = i - start + 1;
+
+            if (length < MIN_CHUNK_SIZE)
+                continue;
+
+            if ((hash & BOUNDARY_MASK) == 0 || length >= MAX_CHUNK_SIZE) {
+                boundaries.add(i + 1);
+                start = i + 1;
+                hash = 0;
+            }
+        }
+
+        if (start < content.length)
+            boundaries.add(content.length);
+
+        return boundaries;
+    }
+
+    private static void writeData(final DataOutputStream out,
+        final byte[] content, final int start, final int end)
+        throws IOException {
+
+        if (start == end)
+            return;
+
+        out.writeByte(OP_DATA);
+        out.writeInt(end - start);
+        out.write(content, start, end - start);
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -19,17 +19,22 @@
  */
 package de.fu_berlin.inf.dpp.negotiation;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import org.apache.commons.lang.ObjectUtils;
 
 import com.thoughtworks.xstream.annotations.XStreamAlias;
-import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
-import com.thoughtworks.xstream.annotations.XStreamOmitField;
+import com.thoughtworks.xstream.annotations.XStreamConverter;
 
 /**
  * A FileList is a list of resources -- files and folders -- which belong to the
@@ -37,10 +42,14 @@ import com.thoughtworks.xstream.annotations.XStreamOmitField;
  * denoted by a trailing separator. Instances of this class are immutable. No
  * further modification is allowed after creation. Instances should be created
  * using the methods provided by the {@link FileListFactory}.
+ * <p>
+ * FileLists are not serialized field by field but as a compact binary encoding,
+ * see {@link FileListConverter}.
  */
 
 // FIXME remove the projectID stuff, as it is mutable !
 @XStreamAlias("FILELIST")
+@XStreamConverter(FileListConverter.class)
 public class FileList {
 
     /**
@@ -55,61 +64,84 @@ public class FileList {
      */
     public static final char DIR_SEPARATOR_CHAR = '/';
 
+    /** Version of the binary encoding, see {@link #writeTo(DataOutput)}. */
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int FLAG_DIRECTORY = 1;
+
+    private static final int FLAG_METADATA = 2;
+
     /*
-     * Do NOT optimize this code in regards to understandability. This class IS
-     * optimized in regards to memory consumption, i.e serializing / marshaling
-     * an instance of this class will consume as less memory as possible.
-     *
      * This class only stores segments differences, i.e foo/bar/foo.txt, and
-     * foo/bar/foobar.txt will be stored as foo, bar, foo.txt, and foobar.txt
+     * foo/bar/foobar.txt will be stored as foo, bar, foo.txt, and foobar.txt.
+     * The children of a directory are indexed by their name so resolving a
+     * path only costs one hash lookup per segment.
      */
-    @XStreamAlias("f")
-    private static class File {
+    static class File {
 
-        @XStreamAlias("p")
-        @XStreamAsAttribute
-        String path;
+        final String name;
 
-        @XStreamAlias("m")
         MetaData metaData;
 
-        @XStreamAlias("l")
-        List<File> files;
-
-        @XStreamAlias("d")
-        @XStreamAsAttribute
         boolean isDirectory;
 
-        private File(String path, MetaData metaData, boolean isDirectory) {
-            this.path = path;
+        /** the sub nodes of a directory, <code>null</code> for files */
+        private Map<String, File> files;
+
+        /** the names of the sub nodes in ascending order, lazy initialized */
+        private volatile String[] sortedNames;
+
+        private File(String name, MetaData metaData, boolean isDirectory) {
+            this.name = name;
             this.metaData = metaData;
-            this.files = new ArrayList<File>();
             this.isDirectory = isDirectory;
         }
 
-        public static File createRoot() {
+        static File createRoot() {
             return new File("", null, true);
         }
 
         /**
-         * Helper: Adds this File's path to the given <code>base</code> with a
-         * "/" in between. There will be no leading "/" and no doubled "/"s.
+         * Returns the sub node with the given name or <code>null</code> if it
+         * does not exist.
          */
-        private String appendTo(String base) {
-            if (base.isEmpty())
-                return path;
-
-            if (base.endsWith(DIR_SEPARATOR))
-                return base + path;
-
-            return base + DIR_SEPARATOR + path;
+        File getChild(String childName) {
+            return files == null ? null : files.get(childName);
         }
 
         /**
-         * Helper: Cuts a path into its segments
+         * Returns the sub nodes in ascending order of their names.
          */
-        private String[] segments(String path) {
-            return path.split(DIR_SEPARATOR);
+        List<File> getChildren() {
+            if (files == null || files.isEmpty())
+                return Collections.emptyList();
+
+            if (sortedNames == null) {
+                final String[] names = files.keySet().toArray(
+                    new String[files.size()]);
+                Arrays.sort(names);
+                sortedNames = names;
+            }
+
+            final List<File> children = new ArrayList<File>(sortedNames.length);
+
+            for (String childName : sortedNames)
+                children.add(files.get(childName));
+
+            return children;
+        }
+
+        private File addChild(File child) {
+            if (files == null)
+                files = new HashMap<String, File>();
+
+            files.put(child.name, child);
+            sortedNames = null;
+            return child;
+        }
+
+        private boolean hasChildren() {
+            return files != null && !files.isEmpty();
         }
 
         /**
@@ -126,9 +158,9 @@ public class FileList {
          *
          * @return the list containing the full paths
          */
-        public List<String> toList() {
+        List<String> toList() {
             List<String> paths = new ArrayList<String>();
-            toList(path, paths);
+            toList(new StringBuilder(), paths);
             return paths;
         }
 
@@ -137,82 +169,55 @@ public class FileList {
          * will put all entries into the given list.
          *
          * @param base
-         *            the path of the parent node
+         *            the path of this node including a trailing separator, the
+         *            content is restored before this method returns
          * @param paths
          *            a list to store the paths
          */
-        private void toList(String base, List<String> paths) {
-            for (File sub : files) {
-                if (sub.isDirectory && sub.files.isEmpty())
-                    paths.add(sub.appendTo(base).concat(DIR_SEPARATOR));
-                else if (!sub.isDirectory)
-                    paths.add(sub.appendTo(base));
-
-                sub.toList(sub.appendTo(base), paths);
-            }
-        }
+        private void toList(StringBuilder base, List<String> paths) {
+            final int length = base.length();
 
-        /**
-         * True, if the given path is one of this File's sub-nodes.
-         */
-        public boolean contains(String path) {
-            return getFile(path) != null;
-        }
+            for (File sub : getChildren()) {
+                base.append(sub.name);
 
-        /**
-         * Retrieves the meta data for the given path. Returns <code>null</code>
-         * if there is corresponding file in this node.
-         */
-        public MetaData getMetaData(String path) {
-            File file = getFile(path);
-            return file == null ? null : file.metaData;
+                if (!sub.isDirectory) {
+                    paths.add(base.toString());
+                } else {
+                    base.append(DIR_SEPARATOR_CHAR);
+
+                    if (!sub.hasChildren())
+                        paths.add(base.toString());
+                    else
+                        sub.toList(base, paths);
+                }
+
+                base.setLength(length);
+            }
         }
 
         /**
          * Retrieves the file for the given path, <code>null</code> if it does
          * not exist.
          */
-        private File getFile(String path) {
-            for (File file : files) {
-                File foundFile = file.getFile(segments(path), 0);
-                if (foundFile != null)
-                    return foundFile;
-            }
+        File getFile(String path) {
+            File current = this;
 
-            return null;
-        }
+            int start = 0;
+            final int length = path.length();
 
-        /**
-         * Will be called recursively to find the file represented by the given
-         * path segments.
-         */
-        private File getFile(String[] segments, int segmentIndex) {
-            if (segmentIndex >= segments.length)
-                return null;
+            while (start < length && current != null) {
+                int end = path.indexOf(DIR_SEPARATOR_CHAR, start);
 
-            // _________ 0 1 2 3 : segment.length = 4
-            // _search : a/b/c/d : segmentIndex = 3
-            // current : a/b/c/d : return this
+                if (end == -1)
+                    end = length;
 
-            if (path.equals(segments[segmentIndex])
-                && segmentIndex + 1 == segments.length) {
-                return this;
-            }
+                if (end > start)
+                    current = current.getChild(path.substring(start, end));
 
-            /*
-             * only continue if we are still on a valid path segment e.g we
-             * search for a/b/c/d but are now in a/b/a
-             */
-            if (!path.equals(segments[segmentIndex])) {
-                return null;
+                start = end + 1;
             }
 
-            for (File file : files) {
-                File foundFile = file.getFile(segments, segmentIndex + 1);
-                if (foundFile != null)
-                    return foundFile;
-            }
-            return null;
+            return current == this ? null : current;
         }
 
         /**
@@ -224,53 +229,105 @@ public class FileList {
          * @param metaData
          *            can be <code>null</code>
          */
-        public void addPath(String path, MetaData metaData, boolean isDirectory) {
-            addPath(segments(path), 0, metaData, isDirectory);
+        void addPath(String path, MetaData metaData, boolean isDirectory) {
+            File current = this;
+
+            int start = 0;
+            final int length = path.length();
+
+            while (start < length) {
+                int end = path.indexOf(DIR_SEPARATOR_CHAR, start);
+
+                if (end == -1)
+                    end = length;
+
+                if (end > start) {
+                    final String segment = path.substring(start, end);
+
+                    File child = current.getChild(segment);
+
+                    if (child == null)
+                        child = current
+                            .addChild(new File(segment, null, true));
+
+                    current = child;
+                }
+
+                start = end + 1;
+            }
+
+            if (current == this)
+                return;
+
+            current.metaData = metaData;
+            current.isDirectory = isDirectory;
         }
 
         /**
-         * Will be called recursively to create the entry for the path given by
-         * its segments including all folder hierarchy levels.
+         * Writes the sub nodes of this node in ascending order.
          */
-        private void addPath(String[] segments, int segmentIndex,
-            MetaData metaData, boolean isDirectory) {
+        private void writeChildren(DataOutput out, Map<String, Integer> names)
+            throws IOException {
 
-            if (segmentIndex >= segments.length)
-                return;
+            final List<File> children = getChildren();
 
-            for (File file : files) {
-                if (file.path.equals(segments[segmentIndex])) {
-                    if (segmentIndex + 1 == segments.length) {
-                        file.metaData = metaData;
-                        file.isDirectory = isDirectory;
-                        return;
-                    } else {
-                        file.addPath(segments, segmentIndex + 1, metaData,
-                            isDirectory);
-                        return;
-                    }
-                }
+            writeVarInt(out, children.size());
+
+            for (File child : children) {
+                writeName(out, names, child.name);
+
+                int flags = 0;
+
+                if (child.isDirectory)
+                    flags |= FLAG_DIRECTORY;
+
+                if (child.metaData != null)
+                    flags |= FLAG_METADATA;
+
+                out.writeByte(flags);
+
+                if (child.metaData != null)
+                    out.writeLong(child.metaData.checksum);
+
+                if (child.isDirectory)
+                    child.writeChildren(out, names);
             }
+        }
+
+        private void readChildren(DataInput in, List<String> names)
+            throws IOException {
+
+            final int count = readVarInt(in);
+
+            for (int i = 0; i < count; i++) {
+                final String childName = readName(in, names);
+                final int flags = in.readUnsignedByte();
+
+                MetaData data = null;
+
+                if ((flags & FLAG_METADATA) != 0) {
+                    data = new MetaData();
+                    data.checksum = in.readLong();
+                }
+
+                final boolean isDirectory = (flags & FLAG_DIRECTORY) != 0;
 
-            if (segmentIndex + 1 == segments.length) {
-                files.add(new File(segments[segmentIndex], metaData,
+                final File child = addChild(new File(childName, data,
                     isDirectory));
-                return;
-            }
 
-            File file = new File(segments[segmentIndex], null, true);
-            files.add(file);
-            file.addPath(segments, segmentIndex + 1, metaData, isDirectory);
+                if (isDirectory)
+                    child.readChildren(in, names);
+            }
         }
 
         @Override
         public int hashCode() {
             final int prime = 31;
             int result = 1;
-            result = prime * result + ObjectUtils.hashCode(files);
+            result = prime * result + ObjectUtils.hashCode(getChildMap());
             result = prime * result + (isDirectory ? 1231 : 1237);
             result = prime * result + ObjectUtils.hashCode(metaData);
-            result = prime * result + ObjectUtils.hashCode(path);
+            result = prime * result + ObjectUtils.hashCode(name);
             return result;
         }
 
@@ -288,22 +345,26 @@ public class FileList {
             if (isDirectory != other.isDirectory)
                 return false;
 
-            if (!ObjectUtils.equals(path, other.path))
+            if (!ObjectUtils.equals(name, other.name))
                 return false;
             if (!ObjectUtils.equals(metaData, other.metaData))
                 return false;
-            if (!ObjectUtils.equals(files, other.files))
+            if (!getChildMap().equals(other.getChildMap()))
                 return false;
 
             return true;
         }
+
+        private Map<String, File> getChildMap() {
+            if (files == null)
+                return Collections.emptyMap();
+
+            return files;
+        }
     }
 
-    @XStreamAlias("md")
     static class MetaData {
         /** Checksum of this file. */
-
-        @XStreamAlias("crc")
         long checksum;
 
         @Override
@@ -343,7 +404,8 @@ public class FileList {
     private File root;
 
     MetaData getMetaData(String path) {
-        return root.getMetaData(path);
+        File file = root.getFile(path);
+        return file == null ? null : file.metaData;
     }
 
     /**
@@ -379,10 +441,16 @@ public class FileList {
     }
 
     boolean contains(String path) {
-        return root.contains(path);
+        return root.getFile(path) != null;
+    }
+
+    /**
+     * Returns the root node of this file list.
+     */
+    File getRoot() {
+        return root;
     }
 
-    @XStreamOmitField
     private volatile List<String> cachedList = null;
 
     /**
@@ -403,8 +471,8 @@ public class FileList {
      * <code>[A/A1.java, B/B2.java, B/B3.java, C/]</code>
      *
      * @return Returns only the leaves of the tree, i.e. folders are only
-     *         included if they don't contain anything. The paths are sorted by
-     *         their character length.
+     *         included if they don't contain anything. The paths are sorted
+     *         segment by segment in ascending order.
      */
     public List<String> getPaths() {
 
@@ -426,6 +494,119 @@ public class FileList {
         this.projectID = projectID;
     }
 
+    /**
+     * Writes this file list in a compact binary format. The tree is written in
+     * depth first order and every distinct path segment is only written once,
+     * later occurrences are encoded as a reference to the first one.
+     *
+     * @see #readFrom(DataInput)
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+
+        out.writeBoolean(projectID != null);
+
+        if (projectID != null)
+            out.writeUTF(projectID);
+
+        writeVarInt(out, encodings.size());
+
+        for (String encoding : encodings)
+            out.writeUTF(encoding);
+
+        root.writeChildren(out, new HashMap<String, Integer>());
+    }
+
+    /**
+     * Reads a file list that was written with {@link #writeTo(DataOutput)}.
+     *
+     * @throws IOException
+     *             if an I/O error occurs or the data is malformed
+     */
+    static FileList readFrom(DataInput in) throws IOException {
+        final int version = in.readUnsignedByte();
+
+        if (version != FORMAT_VERSION)
+            throw new IOException("unsupported file list format version: "
+                + version);
+
+        final FileList list = new FileList();
+
+        if (in.readBoolean())
+            list.projectID = in.readUTF();
+
+        final int encodingCount = readVarInt(in);
+
+        for (int i = 0; i < encodingCount; i++)
+            list.encodings.add(in.readUTF());
+
+        list.root.readChildren(in, new ArrayList<String>());
+
+        return list;
+    }
+
+    private static void writeName(DataOutput out, Map<String, Integer> names,
+        String name) throws IOException {
+
+        final Integer index = names.get(name);
+
+        if (index != null) {
+            writeVarInt(out, index + 1);
+            return;
+        }
+
+        writeVarInt(out, 0);
+        out.writeUTF(name);
+        names.put(name, names.size());
+    }
+
+    private static String readName(DataInput in, List<String> names)
+        throws IOException {
+
+        final int reference = readVarInt(in);
+
+        if (reference == 0) {
+            final String name = in.readUTF();
+            names.add(name);
+            return name;
+        }
+
+        if (reference > names.size())
+            throw new IOException("malformed file list, unknown segment: "
+                + reference);
+
+        return names.get(reference - 1);
+    }
+
+    private static void writeVarInt(DataOutput out, int value)
+        throws IOException {
+
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+
+        out.writeByte(value);
+    }
+
+    private static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+
+            if ((b & 0x80) == 0) {
+                if (value < 0)
+                    break;
+
+                return value;
+            }
+        }
+
+        throw new IOException("malformed file list, invalid length");
+    }
+
     @Override
     public int hashCode() {
         return root.hashCode();
@@ -444,10 +625,7 @@ public class FileList {
 
     @Override
     public String toString() {
-        List<String> paths = new ArrayList<String>(getPaths());
-        Collections.sort(paths);
-
-        return paths.toString();
+        return getPaths().toString();
     }
 
 }
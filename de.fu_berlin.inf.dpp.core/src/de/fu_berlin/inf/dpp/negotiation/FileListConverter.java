@@ -0,0 +1,67 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.converters.Converter;
+import com.thoughtworks.xstream.converters.MarshallingContext;
+import com.thoughtworks.xstream.converters.UnmarshallingContext;
+import com.thoughtworks.xstream.io.HierarchicalStreamReader;
+import com.thoughtworks.xstream.io.HierarchicalStreamWriter;
+
+/**
+ * Converts a {@link FileList} to its compact binary encoding embedded as Base64
+ * text in the XML representation, and vice versa. Compared to a field by field
+ * serialization this avoids one XML element per path segment and writes every
+ * distinct path segment only once.
+ * <p>
+ * <b>Example:</b>
+ *
+ * <pre>
+ * &lt;FILELIST&gt;AQAAAgAFVVRGLTg...&lt;/FILELIST&gt;
+ * </pre>
+ */
+public final class FileListConverter implements Converter {
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public boolean canConvert(Class clazz) {
+        return clazz.equals(FileList.class);
+    }
+
+    @Override
+    public void marshal(Object value, HierarchicalStreamWriter writer,
+        MarshallingContext context) {
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+
+        try {
+            ((FileList) value).writeTo(new DataOutputStream(out));
+        } catch (IOException e) {
+            // cannot happen
+            throw new ConversionException(e);
+        }
+
+        writer.setValue(new String(Base64.encodeBase64(out.toByteArray())));
+    }
+
+    @Override
+    public Object unmarshal(HierarchicalStreamReader reader,
+        UnmarshallingContext context) {
+
+        final byte[] data = Base64.decodeBase64(reader.getValue().getBytes());
+
+        try {
+            return FileList.readFrom(new DataInputStream(
+                new ByteArrayInputStream(data)));
+        } catch (IOException e) {
+            throw new ConversionException("malformed file list", e);
+        }
+    }
+}
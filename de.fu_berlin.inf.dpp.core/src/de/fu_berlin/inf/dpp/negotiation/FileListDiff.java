@@ -2,10 +2,9 @@ package de.fu_berlin.inf.dpp.negotiation;
 
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
+import de.fu_berlin.inf.dpp.negotiation.FileList.File;
 import de.fu_berlin.inf.dpp.negotiation.FileList.MetaData;
 
 /**
@@ -66,93 +65,123 @@ public class FileListDiff {
         if (base == null || target == null)
             return result;
 
-        final List<String> basePaths = base.getPaths();
-        final List<String> targetPaths = target.getPaths();
+        result.diff(base.getRoot(), target.getRoot(), new StringBuilder(),
+            excludeRemoved);
 
-        /*
-         * TODO find better values to avoid multiple rehashing for larger file
-         * lists
-         */
-        final Set<String> baseFolders = new HashSet<String>(1024);
-        final Set<String> baseFiles = new HashSet<String>(1024);
+        return result;
+    }
 
-        final Set<String> targetFolders = new HashSet<String>(1024);
-        final Set<String> targetFiles = new HashSet<String>(1024);
+    /**
+     * Compares the sub nodes of both nodes. As the sub nodes are visited in
+     * ascending order of their names, both sequences are merged in one pass
+     * without any lookups.
+     */
+    private void diff(final File base, final File target,
+        final StringBuilder path, final boolean excludeRemoved) {
 
-        for (final String path : basePaths) {
+        final List<File> baseFiles = base.getChildren();
+        final List<File> targetFiles = target.getChildren();
 
-            addAllFolders(baseFolders, path);
+        final int length = path.length();
 
-            if (!isFolder(path))
-                baseFiles.add(path);
-        }
+        int b = 0;
+        int t = 0;
 
-        for (final String path : targetPaths) {
+        while (b < baseFiles.size() || t < targetFiles.size()) {
 
-            addAllFolders(targetFolders, path);
+            final File baseFile = b < baseFiles.size() ? baseFiles.get(b)
+                : null;
 
-            if (!isFolder(path))
-                targetFiles.add(path);
-        }
+            final File targetFile = t < targetFiles.size() ? targetFiles
+                .get(t) : null;
 
-        final Set<String> complementSet = new HashSet<String>(max(
-            baseFolders.size(), baseFiles.size(), targetFolders.size(),
-            targetFiles.size()));
+            final int cmp;
 
-        complementSet.addAll(targetFiles);
-        complementSet.removeAll(baseFiles);
+            if (baseFile == null)
+                cmp = 1;
+            else if (targetFile == null)
+                cmp = -1;
+            else
+                cmp = baseFile.name.compareTo(targetFile.name);
 
-        result.addedFiles.addAll(complementSet);
+            if (cmp < 0) {
+                if (!excludeRemoved)
+                    addAll(baseFile, path, removedFolders, removedFiles);
 
-        if (!excludeRemoved) {
-            complementSet.clear();
-            complementSet.addAll(baseFiles);
-            complementSet.removeAll(targetFiles);
+                b++;
+            } else if (cmp > 0) {
+                addAll(targetFile, path, addedFolders, addedFiles);
+                t++;
+            } else {
+                compare(baseFile, targetFile, path, excludeRemoved);
+                b++;
+                t++;
+            }
 
-            result.removedFiles.addAll(complementSet);
+            path.setLength(length);
         }
+    }
+
+    /**
+     * Compares two nodes with the same name.
+     */
+    private void compare(final File base, final File target,
+        final StringBuilder path, final boolean excludeRemoved) {
 
-        final Set<String> intersectionSet = new HashSet<String>(max(
-            targetFiles.size(), targetFolders.size()));
+        final int length = path.length();
 
-        intersectionSet.addAll(targetFiles);
-        intersectionSet.retainAll(baseFiles);
+        if (base.isDirectory != target.isDirectory) {
+            if (!excludeRemoved)
+                addAll(base, path, removedFolders, removedFiles);
 
-        for (final String path : intersectionSet) {
+            path.setLength(length);
+            addAll(target, path, addedFolders, addedFiles);
+            return;
+        }
 
-            final MetaData baseData = base.getMetaData(path);
-            final MetaData targetData = target.getMetaData(path);
+        path.append(target.name);
 
-            if ((baseData == null && targetData == null)
-                || (baseData != null && targetData != null)
-                && (baseData.checksum == targetData.checksum)) {
-                result.unalteredFiles.add(path);
-            } else {
-                result.alteredFiles.add(path);
-            }
+        if (target.isDirectory) {
+            path.append(FileList.DIR_SEPARATOR_CHAR);
+            unalteredFolders.add(path.toString());
+            diff(base, target, path, excludeRemoved);
+            return;
         }
 
-        complementSet.clear();
-        complementSet.addAll(targetFolders);
-        complementSet.removeAll(baseFolders);
+        final MetaData baseData = base.metaData;
+        final MetaData targetData = target.metaData;
 
-        result.addedFolders.addAll(complementSet);
+        if ((baseData == null && targetData == null)
+            || (baseData != null && targetData != null)
+            && (baseData.checksum == targetData.checksum)) {
+            unalteredFiles.add(path.toString());
+        } else {
+            alteredFiles.add(path.toString());
+        }
+    }
+
+    /**
+     * Adds the given node and all of its sub nodes to the given lists.
+     */
+    private static void addAll(final File file, final StringBuilder path,
+        final List<String> folders, final List<String> files) {
 
-        if (!excludeRemoved) {
-            complementSet.clear();
-            complementSet.addAll(baseFolders);
-            complementSet.removeAll(targetFolders);
+        path.append(file.name);
 
-            result.removedFolders.addAll(complementSet);
+        if (!file.isDirectory) {
+            files.add(path.toString());
+            return;
         }
 
-        intersectionSet.clear();
-        intersectionSet.addAll(targetFolders);
-        intersectionSet.retainAll(baseFolders);
+        path.append(FileList.DIR_SEPARATOR_CHAR);
+        folders.add(path.toString());
 
-        result.unalteredFolders.addAll(intersectionSet);
+        final int length = path.length();
 
-        return result;
+        for (File sub : file.getChildren()) {
+            addAll(sub, path, folders, files);
+            path.setLength(length);
+        }
     }
 
     /**
@@ -277,39 +306,4 @@ public class FileListDiff {
             + addedFolders + ", removedFolders=" + removedFolders
             + ", unalteredFolders=" + unalteredFolders + "]";
     }
-
-    private static boolean isFolder(final String path) {
-        return path.charAt(path.length() - 1) == FileList.DIR_SEPARATOR_CHAR;
-    }
-
-    private static void addAllFolders(final Set<String> into, final String path) {
-
-        int idx = path.length() - 1;
-
-        if (!isFolder(path))
-            idx = path.lastIndexOf(FileList.DIR_SEPARATOR_CHAR, idx - 1);
-
-        String subPath;
-
-        while (idx >= 0) {
-
-            subPath = path.substring(0, idx + 1);
-
-            if (into.contains(subPath))
-                break;
-
-            into.add(subPath);
-
-            idx = subPath.lastIndexOf(FileList.DIR_SEPARATOR_CHAR, idx - 1);
-        }
-    }
-
-    private static int max(int a, int... others) {
-        int max = a;
-
-        for (int i = 0; i < others.length; i++)
-            max = Math.max(max, others[i]);
-
-        return max;
-    }
 }
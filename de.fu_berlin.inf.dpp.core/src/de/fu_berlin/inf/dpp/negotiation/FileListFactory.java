@@ -1,6 +1,7 @@
 package de.fu_berlin.inf.dpp.negotiation;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
 import java.util.LinkedList;
@@ -102,7 +103,8 @@ public class FileListFactory {
 
         stack.addAll(resources);
 
-        List<IFile> files = new LinkedList<IFile>();
+        List<IFile> files = new ArrayList<IFile>();
+        List<MetaData> metaData = new ArrayList<MetaData>();
 
         while (!stack.isEmpty()) {
             IResource resource = stack.pop();
@@ -121,6 +123,7 @@ public class FileListFactory {
             case IResource.FILE:
                 files.add((IFile) resource);
                 data = new MetaData();
+                metaData.add(data);
                 list.addPath(path, data, false);
                 list.addEncoding(((IFile) resource).getCharset());
                 break;
@@ -133,14 +136,14 @@ public class FileListFactory {
 
         monitor.beginTask("Calculating checksums...", files.size());
 
-        for (IFile file : files) {
+        for (int i = 0; i < files.size(); i++) {
+            IFile file = files.get(i);
+            MetaData data = metaData.get(i);
+
             try {
                 monitor.subTask(file.getProject().getName() + ": "
                     + file.getProjectRelativePath());
 
-                MetaData data = list.getMetaData(file.getProjectRelativePath()
-                    .toPortableString());
-
                 Long checksum = null;
 
                 if (checksumCache != null)
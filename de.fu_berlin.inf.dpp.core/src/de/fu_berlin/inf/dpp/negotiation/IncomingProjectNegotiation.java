@@ -2,13 +2,21 @@ package de.fu_berlin.inf.dpp.negotiation;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Packet;
@@ -16,6 +24,8 @@ import org.jivesoftware.smackx.filetransfer.FileTransferListener;
 import org.jivesoftware.smackx.filetransfer.FileTransferRequest;
 import org.jivesoftware.smackx.filetransfer.IncomingFileTransfer;
 
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationArchiveExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationArchiveRequestExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationMissingFilesExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.StartActivityQueuingRequest;
 import de.fu_berlin.inf.dpp.communication.extensions.StartActivityQueuingResponse;
@@ -23,6 +33,7 @@ import de.fu_berlin.inf.dpp.exceptions.LocalCancellationException;
 import de.fu_berlin.inf.dpp.exceptions.SarosCancellationException;
 import de.fu_berlin.inf.dpp.filesystem.FileSystem;
 import de.fu_berlin.inf.dpp.filesystem.IChecksumCache;
+import de.fu_berlin.inf.dpp.filesystem.IFile;
 import de.fu_berlin.inf.dpp.filesystem.IFolder;
 import de.fu_berlin.inf.dpp.filesystem.IProject;
 import de.fu_berlin.inf.dpp.filesystem.IResource;
@@ -49,6 +60,14 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
 
     private static int MONITOR_WORK_SCALE = 1000;
 
+    /**
+     * if enabled files that differ are transferred as delta, see
+     * {@link FileDelta}
+     */
+    private static final boolean CHUNK_SYNC = Boolean.valueOf(System
+        .getProperty("de.fu_berlin.inf.dpp.negotiation.project.CHUNK_SYNC",
+            "true"));
+
     private final Map<String, ProjectNegotiationData> projectNegotiationData;
 
     private final FileReplacementInProgressObservable fileReplacementInProgressObservable;
@@ -57,6 +76,8 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
 
     private PacketCollector startActivityQueuingRequestCollector;
 
+    private PacketCollector archiveCollector;
+
     public IncomingProjectNegotiation(
         final JID peer, //
         final String negotiationID, //
@@ -131,16 +152,22 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
             fileTransferManager
                 .addFileTransferListener(archiveTransferListener);
 
+            final Map<String, FileListDiff> diffs = computeLocalVsRemoteDiff(
+                projectMapping, monitor);
+
             List<FileList> missingFiles = synchronizeProjectStructures(
-                projectMapping,
-                computeLocalVsRemoteDiff(projectMapping, monitor));
+                projectMapping, diffs);
+
+            List<ChunkSignature> chunkSignatures = createChunkSignatures(
+                projectMapping, diffs);
 
             monitor.subTask("");
 
             transmitter.send(ISarosSession.SESSION_CONNECTION_ID, getPeer(),
                 ProjectNegotiationMissingFilesExtension.PROVIDER
                     .create(new ProjectNegotiationMissingFilesExtension(
-                        getSessionID(), getID(), missingFiles)));
+                        getSessionID(), getID(), missingFiles,
+                        chunkSignatures)));
 
             awaitActivityQueueingActivation(monitor);
             monitor.subTask("");
@@ -479,6 +506,63 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
         return result;
     }
 
+    /**
+     * Creates the chunk signatures of all local files that differ from the
+     * remote files, so the host only has to send the changed parts.
+     *
+     * @return the chunk signatures or <code>null</code> if chunk
+     *         synchronization is disabled
+     */
+    private List<ChunkSignature> createChunkSignatures(
+        final Map<String, IProject> localProjectMapping,
+        final Map<String, FileListDiff> diffs)
+        throws SarosCancellationException {
+
+        if (!CHUNK_SYNC)
+            return null;
+
+        final List<ChunkSignature> result = new ArrayList<ChunkSignature>();
+
+        for (final Entry<String, IProject> entry : localProjectMapping
+            .entrySet()) {
+
+            final String id = entry.getKey();
+            final IProject project = entry.getValue();
+
+            for (final String path : diffs.get(id).getAlteredFiles()) {
+                checkCancellation(CancelOption.NOTIFY_PEER);
+
+                final IFile file = project.getFile(path);
+
+                InputStream in = null;
+
+                try {
+                    final long size = file.getSize();
+
+                    // small files are not worth the overhead
+                    if (size < 2 * FileDelta.MIN_CHUNK_SIZE
+                        || size > FileDelta.MAX_FILE_SIZE)
+                        continue;
+
+                    in = file.getContents();
+
+                    result.add(FileDelta.createSignature(id, path,
+                        IOUtils.toByteArray(in)));
+                } catch (IOException e) {
+                    LOG.warn(this + " : failed to read file " + file
+                        + ", it will be transferred completely", e);
+                } finally {
+                    IOUtils.closeQuietly(in);
+                }
+            }
+        }
+
+        LOG.debug(this + " : " + result.size()
+            + " file(s) can be synchronized partially");
+
+        return result;
+    }
+
     private void unpackArchive(final Map<String, IProject> localProjectMapping,
         final File archiveFile, final IProgressMonitor monitor)
         throws LocalCancellationException, IOException {
@@ -547,54 +631,100 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
         startActivityQueuingRequestCollector = receiver
             .createCollector(StartActivityQueuingRequest.PROVIDER
                 .getPacketFilter(getSessionID(), getID()));
+
+        archiveCollector = receiver
+            .createCollector(ProjectNegotiationArchiveExtension.PROVIDER
+                .getPacketFilter(getSessionID(), getID()));
     }
 
     private void deleteCollectors() {
         startActivityQueuingRequestCollector.cancel();
+        archiveCollector.cancel();
     }
 
+    /**
+     * Receives the archive in chunks. Chunks that are not received within
+     * {@link #ARCHIVE_CHUNK_TIMEOUT} or whose checksum does not match are
+     * requested again, so an unstable connection does not abort the whole
+     * negotiation.
+     */
     private File receiveArchive(
         ArchiveTransferListener archiveTransferListener, String transferID,
         IProgressMonitor monitor) throws IOException,
         SarosCancellationException {
 
-        monitor.beginTask("Receiving archive file...", 100);
-        LOG.debug("waiting for incoming archive stream request");
+        LOG.debug("waiting for incoming archive description");
 
         monitor
             .subTask("Host is compressing project files. Waiting for the archive file...");
 
-        try {
-            while (!archiveTransferListener.hasReceived()) {
-                checkCancellation(CancelOption.NOTIFY_PEER);
-                Thread.sleep(200);
-            }
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
-            throw new LocalCancellationException();
+        Packet packet;
+
+        while ((packet = collectPacket(archiveCollector, 1000)) == null) {
+            // NOP
         }
 
-        monitor.subTask("Receiving archive file...");
+        final ProjectNegotiationArchiveExtension archive = ProjectNegotiationArchiveExtension.PROVIDER
+            .getPayload(packet);
 
-        LOG.debug(this + " : receiving archive");
+        final long archiveSize = archive.getArchiveSize();
+        final int chunkSize = archive.getChunkSize();
+        final List<String> checksums = archive.getChecksums();
 
-        IncomingFileTransfer transfer = archiveTransferListener.getRequest()
-            .accept();
+        if (archiveSize < 0
+            || chunkSize <= 0
+            || ArchiveChunks.getChunkCount(archiveSize, chunkSize) != checksums
+                .size())
+            throw new IOException("received invalid archive description, size: "
+                + archiveSize + ", chunk size: " + chunkSize + ", chunks: "
+                + checksums.size());
 
-        File archiveFile = File.createTempFile(
-            "saros_archive_" + System.currentTimeMillis(), null);
+        monitor.beginTask("Receiving archive file...", checksums.size());
+
+        LOG.debug(this + " : receiving archive, size: "
+            + CoreUtils.formatByte(archiveSize) + ", chunks: "
+            + checksums.size());
+
+        final File[] chunks = new File[checksums.size()];
+        final SortedSet<Integer> missing = new TreeSet<Integer>();
+
+        for (int i = 0; i < chunks.length; i++)
+            missing.add(i);
+
+        File archiveFile = null;
 
         boolean transferFailed = true;
 
         try {
-            transfer.recieveFile(archiveFile);
+            for (int attempt = 0; !missing.isEmpty(); attempt++) {
+                if (attempt == MAX_ARCHIVE_TRANSFER_ATTEMPTS)
+                    throw new IOException("failed to receive archive after "
+                        + attempt + " attempts, missing chunks: " + missing);
+
+                if (attempt > 0)
+                    LOG.warn(this + " : requesting " + missing.size()
+                        + " chunk(s) of the archive again");
+
+                requestArchiveChunks(new ArrayList<Integer>(missing));
 
-            monitorFileTransfer(transfer, monitor);
+                receiveArchiveChunks(archiveTransferListener, transferID,
+                    checksums, chunks, missing, monitor);
+            }
+
+            // acknowledge that the archive was received completely
+            requestArchiveChunks(Collections.<Integer> emptyList());
+
+            archiveFile = File.createTempFile(
+                "saros_archive_" + System.currentTimeMillis(), null);
+
+            ArchiveChunks.join(Arrays.asList(chunks), archiveFile);
             transferFailed = false;
-        } catch (XMPPException e) {
-            throw new IOException(e.getMessage(), e.getCause());
         } finally {
-            if (transferFailed)
+            for (final File chunk : chunks)
+                if (chunk != null)
+                    chunk.delete();
+
+            if (transferFailed && archiveFile != null)
                 archiveFile.delete();
         }
 
@@ -607,6 +737,89 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
         return archiveFile;
     }
 
+    private void requestArchiveChunks(List<Integer> chunks) throws IOException {
+        transmitter.send(ISarosSession.SESSION_CONNECTION_ID, getPeer(),
+            ProjectNegotiationArchiveRequestExtension.PROVIDER
+                .create(new ProjectNegotiationArchiveRequestExtension(
+                    getSessionID(), getID(), chunks)));
+    }
+
+    /**
+     * Receives the requested chunks until the last one arrived or no chunk
+     * arrived for {@link #ARCHIVE_CHUNK_TIMEOUT} milliseconds. Chunks that were
+     * received and verified are removed from the missing chunks.
+     */
+    private void receiveArchiveChunks(
+        ArchiveTransferListener archiveTransferListener, String transferID,
+        List<String> checksums, File[] chunks, SortedSet<Integer> missing,
+        IProgressMonitor monitor) throws IOException,
+        SarosCancellationException {
+
+        final int last = missing.last();
+
+        long deadline = System.currentTimeMillis() + ARCHIVE_CHUNK_TIMEOUT;
+
+        while (!missing.isEmpty() && System.currentTimeMillis() < deadline) {
+            checkCancellation(CancelOption.NOTIFY_PEER);
+
+            final FileTransferRequest request;
+
+            try {
+                request = archiveTransferListener.poll(200);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new LocalCancellationException();
+            }
+
+            if (request == null)
+                continue;
+
+            final int index = ArchiveChunks.getIndex(transferID,
+                request.getDescription());
+
+            if (!missing.contains(index)) {
+                LOG.warn(this + " : rejecting unexpected archive chunk: "
+                    + request.getDescription());
+                request.reject();
+                continue;
+            }
+
+            final File chunk = File.createTempFile("saros_archive_chunk_"
+                + index + "_", null);
+
+            try {
+                IncomingFileTransfer transfer = request.accept();
+                transfer.recieveFile(chunk);
+
+                if (monitorChunkTransfer(transfer, new SubProgressMonitor(
+                    monitor, 0))) {
+
+                    if (ArchiveChunks.computeChecksum(chunk).equals(
+                        checksums.get(index))) {
+                        chunks[index] = chunk;
+                        missing.remove(index);
+                        monitor.worked(1);
+                    } else {
+                        LOG.warn(this + " : checksum mismatch of archive chunk "
+                            + index);
+                    }
+                }
+            } catch (XMPPException e) {
+                LOG.warn(this + " : failed to receive archive chunk " + index,
+                    e);
+            } finally {
+                if (chunks[index] != chunk)
+                    chunk.delete();
+            }
+
+            // the host sends the requested chunks in ascending order
+            if (index == last)
+                break;
+
+            deadline = System.currentTimeMillis() + ARCHIVE_CHUNK_TIMEOUT;
+        }
+    }
+
     private void checkProjectMapping(final Map<String, IProject> mapping) {
 
         for (final Entry<String, IProject> entry : mapping.entrySet()) {
@@ -625,28 +838,33 @@ public class IncomingProjectNegotiation extends ProjectNegotiation {
         }
     }
 
+    /**
+     * Queues all incoming file transfer requests of the archive chunks.
+     */
     private static class ArchiveTransferListener implements
         FileTransferListener {
-        private String description;
-        private volatile FileTransferRequest request;
+        private final String transferID;
+        private final BlockingQueue<FileTransferRequest> requests = new LinkedBlockingQueue<FileTransferRequest>();
 
-        public ArchiveTransferListener(String description) {
-            this.description = description;
+        public ArchiveTransferListener(String transferID) {
+            this.transferID = transferID;
         }
 
         @Override
         public void fileTransferRequest(FileTransferRequest request) {
-            if (request.getDescription().equals(description)) {
-                this.request = request;
-            }
-        }
+            final String description = request.getDescription();
 
-        public boolean hasReceived() {
-            return this.request != null;
+            if (ArchiveChunks.getIndex(transferID, description) != -1)
+                requests.add(request);
         }
 
-        public FileTransferRequest getRequest() {
-            return this.request;
+        /**
+         * Returns the next request or <code>null</code> if no request arrived
+         * within the given time.
+         */
+        public FileTransferRequest poll(long timeout)
+            throws InterruptedException {
+            return requests.poll(timeout, TimeUnit.MILLISECONDS);
         }
     }
 
@@ -116,7 +116,8 @@ public final class NegotiationFactory {
         return new OutgoingProjectNegotiation(remoteAddress, resources,
             sessionManager, session, /* editorManager */
             context.getComponent(IEditorManager.class), workspace,
-            checksumCache, connectionService, transmitter, receiver);
+            checksumCache, session.getComponent(ProjectNegotiationCache.class),
+            connectionService, transmitter, receiver);
     }
 
     public IncomingProjectNegotiation newIncomingProjectNegotiation(
@@ -2,16 +2,21 @@ package de.fu_berlin.inf.dpp.negotiation;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.CancellationException;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
-import org.jivesoftware.smack.XMPPException;
 import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smackx.filetransfer.OutgoingFileTransfer;
 
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationArchiveExtension;
+import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationArchiveRequestExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationMissingFilesExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.ProjectNegotiationOfferingExtension;
 import de.fu_berlin.inf.dpp.communication.extensions.StartActivityQueuingRequest;
@@ -50,10 +55,17 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
 
     private final IEditorManager editorManager;
 
+    private final ProjectNegotiationCache negotiationCache;
+
     private PacketCollector remoteFileListResponseCollector;
 
     private PacketCollector startActivityQueuingResponseCollector;
 
+    private PacketCollector archiveRequestCollector;
+
+    /** chunk signatures of the files the remote side only needs a delta of */
+    private List<ChunkSignature> remoteChunkSignatures;
+
     public OutgoingProjectNegotiation( //
         final JID peer, //
         final List<IProject> projects, //
@@ -65,6 +77,7 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
 
         final IWorkspace workspace, //
         final IChecksumCache checksumCache, //
+        final ProjectNegotiationCache negotiationCache, //
 
         final XMPPConnectionService connectionService, //
         final ITransmitter transmitter, //
@@ -79,6 +92,7 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
         this.projects = projects;
 
         this.editorManager = editorManager;
+        this.negotiationCache = negotiationCache;
     }
 
     public Status run(IProgressMonitor monitor) {
@@ -234,8 +248,12 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
                 + getPeer() + " while waiting for the file list",
                 CancelOption.DO_NOT_NOTIFY_PEER);
 
-        List<FileList> remoteFileLists = ProjectNegotiationMissingFilesExtension.PROVIDER
-            .getPayload(packet).getFileLists();
+        ProjectNegotiationMissingFilesExtension missingFiles = ProjectNegotiationMissingFilesExtension.PROVIDER
+            .getPayload(packet);
+
+        List<FileList> remoteFileLists = missingFiles.getFileLists();
+
+        remoteChunkSignatures = missingFiles.getChunkSignatures();
 
         LOG.debug(this + " : remote file list has been received");
 
@@ -318,6 +336,12 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
 
         final List<IResource> projectsToLock = new ArrayList<IResource>();
 
+        final Map<String, ChunkSignature> signatures = new HashMap<String, ChunkSignature>();
+
+        for (final ChunkSignature signature : remoteChunkSignatures)
+            signatures.put(signature.getProjectID() + PATH_DELIMITER
+                + signature.getPath(), signature);
+
         for (final FileList list : fileLists) {
             final String projectID = list.getProjectID();
 
@@ -360,7 +384,9 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
         try {
             tempArchive = File.createTempFile("saros_" + getID(), ".zip");
             workspace.run(new CreateArchiveTask(tempArchive, filesToCompress,
-                fileAlias, monitor), projectsToLock.toArray(new IResource[0]));
+                fileAlias, monitor, CreateArchiveTask.THREADS,
+                negotiationCache, signatures), projectsToLock
+                .toArray(new IResource[0]));
         } catch (OperationCanceledException e) {
             LocalCancellationException canceled = new LocalCancellationException();
             canceled.initCause(e);
@@ -380,35 +406,121 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
         startActivityQueuingResponseCollector = receiver
             .createCollector(StartActivityQueuingResponse.PROVIDER
                 .getPacketFilter(getSessionID(), getID()));
+
+        archiveRequestCollector = receiver
+            .createCollector(ProjectNegotiationArchiveRequestExtension.PROVIDER
+                .getPacketFilter(getSessionID(), getID()));
     }
 
     private void deleteCollectors() {
         remoteFileListResponseCollector.cancel();
         startActivityQueuingResponseCollector.cancel();
+        archiveRequestCollector.cancel();
     }
 
+    /**
+     * Sends the archive in chunks. The remote side requests the chunks it
+     * still needs, so chunks that were lost or corrupted on an unstable
+     * connection are sent again instead of restarting the whole negotiation.
+     */
     private void sendArchive(File archive, JID remoteContact,
         String transferID, IProgressMonitor monitor)
         throws SarosCancellationException, IOException {
 
         LOG.debug(this + " : sending archive");
-        monitor.beginTask("Sending archive file...", 100);
 
         assert fileTransferManager != null;
 
+        final long archiveSize = archive.length();
+
+        final List<String> checksums = ArchiveChunks.computeChecksums(archive,
+            ARCHIVE_CHUNK_SIZE);
+
+        monitor.beginTask("Sending archive file...", checksums.size());
+
+        transmitter.send(ISarosSession.SESSION_CONNECTION_ID, getPeer(),
+            ProjectNegotiationArchiveExtension.PROVIDER
+                .create(new ProjectNegotiationArchiveExtension(getSessionID(),
+                    getID(), archiveSize, ARCHIVE_CHUNK_SIZE, checksums)));
+
+        for (int attempt = 0;; attempt++) {
+            final List<Integer> chunks = awaitArchiveRequest();
+
+            if (chunks.isEmpty())
+                break;
+
+            if (attempt == MAX_ARCHIVE_TRANSFER_ATTEMPTS)
+                throw new IOException("failed to send archive after "
+                    + attempt + " attempts");
+
+            if (attempt > 0)
+                LOG.warn(this + " : sending " + chunks.size()
+                    + " chunk(s) of the archive again");
+
+            for (final Integer index : chunks) {
+                checkCancellation(CancelOption.NOTIFY_PEER);
+
+                if (index < 0 || index >= checksums.size())
+                    throw new IOException("invalid archive chunk requested: "
+                        + index);
+
+                sendArchiveChunk(archive, archiveSize, remoteContact,
+                    transferID, index, new SubProgressMonitor(monitor,
+                        attempt == 0 ? 1 : 0));
+            }
+        }
+
+        monitor.done();
+
+        LOG.debug(this + " : archive send");
+    }
+
+    private void sendArchiveChunk(File archive, long archiveSize,
+        JID remoteContact, String transferID, int index,
+        IProgressMonitor monitor) throws IOException,
+        LocalCancellationException {
+
+        final InputStream in = ArchiveChunks.openChunk(archive,
+            ARCHIVE_CHUNK_SIZE, index);
+
         try {
             OutgoingFileTransfer transfer = fileTransferManager
                 .createOutgoingFileTransfer(remoteContact.toString());
 
-            transfer.sendFile(archive, transferID);
-            monitorFileTransfer(transfer, monitor);
-        } catch (XMPPException e) {
-            throw new IOException(e.getMessage(), e);
+            transfer.sendStream(in, archive.getName() + "." + index,
+                ArchiveChunks.getChunkSize(archiveSize, ARCHIVE_CHUNK_SIZE,
+                    index), ArchiveChunks.getDescription(transferID, index));
+
+            monitorChunkTransfer(transfer, monitor);
+        } finally {
+            IOUtils.closeQuietly(in);
+            monitor.done();
         }
+    }
 
-        monitor.done();
+    /**
+     * Waits for the next archive request of the remote side.
+     *
+     * @return the indices of the requested chunks, an empty list if the remote
+     *         side received the archive completely
+     */
+    private List<Integer> awaitArchiveRequest()
+        throws SarosCancellationException {
 
-        LOG.debug(this + " : archive send");
+        /*
+         * the remote side may wait for a chunk that was lost before it sends
+         * its next request
+         */
+        Packet packet = collectPacket(archiveRequestCollector,
+            ARCHIVE_CHUNK_TIMEOUT + PACKET_TIMEOUT);
+
+        if (packet == null)
+            throw new LocalCancellationException("received no response from "
+                + getPeer() + " while sending the archive",
+                CancelOption.NOTIFY_PEER);
+
+        return ProjectNegotiationArchiveRequestExtension.PROVIDER.getPayload(
+            packet).getChunks();
     }
 
     private List<ProjectNegotiationData> createProjectNegotiationDataList(
@@ -440,17 +552,16 @@ public class OutgoingProjectNegotiation extends ProjectNegotiation {
                 if (editorManager != null)
                     editorManager.saveEditors(project);
 
-                FileList projectFileList = FileListFactory.createFileList(
-                    project, session.getSharedResources(project),
+                String projectID = session.getProjectID(project);
+
+                FileList projectFileList = negotiationCache.getFileList(
+                    project, projectID, session.getSharedResources(project),
                     checksumCache, new SubProgressMonitor(monitor, 1 * scale,
                         SubProgressMonitor.SUPPRESS_BEGINTASK
                             | SubProgressMonitor.SUPPRESS_SETTASKNAME));
 
                 boolean partial = !session.isCompletelyShared(project);
 
-                String projectID = session.getProjectID(project);
-                projectFileList.setProjectID(projectID);
-
                 ProjectNegotiationData data = new ProjectNegotiationData(
                     projectID, project.getName(), partial, projectFileList);
 
@@ -53,6 +53,26 @@ public abstract class ProjectNegotiation extends Negotiation {
     protected static final long PACKET_TIMEOUT = Long.getLong(
         "de.fu_berlin.inf.dpp.negotiation.project.PACKET_TIMEOUT", 30000L);
 
+    /**
+     * Size of the chunks the archive is transferred in
+     */
+    protected static final int ARCHIVE_CHUNK_SIZE = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.negotiation.project.ARCHIVE_CHUNK_SIZE",
+        4 * 1024 * 1024);
+
+    /**
+     * Maximum time to wait for the next archive chunk before the missing chunks
+     * are requested again
+     */
+    protected static final long ARCHIVE_CHUNK_TIMEOUT = Long.getLong(
+        "de.fu_berlin.inf.dpp.negotiation.project.ARCHIVE_CHUNK_TIMEOUT",
+        60000L);
+
+    /**
+     * Maximum number of attempts to transfer the chunks of the archive
+     */
+    protected static final int MAX_ARCHIVE_TRANSFER_ATTEMPTS = 10;
+
     protected final ISarosSessionManager sessionManager;
 
     protected final ISarosSession session;
@@ -172,6 +192,38 @@ public abstract class ProjectNegotiation extends Negotiation {
         throw new RemoteCancellationException(null);
     }
 
+    /**
+     * Monitors the transfer of an archive chunk. Unlike
+     * {@link #monitorFileTransfer} a failed or incomplete transfer is not
+     * treated as cancellation because the chunk can be transferred again.
+     *
+     * @return <code>true</code> if the chunk was transferred completely
+     * @throws LocalCancellationException
+     *             if the transfer was canceled by the local user
+     */
+    protected boolean monitorChunkTransfer(FileTransfer transfer,
+        IProgressMonitor monitor) throws LocalCancellationException {
+
+        MonitorableFileTransfer mtf = new MonitorableFileTransfer(transfer,
+            monitor);
+        TransferStatus transferStatus = mtf.monitorTransfer();
+
+        if (transferStatus.equals(TransferStatus.OK))
+            return true;
+
+        if (monitor.isCanceled())
+            throw new LocalCancellationException();
+
+        FileTransfer.Error error = transfer.getError();
+
+        LOG.warn("transfer of archive chunk " + transfer.getFileName()
+            + " failed: " + transferStatus + ", error: "
+            + (error == null ? "none" : error.getMessage()),
+            transfer.getException());
+
+        return false;
+    }
+
     @Override
     protected void notifyTerminated(NegotiationListener listener) {
         listener.negotiationTerminated(this);
@@ -0,0 +1,303 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.picocontainer.Startable;
+
+import de.fu_berlin.inf.dpp.annotations.Component;
+import de.fu_berlin.inf.dpp.filesystem.IChecksumCache;
+import de.fu_berlin.inf.dpp.filesystem.IFile;
+import de.fu_berlin.inf.dpp.filesystem.IFileContentChangedListener;
+import de.fu_berlin.inf.dpp.filesystem.IFileContentChangedNotifier;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.filesystem.IResource;
+import de.fu_berlin.inf.dpp.monitoring.IProgressMonitor;
+import de.fu_berlin.inf.dpp.negotiation.CreateArchiveTask.CompressedEntry;
+
+/**
+ * Host side cache that is shared by all {@link OutgoingProjectNegotiation
+ * outgoing project negotiations} of a session. Inviting several users to the
+ * same project would otherwise compute the same file list and compress the same
+ * files once per user.
+ * <p>
+ * This is a session component. When the session ends the cache is cleared and
+ * stops tracking file changes, so nothing is held after the session.
+ * <p>
+ * File lists are cached per project, project id and shared resources together
+ * with a modification stamp that is incremented on every file change reported
+ * by the {@link IFileContentChangedNotifier}. Without a notifier file lists
+ * are not cached at all. Negotiations that request the same file list at the
+ * same time wait for each other, so the list is only computed once.
+ * <p>
+ * Compressed files are cached per path up to {@link #MAX_ENTRY_CACHE_SIZE}
+ * bytes. A cached entry is only reused if the checksum and size of the
+ * current file content match, so it never depends on change notifications.
+ */
+@Component(module = "core")
+public class ProjectNegotiationCache implements Startable {
+
+    private static final Logger LOG = Logger
+        .getLogger(ProjectNegotiationCache.class);
+
+    /** maximum number of bytes of compressed files held in memory */
+    private static final long MAX_ENTRY_CACHE_SIZE = Long.getLong(
+        "de.fu_berlin.inf.dpp.negotiation.ARCHIVE_CACHE_SIZE",
+        32L * 1024 * 1024);
+
+    private static final int MAX_FILE_LISTS = 16;
+
+    private static class FileListKey {
+        private final IProject project;
+        private final String projectID;
+        private final List<IResource> resources;
+
+        private FileListKey(IProject project, String projectID,
+            List<IResource> resources) {
+            this.project = project;
+            this.projectID = projectID;
+            this.resources = resources == null ? null
+                : new ArrayList<IResource>(resources);
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + project.hashCode();
+            result = prime * result + projectID.hashCode();
+            result = prime * result
+                + ((resources == null) ? 0 : resources.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+
+            if (!(obj instanceof FileListKey))
+                return false;
+
+            FileListKey other = (FileListKey) obj;
+
+            return project.equals(other.project)
+                && projectID.equals(other.projectID)
+                && (resources == null ? other.resources == null : resources
+                    .equals(other.resources));
+        }
+    }
+
+    private static class CachedFileList {
+        private FileList fileList;
+        private long stamp;
+    }
+
+    private final IFileContentChangedListener fileContentChangedListener = new IFileContentChangedListener() {
+
+        @Override
+        public void fileContentChanged(IFile file) {
+            modificationStamp.incrementAndGet();
+        }
+    };
+
+    private final AtomicLong modificationStamp = new AtomicLong();
+
+    private final IFileContentChangedNotifier fileContentChangedNotifier;
+
+    private volatile boolean trackModifications;
+
+    private final Map<FileListKey, CachedFileList> fileLists = new LinkedHashMap<FileListKey, CachedFileList>(
+        16, 0.75F, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<FileListKey, CachedFileList> eldest) {
+            return size() > MAX_FILE_LISTS;
+        }
+    };
+
+    private final Map<String, CompressedEntry> entries = new LinkedHashMap<String, CompressedEntry>(
+        16, 0.75F, true);
+
+    private long entriesSize;
+
+    /**
+     * Creates a cache that does not cache file lists as file changes are not
+     * tracked.
+     */
+    public ProjectNegotiationCache() {
+        this(null);
+    }
+
+    /**
+     * Creates a cache that tracks file changes with the given notifier.
+     *
+     * @param fileContentChangedNotifier
+     *            the notifier or <code>null</code> to not cache file lists
+     */
+    public ProjectNegotiationCache(
+        IFileContentChangedNotifier fileContentChangedNotifier) {
+
+        this.fileContentChangedNotifier = fileContentChangedNotifier;
+
+        trackModifications = fileContentChangedNotifier != null;
+
+        if (trackModifications)
+            fileContentChangedNotifier
+                .addFileContentChangedListener(fileContentChangedListener);
+        else
+            LOG.debug("file changes are not tracked, not caching file lists");
+    }
+
+    @Override
+    public void start() {
+        // NOP
+    }
+
+    /**
+     * Clears the cache. File lists are no longer cached afterwards as file
+     * changes are not tracked anymore.
+     */
+    @Override
+    public void stop() {
+        if (trackModifications)
+            fileContentChangedNotifier
+                .removeFileContentChangedListener(fileContentChangedListener);
+
+        trackModifications = false;
+
+        synchronized (fileLists) {
+            fileLists.clear();
+        }
+
+        synchronized (this) {
+            entries.clear();
+            entriesSize = 0;
+        }
+    }
+
+    /**
+     * Returns the file list of the given project. The list is shared with
+     * other negotiations and therefore <b>must not</b> be modified.
+     *
+     * @param project
+     *            the project to create the file list for
+     * @param projectID
+     *            the session wide id of the project which is set on the file
+     *            list
+     * @param resources
+     *            the shared resources of the project or <code>null</code> if
+     *            the project is shared completely
+     * @param checksumCache
+     *            the checksum cache to use when the file list is computed
+     * @param monitor
+     *            the monitor used when the file list is computed
+     */
+    FileList getFileList(final IProject project, final String projectID,
+        final List<IResource> resources, final IChecksumCache checksumCache,
+        final IProgressMonitor monitor) throws IOException {
+
+        if (!trackModifications)
+            return createFileList(project, projectID, resources,
+                checksumCache, monitor);
+
+        final FileListKey key = new FileListKey(project, projectID, resources);
+
+        CachedFileList cached;
+
+        synchronized (fileLists) {
+            cached = fileLists.get(key);
+
+            if (cached == null) {
+                cached = new CachedFileList();
+                fileLists.put(key, cached);
+            }
+        }
+
+        synchronized (cached) {
+            // read before the computation so concurrent changes are detected
+            final long stamp = modificationStamp.get();
+
+            if (cached.fileList != null && cached.stamp == stamp) {
+                LOG.debug("reusing file list of project: " + project);
+                return cached.fileList;
+            }
+
+            cached.fileList = createFileList(project, projectID, resources,
+                checksumCache, monitor);
+            cached.stamp = stamp;
+
+            return cached.fileList;
+        }
+    }
+
+    /**
+     * Returns the cached compressed content of the file with the given path
+     * if the content has not changed since it was cached.
+     *
+     * @param path
+     *            the full path of the file
+     * @param crc
+     *            the CRC-32 checksum of the current content of the file
+     * @param size
+     *            the current size of the file
+     * @return the cached entry or <code>null</code>
+     */
+    synchronized CompressedEntry getCompressedEntry(final String path,
+        final long crc, final long size) {
+
+        final CompressedEntry entry = entries.get(path);
+
+        if (entry == null || entry.crc != crc || entry.size != size)
+            return null;
+
+        return entry;
+    }
+
+    /**
+     * Caches the compressed content of the file with the given path. The
+     * content of the entry <b>must not</b> be modified afterwards.
+     */
+    synchronized void putCompressedEntry(final String path,
+        final CompressedEntry entry) {
+
+        if (entry.length > MAX_ENTRY_CACHE_SIZE)
+            return;
+
+        final CompressedEntry previous = entries.put(path, entry);
+
+        if (previous != null)
+            entriesSize -= previous.length;
+
+        entriesSize += entry.length;
+
+        final Iterator<CompressedEntry> it = entries.values().iterator();
+
+        while (entriesSize > MAX_ENTRY_CACHE_SIZE && it.hasNext()) {
+            entriesSize -= it.next().length;
+            it.remove();
+        }
+    }
+
+    private static FileList createFileList(final IProject project,
+        final String projectID, final List<IResource> resources,
+        final IChecksumCache checksumCache, final IProgressMonitor monitor)
+        throws IOException {
+
+        final FileList fileList = FileListFactory.createFileList(project,
+            resources, checksumCache, monitor);
+
+        fileList.setProjectID(projectID);
+
+        return fileList;
+    }
+}
@@ -0,0 +1,311 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip archive whose entries may have been compressed in advance, e.g
+ * by several threads at once. Unlike {@link java.util.zip.ZipOutputStream} it
+ * accepts raw deflated data together with its checksum and sizes. Large
+ * entries can also be compressed while they are written.
+ * <p>
+ * The archive can be read with {@link java.util.zip.ZipFile}. ZIP64 is not
+ * supported, so an archive is limited to {@value #MAX_ENTRIES} entries and 4
+ * GiB per entry.
+ * <p>
+ * This class is <b>not</b> thread safe.
+ */
+final class ZipArchiveWriter {
+
+    static final int MAX_ENTRIES = 0xFFFF;
+
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034B50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074B50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014B50;
+    private static final int END_SIGNATURE = 0x06054B50;
+
+    private static final int VERSION = 20;
+
+    /** sizes and checksum follow the data */
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+
+    /** the entry name is UTF-8 encoded */
+    private static final int FLAG_UTF8 = 0x0800;
+
+    private static class Entry {
+        private byte[] name;
+        private int flags;
+        private int method;
+        private long crc;
+        private long compressedSize;
+        private long size;
+        private long offset;
+    }
+
+    private final OutputStream out;
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    private final ByteArrayOutputStream header = new ByteArrayOutputStream(256);
+
+    private final int dosTime;
+
+    private long written;
+
+    private boolean finished;
+
+    /**
+     * @param out
+     *            the stream to write the archive to, it should be buffered
+     */
+    ZipArchiveWriter(final OutputStream out) {
+        this.out = out;
+        this.dosTime = toDosTime(System.currentTimeMillis());
+    }
+
+    /**
+     * Writes an entry whose data is already processed.
+     *
+     * @param name
+     *            the name of the entry
+     * @param method
+     *            either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED},
+     *            in the latter case the data must be deflated <b>without</b>
+     *            zlib header
+     * @param crc
+     *            the CRC-32 checksum of the uncompressed data
+     * @param size
+     *            the size of the uncompressed data
+     * @param data
+     *            the data of the entry
+     * @param length
+     *            the number of bytes of the data array to write
+     */
+    void writeEntry(final String name, final int method, final long crc,
+        final long size, final byte[] data, final int length)
+        throws IOException {
+
+        final Entry entry = createEntry(name, method, 0);
+
+        entry.crc = crc;
+        entry.size = size;
+        entry.compressedSize = length;
+
+        checkSize(name, size);
+
+        writeLocalHeader(entry);
+        write(data, 0, length);
+    }
+
+    /**
+     * Writes an entry while deflating the given stream. The checksum and sizes
+     * are written after the data, so the stream is only read once.
+     *
+     * @param name
+     *            the name of the entry
+     * @param in
+     *            the content of the entry, it is not closed
+     * @param level
+     *            the compression level to use
+     * @param buffer
+     *            buffer used for copying
+     */
+    void writeEntry(final String name, final InputStream in, final int level,
+        final byte[] buffer) throws IOException {
+
+        final Entry entry = createEntry(name, ZipEntry.DEFLATED,
+            FLAG_DATA_DESCRIPTOR);
+
+        writeLocalHeader(entry);
+
+        final long dataOffset = written;
+        final CRC32 crc = new CRC32();
+        final Deflater deflater = new Deflater(level, true);
+        final byte[] output = new byte[buffer.length];
+
+        try {
+            int read;
+
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+                deflater.setInput(buffer, 0, read);
+
+                while (!deflater.needsInput())
+                    write(output, 0, deflater.deflate(output));
+            }
+
+            deflater.finish();
+
+            while (!deflater.finished())
+                write(output, 0, deflater.deflate(output));
+
+            entry.size = deflater.getBytesRead();
+        } finally {
+            deflater.end();
+        }
+
+        entry.crc = crc.getValue();
+        entry.compressedSize = written - dataOffset;
+
+        checkSize(name, entry.size);
+        checkSize(name, entry.compressedSize);
+
+        header.reset();
+        writeInt(DATA_DESCRIPTOR_SIGNATURE);
+        writeInt(entry.crc);
+        writeInt(entry.compressedSize);
+        writeInt(entry.size);
+        flushHeader();
+    }
+
+    /**
+     * Writes the central directory. The underlying stream is neither flushed
+     * nor closed.
+     */
+    void finish() throws IOException {
+        if (finished)
+            return;
+
+        finished = true;
+
+        final long directoryOffset = written;
+
+        for (final Entry entry : entries) {
+            header.reset();
+            writeInt(CENTRAL_HEADER_SIGNATURE);
+            writeShort(VERSION); // made by
+            writeShort(VERSION); // needed to extract
+            writeShort(entry.flags);
+            writeShort(entry.method);
+            writeInt(dosTime);
+            writeInt(entry.crc);
+            writeInt(entry.compressedSize);
+            writeInt(entry.size);
+            writeShort(entry.name.length);
+            writeShort(0); // extra field length
+            writeShort(0); // comment length
+            writeShort(0); // disk number
+            writeShort(0); // internal attributes
+            writeInt(0); // external attributes
+            writeInt(entry.offset);
+            header.write(entry.name, 0, entry.name.length);
+            flushHeader();
+        }
+
+        final long directorySize = written - directoryOffset;
+
+        if (directoryOffset > MAX_SIZE)
+            throw new ZipException("archive exceeds 4 GiB");
+
+        header.reset();
+        writeInt(END_SIGNATURE);
+        writeShort(0); // disk number
+        writeShort(0); // disk with central directory
+        writeShort(entries.size());
+        writeShort(entries.size());
+        writeInt(directorySize);
+        writeInt(directoryOffset);
+        writeShort(0); // comment length
+        flushHeader();
+    }
+
+    private Entry createEntry(final String name, final int method,
+        final int flags) throws IOException {
+
+        if (finished)
+            throw new ZipException("archive is already finished");
+
+        if (entries.size() == MAX_ENTRIES)
+            throw new ZipException("too many entries, limit is "
+                + MAX_ENTRIES);
+
+        final Entry entry = new Entry();
+
+        entry.name = name.getBytes("UTF-8");
+        entry.method = method;
+        entry.flags = flags | FLAG_UTF8;
+        entry.offset = written;
+
+        if (entry.name.length > 0xFFFF)
+            throw new ZipException("entry name too long: " + name);
+
+        if (entry.offset > MAX_SIZE)
+            throw new ZipException("archive exceeds 4 GiB");
+
+        entries.add(entry);
+        return entry;
+    }
+
+    private void writeLocalHeader(final Entry entry) throws IOException {
+        final boolean sizesKnown = (entry.flags & FLAG_DATA_DESCRIPTOR) == 0;
+
+        header.reset();
+        writeInt(LOCAL_HEADER_SIGNATURE);
+        writeShort(VERSION);
+        writeShort(entry.flags);
+        writeShort(entry.method);
+        writeInt(dosTime);
+        writeInt(sizesKnown ? entry.crc : 0);
+        writeInt(sizesKnown ? entry.compressedSize : 0);
+        writeInt(sizesKnown ? entry.size : 0);
+        writeShort(entry.name.length);
+        writeShort(0); // extra field length
+        header.write(entry.name, 0, entry.name.length);
+        flushHeader();
+    }
+
+    private static void checkSize(final String name, final long size)
+        throws ZipException {
+        if (size > MAX_SIZE)
+            throw new ZipException("entry exceeds 4 GiB: " + name);
+    }
+
+    private void write(final byte[] data, final int offset, final int length)
+        throws IOException {
+        out.write(data, offset, length);
+        written += length;
+    }
+
+    private void flushHeader() throws IOException {
+        header.writeTo(out);
+        written += header.size();
+    }
+
+    private void writeShort(final int value) {
+        header.write(value & 0xFF);
+        header.write((value >>> 8) & 0xFF);
+    }
+
+    private void writeInt(final long value) {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private static int toDosTime(final long time) {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+
+        final int year = calendar.get(Calendar.YEAR);
+
+        if (year < 1980)
+            return (1 << 21) | (1 << 16);
+
+        return (year - 1980) << 25
+            | (calendar.get(Calendar.MONTH) + 1) << 21
+            | calendar.get(Calendar.DAY_OF_MONTH) << 16
+            | calendar.get(Calendar.HOUR_OF_DAY) << 11
+            | calendar.get(Calendar.MINUTE) << 5
+            | calendar.get(Calendar.SECOND) >> 1;
+    }
+}
@@ -3,6 +3,7 @@ package de.fu_berlin.inf.dpp.net.internal;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
@@ -12,6 +13,7 @@ import java.net.ProtocolException;
 import java.net.SocketException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -28,6 +30,12 @@ import de.fu_berlin.inf.dpp.net.xmpp.JID;
  * send() is a reentrant method for sending data. Any number of threads can call
  * it in parallel. </p> <b>Note:</b> The maximum number of concurrent threads is
  * 32 !
+ * <p>
+ * Outgoing frames are buffered and only flushed when no other thread is
+ * waiting to write, so small frames of concurrent senders share one write to
+ * the stream. The size of the data chunks is adjusted to the measured write
+ * throughput, so a chunk does not block the frames of other senders for much
+ * longer than {@link #CHUNK_WRITE_TIME} milliseconds.
  *
  *
  * @author sszuecs
@@ -51,11 +59,43 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         private static final int ELEMENT_NAME_UPDATE = 0x65;
     }
 
+    private static class Compression {
+        private static final int NONE = 0;
+
+        /* plain zlib stream, the only compression used by older versions */
+        private static final int STANDALONE = 1;
+
+        /* part of the shared zlib stream of the compression context */
+        private static final int SHARED = 2;
+    }
+
     /**
      * Max size of data chunks
      */
     private static final int CHUNKSIZE = 32 * 1024 - 1;
 
+    /**
+     * Min size of data chunks
+     */
+    private static final int MIN_CHUNKSIZE = 4 * 1024;
+
+    /**
+     * Time in milliseconds writing a data chunk should take
+     */
+    private static final int CHUNK_WRITE_TIME = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.net.CHUNK_WRITE_TIME", 20);
+
+    /**
+     * Size of the output buffer, large enough to hold a data chunk together
+     * with the frames written before it. The buffer takes the place of
+     * gathering writes: the streams of all stream services are plain
+     * streams without a channel, so the frame header and the chunk can only
+     * reach the socket in one write if they are copied into one buffer.
+     * Copying a chunk of at most 32 KiB is cheap compared to the extra write
+     * and the extra TCP segment it saves.
+     */
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     private IByteStreamConnectionListener listener;
     private ReceiverThread receiveThread;
 
@@ -71,10 +111,28 @@ public class BinaryChannelConnection implements IByteStreamConnection {
 
     private Map<Integer, ByteArrayOutputStream> pendingFragmentedPackets = new HashMap<Integer, ByteArrayOutputStream>();
     private Map<Integer, BinaryXMPPExtension> pendingXMPPExtensions = new HashMap<Integer, BinaryXMPPExtension>();
+    private Map<Integer, Integer> pendingCompressions = new HashMap<Integer, Integer>();
+
+    private final CompressionContext outgoingCompression = new CompressionContext();
+    private final CompressionContext incomingCompression = new CompressionContext();
+
+    /** held while a payload of the shared stream is compressed and sent */
+    private final Object sharedStreamLock = new Object();
 
     private DataInputStream inputStream;
     private DataOutputStream outputStream;
 
+    /** number of threads waiting to write a frame */
+    private final AtomicInteger waitingWriters = new AtomicInteger();
+
+    /** whether written frames have to be flushed, guarded by this */
+    private boolean flushPending;
+
+    /** measured write throughput in bytes per millisecond, guarded by this */
+    private double throughput;
+
+    private volatile int chunkSize = CHUNKSIZE;
+
     private ByteStream stream;
     private StreamMode mode;
 
@@ -109,6 +167,7 @@ public class BinaryChannelConnection implements IByteStreamConnection {
             } catch (Exception e) {
                 LOG.error(connection + " internal error: " + e.getMessage(), e);
             } finally {
+                incomingCompression.dispose();
                 close();
             }
         }
@@ -126,7 +185,8 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         this.mode = mode;
 
         outputStream = new DataOutputStream(new BufferedOutputStream(
-            stream.getOutputStream()));
+            stream.getOutputStream(), WRITE_BUFFER_SIZE));
+
         inputStream = new DataInputStream(new BufferedInputStream(
             stream.getInputStream()));
     }
@@ -136,6 +196,9 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         if (initialized)
             return;
 
+        connected = true;
+        initialized = true;
+
         /*
          * it is ok to start the receiver a bit later because the data will be
          * already buffered by SMACK or the OS
@@ -143,8 +206,6 @@ public class BinaryChannelConnection implements IByteStreamConnection {
         receiveThread = new ReceiverThread();
         receiveThread.setName("BinaryChannel-" + remoteAddress.getName());
         receiveThread.start();
-        connected = true;
-        initialized = true;
     }
 
     @Override
@@ -173,9 +234,11 @@ public class BinaryChannelConnection implements IByteStreamConnection {
             }
         }
 
-        assert receiveThread != null;
+        synchronized (outgoingCompression) {
+            outgoingCompression.dispose();
+        }
 
-        if (Thread.currentThread() != receiveThread) {
+        if (receiveThread != null && Thread.currentThread() != receiveThread) {
             try {
                 receiveThread.join(TERMINATE_TIMEOUT);
             } catch (InterruptedException e) {
@@ -203,7 +266,7 @@ public class BinaryChannelConnection implements IByteStreamConnection {
     }
 
     @Override
-    public void send(TransferDescription data, byte[] content)
+    public long send(TransferDescription data, byte[] content)
         throws IOException {
 
         if (!isConnected())
@@ -219,8 +282,10 @@ public class BinaryChannelConnection implements IByteStreamConnection {
             Integer namespaceId;
             Integer elementNameId;
 
+            waitingWriters.incrementAndGet();
+
             synchronized (this) {
-                boolean sendUpdate = false;
+                waitingWriters.decrementAndGet();
 
                 final String namespace = data.getNamespace();
                 namespaceId = outNamespaceCache.get(namespace);
@@ -239,7 +304,6 @@ public class BinaryChannelConnection implements IByteStreamConnection {
                     outputStream.write(Opcode.NAMESPACE_UPDATE);
                     outputStream.write(namespaceId);
                     outputStream.writeUTF(namespace);
-                    sendUpdate = true;
                 }
 
                 final String elementName = data.getElementName();
@@ -260,21 +324,47 @@ public class BinaryChannelConnection implements IByteStreamConnection {
                     outputStream.write(Opcode.ELEMENT_NAME_UPDATE);
                     outputStream.writeShort(elementNameId);
                     outputStream.writeUTF(elementName);
-                    sendUpdate = true;
                 }
 
-                if (sendUpdate)
-                    outputStream.flush();
+                // the updates are flushed together with the payload
+                endWrite(false);
             }
 
             assert content.length > 0;
 
-            int chunks = ((content.length - 1) / CHUNKSIZE) + 1;
+            if (!data.compressContent())
+                return sendPayload(fragmentId, namespaceId, elementNameId,
+                    Compression.NONE, content);
 
-            sendTransferDescription(fragmentId, chunks, namespaceId,
-                elementNameId, data.compressContent());
+            byte[] payload;
 
-            splitAndSend(content, chunks, fragmentId);
+            if (content.length > CompressionContext.MAX_SHARED_PAYLOAD_SIZE
+                || !CompressionContext.isSharedStreamSupported()) {
+                payload = compress(content, false);
+
+                if (payload == null)
+                    return sendPayload(fragmentId, namespaceId, elementNameId,
+                        Compression.NONE, content);
+
+                return sendPayload(fragmentId, namespaceId, elementNameId,
+                    Compression.STANDALONE, payload);
+            }
+
+            /*
+             * the remote side has to inflate the payloads of the shared stream
+             * in the order they were deflated, so they must not be interleaved
+             * with each other. Other payloads are still interleaved with them.
+             */
+            synchronized (sharedStreamLock) {
+                payload = compress(content, true);
+
+                if (payload == null)
+                    return sendPayload(fragmentId, namespaceId, elementNameId,
+                        Compression.NONE, content);
+
+                return sendPayload(fragmentId, namespaceId, elementNameId,
+                    Compression.SHARED, payload);
+            }
         } catch (IOException e) {
             close();
             throw e;
@@ -295,194 +385,305 @@ public class BinaryChannelConnection implements IByteStreamConnection {
     private BinaryXMPPExtension readNextXMPPExtension() throws IOException {
 
         while (!Thread.currentThread().isInterrupted()) {
+            final BinaryXMPPExtension extension = processFrame(inputStream);
 
-            final int opcode = inputStream.readUnsignedByte();
+            if (extension != null)
+                return extension;
+        }
 
-            if (opcode == -1)
-                throw new EOFException("no stream data available");
+        // clear the interrupt flag
+        Thread.interrupted();
+        throw new InterruptedIOException(
+            "interrupted while reading stream data");
+    }
 
-            final int fragmentId;
+    /**
+     * Reads and processes the next frame.
+     *
+     * @return the received extension if the frame completed one,
+     *         <code>null</code> otherwise
+     */
+    private BinaryXMPPExtension processFrame(DataInput inputStream)
+        throws IOException {
 
-            final int id;
-            final String name;
+        final int opcode = inputStream.readUnsignedByte();
 
-            switch (opcode) {
-            case Opcode.TRANSFERDESCRIPTION:
-                fragmentId = inputStream.readShort();
-                final int chunks = inputStream.readInt();
+        final int fragmentId;
 
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("processing opcode 0x"
-                        + Integer.toHexString(opcode).toUpperCase()
-                        + " [TFD]: id=" + fragmentId + ", chunks=" + chunks);
-                }
+        final int id;
+        final String name;
 
-                final int namespaceId = inputStream.readUnsignedByte();
-                final int elementNameId = inputStream.readUnsignedShort();
-                final int compressed = inputStream.readUnsignedByte();
+        switch (opcode) {
+        case Opcode.TRANSFERDESCRIPTION:
+            fragmentId = inputStream.readShort();
+            final int chunks = inputStream.readInt();
 
-                final String namespace = inNamespaceCache.get(Integer
-                    .valueOf(namespaceId));
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("processing opcode 0x"
+                    + Integer.toHexString(opcode).toUpperCase()
+                    + " [TFD]: id=" + fragmentId + ", chunks=" + chunks);
+            }
 
-                final String elementName = inElementNameCache.get(Integer
-                    .valueOf(elementNameId));
+            final int namespaceId = inputStream.readUnsignedByte();
+            final int elementNameId = inputStream.readUnsignedShort();
+            final int compression = inputStream.readUnsignedByte();
 
-                final TransferDescription transferDescription = TransferDescription
-                    .newDescription();
+            if (compression != Compression.NONE
+                && compression != Compression.STANDALONE
+                && compression != Compression.SHARED)
+                throw new ProtocolException("unknown compression: "
+                    + compression);
 
-                transferDescription.setSender(remoteAddress);
-                transferDescription.setRecipient(localAddress);
-                transferDescription.setNamespace(namespace);
-                transferDescription.setElementName(elementName);
-                transferDescription.setCompressContent(compressed == 1);
+            final String namespace = inNamespaceCache.get(Integer
+                .valueOf(namespaceId));
 
-                BinaryXMPPExtension oldTransferObject = pendingXMPPExtensions
-                    .put(fragmentId, new BinaryXMPPExtension(mode,
-                        transferDescription, chunks));
+            final String elementName = inElementNameCache.get(Integer
+                .valueOf(elementNameId));
 
-                if (oldTransferObject != null)
-                    throw new IOException(
-                        "replaced a XMPP extension that is still transmitted");
-                break;
+            final TransferDescription transferDescription = TransferDescription
+                .newDescription();
 
-            case Opcode.DATA:
-                fragmentId = inputStream.readShort();
-                final int payloadLength = inputStream.readInt();
+            transferDescription.setSender(remoteAddress);
+            transferDescription.setRecipient(localAddress);
+            transferDescription.setNamespace(namespace);
+            transferDescription.setElementName(elementName);
+            transferDescription
+                .setCompressContent(compression != Compression.NONE);
 
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("processing opcode 0x"
-                        + Integer.toHexString(opcode).toUpperCase()
-                        + " [DATA]: id=" + fragmentId + ", DATA len="
-                        + payloadLength + " bytes");
-                }
+            BinaryXMPPExtension oldTransferObject = pendingXMPPExtensions
+                .put(fragmentId, new BinaryXMPPExtension(mode,
+                    transferDescription, chunks));
 
-                if (payloadLength <= 0 || payloadLength > CHUNKSIZE)
-                    throw new ProtocolException(
-                        "payload length field contains corrupted value: 0 < "
-                            + payloadLength + " <= " + CHUNKSIZE);
+            if (oldTransferObject != null)
+                throw new IOException(
+                    "replaced a XMPP extension that is still transmitted");
 
-                byte[] payload = new byte[payloadLength];
-                inputStream.readFully(payload);
+            pendingCompressions.put(fragmentId, compression);
+            break;
 
-                ByteArrayOutputStream out = pendingFragmentedPackets
-                    .get(fragmentId);
+        case Opcode.DATA:
+            fragmentId = inputStream.readShort();
+            final int payloadLength = inputStream.readInt();
 
-                if (out == null) {
-                    out = new ByteArrayOutputStream(payloadLength * 2);
-                    pendingFragmentedPackets.put(fragmentId, out);
-                }
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("processing opcode 0x"
+                    + Integer.toHexString(opcode).toUpperCase()
+                    + " [DATA]: id=" + fragmentId + ", DATA len="
+                    + payloadLength + " bytes");
+            }
 
-                out.write(payload);
-                out.flush();
+            if (payloadLength <= 0 || payloadLength > CHUNKSIZE)
+                throw new ProtocolException(
+                    "payload length field contains corrupted value: 0 < "
+                        + payloadLength + " <= " + CHUNKSIZE);
 
-                if (!pendingXMPPExtensions.get(fragmentId).isLastChunk())
-                    break;
+            byte[] payload = new byte[payloadLength];
+            inputStream.readFully(payload);
 
-                pendingFragmentedPackets.remove(fragmentId);
+            ByteArrayOutputStream out = pendingFragmentedPackets
+                .get(fragmentId);
 
-                BinaryXMPPExtension fullyReceivedTransferObject = pendingXMPPExtensions
-                    .remove(fragmentId);
+            if (out == null) {
+                out = new ByteArrayOutputStream(payloadLength * 2);
+                pendingFragmentedPackets.put(fragmentId, out);
+            }
 
-                payload = out.toByteArray();
-                out = null; // help GC
+            out.write(payload);
+            out.flush();
 
-                fullyReceivedTransferObject.setPayload(payload.length, payload);
+            if (!pendingXMPPExtensions.get(fragmentId).isLastChunk())
+                break;
 
-                return fullyReceivedTransferObject;
+            pendingFragmentedPackets.remove(fragmentId);
 
-            case Opcode.ELEMENT_NAME_UPDATE:
+            BinaryXMPPExtension fullyReceivedTransferObject = pendingXMPPExtensions
+                .remove(fragmentId);
 
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("processing opcode 0x"
-                        + Integer.toHexString(opcode).toUpperCase() + " [ENU]");
-                }
+            payload = out.toByteArray();
+            out = null; // help GC
 
-                id = inputStream.readUnsignedShort();
-                name = inputStream.readUTF();
-                inElementNameCache.put(Integer.valueOf(id), name);
+            final int transferredSize = payload.length;
+            final int payloadCompression = pendingCompressions
+                .remove(fragmentId);
 
-                if (LOG.isTraceEnabled())
-                    LOG.trace("updated incoming element name cache, id: " + id
-                        + " , element name: " + name);
+            if (payloadCompression != Compression.NONE) {
+                payload = incomingCompression.inflate(payload,
+                    payloadCompression == Compression.SHARED);
 
-                break;
+                fullyReceivedTransferObject.getTransferDescription()
+                    .setCompressContent(false);
+            }
 
-            case Opcode.NAMESPACE_UPDATE:
+            fullyReceivedTransferObject.setPayload(transferredSize,
+                payload);
 
-                if (LOG.isTraceEnabled()) {
-                    LOG.trace("processing opcode 0x"
-                        + Integer.toHexString(opcode).toUpperCase() + " [NSU]");
-                }
+            return fullyReceivedTransferObject;
 
-                id = inputStream.readUnsignedByte();
-                name = inputStream.readUTF();
-                inNamespaceCache.put(Integer.valueOf(id), name);
+        case Opcode.ELEMENT_NAME_UPDATE:
 
-                if (LOG.isTraceEnabled())
-                    LOG.trace("updated incoming namespace cache, id: " + id
-                        + " , namespace: " + name);
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("processing opcode 0x"
+                    + Integer.toHexString(opcode).toUpperCase() + " [ENU]");
+            }
 
-                break;
+            id = inputStream.readUnsignedShort();
+            name = inputStream.readUTF();
+            inElementNameCache.put(Integer.valueOf(id), name);
 
-            default:
-                close();
-                throw new ProtocolException("unknown opcode: 0x"
-                    + Integer.toHexString(opcode).toUpperCase());
+            if (LOG.isTraceEnabled())
+                LOG.trace("updated incoming element name cache, id: " + id
+                    + " , element name: " + name);
+
+            break;
+
+        case Opcode.NAMESPACE_UPDATE:
+
+            if (LOG.isTraceEnabled()) {
+                LOG.trace("processing opcode 0x"
+                    + Integer.toHexString(opcode).toUpperCase() + " [NSU]");
             }
+
+            id = inputStream.readUnsignedByte();
+            name = inputStream.readUTF();
+            inNamespaceCache.put(Integer.valueOf(id), name);
+
+            if (LOG.isTraceEnabled())
+                LOG.trace("updated incoming namespace cache, id: " + id
+                    + " , namespace: " + name);
+
+            break;
+
+        default:
+            close();
+            throw new ProtocolException("unknown opcode: 0x"
+                + Integer.toHexString(opcode).toUpperCase());
         }
 
-        // clear the interrupt flag
-        Thread.interrupted();
-        throw new InterruptedIOException(
-            "interrupted while reading stream data");
+        return null;
     }
 
-    private synchronized void sendData(int fragmentId, byte[] data, int offset,
-        int length) throws IOException {
+    private void sendData(int fragmentId, byte[] data, int offset,
+        int length, boolean last) throws IOException {
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("sending data: id=" + fragmentId + ", len=" + length
                 + " bytes");
         }
 
-        outputStream.write(Opcode.DATA);
-        outputStream.writeShort(fragmentId);
-        outputStream.writeInt(length);
-        outputStream.write(data, offset, length);
-        outputStream.flush();
+        waitingWriters.incrementAndGet();
+
+        synchronized (this) {
+            waitingWriters.decrementAndGet();
+
+            outputStream.write(Opcode.DATA);
+            outputStream.writeShort(fragmentId);
+            outputStream.writeInt(length);
+            outputStream.write(data, offset, length);
+            endWrite(last);
+        }
     }
 
-    private synchronized void sendTransferDescription(int fragmentId,
-        int chunks, int namespaceId, int elementNameId, boolean compress)
+    private void sendTransferDescription(int fragmentId, int chunks,
+        int namespaceId, int elementNameId, int compression)
         throws IOException {
 
         if (LOG.isTraceEnabled()) {
             LOG.trace("sending transfer description: id=" + fragmentId);
         }
 
-        outputStream.write(Opcode.TRANSFERDESCRIPTION);
-        outputStream.writeShort(fragmentId);
-        outputStream.writeInt(chunks);
-        outputStream.write(namespaceId);
-        outputStream.writeShort(elementNameId);
-        outputStream.write(compress ? 1 : 0);
+        waitingWriters.incrementAndGet();
+
+        synchronized (this) {
+            waitingWriters.decrementAndGet();
+
+            outputStream.write(Opcode.TRANSFERDESCRIPTION);
+            outputStream.writeShort(fragmentId);
+            outputStream.writeInt(chunks);
+            outputStream.write(namespaceId);
+            outputStream.writeShort(elementNameId);
+            outputStream.write(compression);
+            endWrite(false);
+        }
+    }
+
+    /**
+     * Flushes the written frames if requested or if a previous flush was
+     * deferred. The flush is deferred as long as another thread is waiting to
+     * write, that thread flushes the frames together with its own ones. Must
+     * be called while holding the lock of this connection.
+     */
+    private void endWrite(boolean flush) throws IOException {
+        flushPending |= flush;
+
+        if (!flushPending || waitingWriters.get() > 0)
+            return;
+
         outputStream.flush();
+        flushPending = false;
     }
 
     /**
-     * Splits the given data into chunks of CHUNKSIZE to send the BinaryPackets.
+     * Adjusts the chunk size to the throughput of the given write.
      */
-    private void splitAndSend(byte[] data, int chunks, int fragmentId)
-        throws IOException {
+    private synchronized void updateChunkSize(long bytes, long nanos) {
+        final double sample = bytes * 1000000D / Math.max(nanos, 1L);
+
+        throughput = throughput == 0 ? sample : (throughput * 3 + sample) / 4;
+
+        chunkSize = (int) Math.max(MIN_CHUNKSIZE,
+            Math.min(CHUNKSIZE, throughput * CHUNK_WRITE_TIME));
+    }
+
+    /**
+     * Compresses the given content with the outgoing compression context.
+     *
+     * @return the compressed content or <code>null</code> if the content
+     *         should be send uncompressed
+     */
+    private byte[] compress(byte[] content, boolean shared) {
+        synchronized (outgoingCompression) {
+            if (!outgoingCompression.shouldCompress(content.length))
+                return null;
+
+            return outgoingCompression.deflate(content, shared);
+        }
+    }
+
+    private long sendPayload(int fragmentId, int namespaceId,
+        int elementNameId, int compression, byte[] payload) throws IOException {
+
+        final int size = chunkSize;
+        final int chunks = ((payload.length - 1) / size) + 1;
+
+        final long start = System.nanoTime();
+
+        sendTransferDescription(fragmentId, chunks, namespaceId,
+            elementNameId, compression);
+
+        splitAndSend(payload, size, chunks, fragmentId);
+
+        // a single chunk is usually only copied to the buffer
+        if (chunks > 1)
+            updateChunkSize(payload.length, System.nanoTime() - start);
+
+        return payload.length;
+    }
+
+    /**
+     * Splits the given data into chunks of the given size to send the
+     * BinaryPackets.
+     */
+    private void splitAndSend(byte[] data, int size, int chunks,
+        int fragmentId) throws IOException {
 
         int offset = 0;
         int length = 0;
 
         while (chunks-- > 0) {
 
-            length = Math.min(data.length - offset, CHUNKSIZE);
+            length = Math.min(data.length - offset, size);
 
-            sendData(fragmentId, data, offset, length);
+            sendData(fragmentId, data, offset, length, chunks == 0);
 
             offset += length;
         }
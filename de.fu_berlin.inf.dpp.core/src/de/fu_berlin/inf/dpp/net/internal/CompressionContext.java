@@ -0,0 +1,417 @@
+package de.fu_berlin.inf.dpp.net.internal;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Keeps the compression state for one direction of a byte stream connection.
+ * <p>
+ * Payloads can either be compressed <i>standalone</i>, which results in a
+ * plain zlib stream, or as part of the <i>shared stream</i> of this context.
+ * The shared stream is one continuous zlib stream that starts with a preset
+ * dictionary of common activity tokens. Every payload is completed with a
+ * sync flush, so it can be inflated as soon as it is received while later
+ * payloads still refer to the previous ones. As both sides of a connection
+ * process the payloads of the shared stream in the same order, small and
+ * redundant packets compress as well as in one continuous stream and the
+ * zlib state is neither reset nor primed with a dictionary per payload.
+ * <p>
+ * Deflating the shared stream requires Java 7, see
+ * {@link #isSharedStreamSupported()}. Inflating it works on every version.
+ * <p>
+ * The context also keeps track of the achieved compression ratio. If
+ * compressing does not pay off several times in a row, compression is
+ * suspended for a growing number of payloads.
+ * <p>
+ * This class is <b>not</b> thread safe.
+ */
+final class CompressionContext {
+
+    /**
+     * payloads smaller than this size are never compressed as the zlib
+     * header and checksum alone take six bytes
+     */
+    static final int MIN_PAYLOAD_SIZE = 16;
+
+    /**
+     * payloads greater than this size are compressed standalone as they
+     * barely benefit from the shared stream
+     */
+    static final int MAX_SHARED_PAYLOAD_SIZE = 64 * 1024;
+
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+
+    /** larger buffers are released after use */
+    private static final int MAX_BUFFER_SIZE = 2 * MAX_SHARED_PAYLOAD_SIZE;
+
+    private static final int MAX_MISSES = 3;
+
+    private static final int MAX_PAYLOADS_TO_SKIP = 64;
+
+    /** value of Deflater.SYNC_FLUSH, which does not exist in Java 6 */
+    private static final int SYNC_FLUSH = 2;
+
+    /**
+     * Deflater.deflate(byte[], int, int, int) or <code>null</code> if the
+     * runtime cannot flush a deflater
+     */
+    private static final Method DEFLATE_WITH_FLUSH;
+
+    private static final byte[] PRESET_DICTIONARY;
+
+    static {
+        /*
+         * zlib prefers the most common strings at the end of the dictionary,
+         * so keep the activity tokens behind the more general ones
+         */
+        final String dictionary = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "xmlns=\"de.fu_berlin.inf.dpp\" <sid> </sid> <version> <error>"
+            + "<PING/><PONG/><settings><description><data></data>"
+            + "<fileActivity type=\"\" <folderCreated <folderDeleted "
+            + "<folderMoved <changeColorActivity <checksumActivity "
+            + "<checksumErrorActivity <permissionActivity <progressActivity "
+            + "<recoveryFileActivity <shareConsoleActivity <stopActivity "
+            + "<startFollowingActivity <stopFollowingActivity <nopActivity "
+            + "<editorActivity state=\"ACTIVATED\" <viewportActivity "
+            + "<textSelectionActivity offset=\"\" length=\"\" "
+            + "<splitOp><timestampOp/><noOp/><deleteOp <insertOp pos=\"\" "
+            + "text=\"\" origin=\"\"/></splitOp><vectorTime local=\"\" "
+            + "remote=\"\"/><SPath d=\"\" i=\"\" p=\"\"/><o class=\"\"><t "
+            + "</jupiterActivity><jupiterActivity src=\"\"><p d=\"\"/>"
+            + "</ADOS><ADOS xmlns=\"de.fu_berlin.inf.dpp\" seq=\"\"><sid>";
+
+        try {
+            PRESET_DICTIONARY = dictionary.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+
+        Method deflateWithFlush = null;
+
+        try {
+            deflateWithFlush = Deflater.class.getMethod("deflate",
+                byte[].class, int.class, int.class, int.class);
+        } catch (NoSuchMethodException e) {
+            // Java 6, only standalone payloads can be deflated
+        }
+
+        DEFLATE_WITH_FLUSH = deflateWithFlush;
+    }
+
+    /** deflates standalone payloads, reset before every payload */
+    private Deflater deflater;
+
+    /** inflates standalone payloads, reset before every payload */
+    private Inflater inflater;
+
+    /** deflates the shared stream, never reset */
+    private Deflater sharedDeflater;
+
+    /** inflates the shared stream, never reset */
+    private Inflater sharedInflater;
+
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+
+    private int misses;
+
+    private int payloadsToSkip;
+
+    private int nextPayloadsToSkip = 1;
+
+    private boolean disposed;
+
+    /**
+     * Returns whether payloads can be deflated as part of the shared stream on
+     * this runtime.
+     */
+    static boolean isSharedStreamSupported() {
+        return DEFLATE_WITH_FLUSH != null;
+    }
+
+    /**
+     * Returns whether a payload of the given size should be compressed. This
+     * method must be called exactly once before a payload is (not) compressed
+     * as it advances the suspension counter.
+     */
+    boolean shouldCompress(int length) {
+        if (disposed || length < MIN_PAYLOAD_SIZE)
+            return false;
+
+        if (payloadsToSkip == 0)
+            return true;
+
+        payloadsToSkip--;
+        return false;
+    }
+
+    /**
+     * Compresses the given payload.
+     *
+     * @param data
+     *            the payload to compress
+     * @param shared
+     *            if <code>true</code> the payload is appended to the shared
+     *            stream
+     * @return the compressed payload or <code>null</code> if the compressed
+     *         form of a standalone payload is not smaller than the given
+     *         payload. A payload of the shared stream is always returned, as
+     *         the remote side has to inflate it to stay in sync.
+     * @throws IllegalStateException
+     *             if the context is already disposed or if the shared stream
+     *             is not supported on this runtime
+     */
+    byte[] deflate(byte[] data, boolean shared) {
+        if (disposed)
+            throw new IllegalStateException("context is disposed");
+
+        final int count = shared ? deflateShared(data)
+            : deflateStandalone(data);
+
+        if (count >= data.length) {
+            recordMiss();
+
+            if (!shared)
+                return null;
+        } else if (count > data.length - data.length / 10) {
+            recordMiss();
+        } else {
+            recordHit();
+        }
+
+        return copyBuffer(count);
+    }
+
+    /**
+     * Decompresses the given payload.
+     *
+     * @param data
+     *            the compressed payload
+     * @param shared
+     *            if <code>true</code> the payload is the next part of the
+     *            shared stream
+     * @return the decompressed payload
+     * @throws IOException
+     *             if the payload is corrupted, if the payloads of the shared
+     *             stream are not inflated in order or if the context is
+     *             already disposed
+     */
+    byte[] inflate(byte[] data, boolean shared) throws IOException {
+        if (disposed)
+            throw new IOException("compression context is disposed");
+
+        try {
+            return copyBuffer(shared ? inflateShared(data)
+                : inflateStandalone(data));
+        } catch (DataFormatException e) {
+            throw new IOException("failed to inflate data", e);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("dictionary of the remote side differs", e);
+        }
+    }
+
+    /**
+     * Releases the native resources of this context. Afterwards
+     * {@link #shouldCompress(int)} always returns <code>false</code> and
+     * neither deflating nor inflating is possible, so no native resources are
+     * allocated again.
+     */
+    void dispose() {
+        disposed = true;
+
+        if (deflater != null)
+            deflater.end();
+
+        if (inflater != null)
+            inflater.end();
+
+        if (sharedDeflater != null)
+            sharedDeflater.end();
+
+        if (sharedInflater != null)
+            sharedInflater.end();
+
+        deflater = null;
+        inflater = null;
+        sharedDeflater = null;
+        sharedInflater = null;
+    }
+
+    private int deflateStandalone(byte[] data) {
+        if (deflater == null)
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+        deflater.reset();
+        deflater.setInput(data);
+        deflater.finish();
+
+        int count = 0;
+
+        while (!deflater.finished()) {
+            if (count == buffer.length)
+                growBuffer();
+
+            count += deflater.deflate(buffer, count, buffer.length - count);
+        }
+
+        /*
+         * release the reference to the payload, it is otherwise kept until the
+         * next call
+         */
+        deflater.setInput(buffer, 0, 0);
+
+        return count;
+    }
+
+    private int deflateShared(byte[] data) {
+        if (!isSharedStreamSupported())
+            throw new IllegalStateException(
+                "deflating the shared stream requires Java 7");
+
+        if (sharedDeflater == null) {
+            sharedDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            sharedDeflater.setDictionary(PRESET_DICTIONARY);
+        }
+
+        sharedDeflater.setInput(data);
+
+        int count = 0;
+
+        // the flush is complete if the deflater leaves output space unused
+        while (true) {
+            if (count == buffer.length)
+                growBuffer();
+
+            final int space = buffer.length - count;
+            final int deflated = deflateWithFlush(buffer, count, space);
+
+            count += deflated;
+
+            if (deflated < space)
+                break;
+        }
+
+        sharedDeflater.setInput(buffer, 0, 0);
+
+        return count;
+    }
+
+    private int deflateWithFlush(byte[] output, int offset, int length) {
+        try {
+            return (Integer) DEFLATE_WITH_FLUSH.invoke(sharedDeflater, output,
+                offset, length, SYNC_FLUSH);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private int inflateStandalone(byte[] data) throws IOException,
+        DataFormatException {
+
+        if (inflater == null)
+            inflater = new Inflater();
+
+        inflater.reset();
+        inflater.setInput(data);
+
+        int count = 0;
+
+        while (!inflater.finished()) {
+            if (count == buffer.length)
+                growBuffer();
+
+            final int inflated = inflater.inflate(buffer, count,
+                buffer.length - count);
+
+            count += inflated;
+
+            if (inflated != 0 || count == buffer.length)
+                continue;
+
+            if (inflater.needsDictionary())
+                throw new ProtocolException(
+                    "standalone payload requires a dictionary");
+
+            if (inflater.needsInput())
+                throw new ProtocolException("truncated payload");
+        }
+
+        return count;
+    }
+
+    private int inflateShared(byte[] data) throws IOException,
+        DataFormatException {
+
+        if (sharedInflater == null)
+            sharedInflater = new Inflater();
+
+        sharedInflater.setInput(data);
+
+        int count = 0;
+
+        while (true) {
+            if (count == buffer.length)
+                growBuffer();
+
+            final int inflated = sharedInflater.inflate(buffer, count,
+                buffer.length - count);
+
+            count += inflated;
+
+            if (inflated != 0 || count == buffer.length)
+                continue;
+
+            if (sharedInflater.needsDictionary())
+                sharedInflater.setDictionary(PRESET_DICTIONARY);
+            else if (sharedInflater.finished())
+                throw new ProtocolException("shared stream was finished");
+            else if (sharedInflater.needsInput())
+                break;
+            else
+                throw new ProtocolException("inflater made no progress");
+        }
+
+        return count;
+    }
+
+    private void recordHit() {
+        misses = 0;
+        nextPayloadsToSkip = 1;
+    }
+
+    private void recordMiss() {
+        if (++misses < MAX_MISSES)
+            return;
+
+        misses = 0;
+        payloadsToSkip = nextPayloadsToSkip;
+        nextPayloadsToSkip = Math.min(nextPayloadsToSkip * 2,
+            MAX_PAYLOADS_TO_SKIP);
+    }
+
+    private byte[] copyBuffer(int count) {
+        final byte[] result = new byte[count];
+        System.arraycopy(buffer, 0, result, 0, count);
+
+        if (buffer.length > MAX_BUFFER_SIZE)
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+
+        return result;
+    }
+
+    private void growBuffer() {
+        final byte[] newBuffer = new byte[buffer.length * 2];
+        System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
+        buffer = newBuffer;
+    }
+}
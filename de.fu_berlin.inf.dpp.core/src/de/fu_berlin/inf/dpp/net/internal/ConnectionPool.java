@@ -99,4 +99,25 @@ final class ConnectionPool {
 
         return pool.remove(id);
     }
+
+    /**
+     * Removes the given connection from the pool if it is still associated
+     * with the given id.
+     *
+     * @param id
+     *            id of the connection
+     * @param connection
+     *            the connection to remove
+     * @return <code>true</code> if the connection was removed,
+     *         <code>false</code> if the id is associated with another or no
+     *         connection or the pool is closed
+     */
+    public synchronized boolean remove(final String id,
+        final IByteStreamConnection connection) {
+        if (!isOpen || pool.get(id) != connection)
+            return false;
+
+        pool.remove(id);
+        return true;
+    }
 }
@@ -9,11 +9,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
 import org.apache.log4j.Logger;
@@ -33,6 +32,8 @@ import de.fu_berlin.inf.dpp.net.stream.StreamMode;
 import de.fu_berlin.inf.dpp.net.xmpp.IConnectionListener;
 import de.fu_berlin.inf.dpp.net.xmpp.JID;
 import de.fu_berlin.inf.dpp.net.xmpp.XMPPConnectionService;
+import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
+import de.fu_berlin.inf.dpp.util.ThreadUtils;
 
 /**
  * This class is responsible for handling all transfers of binary data. It
@@ -52,6 +53,19 @@ public class DataTransferManager implements IConnectionListener,
 
     private static final int CHUNKSIZE = 16 * 1024;
 
+    /**
+     * Time in milliseconds a stream service is given to establish a connection
+     * before the next stream service is raced against it.
+     */
+    private static final long CONNECT_HEAD_START = Long.getLong(
+        "de.fu_berlin.inf.dpp.net.CONNECT_HEAD_START", 3000L);
+
+    /**
+     * Time in milliseconds to wait for running connection establishments when
+     * the XMPP connection is disposed.
+     */
+    private static final long DISPOSE_TIMEOUT = 5000L;
+
     private static final String DEFAULT_CONNECTION_ID = "default";
 
     private static final String IN = "in";
@@ -74,12 +88,15 @@ public class DataTransferManager implements IConnectionListener,
 
     private final IStreamService fallbackService;
 
-    private final Lock connectLock = new ReentrantLock();
-
     private final ConnectionPool connectionPool = new ConnectionPool();
 
+    /** guarded by itself, the monitor is notified when an entry is removed */
     private final Set<String> currentOutgoingConnectionEstablishments = new HashSet<String>();
 
+    private final ExecutorService connectExecutor = Executors
+        .newCachedThreadPool(new NamedThreadFactory(
+            "DataTransferManager-Connect-"));
+
     private final List<IStreamService> streamServices = new CopyOnWriteArrayList<IStreamService>();
 
     private final IByteStreamConnectionListener byteStreamConnectionListener = new IByteStreamConnectionListener() {
@@ -102,6 +119,10 @@ public class DataTransferManager implements IConnectionListener,
                     + extension.getTransferDuration() + " ms ["
                     + extension.getTransferMode() + "]");
 
+            /*
+             * connections already inflate the payloads they receive, only
+             * extensions that are passed in directly may still be compressed
+             */
             if (extension.getTransferDescription().compressContent()) {
                 byte[] payload = extension.getPayload();
                 long compressedPayloadLength = payload.length;
@@ -164,7 +185,44 @@ public class DataTransferManager implements IConnectionListener,
         @Override
         public void connectionClosed(String connectionID,
             IByteStreamConnection connection) {
-            closeConnection(connectionID, connection.getRemoteAddress());
+
+            final JID peer = connection.getRemoteAddress();
+
+            final String outID = toConnectionIDToken(connectionID, OUT, peer);
+            final String inID = toConnectionIDToken(connectionID, IN, peer);
+
+            /*
+             * Only handle the connection if it is still pooled. It may have
+             * already been replaced by a newer connection with the same id
+             * that must stay open, or it may have never been pooled at all.
+             */
+            final String id;
+            final String otherID;
+
+            if (connectionPool.remove(outID, connection)) {
+                id = outID;
+                otherID = inID;
+            } else if (connectionPool.remove(inID, connection)) {
+                id = inID;
+                otherID = outID;
+            } else {
+                return;
+            }
+
+            LOG.debug("removed closed connection [pool id=" + id + "]: "
+                + connection);
+
+            /*
+             * as in closeConnection(String, JID) the connection of the other
+             * direction to the peer is closed too
+             */
+            final IByteStreamConnection other = connectionPool.remove(otherID);
+
+            if (other != null) {
+                other.close();
+                LOG.debug("closed connection [pool id=" + otherID + "]: "
+                    + other);
+            }
         }
     };
 
@@ -258,22 +316,19 @@ public class DataTransferManager implements IConnectionListener,
         if (!sendPacket)
             return;
 
-        long sizeUncompressed = payload.length;
-
-        if (description.compressContent())
-            payload = deflate(payload);
-
         final long transferStartTime = System.currentTimeMillis();
 
+        final long sizeSent;
+
         try {
-            connection.send(description, payload);
+            sizeSent = connection.send(description, payload);
         } catch (IOException e) {
             LOG.error("failed to send " + description + ", connection="
                 + connection + ":" + e.getMessage(), e);
             throw e;
         }
 
-        notifyDataSent(connection.getMode(), payload.length, sizeUncompressed,
+        notifyDataSent(connection.getMode(), sizeSent, payload.length,
             System.currentTimeMillis() - transferStartTime);
 
     }
@@ -371,71 +426,54 @@ public class DataTransferManager implements IConnectionListener,
     private IByteStreamConnection connectInternal(String connectionID, JID peer)
         throws IOException {
 
-        IByteStreamConnection connection = null;
-
         final String connectionIDToken = toConnectionIDToken(connectionID, OUT,
             peer);
 
+        /*
+         * connections to the same peer with the same id are established one
+         * after another, all others are established concurrently
+         */
         synchronized (currentOutgoingConnectionEstablishments) {
-            if (!currentOutgoingConnectionEstablishments
-                .contains(connectionIDToken)) {
-                connection = getCurrentConnection(connectionID, peer);
+            while (true) {
+                final IByteStreamConnection connection = getCurrentConnection(
+                    connectionID, peer);
 
-                if (connection == null)
-                    currentOutgoingConnectionEstablishments
-                        .add(connectionIDToken);
-            }
-
-            if (connection != null)
-                return connection;
-        }
-
-        connectLock.lock();
-
-        try {
+                if (connection != null)
+                    return connection;
 
-            connection = getCurrentConnection(connectionID, peer);
-
-            if (connection != null)
-                return connection;
-
-            JID connectionJID = currentLocalJID;
-
-            if (connectionJID == null)
-                throw new IOException("not connected to a XMPP server");
-
-            final ArrayList<IStreamService> currentStreamServices = new ArrayList<IStreamService>(
-                streamServices);
+                if (currentOutgoingConnectionEstablishments
+                    .add(connectionIDToken))
+                    break;
 
-            for (IStreamService streamService : currentStreamServices) {
-                LOG.info("establishing connection to " + peer + " from "
-                    + connectionJID + " using stream service " + streamService);
                 try {
-                    connection = streamService.connect(connectionID, peer);
-                    break;
-                } catch (IOException e) {
-                    LOG.warn("failed to connect to " + peer
-                        + " using stream service: " + streamService, e);
+                    currentOutgoingConnectionEstablishments.wait();
                 } catch (InterruptedException e) {
-                    LOG.warn("interrupted while connecting to " + peer
-                        + " using stream service: " + streamService);
                     IOException io = new InterruptedIOException(
                         "connection establishment to " + peer + " aborted");
                     io.initCause(e);
                     throw io;
-                } catch (Exception e) {
-                    LOG.error("failed to connect to " + peer
-                        + " due to an internal error in stream service: "
-                        + streamService, e);
                 }
             }
+        }
 
-            if (connection != null) {
-                byteStreamConnectionListener.connectionChanged(connectionID,
-                    connection, false);
+        try {
+            final JID connectionJID = currentLocalJID;
+
+            if (connectionJID == null)
+                throw new IOException("not connected to a XMPP server");
 
+            final List<IStreamService> currentStreamServices = new ArrayList<IStreamService>(
+                streamServices);
+
+            LOG.info("establishing connection to " + peer + " from "
+                + connectionJID + " using stream services "
+                + currentStreamServices);
+
+            final IByteStreamConnection connection = new ConnectionRace(
+                connectionID, peer, currentStreamServices).run();
+
+            if (connection != null)
                 return connection;
-            }
 
             throw new IOException("could not connect to " + peer
                 + ", exhausted all available stream services: "
@@ -444,8 +482,8 @@ public class DataTransferManager implements IConnectionListener,
             synchronized (currentOutgoingConnectionEstablishments) {
                 currentOutgoingConnectionEstablishments
                     .remove(connectionIDToken);
+                currentOutgoingConnectionEstablishments.notifyAll();
             }
-            connectLock.unlock();
         }
     }
 
@@ -491,21 +529,10 @@ public class DataTransferManager implements IConnectionListener,
 
         currentLocalJID = null;
 
-        boolean acquired = false;
+        awaitConnectionEstablishments(DISPOSE_TIMEOUT);
 
-        try {
-            acquired = connectLock.tryLock(5000, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            acquired = false;
-        }
-
-        try {
-            for (IStreamService streamService : streamServices)
-                streamService.uninitialize();
-        } finally {
-            if (acquired)
-                connectLock.unlock();
-        }
+        for (IStreamService streamService : streamServices)
+            streamService.uninitialize();
 
         connectionPool.close();
         xmppConnection = null;
@@ -568,6 +595,34 @@ public class DataTransferManager implements IConnectionListener,
         return connectionPool.get(toConnectionIDToken(connectionID, IN, jid));
     }
 
+    /**
+     * Waits until all currently running connection establishments are
+     * finished or the timeout has expired.
+     */
+    private void awaitConnectionEstablishments(final long timeout) {
+        final long deadline = System.currentTimeMillis() + timeout;
+
+        synchronized (currentOutgoingConnectionEstablishments) {
+            while (!currentOutgoingConnectionEstablishments.isEmpty()) {
+                final long remaining = deadline - System.currentTimeMillis();
+
+                if (remaining <= 0) {
+                    LOG.warn("timeout while waiting for connection "
+                        + "establishments: "
+                        + currentOutgoingConnectionEstablishments);
+                    return;
+                }
+
+                try {
+                    currentOutgoingConnectionEstablishments.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
     private static String toConnectionIDToken(String connectionIdentifier,
         String mode, JID jid) {
 
@@ -606,24 +661,6 @@ public class DataTransferManager implements IConnectionListener,
         }
     }
 
-    private static byte[] deflate(byte[] input) {
-
-        Deflater compressor = new Deflater(Deflater.DEFLATED);
-        compressor.setInput(input);
-        compressor.finish();
-
-        ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
-
-        byte[] buf = new byte[CHUNKSIZE];
-
-        while (!compressor.finished()) {
-            int count = compressor.deflate(buf);
-            bos.write(buf, 0, count);
-        }
-
-        return bos.toByteArray();
-    }
-
     private static byte[] inflate(byte[] input) throws IOException {
 
         ByteArrayOutputStream bos;
@@ -644,4 +681,156 @@ public class DataTransferManager implements IConnectionListener,
             throw new IOException("failed to inflate data", e);
         }
     }
+
+    /**
+     * Establishes a connection by racing the given stream services against
+     * each other. The stream services are started in their order, each one
+     * gets a head start before the next one is started. If a stream service
+     * fails the next one is started immediately. The first established
+     * connection wins and all other attempts are cancelled.
+     * <p>
+     * An attempt may still succeed after it was cancelled because the remote
+     * side already accepted the connection. The remote side replaces its
+     * incoming connection with the newer one and closes the former, so the
+     * late connection has to replace the winner on the local side as well.
+     * Closing it instead would leave both sides without a connection.
+     */
+    private final class ConnectionRace {
+
+        private final String connectionID;
+
+        private final JID peer;
+
+        private final List<IStreamService> services;
+
+        private final List<Future<?>> attempts = new ArrayList<Future<?>>();
+
+        private IByteStreamConnection winner;
+
+        private int failed;
+
+        private long nextStartTime;
+
+        private ConnectionRace(String connectionID, JID peer,
+            List<IStreamService> services) {
+            this.connectionID = connectionID;
+            this.peer = peer;
+            this.services = services;
+        }
+
+        /**
+         * Runs the race.
+         *
+         * @return the winning connection or <code>null</code> if all stream
+         *         services failed
+         * @throws InterruptedIOException
+         *             if the current thread was interrupted
+         */
+        private synchronized IByteStreamConnection run()
+            throws InterruptedIOException {
+            try {
+                while (winner == null) {
+                    final boolean allStarted = attempts.size() == services
+                        .size();
+
+                    if (failed == attempts.size()) {
+                        if (allStarted)
+                            break;
+
+                        start();
+                        continue;
+                    }
+
+                    if (allStarted) {
+                        wait();
+                        continue;
+                    }
+
+                    final long remaining = nextStartTime
+                        - System.currentTimeMillis();
+
+                    if (remaining <= 0)
+                        start();
+                    else
+                        wait(remaining);
+                }
+
+                return winner;
+            } catch (InterruptedException e) {
+                InterruptedIOException io = new InterruptedIOException(
+                    "connection establishment to " + peer + " aborted");
+                io.initCause(e);
+                throw io;
+            } finally {
+                for (Future<?> attempt : attempts)
+                    attempt.cancel(true);
+            }
+        }
+
+        private void start() {
+            final IStreamService service = services.get(attempts.size());
+
+            LOG.debug("connecting to " + peer + " using stream service "
+                + service);
+
+            attempts.add(connectExecutor.submit(ThreadUtils.wrapSafe(LOG,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        attempt(service);
+                    }
+                })));
+
+            nextStartTime = System.currentTimeMillis() + CONNECT_HEAD_START;
+        }
+
+        private void attempt(final IStreamService service) {
+            IByteStreamConnection connection = null;
+
+            try {
+                connection = service.connect(connectionID, peer);
+            } catch (IOException e) {
+                LOG.warn("failed to connect to " + peer
+                    + " using stream service: " + service, e);
+            } catch (InterruptedException e) {
+                LOG.debug("cancelled connecting to " + peer
+                    + " using stream service: " + service);
+            } catch (Exception e) {
+                LOG.error("failed to connect to " + peer
+                    + " due to an internal error in stream service: "
+                    + service, e);
+            }
+
+            completed(service, connection);
+        }
+
+        private synchronized void completed(final IStreamService service,
+            final IByteStreamConnection connection) {
+
+            if (connection == null) {
+                failed++;
+                notifyAll();
+                return;
+            }
+
+            if (winner != null)
+                LOG.warn("connection to " + peer + " using stream service "
+                    + service + " was established after it was cancelled, "
+                    + "it replaces connection: " + winner);
+
+            try {
+                byteStreamConnectionListener.connectionChanged(connectionID,
+                    connection, false);
+            } catch (RuntimeException e) {
+                LOG.error("failed to add connection " + connection, e);
+                connection.close();
+                failed++;
+                return;
+            } finally {
+                notifyAll();
+            }
+
+            winner = connection;
+        }
+    }
 }
@@ -25,15 +25,18 @@ public interface IByteStreamConnection {
 
     /**
      * If this call returns the data has been send successfully, otherwise an
-     * IOException is thrown with the reason why the transfer failed.
+     * IOException is thrown with the reason why the transfer failed. If the
+     * transfer description allows it, the connection may compress the content
+     * before sending it.
      *
      * @param data
      *            The data to be sent.
+     * @return the number of bytes that were actually sent for the content
      * @throws IOException
      *             if the send failed
      * @blocking Send the given data as a blocking operation.
      */
-    public void send(TransferDescription data, byte[] content)
+    public long send(TransferDescription data, byte[] content)
         throws IOException;
 
     /**
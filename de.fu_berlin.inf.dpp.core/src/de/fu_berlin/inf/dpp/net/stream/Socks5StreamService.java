@@ -6,15 +6,17 @@ import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Exchanger;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.regex.Pattern;
@@ -37,6 +39,7 @@ import de.fu_berlin.inf.dpp.net.internal.IByteStreamConnectionListener;
 import de.fu_berlin.inf.dpp.net.util.NetworkingUtils;
 import de.fu_berlin.inf.dpp.net.xmpp.JID;
 import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
+import de.fu_berlin.inf.dpp.util.ThreadUtils;
 
 /**
  * Transport class for SOCKS5 bytestreams. When a Request is received always it
@@ -109,7 +112,7 @@ public class Socks5StreamService implements IStreamService, BytestreamListener {
     private static final int TOTAL_CONNECT_TIMEOUT = Integer.getInteger(
         "de.fu_berlin.inf.dpp.net.socks5.TOTAL_CONNECT_TIMEOUT", 20000);
 
-    private HashMap<String, Exchanger<Socks5BytestreamSession>> runningRemoteConnects = new HashMap<String, Exchanger<Socks5BytestreamSession>>();
+    private final Map<String, Exchanger<Socks5BytestreamSession>> runningRemoteConnects = new ConcurrentHashMap<String, Exchanger<Socks5BytestreamSession>>();
     private ExecutorService executorService;
 
     private volatile Socks5BytestreamManager socks5Manager;
@@ -136,8 +139,9 @@ public class Socks5StreamService implements IStreamService, BytestreamListener {
     }
 
     /**
-     * Starts a new thread that waits until the connection is established to
-     * close it correctly.
+     * Waits on a thread of the response pool until the connection is
+     * established to close it correctly. A new thread is only started if the
+     * service is not initialized.
      *
      * @param future
      */
@@ -146,8 +150,7 @@ public class Socks5StreamService implements IStreamService, BytestreamListener {
         LOG.debug(prefix()
             + "canceling response connection as it is not needed");
 
-        Thread waitToCloseResponse = new Thread(
-            "CloseUnneededResponseConnection") {
+        final Runnable waitToCloseResponse = new Runnable() {
 
             @Override
             public void run() {
@@ -162,7 +165,24 @@ public class Socks5StreamService implements IStreamService, BytestreamListener {
                 }
             }
         };
-        waitToCloseResponse.start();
+
+        /*
+         * reuse the threads of the response pool instead of spawning a new one
+         * for every connection
+         */
+        final ExecutorService executor = executorService;
+
+        try {
+            if (executor != null) {
+                executor.execute(waitToCloseResponse);
+                return;
+            }
+        } catch (RejectedExecutionException e) {
+            // service was uninitialized in the meantime
+        }
+
+        ThreadUtils.runSafeAsync("CloseUnneededResponseConnection", LOG,
+            waitToCloseResponse);
     }
 
     private String verboseLocalProxyInfo() {
@@ -1,5 +1,6 @@
 package de.fu_berlin.inf.dpp.net.xmpp.discovery;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -16,8 +17,11 @@ import org.apache.log4j.Logger;
 import org.jivesoftware.smack.Connection;
 import org.jivesoftware.smack.Roster;
 import org.jivesoftware.smack.XMPPException;
+import org.jivesoftware.smack.packet.PacketExtension;
 import org.jivesoftware.smack.packet.Presence;
 import org.jivesoftware.smackx.ServiceDiscoveryManager;
+import org.jivesoftware.smackx.entitycaps.EntityCapsManager;
+import org.jivesoftware.smackx.entitycaps.packet.CapsExtension;
 import org.jivesoftware.smackx.packet.DiscoverInfo;
 import org.picocontainer.Disposable;
 
@@ -38,6 +42,11 @@ import de.fu_berlin.inf.dpp.util.ThreadUtils;
  * 
  * DiscoveryManager caches for each JID a DiscoverInfo entry, so it can be asked
  * which features the different XMPP clients of a particular JID supports.
+ * <p>
+ * In addition the results are cached by the entity capabilities (XEP-0115
+ * http://xmpp.org/extensions/xep-0115.html) a presence announces, so presences
+ * with already known capabilities do not need to be queried at all. This cache
+ * can be made persistent by calling {@link #setCacheFile(File)}.
  */
 @Component(module = "net")
 public class DiscoveryManager implements Disposable {
@@ -60,6 +69,13 @@ public class DiscoveryManager implements Disposable {
     private final Map<String, DiscoverInfoWrapper> cache = Collections
         .synchronizedMap(new HashMap<String, DiscoverInfoWrapper>());
 
+    /**
+     * The capabilities cache contains the results of service discoveries
+     * indexed by the verification string of the entity capabilities of a
+     * presence.
+     */
+    private final EntityCapabilitiesCache capabilitiesCache = new EntityCapabilitiesCache();
+
     private final XMPPConnectionService connectionService;
 
     private final RosterTracker rosterTracker;
@@ -143,6 +159,8 @@ public class DiscoveryManager implements Disposable {
             if (hasOnlineStateChanged(presence))
                 clearCache(presence);
 
+            if (presence.isAvailable())
+                resolveFromCapabilities(presence);
         }
 
         private boolean hasOnlineStateChanged(Presence presence) {
@@ -152,6 +170,13 @@ public class DiscoveryManager implements Disposable {
             if (last == null)
                 return false;
 
+            // the client announced a different feature set
+            String lastVersion = getCapabilitiesVersion(last);
+            String version = getCapabilitiesVersion(presence);
+
+            if (lastVersion != null && !lastVersion.equals(version))
+                return true;
+
             return last.isAvailable() ^ presence.isAvailable();
         }
 
@@ -172,6 +197,20 @@ public class DiscoveryManager implements Disposable {
     public void dispose() {
         rosterTracker.removeRosterListener(rosterListener);
         threadPoolExecutor.shutdownNow();
+        capabilitiesCache.save();
+    }
+
+    /**
+     * Sets the file where the entity capabilities cache should be loaded from
+     * and stored to. All missing directories will be created on demand. The
+     * cache is written back when this component is disposed.
+     * 
+     * @param file
+     *            the file to load and store the capabilities cache or
+     *            <code>null</code> to just keep the capabilities in memory
+     */
+    public void setCacheFile(File file) {
+        capabilitiesCache.setCacheFile(file);
     }
 
     /**
@@ -230,10 +269,12 @@ public class DiscoveryManager implements Disposable {
         for (JID rqJID : jidsToQuery) {
 
             DiscoverInfoWrapper info = cache.get(rqJID.toString());
-            if (info == null)
-                continue;
 
-            DiscoverInfo disco = info.item;
+            DiscoverInfo disco = info == null ? null : info.item;
+
+            // no discovery performed yet, but the capabilities may be known
+            if (disco == null)
+                disco = lookupCapabilities(rqJID);
 
             if (disco == null)
                 continue;
@@ -377,7 +418,17 @@ public class DiscoveryManager implements Disposable {
                 if (wrapper.isAvailable())
                     disco = wrapper.item;
                 else {
-                    disco = wrapper.item = performServiceDiscovery(rqJID);
+                    disco = lookupCapabilities(rqJID);
+
+                    if (disco == null) {
+                        disco = performServiceDiscovery(rqJID);
+
+                        if (disco != null)
+                            storeCapabilities(rqJID, disco);
+                    }
+
+                    wrapper.item = disco;
+
                     if (disco != null)
                         LOG.debug("Inserted DiscoveryInfo into Cache for: "
                             + rqJID);
@@ -459,6 +510,126 @@ public class DiscoveryManager implements Disposable {
         }
     }
 
+    /**
+     * Inserts a cache entry for the sender of the given presence if the
+     * capabilities it announces are already known.
+     */
+    private void resolveFromCapabilities(Presence presence) {
+        String rjid = presence.getFrom();
+
+        if (rjid == null)
+            return;
+
+        String version = getCapabilitiesVersion(presence);
+
+        if (version == null)
+            return;
+
+        DiscoverInfo disco = capabilitiesCache.get(version);
+
+        if (disco == null)
+            return;
+
+        DiscoverInfoWrapper wrapper = new DiscoverInfoWrapper();
+        wrapper.item = disco;
+
+        synchronized (cache) {
+            DiscoverInfoWrapper current = cache.get(rjid);
+
+            // do not interfere with a running discovery
+            if (current == null)
+                cache.put(rjid, wrapper);
+        }
+
+        LOG.debug("resolved DiscoveryInfo of " + rjid
+            + " from capabilities cache");
+    }
+
+    /**
+     * Returns the cached features for the capabilities announced by the
+     * current presence of the given RQ-JID.
+     * 
+     * @return the cached DiscoverInfo or <code>null</code> if the capabilities
+     *         of the presence are unknown
+     */
+    private DiscoverInfo lookupCapabilities(JID rqJID) {
+        String version = getCapabilitiesVersion(getPresence(rqJID));
+
+        if (version == null)
+            return null;
+
+        return capabilitiesCache.get(version);
+    }
+
+    /**
+     * Stores the given DiscoverInfo in the capabilities cache if the current
+     * presence of the given RQ-JID announces capabilities that match the
+     * DiscoverInfo.
+     */
+    private void storeCapabilities(JID rqJID, DiscoverInfo disco) {
+        Presence presence = getPresence(rqJID);
+
+        if (presence == null)
+            return;
+
+        CapsExtension caps = getCapsExtension(presence);
+
+        if (caps == null || caps.getHash() == null)
+            return;
+
+        /*
+         * never trust the announced version string, otherwise a client could
+         * poison the cache for other clients with the same version string
+         */
+        if (!EntityCapsManager.verifyDiscoverInfoVersion(caps.getVer(),
+            caps.getHash(), disco)) {
+            LOG.warn("capabilities of " + rqJID
+                + " do not match its service discovery result: "
+                + caps.getVer());
+            return;
+        }
+
+        capabilitiesCache.put(caps.getVer(), disco);
+    }
+
+    private Presence getPresence(JID rqJID) {
+        for (Presence presence : rosterTracker.getPresences(rqJID
+            .getBareJID())) {
+            if (rqJID.toString().equals(presence.getFrom()))
+                return presence;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the verification string of the entity capabilities announced by
+     * the given presence or <code>null</code> if the presence does not announce
+     * hashed capabilities.
+     */
+    private static String getCapabilitiesVersion(Presence presence) {
+        if (presence == null)
+            return null;
+
+        CapsExtension caps = getCapsExtension(presence);
+
+        // legacy capabilities (no hash) cannot be verified
+        if (caps == null || caps.getHash() == null || caps.getVer() == null)
+            return null;
+
+        return caps.getVer();
+    }
+
+    private static CapsExtension getCapsExtension(Presence presence) {
+        PacketExtension extension = presence.getExtension(
+            EntityCapsManager.ELEMENT, EntityCapsManager.NAMESPACE);
+
+        if (extension instanceof CapsExtension)
+            return (CapsExtension) extension;
+
+        return null;
+    }
+
     /**
      * Notify all {@link DiscoveryManagerListener}s about an updated feature
      * support.
@@ -0,0 +1,278 @@
+package de.fu_berlin.inf.dpp.net.xmpp.discovery;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.log4j.Logger;
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+
+/**
+ * Cache for service discovery results indexed by the capabilities version
+ * string (XEP-0115 http://xmpp.org/extensions/xep-0115.html) a contact
+ * announces in its presence. As the version string is a hash over the
+ * identities and features of a client, all presences announcing the same
+ * version string share the same feature set and so the result of one service
+ * discovery can be reused for all of them.
+ * <p>
+ * Entries expire after a configurable time to live. All data will just reside
+ * in memory unless {@link #setCacheFile(File)} is called.
+ * <p>
+ * This class is thread safe.
+ */
+final class EntityCapabilitiesCache {
+
+    private static final Logger LOG = Logger
+        .getLogger(EntityCapabilitiesCache.class);
+
+    /** Default time to live for cache entries, one week. */
+    static final long DEFAULT_TTL = 7L * 24L * 60L * 60L * 1000L;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int MAX_ENTRIES = 1024;
+
+    private static final int MAX_FEATURES = 1024;
+
+    private static class Entry {
+        private final String[] features;
+        private final long timestamp;
+
+        private Entry(String[] features, long timestamp) {
+            this.features = features;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final long ttl;
+
+    /** insertion ordered, so the oldest entries are evicted first */
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    private File cacheFile;
+
+    private boolean isDirty;
+
+    EntityCapabilitiesCache() {
+        this(DEFAULT_TTL);
+    }
+
+    /**
+     * @param ttl
+     *            the time in milliseconds after an entry expires
+     */
+    EntityCapabilitiesCache(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Sets the file where the cache should load and store its entries from and
+     * to. All currently cached entries are discarded and replaced by the
+     * content of the file. All missing directories will be created on demand.
+     *
+     * @param file
+     *            the file to load and store the cache entries or
+     *            <code>null</code> to just keep the entries in memory
+     */
+    synchronized void setCacheFile(final File file) {
+        cacheFile = file;
+        entries.clear();
+        isDirty = false;
+
+        if (cacheFile != null) {
+            File parent = cacheFile.getParentFile();
+
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                LOG.error("could not create directories for file: "
+                    + file.getAbsolutePath());
+                cacheFile = null;
+            }
+        }
+
+        load();
+    }
+
+    /**
+     * Returns the cached discovery information for the given capabilities
+     * version string.
+     *
+     * @param version
+     *            the verification string of the capabilities
+     * @return a {@link DiscoverInfo} containing the cached features or
+     *         <code>null</code> if there is no entry or the entry has expired
+     */
+    synchronized DiscoverInfo get(final String version) {
+        final Entry entry = entries.get(version);
+
+        if (entry == null)
+            return null;
+
+        if (isExpired(entry, System.currentTimeMillis())) {
+            entries.remove(version);
+            isDirty = true;
+            return null;
+        }
+
+        final DiscoverInfo info = new DiscoverInfo();
+
+        for (String feature : entry.features)
+            info.addFeature(feature);
+
+        return info;
+    }
+
+    /**
+     * Stores the features of the given discovery information. The caller is
+     * responsible to ensure that the discovery information matches the given
+     * capabilities version string.
+     *
+     * @param version
+     *            the verification string of the capabilities
+     * @param info
+     *            the result of a service discovery
+     */
+    synchronized void put(final String version, final DiscoverInfo info) {
+        final List<String> features = new ArrayList<String>();
+
+        for (Iterator<DiscoverInfo.Feature> it = info.getFeatures(); it
+            .hasNext();)
+            features.add(it.next().getVar());
+
+        entries.remove(version);
+        entries.put(version,
+            new Entry(features.toArray(new String[features.size()]),
+                System.currentTimeMillis()));
+
+        if (entries.size() > MAX_ENTRIES) {
+            final Iterator<String> it = entries.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+
+        isDirty = true;
+    }
+
+    /**
+     * Returns the number of entries currently in the cache including entries
+     * that are already expired.
+     */
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Writes all entries that are not expired to the cache file. Does nothing
+     * if no cache file is set or there are no changes since the last load or
+     * save operation.
+     */
+    synchronized void save() {
+        if (cacheFile == null || !isDirty)
+            return;
+
+        final long now = System.currentTimeMillis();
+
+        for (Iterator<Entry> it = entries.values().iterator(); it.hasNext();) {
+            if (isExpired(it.next(), now))
+                it.remove();
+        }
+
+        DataOutputStream out = null;
+
+        try {
+            out = new DataOutputStream(new FileOutputStream(cacheFile));
+
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(entries.size());
+
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue().timestamp);
+                out.writeInt(entry.getValue().features.length);
+
+                for (String feature : entry.getValue().features)
+                    out.writeUTF(feature);
+            }
+
+            out.flush();
+        } catch (IOException e) {
+            LOG.error("could not store capabilities cache", e);
+            return;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+
+        isDirty = false;
+
+        LOG.debug("saved " + entries.size() + " capabilities cache entries");
+    }
+
+    private void load() {
+        if (cacheFile == null || !cacheFile.exists()
+            || cacheFile.length() == 0)
+            return;
+
+        final long now = System.currentTimeMillis();
+
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new FileInputStream(cacheFile));
+
+            final int version = in.readInt();
+
+            if (version != FORMAT_VERSION) {
+                LOG.warn("discarding capabilities cache with unknown format version: "
+                    + version);
+                return;
+            }
+
+            final int count = in.readInt();
+
+            if (count < 0 || count > MAX_ENTRIES)
+                throw new IOException("capabilities cache seems malformed, "
+                    + "refused to load " + count + " entries");
+
+            for (int i = 0; i < count; i++) {
+                final String key = in.readUTF();
+                final long timestamp = in.readLong();
+                final int featureCount = in.readInt();
+
+                if (featureCount < 0 || featureCount > MAX_FEATURES)
+                    throw new IOException("capabilities cache seems malformed, "
+                        + "refused to load " + featureCount + " features");
+
+                final String[] features = new String[featureCount];
+
+                for (int f = 0; f < featureCount; f++)
+                    features[f] = in.readUTF();
+
+                final Entry entry = new Entry(features, timestamp);
+
+                if (!isExpired(entry, now))
+                    entries.put(key, entry);
+            }
+
+        } catch (IOException e) {
+            LOG.error("could not load capabilities cache", e);
+            entries.clear();
+            return;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+
+        LOG.debug("loaded " + entries.size() + " capabilities cache entries");
+    }
+
+    private boolean isExpired(final Entry entry, final long now) {
+        return now - entry.timestamp > ttl;
+    }
+}
@@ -1,5 +1,7 @@
 package de.fu_berlin.inf.dpp.session;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import de.fu_berlin.inf.dpp.activities.IActivity;
@@ -67,4 +69,30 @@ public abstract class AbstractActivityProducer implements IActivityProducer {
             activityListener.created(activity);
         }
     }
+
+    /**
+     * Notifies all listeners about multiple activities that were created at
+     * once. {@linkplain IActivityBatchListener Batch listeners} receive all
+     * activities in one call, all other listeners are notified for each
+     * activity.
+     * 
+     * @param activities
+     *            the created activities in the order they were created
+     */
+    protected final void fireActivities(List<IActivity> activities) {
+        if (activities.isEmpty())
+            return;
+
+        final List<IActivity> batch = Collections.unmodifiableList(activities);
+
+        for (IActivityListener activityListener : activityListeners) {
+            if (activityListener instanceof IActivityBatchListener) {
+                ((IActivityBatchListener) activityListener).created(batch);
+                continue;
+            }
+
+            for (IActivity activity : batch)
+                activityListener.created(activity);
+        }
+    }
 }
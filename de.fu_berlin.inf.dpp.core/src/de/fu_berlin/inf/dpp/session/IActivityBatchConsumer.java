@@ -0,0 +1,32 @@
+package de.fu_berlin.inf.dpp.session;
+
+import java.util.List;
+
+import de.fu_berlin.inf.dpp.activities.IActivity;
+
+/**
+ * An {@link IActivityConsumer} that is able to execute multiple activities of
+ * the same type that were received at once in one step, e.g to apply a burst
+ * of text edits to a document without updating the user interface for each of
+ * them.
+ * <p>
+ * Activities that modify the file system are always passed to
+ * {@link #exec(IActivity)} one at a time.
+ *
+ * @see ISarosSession#addActivityConsumer(IActivityConsumer,
+ *      IActivityConsumer.Priority)
+ */
+public interface IActivityBatchConsumer extends IActivityConsumer {
+
+    /**
+     * Executes the given activities in the order of the list. All activities
+     * have the same type.
+     * <p>
+     * Implementations may expect that this method is called from the UI thread
+     * (EDT).
+     *
+     * @param activities
+     *            an <b>immutable</b> list of the activities to execute
+     */
+    public void exec(List<IActivity> activities);
+}
@@ -0,0 +1,24 @@
+package de.fu_berlin.inf.dpp.session;
+
+import java.util.List;
+
+import de.fu_berlin.inf.dpp.activities.IActivity;
+
+/**
+ * An {@link IActivityListener} that is able to process multiple activities
+ * that were created at once, e.g as the result of a single resource change,
+ * in one step.
+ * 
+ * @see AbstractActivityProducer#fireActivities(List)
+ */
+public interface IActivityBatchListener extends IActivityListener {
+
+    /**
+     * Called when multiple activities were created at once.
+     * 
+     * @param activities
+     *            an <b>immutable</b> list of the created activities in the
+     *            order they were created
+     */
+    public void created(List<IActivity> activities);
+}
@@ -26,10 +26,11 @@ public interface IActivityHandlerCallback {
     public void send(List<User> recipients, IActivity activity);
 
     /**
-     * Gets called when an activity should be executed.
-     * 
-     * @param activity
-     *            the activity to execute
+     * Gets called when activities should be executed. The activities must be
+     * executed in the order of the list.
+     *
+     * @param activities
+     *            the activities to execute
      */
-    public void execute(IActivity activity);
+    public void execute(List<IActivity> activities);
 }
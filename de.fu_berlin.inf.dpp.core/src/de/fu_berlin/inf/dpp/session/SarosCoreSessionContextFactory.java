@@ -11,6 +11,7 @@ import de.fu_berlin.inf.dpp.editor.FollowModeManager;
 import de.fu_berlin.inf.dpp.editor.remote.UserEditorStateManager;
 import de.fu_berlin.inf.dpp.misc.xstream.SPathConverter;
 import de.fu_berlin.inf.dpp.misc.xstream.UserConverter;
+import de.fu_berlin.inf.dpp.negotiation.ProjectNegotiationCache;
 import de.fu_berlin.inf.dpp.session.internal.ActivityHandler;
 import de.fu_berlin.inf.dpp.session.internal.ActivitySequencer;
 import de.fu_berlin.inf.dpp.session.internal.ChangeColorManager;
@@ -59,6 +60,9 @@ public class SarosCoreSessionContextFactory implements
         else
             container.addComponent(ConsistencyWatchdogClient.class);
 
+        // Project Negotiation
+        container.addComponent(ProjectNegotiationCache.class);
+
         // Session-dependent XStream Converter
         container.addComponent(SPathConverter.class);
         container.addComponent(UserConverter.class);
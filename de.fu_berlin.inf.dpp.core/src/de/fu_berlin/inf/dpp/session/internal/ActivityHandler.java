@@ -338,6 +338,17 @@ public final class ActivityHandler implements Startable {
             @Override
             public void run() {
 
+                final List<IActivity> activitiesToExecute = new ArrayList<IActivity>(
+                    optimizedActivities.size());
+
+                try {
+                    transform(activitiesToExecute);
+                } finally {
+                    execute(activitiesToExecute);
+                }
+            }
+
+            private void transform(final List<IActivity> activitiesToExecute) {
                 for (IActivity activity : optimizedActivities) {
 
                     User source = activity.getSource();
@@ -361,17 +372,20 @@ public final class ActivityHandler implements Startable {
                         continue;
                     }
 
-                    List<IActivity> transformedActivities = documentClient
-                        .transformFromJupiter(activity);
+                    activitiesToExecute.addAll(documentClient
+                        .transformFromJupiter(activity));
+                }
+            }
 
-                    for (IActivity transformedActivity : transformedActivities) {
-                        try {
-                            callback.execute(transformedActivity);
-                        } catch (Exception e) {
-                            LOG.error(
-                                "failed to execute activity: " + activity, e);
-                        }
-                    }
+            private void execute(final List<IActivity> activitiesToExecute) {
+                if (activitiesToExecute.isEmpty())
+                    return;
+
+                try {
+                    callback.execute(activitiesToExecute);
+                } catch (Exception e) {
+                    LOG.error("failed to execute activities: "
+                        + activitiesToExecute, e);
                 }
             }
         };
@@ -0,0 +1,62 @@
+package de.fu_berlin.inf.dpp.session.internal;
+
+import de.fu_berlin.inf.dpp.activities.ChecksumActivity;
+import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.activities.JupiterActivity;
+import de.fu_berlin.inf.dpp.activities.ProgressActivity;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
+import de.fu_berlin.inf.dpp.activities.ViewportActivity;
+
+/**
+ * Denotes the logical lanes in which the {@link ActivitySequencer} buffers the
+ * outgoing activities for a user. All lanes share one sequence of packets, but
+ * activities of a lane may overtake the buffered activities of lower lanes.
+ */
+enum ActivityLane {
+
+    /**
+     * Activities that nothing may overtake, e.g. file and editor activities.
+     * They are sent after everything that was buffered before them.
+     */
+    CONTROL,
+
+    /**
+     * Text edits. They keep their order with respect to the control
+     * activities, but overtake buffered awareness and bulk activities. A
+     * checksum of the edited path is never overtaken, as it would no longer
+     * match the document it is compared with.
+     */
+    EDIT,
+
+    /**
+     * Selections and viewports. Only the latest one per path is sent, so
+     * superseded ones are dropped if they could not be sent yet.
+     */
+    AWARENESS,
+
+    /**
+     * Checksums and remote progress. They are sent in their order but only
+     * after the buffered activities of all other lanes.
+     */
+    BULK;
+
+    /**
+     * Returns the lane for the given activity.
+     */
+    static ActivityLane of(IActivity activity) {
+        if (activity instanceof JupiterActivity
+            || activity instanceof TextEditActivity)
+            return EDIT;
+
+        if (activity instanceof TextSelectionActivity
+            || activity instanceof ViewportActivity)
+            return AWARENESS;
+
+        if (activity instanceof ChecksumActivity
+            || activity instanceof ProgressActivity)
+            return BULK;
+
+        return CONTROL;
+    }
+}
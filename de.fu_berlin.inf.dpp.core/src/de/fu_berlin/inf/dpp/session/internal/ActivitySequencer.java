@@ -37,8 +37,11 @@ import org.jivesoftware.smack.packet.PacketExtension;
 import org.picocontainer.Startable;
 
 import de.fu_berlin.inf.dpp.activities.ActivityOptimizer;
+import de.fu_berlin.inf.dpp.activities.ChecksumActivity;
 import de.fu_berlin.inf.dpp.activities.FileActivity;
 import de.fu_berlin.inf.dpp.activities.IActivity;
+import de.fu_berlin.inf.dpp.activities.IResourceActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
 import de.fu_berlin.inf.dpp.communication.extensions.ActivitiesExtension;
 import de.fu_berlin.inf.dpp.net.DispatchThreadContext;
 import de.fu_berlin.inf.dpp.net.IReceiver;
@@ -51,6 +54,21 @@ import de.fu_berlin.inf.dpp.util.ThreadUtils;
 /**
  * The ActivitySequencer is responsible for making sure that transformed
  * {@linkplain IActivity activities} are sent and received in the right order.
+ * <p>
+ * The receiver of activities acknowledges them with the sequence number it
+ * expects next, either along with its own activities or on its own after
+ * receiving a quarter of the window. At most {@link #WINDOW_SIZE} activities
+ * that were not acknowledged yet are sent to a user. The activities for a
+ * user that does not keep up are buffered and compacted by dropping
+ * superseded selections and viewports, so the user is neither disconnected
+ * nor delays the sending to other users. The window is only applied after the
+ * user sent its first acknowledgement, so a user that does not acknowledge
+ * activities at all is sent to without flow control instead of stalling.
+ * <p>
+ * The outgoing activities are buffered in {@linkplain ActivityLane lanes}, so
+ * text edits and the latest selections and viewports are not delayed by
+ * buffered checksums or progress updates. Text edits never overtake a
+ * checksum of the same file.
  * 
  * @author rdjemili
  * @author coezbek
@@ -70,6 +88,19 @@ public class ActivitySequencer implements Startable {
      */
     private static final int FIRST_SEQUENCE_NUMBER = 0;
 
+    /**
+     * Max. number of activities sent to a user that were not acknowledged yet.
+     */
+    private static final int WINDOW_SIZE = Math.max(1, Integer.getInteger(
+        "de.fu_berlin.inf.dpp.session.ACTIVITY_WINDOW_SIZE", 1024));
+
+    /**
+     * Number of received activities after which they are acknowledged even if
+     * there are no activities to send back.
+     */
+    private static final int ACKNOWLEDGE_THRESHOLD = Math.max(1,
+        WINDOW_SIZE / 4);
+
     private static class SequencedActivities {
         private final int sequenceNumber;
         private final List<IActivity> activites;
@@ -90,8 +121,35 @@ public class ActivitySequencer implements Startable {
         private int nextSequenceNumber;
         private final Deque<T> activities = new LinkedList<T>();
 
+        /** outgoing: selections and viewports that may be overtaken */
+        private final Deque<T> awareness = new LinkedList<T>();
+
+        /** outgoing: checksums and progress updates that may be overtaken */
+        private final Deque<T> bulk = new LinkedList<T>();
+
+        /** outgoing: the next sequence number expected by the recipient */
+        private int acknowledgedSequenceNumber;
+
+        /** outgoing: whether the recipient acknowledges received activities */
+        private boolean acknowledging;
+
+        /** outgoing: whether the received activities must be acknowledged */
+        private boolean acknowledgementDue;
+
+        /** outgoing: buffer size at which the activities are compacted */
+        private int compactionThreshold = WINDOW_SIZE;
+
+        /** incoming: number of activities received since the last ack */
+        private int unacknowledged;
+
         private ActivityBuffer(int firstSequenceNumber) {
             nextSequenceNumber = firstSequenceNumber;
+            acknowledgedSequenceNumber = firstSequenceNumber;
+        }
+
+        private boolean isEmpty() {
+            return activities.isEmpty() && awareness.isEmpty()
+                && bulk.isEmpty();
         }
     }
 
@@ -122,20 +180,32 @@ public class ActivitySequencer implements Startable {
 
                         ActivityBuffer<IActivity> buffer = entry.getValue();
 
-                        if (buffer == null || buffer.activities.isEmpty())
+                        if (buffer == null)
                             continue;
 
-                        List<IActivity> optimizedActivities = ActivityOptimizer
-                            .optimize(buffer.activities);
+                        int credits = Integer.MAX_VALUE;
+
+                        if (buffer.acknowledging)
+                            credits = buffer.acknowledgedSequenceNumber
+                                + WINDOW_SIZE - buffer.nextSequenceNumber;
 
-                        buffer.activities.clear();
+                        List<IActivity> activities = Collections.emptyList();
+
+                        if (!buffer.isEmpty() && credits > 0)
+                            activities = takeActivities(buffer, credits);
+
+                        // an empty list only carries the acknowledgement
+                        if (activities.isEmpty() && !buffer.acknowledgementDue)
+                            continue;
+
+                        buffer.acknowledgementDue = false;
                         buffer.isInTransmission = true;
 
                         int currentSequenceNumber = buffer.nextSequenceNumber;
-                        buffer.nextSequenceNumber += optimizedActivities.size();
+                        buffer.nextSequenceNumber += activities.size();
 
                         activitiesToSend.put(entry.getKey(),
-                            new SequencedActivities(optimizedActivities,
+                            new SequencedActivities(activities,
                                 currentSequenceNumber));
                     }
 
@@ -328,11 +398,16 @@ public class ActivitySequencer implements Startable {
         final List<IActivity> activities, final int sequenceNumber) {
 
         boolean transmissionError = false;
+        boolean acknowledge = false;
 
         synchronized (bufferedIncomingActivities) {
             ActivityBuffer<IActivity> buffer = bufferedIncomingActivities
                 .get(sender);
 
+            // only an acknowledgement
+            if (activities.isEmpty())
+                return;
+
             if (buffer == null) {
                 LOG.warn("dropping received activity from "
                     + sender
@@ -345,6 +420,8 @@ public class ActivitySequencer implements Startable {
                 transmissionError = true;
             } else {
                 buffer.nextSequenceNumber += activities.size();
+                buffer.unacknowledged += activities.size();
+                acknowledge = buffer.unacknowledged >= ACKNOWLEDGE_THRESHOLD;
             }
         }
 
@@ -354,6 +431,9 @@ public class ActivitySequencer implements Startable {
             return;
         }
 
+        if (acknowledge)
+            requestAcknowledgement(sender);
+
         sarosSession.exec(activities);
     }
 
@@ -396,7 +476,32 @@ public class ActivitySequencer implements Startable {
                         + activity);
                     continue;
                 }
-                buffer.activities.add(activity);
+                switch (ActivityLane.of(activity)) {
+                case AWARENESS:
+                    buffer.awareness.add(activity);
+
+                    if (buffer.awareness.size() >= WINDOW_SIZE)
+                        optimize(buffer.awareness);
+                    break;
+                case BULK:
+                    buffer.bulk.add(activity);
+                    break;
+                case CONTROL:
+                    // must not overtake anything that was buffered before
+                    buffer.activities.addAll(buffer.awareness);
+                    buffer.activities.addAll(buffer.bulk);
+                    buffer.awareness.clear();
+                    buffer.bulk.clear();
+                    buffer.activities.add(activity);
+                    break;
+                case EDIT:
+                    releaseChecksums(buffer, ((IResourceActivity) activity)
+                        .getPath());
+                    buffer.activities.add(activity);
+                }
+
+                if (buffer.activities.size() >= buffer.compactionThreshold)
+                    compact(buffer);
             }
 
             // ActivitySender thread is flushing the buffers
@@ -437,9 +542,10 @@ public class ActivitySequencer implements Startable {
     }
 
     /**
-     * Waits until all buffered activities for the specific user are sent.
-     * Calling {@link #sendActivity} at the same time may or may not ignore
-     * those new activities.
+     * Waits until all buffered activities for the specific user are sent. This
+     * includes activities that are waiting for the user to acknowledge
+     * previous ones. Calling {@link #sendActivity} at the same time may or
+     * may not ignore those new activities.
      * 
      * @param user
      */
@@ -451,7 +557,7 @@ public class ActivitySequencer implements Startable {
                     .get(user.getJID());
 
                 if (buffer == null
-                    || (buffer.activities.size() == 0 && !buffer.isInTransmission))
+                    || (buffer.isEmpty() && !buffer.isInTransmission))
                     break;
 
                 try {
@@ -463,6 +569,182 @@ public class ActivitySequencer implements Startable {
         }
     }
 
+    /**
+     * Removes the activities that fit into the given number of credits from
+     * the buffer after dropping superseded ones. The control and edit lane is
+     * served first, then the awareness lane and the bulk lane last. Must be
+     * called while holding the lock of the outgoing buffers.
+     */
+    private static List<IActivity> takeActivities(
+        ActivityBuffer<IActivity> buffer, int credits) {
+
+        final List<IActivity> activities = new ArrayList<IActivity>();
+
+        credits = take(buffer.activities, activities, credits);
+        credits = take(buffer.awareness, activities, credits);
+        take(buffer.bulk, activities, credits);
+
+        buffer.compactionThreshold = Math.max(WINDOW_SIZE,
+            buffer.activities.size() * 2);
+
+        return activities;
+    }
+
+    /**
+     * Moves the activities that fit into the given number of credits from the
+     * lane to the given list after dropping superseded ones. If the recipient
+     * is lagging the rest is kept until it acknowledges.
+     * 
+     * @return the remaining credits
+     */
+    private static int take(Deque<IActivity> lane, List<IActivity> activities,
+        int credits) {
+
+        if (credits <= 0 || lane.isEmpty())
+            return credits;
+
+        final List<IActivity> optimizedActivities = ActivityOptimizer
+            .optimize(lane);
+
+        final int count = Math.min(credits, optimizedActivities.size());
+
+        lane.clear();
+        lane.addAll(optimizedActivities.subList(count,
+            optimizedActivities.size()));
+
+        activities.addAll(optimizedActivities.subList(0, count));
+
+        return credits - count;
+    }
+
+    /**
+     * Moves the bulk activities up to the last checksum of the given path to
+     * the control and edit lane, so an edit of the path does not overtake a
+     * checksum that was calculated before the edit. The receiver would
+     * otherwise compare the checksum against a document that already contains
+     * the edit and report a false inconsistency. Must be called while holding
+     * the lock of the outgoing buffers.
+     */
+    private static void releaseChecksums(ActivityBuffer<IActivity> buffer,
+        SPath path) {
+
+        if (path == null)
+            return;
+
+        int count = 0;
+        int index = 0;
+
+        for (IActivity activity : buffer.bulk) {
+            index++;
+
+            if (activity instanceof ChecksumActivity
+                && path.equals(((ChecksumActivity) activity).getPath()))
+                count = index;
+        }
+
+        while (count-- > 0)
+            buffer.activities.add(buffer.bulk.poll());
+    }
+
+    /**
+     * Drops superseded activities from the given lane.
+     */
+    private static void optimize(Deque<IActivity> lane) {
+        final List<IActivity> optimizedActivities = ActivityOptimizer
+            .optimize(lane);
+
+        lane.clear();
+        lane.addAll(optimizedActivities);
+    }
+
+    /**
+     * Drops superseded activities from the buffer of a lagging recipient. The
+     * buffer is only compacted again after its size doubled, so adding an
+     * activity remains amortized constant. Must be called while holding the
+     * lock of the outgoing buffers.
+     */
+    private static void compact(ActivityBuffer<IActivity> buffer) {
+        final int size = buffer.activities.size();
+
+        optimize(buffer.activities);
+
+        buffer.compactionThreshold = Math.max(WINDOW_SIZE,
+            buffer.activities.size() * 2);
+
+        if (LOG.isDebugEnabled())
+            LOG.debug("compacted activities of lagging recipient from " + size
+                + " to " + buffer.activities.size());
+    }
+
+    /**
+     * Processes an acknowledgement received from the given user.
+     * 
+     * @param sequenceNumber
+     *            the acknowledged sequence number or <code>null</code> if the
+     *            user does not acknowledge received activities
+     */
+    private void acknowledged(JID jid, Integer sequenceNumber) {
+        synchronized (bufferedOutgoingActivities) {
+            ActivityBuffer<IActivity> buffer = bufferedOutgoingActivities
+                .get(jid);
+
+            if (buffer == null)
+                return;
+
+            if (sequenceNumber == null) {
+                if (buffer.acknowledging) {
+                    buffer.acknowledging = false;
+                    bufferedOutgoingActivities.notifyAll();
+                }
+
+                return;
+            }
+
+            buffer.acknowledging = true;
+
+            if (sequenceNumber <= buffer.acknowledgedSequenceNumber)
+                return;
+
+            buffer.acknowledgedSequenceNumber = sequenceNumber;
+
+            // the window may be open again
+            bufferedOutgoingActivities.notifyAll();
+        }
+    }
+
+    /**
+     * Makes the sender thread acknowledge the activities received from the
+     * given user even if there are no activities to send to it.
+     */
+    private void requestAcknowledgement(JID jid) {
+        synchronized (bufferedOutgoingActivities) {
+            ActivityBuffer<IActivity> buffer = bufferedOutgoingActivities
+                .get(jid);
+
+            if (buffer == null)
+                return;
+
+            buffer.acknowledgementDue = true;
+            bufferedOutgoingActivities.notifyAll();
+        }
+    }
+
+    /**
+     * Returns the sequence number to acknowledge to the given user.
+     */
+    private int acknowledge(JID jid) {
+        synchronized (bufferedIncomingActivities) {
+            ActivityBuffer<IActivity> buffer = bufferedIncomingActivities
+                .get(jid);
+
+            if (buffer == null)
+                return FIRST_SEQUENCE_NUMBER;
+
+            buffer.unacknowledged = 0;
+            return buffer.nextSequenceNumber;
+        }
+    }
+
     private void unregisterUser(JID jid) {
         /*
          * FIXME This stuff is to lazy if called outside the UI-Thread as it is
@@ -484,8 +766,10 @@ public class ActivitySequencer implements Startable {
     private void sendActivities(JID recipient, List<IActivity> activities,
         int sequenceNumber) {
 
-        if (activities.size() == 0)
+        if (activities.size() == 0) {
+            send(recipient, activities, sequenceNumber);
             return;
+        }
 
         /*
          * HACK the following logic tries to reduce the HEAP usage while
@@ -527,10 +811,6 @@ public class ActivitySequencer implements Startable {
             if (it.hasNext() && currentFileActivitySize < maxFileActivitySize)
                 continue;
 
-            final PacketExtension activityPacketExtension = ActivitiesExtension.PROVIDER
-                .create(new ActivitiesExtension(currentSessionID,
-                    activitiesToMarshall, sequenceNumber));
-
             if (LOG.isTraceEnabled()) {
                 LOG.trace("send (" + String.format("%03d", activities.size())
                     + ") " + recipient + " -> " + activities);
@@ -540,14 +820,8 @@ public class ActivitySequencer implements Startable {
             }
 
             try {
-                transmitter.send(ISarosSession.SESSION_CONNECTION_ID,
-                    recipient, activityPacketExtension);
-            } catch (IOException e) {
-                LOG.error("failed to sent activities: " + activities, e);
-
-                unregisterUser(recipient);
-                notifyTransmissionError(recipient);
-                return;
+                if (!send(recipient, activitiesToMarshall, sequenceNumber))
+                    return;
             } finally {
                 sequenceNumber += activitiesToMarshall.size();
 
@@ -563,6 +837,34 @@ public class ActivitySequencer implements Startable {
 
     }
 
+    /**
+     * Sends the activities together with the acknowledgement of the activities
+     * received from the recipient.
+     * 
+     * @return <code>false</code> if sending failed and the recipient was
+     *         unregistered
+     */
+    private boolean send(JID recipient, List<IActivity> activities,
+        int sequenceNumber) {
+
+        final PacketExtension activityPacketExtension = ActivitiesExtension.PROVIDER
+            .create(new ActivitiesExtension(currentSessionID, activities,
+                sequenceNumber, acknowledge(recipient)));
+
+        try {
+            transmitter.send(ISarosSession.SESSION_CONNECTION_ID, recipient,
+                activityPacketExtension);
+        } catch (IOException e) {
+            LOG.error("failed to sent activities: " + activities, e);
+
+            unregisterUser(recipient);
+            notifyTransmissionError(recipient);
+            return false;
+        }
+
+        return true;
+    }
+
     private void receiveActivities(Packet activityPacket) {
 
         /* *
@@ -602,6 +904,8 @@ public class ActivitySequencer implements Startable {
                 + ") " + from);
         }
 
+        acknowledged(from, payload.getAcknowledgedSequenceNumber());
+
         executeActivities(from, activities, payload.getSequenceNumber());
     }
 
@@ -55,6 +55,8 @@ import de.fu_berlin.inf.dpp.net.IConnectionManager;
 import de.fu_berlin.inf.dpp.net.ITransmitter;
 import de.fu_berlin.inf.dpp.net.xmpp.JID;
 import de.fu_berlin.inf.dpp.net.xmpp.XMPPConnectionService;
+import de.fu_berlin.inf.dpp.session.IActivityBatchConsumer;
+import de.fu_berlin.inf.dpp.session.IActivityBatchListener;
 import de.fu_berlin.inf.dpp.session.IActivityConsumer;
 import de.fu_berlin.inf.dpp.session.IActivityConsumer.Priority;
 import de.fu_berlin.inf.dpp.session.IActivityHandlerCallback;
@@ -146,7 +148,7 @@ public final class SarosSession implements ISarosSession {
      *               This listener it is not part of the ISarosSession interface
      *               to avoid misuse.
      */
-    private final IActivityListener activityListener = new IActivityListener() {
+    private final IActivityListener activityListener = new IActivityBatchListener() {
         @Override
         public void created(final IActivity activity) {
             if (activity == null)
@@ -155,6 +157,14 @@ public final class SarosSession implements ISarosSession {
             activityHandler.handleOutgoingActivities(Collections
                 .singletonList(activity));
         }
+
+        @Override
+        public void created(final List<IActivity> activities) {
+            if (activities.contains(null))
+                throw new NullPointerException("activities contain null");
+
+            activityHandler.handleOutgoingActivities(activities);
+        }
     };
 
     private final IActivityHandlerCallback activityCallback = new IActivityHandlerCallback() {
@@ -165,7 +175,102 @@ public final class SarosSession implements ISarosSession {
         }
 
         @Override
-        public void execute(IActivity activity) {
+        public void execute(List<IActivity> activities) {
+            final boolean batchConsumers = hasBatchConsumers();
+
+            int start = 0;
+
+            while (start < activities.size()) {
+                final IActivity activity = activities.get(start);
+
+                int end = start + 1;
+
+                /*
+                 * consumers may query the shared resources, so file system
+                 * modifications must be executed one at a time
+                 */
+                if (batchConsumers
+                    && !(activity instanceof IFileSystemModificationActivity)) {
+
+                    while (end < activities.size()
+                        && activities.get(end).getClass() == activity
+                            .getClass())
+                        end++;
+                }
+
+                if (end - start == 1)
+                    execute(activity);
+                else
+                    executeBatch(Collections.unmodifiableList(activities
+                        .subList(start, end)));
+
+                start = end;
+            }
+        }
+
+        /**
+         * Executes activities of the same type. Batch consumers receive all
+         * activities at once, all other consumers are invoked for each
+         * activity. The consumers between two batch consumers see the
+         * activities in the same order as without batching: an activity is
+         * passed to all of them (passive before active) before the next one.
+         * So a consumer never sees an activity before the consumers that
+         * precede it have seen it. Only the consumers after a batch consumer
+         * see the first activity after the batch consumer executed all of
+         * them.
+         */
+        private void executeBatch(List<IActivity> activities) {
+            final List<IActivityConsumer> consumers = new ArrayList<IActivityConsumer>(
+                passiveActivityConsumers);
+
+            final int passiveCount = consumers.size();
+
+            consumers.addAll(activeActivityConsumers);
+
+            int first = 0;
+
+            for (int i = 0; i <= consumers.size(); i++) {
+                if (i < consumers.size()
+                    && !(consumers.get(i) instanceof IActivityBatchConsumer))
+                    continue;
+
+                for (IActivity activity : activities) {
+                    for (int c = first; c < i; c++)
+                        execute(consumers.get(c), activity,
+                            c < passiveCount ? "passive" : "active");
+                }
+
+                if (i < consumers.size())
+                    execute((IActivityBatchConsumer) consumers.get(i),
+                        activities, i < passiveCount ? "passive" : "active");
+
+                first = i + 1;
+            }
+        }
+
+        private void execute(IActivityBatchConsumer consumer,
+            List<IActivity> activities, String priority) {
+            try {
+                consumer.exec(activities);
+            } catch (RuntimeException e) {
+                log.error("error while invoking " + priority
+                    + " activity consumer: " + consumer + ", activities: "
+                    + activities, e);
+            }
+        }
+
+        private void execute(IActivityConsumer consumer, IActivity activity,
+            String priority) {
+            try {
+                consumer.exec(activity);
+            } catch (RuntimeException e) {
+                log.error("error while invoking " + priority
+                    + " activity consumer: " + consumer + ", activity: "
+                    + activity, e);
+            }
+        }
+
+        private void execute(IActivity activity) {
             /**
              * @JTourBusStop 10, Activity sending, Local Execution, first
              *               dispatch:
@@ -1108,6 +1213,24 @@ public final class SarosSession implements ISarosSession {
             .getComponent(ActivityHandler.class) : "container is wrongly configured - no cache support";
     }
 
+    /**
+     * Returns whether at least one of the registered activity consumers is an
+     * {@link IActivityBatchConsumer}.
+     */
+    private boolean hasBatchConsumers() {
+        for (IActivityConsumer consumer : passiveActivityConsumers) {
+            if (consumer instanceof IActivityBatchConsumer)
+                return true;
+        }
+
+        for (IActivityConsumer consumer : activeActivityConsumers) {
+            if (consumer instanceof IActivityBatchConsumer)
+                return true;
+        }
+
+        return false;
+    }
+
     /**
      * This method is only meant to be used by unit tests to verify the cleanup
      * of activity producers and consumers.
@@ -0,0 +1,179 @@
+package de.fu_berlin.inf.dpp.communication.chat;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Date;
+import java.util.List;
+
+import org.jivesoftware.smackx.ChatState;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.fu_berlin.inf.dpp.communication.chat.ChatElement.ChatElementType;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+
+public class ChatHistoryTest {
+
+    private static final JID ALICE = new JID("alice@saros-con/Saros");
+    private static final JID BOB = new JID("bob@saros-con/Saros");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void addMessages(ChatHistory history, int count) {
+        for (int i = 0; i < count; i++)
+            history.addEntry(new ChatElement(String.valueOf(i),
+                i % 2 == 0 ? ALICE : BOB, new Date(i * 1000L)));
+    }
+
+    @Test
+    public void testGetEntriesWithinMemory() {
+        ChatHistory history = new ChatHistory(10, folder.getRoot());
+        addMessages(history, 5);
+
+        List<ChatElement> entries = history.getEntries();
+
+        assertEquals(5, entries.size());
+        assertEquals("0", entries.get(0).getMessage());
+        assertEquals("4", entries.get(4).getMessage());
+    }
+
+    @Test
+    public void testGetEntriesFromSegments() {
+        ChatHistory history = new ChatHistory(8, folder.getRoot());
+        addMessages(history, 100);
+
+        assertEquals(100, history.size());
+        assertEquals(0, history.getFirstIndex());
+
+        List<ChatElement> entries = history.getEntries();
+
+        assertEquals(100, entries.size());
+
+        for (int i = 0; i < 100; i++)
+            assertEquals(String.valueOf(i), entries.get(i).getMessage());
+
+        List<ChatElement> page = history.getEntries(37, 10);
+
+        assertEquals(10, page.size());
+        assertEquals("37", page.get(0).getMessage());
+        assertEquals("46", page.get(9).getMessage());
+        assertEquals(BOB, page.get(0).getSender());
+        assertEquals(new Date(37000L), page.get(0).getDate());
+
+        history.clear();
+    }
+
+    @Test
+    public void testBoundedWithoutSegments() {
+        ChatHistory history = new ChatHistory(8, null);
+        addMessages(history, 20);
+
+        assertTrue(history.size() <= 8);
+
+        List<ChatElement> entries = history.getEntries();
+
+        assertEquals(history.size(), entries.size());
+        assertEquals("19", entries.get(entries.size() - 1).getMessage());
+        assertEquals(String.valueOf(history.getFirstIndex()), entries.get(0)
+            .getMessage());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGetDiscardedEntries() {
+        ChatHistory history = new ChatHistory(8, null);
+        addMessages(history, 20);
+
+        history.getEntries(0, 1);
+    }
+
+    @Test
+    public void testGetEntriesByDateAndSender() {
+        ChatHistory history = new ChatHistory(8, folder.getRoot());
+        addMessages(history, 50);
+
+        List<ChatElement> entries = history.getEntries(new Date(10000L),
+            new Date(14000L));
+
+        assertEquals(5, entries.size());
+        assertEquals("10", entries.get(0).getMessage());
+
+        assertEquals(25, history.getEntries(ALICE).size());
+        assertEquals(25, history.getEntries(BOB).size());
+        assertEquals(0, history.getEntries(new JID("carl@saros-con")).size());
+
+        assertEquals(2, history.getSenders().size());
+
+        history.clear();
+    }
+
+    @Test
+    public void testNonMessageElementsAreRestored() {
+        ChatHistory history = new ChatHistory(4, folder.getRoot());
+
+        history.addEntry(new ChatElement(ALICE, new Date(1),
+            ChatElementType.JOIN));
+        history.addEntry(new ChatElement(ALICE, new Date(2),
+            ChatState.composing));
+        addMessages(history, 10);
+
+        List<ChatElement> entries = history.getEntries(0, 2);
+
+        assertEquals(ChatElementType.JOIN, entries.get(0).getChatElementType());
+        assertEquals(ChatElementType.STATECHANGE, entries.get(1)
+            .getChatElementType());
+        assertEquals(ChatState.composing, entries.get(1).getChatState());
+
+        history.clear();
+    }
+
+    @Test
+    public void testClear() {
+        ChatHistory history = new ChatHistory(8, folder.getRoot());
+        addMessages(history, 30);
+
+        history.clear();
+
+        assertEquals(0, history.size());
+        assertEquals(30, history.getFirstIndex());
+        assertEquals(0, history.getEntries().size());
+        assertEquals(0, history.getSenders().size());
+
+        addMessages(history, 1);
+        assertEquals("0", history.getEntries(30, 1).get(0).getMessage());
+    }
+
+    @Test
+    public void testSegmentsAreWrittenToTheSegmentDirectory() {
+        File directory = new File(folder.getRoot(), "segments");
+
+        ChatHistory history = new ChatHistory(8, directory);
+        addMessages(history, 30);
+
+        assertTrue(directory.list().length > 0);
+
+        history.clear();
+        assertEquals(0, directory.list().length);
+    }
+
+    @Test
+    public void testDispose() {
+        ChatHistory history = new ChatHistory(8, folder.getRoot());
+        addMessages(history, 30);
+
+        history.dispose();
+
+        assertEquals(0, folder.getRoot().list().length);
+        assertTrue(history.size() <= 8);
+        assertEquals("29", history.getEntries().get(history.size() - 1)
+            .getMessage());
+
+        addMessages(history, 30);
+
+        assertEquals(0, folder.getRoot().list().length);
+        assertTrue(history.size() <= 8);
+    }
+}
@@ -28,7 +28,7 @@ public class ActivitiesExtensionProviderTest {
         activities.add(activity);
 
         PacketExtension extension = ActivitiesExtension.PROVIDER
-            .create(new ActivitiesExtension("Session-ID", activities, 0));
+            .create(new ActivitiesExtension("Session-ID", activities, 0, 0));
 
         String marshalled = extension.toXML();
         assertFalse(marshalled.contains("\r"));
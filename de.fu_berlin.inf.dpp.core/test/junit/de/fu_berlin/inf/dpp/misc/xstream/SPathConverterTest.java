@@ -2,6 +2,10 @@ package de.fu_berlin.inf.dpp.misc.xstream;
 
 import static org.easymock.EasyMock.expect;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import org.easymock.EasyMock;
 import org.junit.BeforeClass;
@@ -81,6 +85,42 @@ public class SPathConverterTest {
         assertEquals(spath, copy2);
     }
 
+    @Test
+    public void conversionWritesEachPathOnce() {
+        /* Mocks */
+        ISarosSession session = EasyMock.createMock(ISarosSession.class);
+        expect(session.getProjectID(project)).andStubReturn("ABC");
+        expect(session.getProject("ABC")).andStubReturn(project);
+
+        EasyMock.replay(session);
+
+        /* XStream */
+        XStream sender = new XStream(new DomDriver());
+        sender.registerConverter(new SPathConverter(session, pathFactory));
+
+        XStream receiver = new XStream(new DomDriver());
+        receiver.registerConverter(new SPathConverter(session, pathFactory));
+
+        /* Test */
+        List<SPath> paths = new ArrayList<SPath>();
+        paths.add(new SPath(project, path));
+        paths.add(new SPath(project, path));
+        paths.add(new SPath(project, path));
+
+        String xml = sender.toXML(paths);
+
+        assertEquals(xml, xml.indexOf("Main.java"),
+            xml.lastIndexOf("Main.java"));
+
+        @SuppressWarnings("unchecked")
+        List<SPath> copy = (List<SPath>) receiver.fromXML(xml);
+        assertEquals(paths, copy);
+
+        @SuppressWarnings("unchecked")
+        List<SPath> copy2 = (List<SPath>) receiver.fromXML(xml);
+        assertSame(copy.get(0), copy2.get(2));
+    }
+
     @Test
     public void conversionLeavingReceiver() {
         /* Mocks */
@@ -6,7 +6,7 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({ ReplaceableConverterTest.class,
     ReplaceableSingleValueConverterTest.class, SPathConverterTest.class,
-    UserConverterTest.class })
+    UserConverterTest.class, XmlStringConverterTest.class })
 public class TestSuite {
     // the class remains completely empty,
     // being used only as a holder for the above annotations
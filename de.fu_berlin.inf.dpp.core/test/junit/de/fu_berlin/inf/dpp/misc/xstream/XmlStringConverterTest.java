@@ -0,0 +1,91 @@
+package de.fu_berlin.inf.dpp.misc.xstream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.StringReader;
+import java.io.StringWriter;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.xmlpull.mxp1.MXParser;
+import org.xmlpull.v1.XmlPullParser;
+
+import com.thoughtworks.xstream.XStream;
+import com.thoughtworks.xstream.annotations.XStreamAlias;
+import com.thoughtworks.xstream.annotations.XStreamAsAttribute;
+import com.thoughtworks.xstream.annotations.XStreamConverter;
+import com.thoughtworks.xstream.converters.ConversionException;
+import com.thoughtworks.xstream.io.xml.CompactWriter;
+
+public class XmlStringConverterTest {
+
+    @XStreamAlias("dummy")
+    private static class Dummy {
+        @XStreamAsAttribute
+        private String attribute;
+
+        private String element;
+
+        @XStreamConverter(XmlTextConverter.class)
+        private String text;
+    }
+
+    private static XStream xstream;
+
+    @BeforeClass
+    public static void prepare() {
+        xstream = new XStream();
+        xstream.registerConverter(new XmlStringConverter());
+        xstream.processAnnotations(Dummy.class);
+    }
+
+    @Test
+    public void testConversionAndBack() throws Exception {
+        checkConversion("plain text");
+        checkConversion("a + b = 100% & <c> \"d\" 'e'");
+        checkConversion("line\nbreaks\r\nand\ttabs");
+        checkConversion("control \u0000\u0001\u001F characters");
+        checkConversion("umlauts \u00E4\u00F6\u00FC and \uD83D\uDE00");
+        checkConversion("unpaired \uD83D and \uDE00 surrogates \uFFFF");
+        checkConversion("");
+    }
+
+    @Test
+    public void testPlainTextIsNotCopied() {
+        String text = "a + b = c & <d>\n\t";
+
+        assertSame(text, XmlCodec.encode(text, false));
+        assertSame(text, XmlCodec.decode(text));
+    }
+
+    @Test
+    public void testOnlyNecessaryCharactersAreEscaped() {
+        assertEquals("100%25%0A%09", XmlCodec.encode("100%\n\t", true));
+        assertEquals("a+b%00%uFFFF", XmlCodec.encode("a+b\u0000\uFFFF", true));
+    }
+
+    @Test(expected = ConversionException.class)
+    public void testMalformedEscapeSequence() {
+        new XmlStringConverter().fromString("100%2");
+    }
+
+    private void checkConversion(String value) throws Exception {
+        Dummy dummy = new Dummy();
+        dummy.attribute = value;
+        dummy.element = value;
+        dummy.text = value;
+
+        StringWriter writer = new StringWriter();
+        xstream.marshal(dummy, new CompactWriter(writer));
+
+        XmlPullParser parser = new MXParser();
+        parser.setInput(new StringReader(writer.toString()));
+
+        Dummy copy = (Dummy) xstream.unmarshal(new XppReader(parser));
+
+        assertEquals(value, copy.attribute);
+        assertEquals(value, copy.element);
+        assertEquals(value, copy.text);
+    }
+}
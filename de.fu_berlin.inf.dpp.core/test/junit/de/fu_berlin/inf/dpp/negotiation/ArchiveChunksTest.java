@@ -0,0 +1,120 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveChunksTest {
+
+    private static final int CHUNK_SIZE = 1000;
+
+    private final byte[] content = new byte[CHUNK_SIZE * 3 + 123];
+
+    private final List<File> files = new ArrayList<File>();
+
+    private File archive;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) (i % 251);
+
+        archive = createFile(content, 0, content.length);
+    }
+
+    @After
+    public void tearDown() {
+        for (File file : files)
+            file.delete();
+    }
+
+    @Test
+    public void testChunkCountAndSize() {
+        assertEquals(0, ArchiveChunks.getChunkCount(0, CHUNK_SIZE));
+        assertEquals(1, ArchiveChunks.getChunkCount(CHUNK_SIZE, CHUNK_SIZE));
+        assertEquals(4,
+            ArchiveChunks.getChunkCount(content.length, CHUNK_SIZE));
+
+        assertEquals(CHUNK_SIZE,
+            ArchiveChunks.getChunkSize(content.length, CHUNK_SIZE, 2));
+        assertEquals(123,
+            ArchiveChunks.getChunkSize(content.length, CHUNK_SIZE, 3));
+    }
+
+    @Test
+    public void testDescription() {
+        String description = ArchiveChunks.getDescription("pn42", 7);
+
+        assertEquals(7, ArchiveChunks.getIndex("pn42", description));
+        assertEquals(-1, ArchiveChunks.getIndex("pn4", description));
+        assertEquals(-1, ArchiveChunks.getIndex("pn42", "pn42"));
+        assertEquals(-1, ArchiveChunks.getIndex("pn42", "pn42#x"));
+        assertEquals(-1, ArchiveChunks.getIndex("pn42", null));
+    }
+
+    @Test
+    public void testChecksumsMatchChunks() throws Exception {
+        List<String> checksums = ArchiveChunks.computeChecksums(archive,
+            CHUNK_SIZE);
+
+        assertEquals(4, checksums.size());
+
+        List<File> chunks = new ArrayList<File>();
+
+        for (int i = 0; i < checksums.size(); i++) {
+            InputStream in = ArchiveChunks.openChunk(archive, CHUNK_SIZE, i);
+
+            try {
+                byte[] data = IOUtils.toByteArray(in);
+                chunks.add(createFile(data, 0, data.length));
+            } finally {
+                in.close();
+            }
+
+            assertEquals(checksums.get(i),
+                ArchiveChunks.computeChecksum(chunks.get(i)));
+        }
+
+        assertFalse(checksums.get(0).equals(checksums.get(1)));
+
+        File joined = createFile(new byte[0], 0, 0);
+        ArchiveChunks.join(chunks, joined);
+
+        InputStream in = new FileInputStream(joined);
+
+        try {
+            assertArrayEquals(content, IOUtils.toByteArray(in));
+        } finally {
+            in.close();
+        }
+    }
+
+    private File createFile(byte[] data, int offset, int length)
+        throws Exception {
+        File file = File.createTempFile("saros_archive_chunks_test", null);
+        files.add(file);
+
+        OutputStream out = new FileOutputStream(file);
+
+        try {
+            out.write(data, offset, length);
+        } finally {
+            out.close();
+        }
+
+        return file;
+    }
+}
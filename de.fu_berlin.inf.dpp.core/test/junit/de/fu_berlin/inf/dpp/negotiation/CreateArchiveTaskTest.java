@@ -0,0 +1,314 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.apache.commons.io.IOUtils;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.concurrent.jupiter.test.util.PathFake;
+import de.fu_berlin.inf.dpp.exceptions.OperationCanceledException;
+import de.fu_berlin.inf.dpp.filesystem.IFile;
+import de.fu_berlin.inf.dpp.monitoring.NullProgressMonitor;
+
+public class CreateArchiveTaskTest {
+
+    private File archive;
+
+    @Before
+    public void setUp() throws Exception {
+        archive = File.createTempFile("saros_archive_test", ".zip");
+    }
+
+    @After
+    public void tearDown() {
+        archive.delete();
+    }
+
+    private static IFile createFileMock(final String path, final byte[] content)
+        throws Exception {
+
+        final IFile file = EasyMock.createMock(IFile.class);
+        EasyMock.expect(file.getFullPath()).andStubReturn(new PathFake(path));
+        EasyMock.expect(file.getName()).andStubReturn(
+            path.substring(path.lastIndexOf('/') + 1));
+        EasyMock.expect(file.getSize()).andStubReturn((long) content.length);
+        EasyMock.expect(file.getContents()).andStubAnswer(
+            new IAnswer<InputStream>() {
+                @Override
+                public InputStream answer() throws Throwable {
+                    return new ByteArrayInputStream(content);
+                }
+            });
+
+        EasyMock.replay(file);
+        return file;
+    }
+
+    @Test
+    public void testCompressedFilesAreStored() throws Exception {
+        testCompressedFilesAreStored(1);
+    }
+
+    @Test
+    public void testCompressedFilesAreStoredParallel() throws Exception {
+        testCompressedFilesAreStored(4);
+    }
+
+    private void testCompressedFilesAreStored(int threads) throws Exception {
+        final byte[] content = new byte[256 * 1024];
+
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) (i % 31);
+
+        final IFile jar = createFileMock("/foo/lib/bar.jar", content);
+        final IFile source = createFileMock("/foo/src/Bar.java", content);
+
+        new CreateArchiveTask(archive, Arrays.asList(jar, source),
+            Arrays.asList("0:lib/bar.jar", "0:src/Bar.java"), null, threads,
+            null, null).run(new NullProgressMonitor());
+
+        final ZipFile zipFile = new ZipFile(archive);
+
+        try {
+            final ZipEntry jarEntry = zipFile.getEntry("0:lib/bar.jar");
+            final ZipEntry sourceEntry = zipFile.getEntry("0:src/Bar.java");
+
+            assertTrue("jar file was compressed",
+                jarEntry.getCompressedSize() >= content.length);
+
+            assertTrue("source file was not compressed",
+                sourceEntry.getCompressedSize() < content.length / 10);
+
+            assertArrayEquals(content,
+                IOUtils.toByteArray(zipFile.getInputStream(jarEntry)));
+
+            assertArrayEquals(content,
+                IOUtils.toByteArray(zipFile.getInputStream(sourceEntry)));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test(expected = OperationCanceledException.class)
+    public void testCancelWhileCompressingLargeFile() throws Exception {
+        testCancelWhileCompressingLargeFile(1);
+    }
+
+    @Test(expected = OperationCanceledException.class)
+    public void testCancelWhileCompressingLargeFileParallel()
+        throws Exception {
+        testCancelWhileCompressingLargeFile(4);
+    }
+
+    private void testCancelWhileCompressingLargeFile(int threads)
+        throws Exception {
+        final byte[] content = new byte[8 * 1024 * 1024];
+
+        final NullProgressMonitor monitor = new NullProgressMonitor();
+
+        final IFile file = EasyMock.createMock(IFile.class);
+        EasyMock.expect(file.getFullPath()).andStubReturn(
+            new PathFake("/foo/large.bin"));
+        EasyMock.expect(file.getName()).andStubReturn("large.bin");
+        EasyMock.expect(file.getSize()).andStubReturn((long) content.length);
+        EasyMock.expect(file.getContents()).andStubAnswer(
+            new IAnswer<InputStream>() {
+                @Override
+                public InputStream answer() throws Throwable {
+                    // cancel after the file was started
+                    monitor.setCanceled(true);
+                    return new ByteArrayInputStream(content);
+                }
+            });
+
+        EasyMock.replay(file);
+
+        new CreateArchiveTask(archive, Collections.singletonList(file),
+            Collections.singletonList("0:large.bin"), null, threads, null,
+            null).run(monitor);
+    }
+
+    @Test
+    public void testManyFiles() throws Exception {
+        testManyFiles(1);
+    }
+
+    @Test
+    public void testManyFilesParallel() throws Exception {
+        testManyFiles(4);
+    }
+
+    private void testManyFiles(int threads) throws Exception {
+        final List<IFile> files = new ArrayList<IFile>();
+        final List<String> alias = new ArrayList<String>();
+        final List<byte[]> contents = new ArrayList<byte[]>();
+
+        final Random random = new Random(4711);
+
+        for (int i = 0; i < 200; i++) {
+            // every 50th file exceeds the in-memory limit of the workers
+            final byte[] content = new byte[i % 50 == 0 ? 3 * 1024 * 1024
+                : random.nextInt(16 * 1024)];
+
+            for (int j = 0; j < content.length; j++)
+                content[j] = (byte) (i % 2 == 0 ? random.nextInt() : j % 7);
+
+            final String path = "/foo/src/file" + i
+                + (i % 3 == 0 ? ".png" : ".txt");
+
+            files.add(createFileMock(path, content));
+            alias.add("0:" + path);
+            contents.add(content);
+        }
+
+        new CreateArchiveTask(archive, files, alias, null, threads, null,
+            null).run(new NullProgressMonitor());
+
+        final ZipFile zipFile = new ZipFile(archive);
+
+        try {
+            assertEquals(files.size(), zipFile.size());
+
+            for (int i = 0; i < files.size(); i++) {
+                final ZipEntry entry = zipFile.getEntry(alias.get(i));
+
+                assertArrayEquals(contents.get(i),
+                    IOUtils.toByteArray(zipFile.getInputStream(entry)));
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void testCachedEntriesAreReused() throws Exception {
+        final ProjectNegotiationCache cache = new ProjectNegotiationCache(null);
+
+        final byte[] content = new byte[64 * 1024];
+
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) (i % 17);
+
+        final byte[] changedContent = content.clone();
+        changedContent[4711] = 42;
+
+        final IFile unchanged = createFileMock("/foo/src/A.java", content);
+        final String path = unchanged.getFullPath().toString();
+
+        new CreateArchiveTask(archive, Arrays.asList(unchanged,
+            createFileMock("/foo/src/B.java", content)), Arrays.asList(
+            "0:src/A.java", "0:src/B.java"), null, 1, cache, null)
+            .run(new NullProgressMonitor());
+
+        final CreateArchiveTask.CompressedEntry cached = cache
+            .getCompressedEntry(path, crc(content), content.length);
+
+        assertTrue("file was not cached", cached != null);
+
+        new CreateArchiveTask(archive, Arrays.asList(unchanged,
+            createFileMock("/foo/src/B.java", changedContent)), Arrays.asList(
+            "0:src/A.java", "0:src/B.java"), null, 1, cache, null)
+            .run(new NullProgressMonitor());
+
+        assertSame(cached,
+            cache.getCompressedEntry(path, crc(content), content.length));
+
+        final ZipFile zipFile = new ZipFile(archive);
+
+        try {
+            assertArrayEquals(content, IOUtils.toByteArray(zipFile
+                .getInputStream(zipFile.getEntry("0:src/A.java"))));
+
+            assertArrayEquals(changedContent, IOUtils.toByteArray(zipFile
+                .getInputStream(zipFile.getEntry("0:src/B.java"))));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void testDeltaEntries() throws Exception {
+        testDeltaEntries(1);
+    }
+
+    @Test
+    public void testDeltaEntriesParallel() throws Exception {
+        testDeltaEntries(4);
+    }
+
+    private void testDeltaEntries(int threads) throws Exception {
+        final Random random = new Random(42);
+
+        final byte[] remoteContent = new byte[256 * 1024];
+        random.nextBytes(remoteContent);
+
+        final byte[] content = remoteContent.clone();
+        content[128 * 1024] ^= 1;
+
+        final ChunkSignature signature = FileDelta.createSignature("0",
+            "src/A.bin", remoteContent);
+
+        final IFile changed = createFileMock("/foo/src/A.bin", content);
+        final IFile added = createFileMock("/foo/src/B.bin", content);
+
+        new CreateArchiveTask(archive, Arrays.asList(changed, added),
+            Arrays.asList("0:src/A.bin", "0:src/B.bin"), null, threads, null,
+            Collections.singletonMap("0:src/A.bin", signature))
+            .run(new NullProgressMonitor());
+
+        final ZipFile zipFile = new ZipFile(archive);
+
+        try {
+            final ZipEntry delta = zipFile.getEntry(FileDelta.ENTRY_PREFIX
+                + "0:src/A.bin");
+
+            assertTrue("delta was not written", delta != null);
+            assertTrue("delta is not smaller than the file",
+                delta.getSize() < content.length / 4);
+
+            assertArrayEquals(content, FileDelta.apply(remoteContent,
+                zipFile.getInputStream(delta)));
+
+            assertArrayEquals(content, IOUtils.toByteArray(zipFile
+                .getInputStream(zipFile.getEntry("0:src/B.bin"))));
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static long crc(final byte[] content) {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        return crc.getValue();
+    }
+
+    @Test
+    public void testIsCompressed() {
+        assertTrue(CreateArchiveTask.isCompressed("bar.jar"));
+        assertTrue(CreateArchiveTask.isCompressed("BAR.PNG"));
+        assertFalse(CreateArchiveTask.isCompressed("Bar.java"));
+        assertFalse(CreateArchiveTask.isCompressed("Bar.class"));
+        assertFalse(CreateArchiveTask.isCompressed("Makefile"));
+        assertFalse(CreateArchiveTask.isCompressed("jar"));
+    }
+}
@@ -0,0 +1,97 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class FileDeltaTest {
+
+    private static byte[] randomContent(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private static byte[] insert(byte[] content, int offset, byte[] data) {
+        byte[] result = new byte[content.length + data.length];
+        System.arraycopy(content, 0, result, 0, offset);
+        System.arraycopy(data, 0, result, offset, data.length);
+        System.arraycopy(content, offset, result, offset + data.length,
+            content.length - offset);
+        return result;
+    }
+
+    @Test
+    public void testChunkSizes() {
+        byte[] content = randomContent(1024 * 1024);
+
+        List<Integer> boundaries = FileDelta.getChunkBoundaries(content);
+
+        int start = 0;
+
+        for (int i = 0; i < boundaries.size(); i++) {
+            int length = boundaries.get(i) - start;
+
+            assertTrue(length <= FileDelta.MAX_CHUNK_SIZE);
+
+            if (i < boundaries.size() - 1)
+                assertTrue(length >= FileDelta.MIN_CHUNK_SIZE);
+
+            start = boundaries.get(i);
+        }
+
+        assertEquals(content.length, start);
+        assertTrue("chunks are too large", boundaries.size() > 50);
+    }
+
+    @Test
+    public void testInsertionOnlyTransfersChangedChunks() throws Exception {
+        byte[] remoteContent = randomContent(512 * 1024);
+        byte[] content = insert(remoteContent, 200 * 1024,
+            "inserted line\n".getBytes("UTF-8"));
+
+        byte[] delta = FileDelta.create(content,
+            FileDelta.createSignature("0", "foo", remoteContent));
+
+        assertNotNull(delta);
+        assertTrue("delta is too large: " + delta.length,
+            delta.length < 3 * FileDelta.MAX_CHUNK_SIZE);
+
+        assertArrayEquals(content,
+            FileDelta.apply(remoteContent, new ByteArrayInputStream(delta)));
+    }
+
+    @Test
+    public void testNoDeltaForUnrelatedContent() throws Exception {
+        byte[] remoteContent = randomContent(64 * 1024);
+        byte[] content = randomContent(64 * 1024 + 1);
+
+        assertNull(FileDelta.create(content,
+            FileDelta.createSignature("0", "foo", remoteContent)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testChangedLocalContentIsDetected() throws Exception {
+        byte[] remoteContent = randomContent(128 * 1024);
+        byte[] content = insert(remoteContent, 1024, new byte[] { 1 });
+
+        byte[] delta = FileDelta.create(content,
+            FileDelta.createSignature("0", "foo", remoteContent));
+
+        byte[] changedRemoteContent = remoteContent.clone();
+
+        for (int i = 0; i < changedRemoteContent.length; i += 1024)
+            changedRemoteContent[i] ^= 1;
+
+        FileDelta.apply(changedRemoteContent, new ByteArrayInputStream(delta));
+    }
+}
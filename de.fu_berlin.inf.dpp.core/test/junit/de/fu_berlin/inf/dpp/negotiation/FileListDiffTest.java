@@ -177,6 +177,33 @@ public class FileListDiffTest {
         assertPaths(diff.getUnalteredFolders());
     }
 
+    @Test
+    public void testFileReplacedByFolder() {
+
+        FileList a = new FileList();
+
+        a.addPath(FILE_A);
+        a.addPath(FILE_B);
+
+        FileList b = new FileList();
+
+        b.addPath(FILE_A + "/" + "file_e");
+        b.addPath(FILE_B);
+
+        FileListDiff diff = FileListDiff.diff(a, b, false);
+
+        assertPaths(diff.getAddedFiles(), FILE_A + "/" + "file_e");
+        assertPaths(diff.getRemovedFiles(), FILE_A);
+
+        assertPaths(diff.getUnalteredFiles(), FILE_B);
+        assertPaths(diff.getAlteredFiles());
+
+        assertPaths(diff.getAddedFolders(), FILE_A + "/");
+        assertPaths(diff.getRemovedFolders());
+
+        assertPaths(diff.getUnalteredFolders(), FOLDER_SRC);
+    }
+
     private static void assertPaths(List<String> actual, String... expected) {
         for (int i = 0; i < expected.length; i++) {
             assertTrue("Expected " + expected[i] + " to appear in: " + actual,
@@ -6,6 +6,9 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
@@ -116,6 +119,42 @@ public class FileListTest {
         assertEquals(list, listFromXml);
     }
 
+    @Test
+    public void testWriteAndReadBinary() throws Exception {
+        final FileList list = FileListFactory.createFileList(project, null,
+            null, null);
+
+        list.setProjectID("4711");
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        list.writeTo(new DataOutputStream(out));
+
+        final FileList listFromBinary = FileList
+            .readFrom(new DataInputStream(new ByteArrayInputStream(out
+                .toByteArray())));
+
+        assertEquals(list, listFromBinary);
+        assertEquals(list.getPaths(), listFromBinary.getPaths());
+        assertEquals(list.getEncodings(), listFromBinary.getEncodings());
+        assertEquals("4711", listFromBinary.getProjectID());
+        assertEquals(list.getMetaData("foobar/info.txt"),
+            listFromBinary.getMetaData("foobar/info.txt"));
+    }
+
+    @Test
+    public void testPathsAreSorted() {
+        final FileList list = FileListFactory.createFileList(Arrays.asList(
+            "b/c", "a-b", "a/b", "a/a/c", "c"));
+
+        assertEquals(Arrays.asList("a/a/c", "a/b", "a-b", "b/c", "c"),
+            list.getPaths());
+
+        assertTrue(list.contains("a/a"));
+        assertTrue(list.contains("a/a/"));
+        assertFalse(list.contains("a/a/d"));
+        assertFalse(list.contains(""));
+    }
+
     private static IProject createProjectLayout() {
 
         final IProject project = EasyMock.createMock(IProject.class);
@@ -0,0 +1,121 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.filesystem.IFile;
+import de.fu_berlin.inf.dpp.filesystem.IFileContentChangedListener;
+import de.fu_berlin.inf.dpp.filesystem.IFileContentChangedNotifier;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.filesystem.IResource;
+import de.fu_berlin.inf.dpp.monitoring.NullProgressMonitor;
+import de.fu_berlin.inf.dpp.negotiation.CreateArchiveTask.CompressedEntry;
+
+public class ProjectNegotiationCacheTest {
+
+    private IProject project;
+
+    private IFileContentChangedListener listener;
+
+    private ProjectNegotiationCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        project = EasyMock.createMock(IProject.class);
+        EasyMock.expect(project.getDefaultCharset()).andStubReturn("UTF-8");
+        EasyMock.expect(project.members()).andStubReturn(new IResource[0]);
+        EasyMock.replay(project);
+
+        IFileContentChangedNotifier notifier = new IFileContentChangedNotifier() {
+
+            @Override
+            public void addFileContentChangedListener(
+                IFileContentChangedListener listener) {
+                ProjectNegotiationCacheTest.this.listener = listener;
+            }
+
+            @Override
+            public void removeFileContentChangedListener(
+                IFileContentChangedListener listener) {
+                ProjectNegotiationCacheTest.this.listener = null;
+            }
+        };
+
+        cache = new ProjectNegotiationCache(notifier);
+    }
+
+    @Test
+    public void testFileListIsReusedUntilFileChanges() throws Exception {
+        FileList first = getFileList("1");
+
+        assertEquals("1", first.getProjectID());
+        assertSame(first, getFileList("1"));
+
+        listener.fileContentChanged(EasyMock.createMock(IFile.class));
+
+        FileList second = getFileList("1");
+
+        assertNotSame(first, second);
+        assertSame(second, getFileList("1"));
+    }
+
+    @Test
+    public void testFileListIsCachedPerProjectID() throws Exception {
+        FileList first = getFileList("1");
+        FileList second = getFileList("2");
+
+        assertNotSame(first, second);
+        assertEquals("2", second.getProjectID());
+    }
+
+    @Test
+    public void testFileListIsCachedPerResources() throws Exception {
+        FileList all = getFileList("1");
+
+        FileList partial = cache.getFileList(project, "1",
+            Collections.<IResource> emptyList(), null,
+            new NullProgressMonitor());
+
+        assertNotSame(all, partial);
+    }
+
+    @Test
+    public void testFileListIsNotCachedWithoutNotifier() throws Exception {
+        cache = new ProjectNegotiationCache(null);
+
+        assertNotSame(getFileList("1"), getFileList("1"));
+    }
+
+    @Test
+    public void testStopClearsCache() throws Exception {
+        final FileList fileList = getFileList("1");
+
+        final CompressedEntry entry = new CompressedEntry();
+        entry.crc = 4711;
+        entry.size = 3;
+        entry.data = new byte[3];
+        entry.length = 3;
+
+        cache.putCompressedEntry("/foo/bar", entry);
+
+        cache.stop();
+
+        assertNull("file change listener was not removed", listener);
+        assertNull(cache.getCompressedEntry("/foo/bar", 4711, 3));
+        assertNotSame(fileList, getFileList("1"));
+        assertNotSame(getFileList("1"), getFileList("1"));
+    }
+
+    private FileList getFileList(String projectID) throws Exception {
+        return cache.getFileList(project, projectID, null, null,
+            new NullProgressMonitor());
+    }
+}
@@ -5,7 +5,9 @@ import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({ FileListTest.class, FileListDiffTest.class,
-    SessionNegotiationTest.class })
+    SessionNegotiationTest.class, CreateArchiveTaskTest.class,
+    ZipArchiveWriterTest.class, ArchiveChunksTest.class,
+    ProjectNegotiationCacheTest.class, FileDeltaTest.class })
 public class TestSuite {
     // the class remains completely empty,
     // being used only as a holder for the above annotations
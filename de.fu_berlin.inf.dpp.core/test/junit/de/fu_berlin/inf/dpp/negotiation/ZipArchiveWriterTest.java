@@ -0,0 +1,130 @@
+package de.fu_berlin.inf.dpp.negotiation;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ZipArchiveWriterTest {
+
+    private File archive;
+
+    private final byte[] content = new byte[100 * 1024];
+
+    @Before
+    public void setUp() throws Exception {
+        archive = File.createTempFile("saros_zip_writer_test", ".zip");
+
+        for (int i = 0; i < content.length; i++)
+            content[i] = (byte) (i % 251);
+    }
+
+    @After
+    public void tearDown() {
+        archive.delete();
+    }
+
+    private void writeArchive() throws Exception {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(content);
+        deflater.finish();
+
+        final byte[] deflated = new byte[content.length];
+        final int deflatedLength = deflater.deflate(deflated);
+        deflater.end();
+
+        final OutputStream out = new FileOutputStream(archive);
+
+        try {
+            final ZipArchiveWriter writer = new ZipArchiveWriter(out);
+
+            writer.writeEntry("stored", ZipEntry.STORED, crc.getValue(),
+                content.length, content, content.length);
+
+            writer.writeEntry("deflated/äöü", ZipEntry.DEFLATED,
+                crc.getValue(), content.length, deflated, deflatedLength);
+
+            writer.writeEntry("streamed", new ByteArrayInputStream(content),
+                Deflater.DEFAULT_COMPRESSION, new byte[4096]);
+
+            writer.writeEntry("empty", new ByteArrayInputStream(new byte[0]),
+                Deflater.DEFAULT_COMPRESSION, new byte[4096]);
+
+            writer.finish();
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testReadWithZipFile() throws Exception {
+        writeArchive();
+
+        final ZipFile zipFile = new ZipFile(archive);
+
+        try {
+            assertEquals(4, zipFile.size());
+
+            for (String name : new String[] { "stored", "deflated/äöü",
+                "streamed" })
+                assertArrayEquals(name, content, IOUtils.toByteArray(zipFile
+                    .getInputStream(zipFile.getEntry(name))));
+
+            assertEquals(0, IOUtils.toByteArray(
+                zipFile.getInputStream(zipFile.getEntry("empty"))).length);
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    @Test
+    public void testReadWithZipInputStream() throws Exception {
+        writeArchive();
+
+        final ZipInputStream in = new ZipInputStream(new FileInputStream(
+            archive));
+
+        try {
+            assertEquals("stored", in.getNextEntry().getName());
+            assertArrayEquals(content, readEntry(in));
+
+            assertEquals("deflated/äöü", in.getNextEntry().getName());
+            assertArrayEquals(content, readEntry(in));
+
+            assertEquals("streamed", in.getNextEntry().getName());
+            assertArrayEquals(content, readEntry(in));
+
+            assertEquals("empty", in.getNextEntry().getName());
+            assertEquals(0, readEntry(in).length);
+
+            assertNull(in.getNextEntry());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readEntry(ZipInputStream in) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        IOUtils.copy(in, out);
+        return out.toByteArray();
+    }
+}
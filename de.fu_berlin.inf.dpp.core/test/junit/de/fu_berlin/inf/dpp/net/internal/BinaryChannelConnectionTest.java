@@ -2,6 +2,7 @@ package de.fu_berlin.inf.dpp.net.internal;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.io.IOException;
@@ -9,7 +10,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
@@ -21,6 +26,7 @@ import org.junit.Test;
 import de.fu_berlin.inf.dpp.net.internal.BinaryChannelConnection.IDPool;
 import de.fu_berlin.inf.dpp.net.stream.ByteStream;
 import de.fu_berlin.inf.dpp.net.stream.StreamMode;
+import de.fu_berlin.inf.dpp.net.stream.TCPByteStream;
 import de.fu_berlin.inf.dpp.net.xmpp.JID;
 
 public class BinaryChannelConnectionTest {
@@ -239,6 +245,214 @@ public class BinaryChannelConnectionTest {
         assertArrayEquals("fragmentation error", bytesToSend, receivedBytes);
     }
 
+    @Test
+    public void testConcurrentSenders() throws Exception {
+
+        final int senders = 8;
+        final int packets = 200;
+
+        final List<BinaryXMPPExtension> extensions = Collections
+            .synchronizedList(new ArrayList<BinaryXMPPExtension>());
+
+        final CountDownLatch received = new CountDownLatch(senders * packets
+            + 1);
+
+        // piped streams break when a writing thread terminates
+        final ServerSocket server = new ServerSocket(0, 1,
+            InetAddress.getByName("127.0.0.1"));
+
+        final Socket aliceSocket = new Socket(server.getInetAddress(),
+            server.getLocalPort());
+
+        final Socket bobSocket = server.accept();
+        server.close();
+
+        final BinaryChannelConnection alice = new BinaryChannelConnection(
+            aliceJID, bobJID, "junit", new TCPByteStream(aliceSocket),
+            StreamMode.TCP, new StreamConnectionListener() {
+                @Override
+                public void receive(final BinaryXMPPExtension extension) {
+                    // NOP
+                }
+            });
+
+        BinaryChannelConnection bob = new BinaryChannelConnection(bobJID,
+            aliceJID, "junit", new TCPByteStream(bobSocket), StreamMode.TCP,
+            new StreamConnectionListener() {
+                @Override
+                public void receive(final BinaryXMPPExtension extension) {
+                    extensions.add(extension);
+                    received.countDown();
+                }
+            });
+
+        alice.initialize();
+        bob.initialize();
+
+        final byte[] largeBytesToSend = new byte[2 * 1024 * 1024];
+
+        for (int i = 0; i < largeBytesToSend.length; i++)
+            largeBytesToSend[i] = (byte) i;
+
+        final List<Thread> threads = new ArrayList<Thread>();
+        final List<Exception> errors = Collections
+            .synchronizedList(new ArrayList<Exception>());
+
+        for (int s = 0; s < senders; s++) {
+            final String elementName = "bar-" + s;
+
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    TransferDescription description = TransferDescription
+                        .newDescription();
+
+                    description.setNamespace("foo-namespace");
+                    description.setElementName(elementName);
+
+                    try {
+                        for (int i = 0; i < packets; i++)
+                            alice.send(description, createPacket(i));
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+
+        threads.add(new Thread() {
+            @Override
+            public void run() {
+                TransferDescription description = TransferDescription
+                    .newDescription();
+
+                description.setNamespace("foo-namespace");
+                description.setElementName("large");
+
+                try {
+                    alice.send(description, largeBytesToSend);
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        });
+
+        try {
+            for (Thread thread : threads)
+                thread.start();
+
+            for (Thread thread : threads)
+                thread.join(10000);
+
+            received.await(10000, TimeUnit.MILLISECONDS);
+        } finally {
+            alice.close();
+            bob.close();
+        }
+
+        assertTrue("sending failed: " + errors, errors.isEmpty());
+        assertTrue("not all packets were received", received.getCount() == 0);
+
+        final int[] nextPacket = new int[senders];
+
+        for (BinaryXMPPExtension extension : extensions) {
+            String elementName = extension.getTransferDescription()
+                .getElementName();
+
+            if (elementName.equals("large")) {
+                assertArrayEquals(largeBytesToSend, extension.getPayload());
+                continue;
+            }
+
+            int sender = Integer.parseInt(elementName.substring(4));
+
+            assertArrayEquals("packets of a sender were reordered",
+                createPacket(nextPacket[sender]++), extension.getPayload());
+        }
+    }
+
+    @Test
+    public void testCompressedPayloadsAreInflated() throws Exception {
+
+        final int packets = 100;
+
+        final List<BinaryXMPPExtension> extensions = new ArrayList<BinaryXMPPExtension>();
+
+        final CountDownLatch received = new CountDownLatch(packets + 1);
+
+        BinaryChannelConnection alice = new BinaryChannelConnection(aliceJID,
+            bobJID, "junit", aliceStream, StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener() {
+                @Override
+                public void receive(final BinaryXMPPExtension extension) {
+                    // NOP
+                }
+            });
+
+        BinaryChannelConnection bob = new BinaryChannelConnection(bobJID,
+            aliceJID, "junit", bobStream, StreamMode.SOCKS5_DIRECT,
+            new StreamConnectionListener() {
+                @Override
+                public void receive(final BinaryXMPPExtension extension) {
+                    extensions.add(extension);
+                    received.countDown();
+                }
+            });
+
+        alice.initialize();
+        bob.initialize();
+
+        TransferDescription description = TransferDescription.newDescription();
+
+        description.setNamespace("foo-namespace");
+        description.setElementName("bar");
+        description.setCompressContent(true);
+
+        byte[] largeBytesToSend = new byte[256 * 1024];
+
+        for (int i = 0; i < largeBytesToSend.length; i++)
+            largeBytesToSend[i] = (byte) (i % 17);
+
+        long sentBytes = 0;
+
+        try {
+            for (int i = 0; i < packets; i++)
+                sentBytes += alice.send(description, createPacket(i));
+
+            sentBytes += alice.send(description, largeBytesToSend);
+
+            received.await(10000, TimeUnit.MILLISECONDS);
+        } finally {
+            alice.close();
+            bob.close();
+        }
+
+        assertTrue("not all packets were received", received.getCount() == 0);
+
+        long uncompressedBytes = largeBytesToSend.length;
+
+        for (int i = 0; i < packets; i++) {
+            BinaryXMPPExtension extension = extensions.get(i);
+
+            assertArrayEquals(createPacket(i), extension.getPayload());
+            assertFalse(extension.getTransferDescription().compressContent());
+
+            uncompressedBytes += extension.getUncompressedSize();
+        }
+
+        assertArrayEquals(largeBytesToSend, extensions.get(packets)
+            .getPayload());
+
+        assertTrue("payloads were not compressed",
+            sentBytes < uncompressedBytes / 4);
+    }
+
+    private static byte[] createPacket(int i) throws IOException {
+        return ("<ADOS xmlns=\"de.fu_berlin.inf.dpp\" seq=\"" + i
+            + "\"><sid>1</sid><viewportActivity start=\"" + i
+            + "\" length=\"42\"/></ADOS>").getBytes("UTF-8");
+    }
+
     @Test
     @Ignore("this test consumes much CPU resources and should only executed manually when making changes")
     public void testFragmentationCleanup() throws Exception {
@@ -0,0 +1,171 @@
+package de.fu_berlin.inf.dpp.net.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Inflater;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressionContextTest {
+
+    private CompressionContext sender;
+    private CompressionContext receiver;
+
+    @Before
+    public void setUp() {
+        sender = new CompressionContext();
+        receiver = new CompressionContext();
+    }
+
+    @After
+    public void tearDown() {
+        sender.dispose();
+        receiver.dispose();
+    }
+
+    private static byte[] activity(int i) throws IOException {
+        return ("<ADOS xmlns=\"de.fu_berlin.inf.dpp\" seq=\"" + i
+            + "\"><sid>4711</sid><jupiterActivity src=\"alice@foo/Saros\">"
+            + "<p d=\"1\"/><t><vectorTime local=\"" + i + "\" remote=\"3\"/>"
+            + "</t><o class=\"insertOp\" pos=\"" + (i * 7) + "\" text=\"x\" "
+            + "origin=\"" + (i * 7) + "\"/></jupiterActivity></ADOS>")
+            .getBytes("UTF-8");
+    }
+
+    @Test
+    public void testSharedRoundTrip() throws Exception {
+        for (int i = 0; i < 200; i++) {
+            byte[] data = activity(i);
+
+            byte[] compressed = sender.deflate(data, true);
+            assertNotNull("activity was not compressed", compressed);
+            assertArrayEquals(data, receiver.inflate(compressed, true));
+        }
+    }
+
+    @Test
+    public void testSharedStreamImprovesRatio() throws Exception {
+        byte[] first = sender.deflate(activity(0), true);
+
+        receiver.inflate(first, true);
+
+        byte[] second = sender.deflate(activity(1), true);
+
+        assertTrue("recent payloads are not referenced",
+            second.length < first.length / 2);
+
+        assertArrayEquals(activity(1), receiver.inflate(second, true));
+    }
+
+    @Test
+    public void testStandaloneIsPlainZlib() throws Exception {
+        byte[] data = new byte[128 * 1024];
+
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) (i % 13);
+
+        byte[] compressed = sender.deflate(data, false);
+
+        Inflater inflater = new Inflater();
+        inflater.setInput(compressed);
+
+        byte[] inflated = new byte[data.length];
+
+        int count = 0;
+
+        while (!inflater.finished())
+            count += inflater.inflate(inflated, count, inflated.length - count);
+
+        inflater.end();
+
+        assertArrayEquals(data, inflated);
+        assertArrayEquals(data, receiver.inflate(compressed, false));
+    }
+
+    @Test
+    public void testSharedStreamSurvivesLargePayloads() throws Exception {
+        byte[] large = new byte[CompressionContext.MAX_SHARED_PAYLOAD_SIZE];
+        new Random(42).nextBytes(large);
+
+        for (int i = 0; i < 4; i++) {
+            assertArrayEquals(large,
+                receiver.inflate(sender.deflate(large, true), true));
+
+            assertArrayEquals(activity(i),
+                receiver.inflate(sender.deflate(activity(i), true), true));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testSharedPayloadOutOfOrderIsDetected() throws Exception {
+        // the receiver misses the start of the stream
+        sender.deflate(activity(0), true);
+
+        receiver.inflate(sender.deflate(activity(1), true), true);
+    }
+
+    @Test
+    public void testIncompressibleDataSuspendsCompression() {
+        byte[] data = new byte[1024];
+        new Random(42).nextBytes(data);
+
+        for (int i = 0; i < 3; i++) {
+            assertTrue(sender.shouldCompress(data.length));
+            assertNull(sender.deflate(data, false));
+        }
+
+        assertFalse("compression is not suspended",
+            sender.shouldCompress(data.length));
+
+        assertTrue(sender.shouldCompress(data.length));
+    }
+
+    @Test
+    public void testIncompressibleSharedPayloadIsReturned() throws Exception {
+        byte[] data = new byte[1024];
+        new Random(42).nextBytes(data);
+
+        byte[] compressed = sender.deflate(data, true);
+
+        assertNotNull("payload of the shared stream was dropped", compressed);
+        assertArrayEquals(data, receiver.inflate(compressed, true));
+    }
+
+    @Test
+    public void testSmallPayloadsAreNotCompressed() {
+        assertFalse(sender
+            .shouldCompress(CompressionContext.MIN_PAYLOAD_SIZE - 1));
+        assertTrue(sender.shouldCompress(CompressionContext.MIN_PAYLOAD_SIZE));
+    }
+
+    @Test
+    public void testNoCompressionAfterDispose() throws Exception {
+        sender.dispose();
+
+        assertFalse(sender.shouldCompress(1024));
+
+        try {
+            sender.deflate(activity(0), true);
+            fail("deflated data after dispose");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNoDecompressionAfterDispose() throws Exception {
+        byte[] compressed = sender.deflate(activity(0), true);
+
+        receiver.dispose();
+        receiver.inflate(compressed, true);
+    }
+}
@@ -3,6 +3,7 @@ package de.fu_berlin.inf.dpp.net.internal;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.IOException;
@@ -82,6 +83,10 @@ public class DataTransferManagerTest {
         public synchronized List<ChannelConnection> getEstablishedConnections() {
             return establishedConnections;
         }
+
+        public IByteStreamConnectionListener getListener() {
+            return listener;
+        }
     }
 
     private static class BlockableTransport extends Transport {
@@ -157,9 +162,10 @@ public class DataTransferManagerTest {
         }
 
         @Override
-        public void send(TransferDescription data, byte[] content)
+        public long send(TransferDescription data, byte[] content)
             throws IOException {
             sendPackets++;
+            return content.length;
         }
 
         @Override
@@ -182,6 +188,83 @@ public class DataTransferManagerTest {
         }
     }
 
+    /**
+     * Connection whose close also closes the connection of the other side,
+     * like a socket that is shut down.
+     */
+    private static class LinkedConnection extends ChannelConnection {
+
+        private LinkedConnection other;
+
+        public LinkedConnection(JID to, StreamMode mode,
+            IByteStreamConnectionListener listener) {
+            super(to, mode, listener);
+        }
+
+        @Override
+        public void close() {
+            if (!isConnected())
+                return;
+
+            super.close();
+
+            if (other != null)
+                other.close();
+        }
+    }
+
+    /**
+     * Transport that announces every established connection as incoming
+     * request to the transport of the remote side.
+     */
+    private static class PairedTransport extends Transport {
+
+        private final JID localJID;
+
+        private final StreamMode mode;
+
+        private PairedTransport remote;
+
+        public PairedTransport(StreamMode mode, JID localJID) {
+            super(mode);
+            this.mode = mode;
+            this.localJID = localJID;
+        }
+
+        @Override
+        public IByteStreamConnection connect(String connectionIdentifier,
+            JID peer) throws IOException, InterruptedException {
+
+            LinkedConnection connection = new LinkedConnection(peer, mode,
+                getListener());
+
+            LinkedConnection remoteConnection = new LinkedConnection(
+                localJID, mode, remote.getListener());
+
+            connection.other = remoteConnection;
+            remoteConnection.other = connection;
+
+            remote.accept(connectionIdentifier, remoteConnection);
+
+            synchronized (this) {
+                getEstablishedConnections().add(connection);
+            }
+
+            return connection;
+        }
+
+        private void accept(String connectionIdentifier,
+            ChannelConnection connection) {
+
+            synchronized (this) {
+                getEstablishedConnections().add(connection);
+            }
+
+            getListener().connectionChanged(connectionIdentifier, connection,
+                true);
+        }
+    }
+
     private XMPPConnectionService connectionServiceStub;
 
     private Capture<IConnectionListener> connectionListener = new Capture<IConnectionListener>();
@@ -517,6 +600,223 @@ public class DataTransferManagerTest {
 
     }
 
+    @Test(timeout = 30000)
+    public void testConnectionsToDifferentPeersDoNotBlockEachOther()
+        throws Exception {
+
+        final CountDownLatch connectAcknowledge = new CountDownLatch(1);
+        final CountDownLatch connectProceed = new CountDownLatch(1);
+
+        Set<JID> nonBlockingConnects = new HashSet<JID>();
+
+        nonBlockingConnects.add(new JID("foo@bar.example"));
+
+        BlockableTransport mainTransport = new BlockableTransport(
+            nonBlockingConnects, StreamMode.SOCKS5_DIRECT, connectAcknowledge,
+            connectProceed);
+
+        final IConnectionManager dtm = new DataTransferManager(
+            connectionServiceStub, null, mainTransport, null);
+
+        connectionListener.getValue().connectionStateChanged(connectionMock,
+            ConnectionState.CONNECTED);
+
+        TestThread connectThread = new TestThread(new TestThread.Runnable() {
+            @Override
+            public void run() throws Exception {
+                dtm.connect(new JID("foo@bar.com"));
+            }
+        });
+
+        connectThread.start();
+
+        if (!connectAcknowledge.await(10000, TimeUnit.MILLISECONDS)) {
+            connectThread.interrupt();
+            fail("transport connect method was not called");
+        }
+
+        try {
+            // MUST not block while the other peer is still being connected
+            dtm.connect(new JID("foo@bar.example"));
+
+            assertEquals(StreamMode.SOCKS5_DIRECT,
+                dtm.getTransferMode(new JID("foo@bar.example")));
+
+            assertEquals(StreamMode.NONE,
+                dtm.getTransferMode(new JID("foo@bar.com")));
+        } finally {
+            connectProceed.countDown();
+        }
+
+        connectThread.join(10000);
+        connectThread.verify();
+
+        assertEquals(StreamMode.SOCKS5_DIRECT,
+            dtm.getTransferMode(new JID("foo@bar.com")));
+    }
+
+    @Test(timeout = 30000)
+    public void testFallbackIsRacedAgainstStalledService() throws Exception {
+
+        final CountDownLatch connectAcknowledge = new CountDownLatch(1);
+        final CountDownLatch connectProceed = new CountDownLatch(1);
+
+        BlockableTransport mainTransport = new BlockableTransport(
+            new HashSet<JID>(), StreamMode.SOCKS5_DIRECT, connectAcknowledge,
+            connectProceed);
+
+        Transport fallbackTransport = new Transport(StreamMode.IBB);
+
+        final IConnectionManager dtm = new DataTransferManager(
+            connectionServiceStub, null, mainTransport, fallbackTransport);
+
+        connectionListener.getValue().connectionStateChanged(connectionMock,
+            ConnectionState.CONNECTED);
+
+        try {
+            dtm.connect(new JID("foo@bar.com"));
+        } finally {
+            connectProceed.countDown();
+        }
+
+        assertEquals("fallback service was not started", 1,
+            fallbackTransport.getEstablishedConnections().size());
+
+        assertEquals(StreamMode.IBB,
+            dtm.getTransferMode(new JID("foo@bar.com")));
+    }
+
+    @Test(timeout = 30000)
+    public void testLateConnectionReplacesWinnerOnBothSides() throws Exception {
+
+        final JID localJID = new JID("local@host");
+        final JID remoteJID = new JID("remote@host");
+
+        final CountDownLatch connectProceed = new CountDownLatch(1);
+
+        // ignores the cancellation like a remote side that already accepted
+        PairedTransport mainTransport = new PairedTransport(
+            StreamMode.SOCKS5_DIRECT, localJID) {
+            @Override
+            public IByteStreamConnection connect(String connectionIdentifier,
+                JID peer) throws IOException, InterruptedException {
+
+                boolean interrupted = false;
+
+                while (true) {
+                    try {
+                        connectProceed.await();
+                        break;
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+
+                return super.connect(connectionIdentifier, peer);
+            }
+        };
+
+        PairedTransport fallbackTransport = new PairedTransport(
+            StreamMode.IBB, localJID);
+
+        PairedTransport remoteMainTransport = new PairedTransport(
+            StreamMode.SOCKS5_DIRECT, remoteJID);
+
+        PairedTransport remoteFallbackTransport = new PairedTransport(
+            StreamMode.IBB, remoteJID);
+
+        mainTransport.remote = remoteMainTransport;
+        fallbackTransport.remote = remoteFallbackTransport;
+
+        final DataTransferManager dtm = new DataTransferManager(
+            connectionServiceStub, null, mainTransport, fallbackTransport);
+
+        connectionListener.getValue().connectionStateChanged(connectionMock,
+            ConnectionState.CONNECTED);
+
+        Capture<IConnectionListener> remoteConnectionListener = new Capture<IConnectionListener>();
+
+        new DataTransferManager(
+            createConnectionsServiceMock(remoteConnectionListener), null,
+            remoteMainTransport, remoteFallbackTransport);
+
+        Connection remoteConnectionMock = EasyMock
+            .createMock(Connection.class);
+        EasyMock.expect(remoteConnectionMock.getUser())
+            .andReturn(remoteJID.toString()).anyTimes();
+        EasyMock.replay(remoteConnectionMock);
+
+        remoteConnectionListener.getValue().connectionStateChanged(
+            remoteConnectionMock, ConnectionState.CONNECTED);
+
+        try {
+            dtm.connect(remoteJID);
+        } finally {
+            connectProceed.countDown();
+        }
+
+        while (dtm.getTransferMode(remoteJID) != StreamMode.SOCKS5_DIRECT)
+            Thread.sleep(10);
+
+        ChannelConnection winner = fallbackTransport
+            .getEstablishedConnections().get(0);
+
+        ChannelConnection lateConnection = mainTransport
+            .getEstablishedConnections().get(0);
+
+        ChannelConnection remoteLateConnection = remoteMainTransport
+            .getEstablishedConnections().get(0);
+
+        assertFalse("winner was not closed", winner.isConnected());
+
+        assertTrue("late connection was closed", lateConnection.isConnected());
+
+        assertTrue("late connection was closed on the remote side",
+            remoteLateConnection.isConnected());
+
+        TransferDescription description = TransferDescription.newDescription();
+
+        description.setRecipient(remoteJID);
+
+        dtm.sendData(description, new byte[0]);
+
+        assertEquals("wrong connection was chosen", 1,
+            lateConnection.getSendPacketsCount());
+    }
+
+    @Test
+    public void testFallbackIsStartedImmediatelyOnFailure() throws Exception {
+
+        Transport mainTransport = new Transport(StreamMode.SOCKS5_DIRECT) {
+            @Override
+            public synchronized IByteStreamConnection connect(
+                String connectionIdentifier, JID peer) throws IOException {
+                throw new IOException("unreachable");
+            }
+        };
+
+        Transport fallbackTransport = new Transport(StreamMode.IBB);
+
+        IConnectionManager dtm = new DataTransferManager(connectionServiceStub,
+            null, mainTransport, fallbackTransport);
+
+        connectionListener.getValue().connectionStateChanged(connectionMock,
+            ConnectionState.CONNECTED);
+
+        long start = System.currentTimeMillis();
+
+        dtm.connect(new JID("foo@bar.com"));
+
+        assertTrue("fallback service was not started immediately",
+            System.currentTimeMillis() - start < 2000);
+
+        assertEquals(StreamMode.IBB,
+            dtm.getTransferMode(new JID("foo@bar.com")));
+    }
+
     @Test
     public void connectWithRemoteSideConnectedFirst() throws Exception {
         Transport mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
@@ -612,6 +912,52 @@ public class DataTransferManagerTest {
             dtm.getTransferMode(new JID("fallback@emergency")));
     }
 
+    @Test
+    public void testClosedConnectionClosesOtherDirection() throws Exception {
+        Transport mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
+
+        IConnectionManager dtm = new DataTransferManager(connectionServiceStub,
+            null, mainTransport, null);
+
+        connectionListener.getValue().connectionStateChanged(connectionMock,
+            ConnectionState.CONNECTED);
+
+        dtm.connect(new JID("fallback@emergency"));
+        mainTransport.announceIncomingRequest(new JID("fallback@emergency"));
+
+        mainTransport.getEstablishedConnections().get(0).close();
+
+        assertFalse("incoming connection was not closed", mainTransport
+            .getEstablishedConnections().get(1).isConnected());
+
+        assertEquals(StreamMode.NONE,
+            dtm.getTransferMode(new JID("fallback@emergency")));
+    }
+
+    @Test
+    public void testReplacedConnectionDoesNotCloseNewConnection()
+        throws Exception {
+        Transport mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
+
+        IConnectionManager dtm = new DataTransferManager(connectionServiceStub,
+            null, mainTransport, null);
+
+        connectionListener.getValue().connectionStateChanged(connectionMock,
+            ConnectionState.CONNECTED);
+
+        mainTransport.announceIncomingRequest(new JID("fallback@emergency"));
+        mainTransport.announceIncomingRequest(new JID("fallback@emergency"));
+
+        assertFalse("replaced connection was not closed", mainTransport
+            .getEstablishedConnections().get(0).isConnected());
+
+        assertTrue("new connection was closed", mainTransport
+            .getEstablishedConnections().get(1).isConnected());
+
+        assertEquals(StreamMode.SOCKS5_DIRECT,
+            dtm.getTransferMode(new JID("fallback@emergency")));
+    }
+
     @Test
     public void testConnectionClosureOnDisconnect() throws Exception {
         Transport mainTransport = new Transport(StreamMode.SOCKS5_DIRECT);
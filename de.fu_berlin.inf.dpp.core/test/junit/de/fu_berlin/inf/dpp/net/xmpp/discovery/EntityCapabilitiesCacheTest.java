@@ -0,0 +1,106 @@
+package de.fu_berlin.inf.dpp.net.xmpp.discovery;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.jivesoftware.smackx.packet.DiscoverInfo;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EntityCapabilitiesCacheTest {
+
+    private static final String SAROS_FEATURE = "de.fu_berlin.inf.dpp";
+
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheFile = File.createTempFile("saros_discovery", ".cache");
+    }
+
+    @After
+    public void tearDown() {
+        cacheFile.delete();
+    }
+
+    private static DiscoverInfo createInfo(String... features) {
+        DiscoverInfo info = new DiscoverInfo();
+
+        for (String feature : features)
+            info.addFeature(feature);
+
+        return info;
+    }
+
+    @Test
+    public void testPutAndGet() {
+        EntityCapabilitiesCache cache = new EntityCapabilitiesCache();
+
+        assertNull(cache.get("ver"));
+
+        cache.put("ver", createInfo(SAROS_FEATURE, "foo"));
+
+        DiscoverInfo info = cache.get("ver");
+
+        assertNotNull(info);
+        assertTrue(info.containsFeature(SAROS_FEATURE));
+        assertTrue(info.containsFeature("foo"));
+        assertFalse(info.containsFeature("bar"));
+    }
+
+    @Test
+    public void testExpiredEntry() throws Exception {
+        EntityCapabilitiesCache cache = new EntityCapabilitiesCache(1);
+
+        cache.put("ver", createInfo(SAROS_FEATURE));
+
+        Thread.sleep(10);
+
+        assertNull(cache.get("ver"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        EntityCapabilitiesCache cache = new EntityCapabilitiesCache();
+        cache.setCacheFile(cacheFile);
+
+        cache.put("ver1", createInfo(SAROS_FEATURE));
+        cache.put("ver2", createInfo("foo", "bar"));
+        cache.save();
+
+        EntityCapabilitiesCache loaded = new EntityCapabilitiesCache();
+        loaded.setCacheFile(cacheFile);
+
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.get("ver1").containsFeature(SAROS_FEATURE));
+        assertTrue(loaded.get("ver2").containsFeature("bar"));
+        assertFalse(loaded.get("ver2").containsFeature(SAROS_FEATURE));
+    }
+
+    @Test
+    public void testLoadWithError() throws IOException {
+        FileOutputStream out = new FileOutputStream(cacheFile);
+
+        byte[] data = new byte[128];
+
+        new Random().nextBytes(data);
+
+        out.write(data);
+        out.close();
+
+        EntityCapabilitiesCache cache = new EntityCapabilitiesCache();
+        cache.setCacheFile(cacheFile);
+
+        assertEquals(0, cache.size());
+    }
+}
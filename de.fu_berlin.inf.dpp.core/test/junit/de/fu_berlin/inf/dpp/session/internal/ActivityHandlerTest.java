@@ -92,14 +92,16 @@ public class ActivityHandlerTest {
         }
 
         @Override
-        public void execute(IActivity activity) {
+        public void execute(List<IActivity> activities) {
             // As this is called by another Thread we have to inform the caller
             // when we are ready
-            localActivity = activity;
-            CountDownLatch gateToCountdown = gate;
+            for (IActivity activity : activities) {
+                localActivity = activity;
+                CountDownLatch gateToCountdown = gate;
 
-            if (gateToCountdown != null)
-                gateToCountdown.countDown();
+                if (gateToCountdown != null)
+                    gateToCountdown.countDown();
+            }
         }
     };
     private SPath path;
@@ -11,15 +11,24 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
 
 import org.easymock.EasyMock;
+import org.jivesoftware.smack.packet.Packet;
 import org.jivesoftware.smack.packet.PacketExtension;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import de.fu_berlin.inf.dpp.activities.ChecksumActivity;
 import de.fu_berlin.inf.dpp.activities.IActivity;
 import de.fu_berlin.inf.dpp.activities.NOPActivity;
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
+import de.fu_berlin.inf.dpp.communication.extensions.ActivitiesExtension;
+import de.fu_berlin.inf.dpp.filesystem.IPath;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
 import de.fu_berlin.inf.dpp.net.IReceiver;
 import de.fu_berlin.inf.dpp.net.ITransmitter;
 import de.fu_berlin.inf.dpp.net.xmpp.JID;
@@ -87,6 +96,58 @@ public class ActivitySequencerTest {
         }
     }
 
+    /**
+     * Records the sent activities and blocks the first send until it is
+     * released.
+     */
+    private static class BlockingTransmitter implements ITransmitter {
+
+        private final CountDownLatch sending = new CountDownLatch(1);
+
+        private final CountDownLatch release = new CountDownLatch(1);
+
+        private final List<List<IActivity>> sentActivities = new ArrayList<List<IActivity>>();
+
+        @Override
+        public void sendPacket(Packet packet) {
+            // NOP
+        }
+
+        @Override
+        public void sendPacketExtension(JID jid, PacketExtension extension) {
+            // NOP
+        }
+
+        @Override
+        public void send(JID recipient, PacketExtension extension) {
+            // NOP
+        }
+
+        @Override
+        public void send(String connectionID, JID recipient,
+            PacketExtension extension) throws IOException {
+
+            // the list is reused by the sequencer after sending
+            synchronized (this) {
+                sentActivities.add(new ArrayList<IActivity>(
+                    ActivitiesExtension.PROVIDER.getPayload(extension)
+                        .getActivities()));
+            }
+
+            sending.countDown();
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+
+        public synchronized List<List<IActivity>> getSentActivities() {
+            return new ArrayList<List<IActivity>>(sentActivities);
+        }
+    }
+
     private static final JID ALICE_JID = new JID("alice@test/Saros");
     private static final JID BOB_JID = new JID("bob@test/Saros");
 
@@ -263,6 +324,243 @@ public class ActivitySequencerTest {
         }
     }
 
+    @Test(timeout = 30000)
+    public void testSendMoreActivitiesThanTheWindowAllows() {
+
+        // more than the default window size, Bob has nothing to send back
+        int activityCount = 10000;
+
+        aliceSequencer = new ActivitySequencer(sessionStubAlice,
+            aliceTransmitter, aliceReceiver, null);
+
+        bobSequencer = new ActivitySequencer(sessionStubBob, bobTransmitter,
+            bobReceiver, null);
+
+        aliceSequencer.start();
+        bobSequencer.start();
+
+        User bobUserInAliceSession = new User(BOB_JID, false, false, 0, 0);
+        User aliceUserInBobSession = new User(ALICE_JID, true, false, 0, 0);
+
+        sessionStubAlice.addUser(bobUserInAliceSession);
+        sessionStubBob.addUser(aliceUserInBobSession);
+
+        aliceSequencer.registerUser(bobUserInAliceSession);
+        bobSequencer.registerUser(aliceUserInBobSession);
+
+        for (int i = 0; i < activityCount; i++)
+            aliceSequencer.sendActivity(
+                Collections.singletonList(bobUserInAliceSession),
+                new NOPActivity(aliceUser, bobUserInAliceSession, i));
+
+        aliceSequencer.flush(bobUserInAliceSession);
+
+        assertTrue("Bob was unregistered",
+            aliceSequencer.isUserRegistered(bobUserInAliceSession));
+
+        List<IActivity> receivedActivities = sessionStubBob
+            .getReceivedActivities();
+
+        assertEquals("not all activies received", activityCount,
+            receivedActivities.size());
+
+        for (int i = 0; i < activityCount; i++) {
+            NOPActivity activity = (NOPActivity) receivedActivities.get(i);
+            assertEquals("activity is out of order", i, activity.getID());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void testRecipientWithoutAcknowledgementsDoesNotStall() {
+
+        // more than the default window size, no acknowledgement ever arrives
+        int activityCount = 5000;
+
+        BlockingTransmitter transmitter = new BlockingTransmitter();
+        transmitter.release.countDown();
+
+        aliceSequencer = new ActivitySequencer(sessionStubAlice, transmitter,
+            aliceReceiver, null);
+
+        aliceSequencer.start();
+
+        User bobUserInAliceSession = new User(BOB_JID, false, false, 0, 0);
+
+        sessionStubAlice.addUser(bobUserInAliceSession);
+        aliceSequencer.registerUser(bobUserInAliceSession);
+
+        for (int i = 0; i < activityCount; i++)
+            aliceSequencer.sendActivity(
+                Collections.singletonList(bobUserInAliceSession),
+                new NOPActivity(aliceUser, bobUserInAliceSession, i));
+
+        aliceSequencer.flush(bobUserInAliceSession);
+
+        int sent = 0;
+
+        for (List<IActivity> activities : transmitter.getSentActivities())
+            sent += activities.size();
+
+        assertEquals("not all activities were sent", activityCount, sent);
+    }
+
+    @Test(timeout = 30000)
+    public void testEditsAndAwarenessOvertakeBulkActivities()
+        throws Exception {
+
+        BlockingTransmitter transmitter = new BlockingTransmitter();
+
+        aliceSequencer = new ActivitySequencer(sessionStubAlice, transmitter,
+            aliceReceiver, null);
+
+        aliceSequencer.start();
+
+        User bobUserInAliceSession = new User(BOB_JID, false, false, 0, 0);
+
+        sessionStubAlice.addUser(bobUserInAliceSession);
+        aliceSequencer.registerUser(bobUserInAliceSession);
+
+        List<User> bob = Collections.singletonList(bobUserInAliceSession);
+
+        IProject project = EasyMock.createNiceMock(IProject.class);
+        IPath path = EasyMock.createNiceMock(IPath.class);
+        IPath otherPath = EasyMock.createNiceMock(IPath.class);
+        EasyMock.replay(project, path, otherPath);
+
+        SPath file = new SPath(project, path);
+        SPath otherFile = new SPath(project, otherPath);
+
+        IActivity nop = new NOPActivity(aliceUser, bobUserInAliceSession, 0);
+        IActivity checksum = new ChecksumActivity(aliceUser, otherFile, 1, 1,
+            null);
+        IActivity selection0 = new TextSelectionActivity(aliceUser, 0, 0, file);
+        IActivity edit = new TextEditActivity(aliceUser, 0, "a", "", file);
+        IActivity selection1 = new TextSelectionActivity(aliceUser, 1, 0, file);
+
+        // the sender thread blocks while sending the first activity
+        aliceSequencer.sendActivity(bob, nop);
+        transmitter.sending.await();
+
+        aliceSequencer.sendActivity(bob, checksum);
+        aliceSequencer.sendActivity(bob, selection0);
+        aliceSequencer.sendActivity(bob, edit);
+        aliceSequencer.sendActivity(bob, selection1);
+
+        transmitter.release.countDown();
+        aliceSequencer.flush(bobUserInAliceSession);
+
+        List<List<IActivity>> sentActivities = transmitter.getSentActivities();
+
+        assertEquals(2, sentActivities.size());
+        assertEquals(Collections.singletonList(nop), sentActivities.get(0));
+
+        List<IActivity> expected = new ArrayList<IActivity>();
+        expected.add(edit);
+        expected.add(selection1);
+        expected.add(checksum);
+
+        assertEquals("activities are not sent in the order of their lanes",
+            expected, sentActivities.get(1));
+    }
+
+    @Test(timeout = 30000)
+    public void testEditsDoNotOvertakeChecksumsOfTheSamePath()
+        throws Exception {
+
+        BlockingTransmitter transmitter = new BlockingTransmitter();
+
+        aliceSequencer = new ActivitySequencer(sessionStubAlice, transmitter,
+            aliceReceiver, null);
+
+        aliceSequencer.start();
+
+        User bobUserInAliceSession = new User(BOB_JID, false, false, 0, 0);
+
+        sessionStubAlice.addUser(bobUserInAliceSession);
+        aliceSequencer.registerUser(bobUserInAliceSession);
+
+        List<User> bob = Collections.singletonList(bobUserInAliceSession);
+
+        IProject project = EasyMock.createNiceMock(IProject.class);
+        IPath path = EasyMock.createNiceMock(IPath.class);
+        IPath otherPath = EasyMock.createNiceMock(IPath.class);
+        EasyMock.replay(project, path, otherPath);
+
+        SPath file = new SPath(project, path);
+        SPath otherFile = new SPath(project, otherPath);
+
+        IActivity nop = new NOPActivity(aliceUser, bobUserInAliceSession, 0);
+        IActivity checksum = new ChecksumActivity(aliceUser, file, 1, 1, null);
+        IActivity otherChecksum = new ChecksumActivity(aliceUser, otherFile, 1,
+            1, null);
+        IActivity edit = new TextEditActivity(aliceUser, 0, "a", "", file);
+
+        aliceSequencer.sendActivity(bob, nop);
+        transmitter.sending.await();
+
+        aliceSequencer.sendActivity(bob, checksum);
+        aliceSequencer.sendActivity(bob, otherChecksum);
+        aliceSequencer.sendActivity(bob, edit);
+
+        transmitter.release.countDown();
+        aliceSequencer.flush(bobUserInAliceSession);
+
+        List<IActivity> expected = new ArrayList<IActivity>();
+        expected.add(checksum);
+        expected.add(edit);
+        expected.add(otherChecksum);
+
+        assertEquals("an edit overtook a checksum of the same path",
+            expected, transmitter.getSentActivities().get(1));
+    }
+
+    @Test(timeout = 30000)
+    public void testControlActivitiesAreNotOvertaken() throws Exception {
+
+        BlockingTransmitter transmitter = new BlockingTransmitter();
+
+        aliceSequencer = new ActivitySequencer(sessionStubAlice, transmitter,
+            aliceReceiver, null);
+
+        aliceSequencer.start();
+
+        User bobUserInAliceSession = new User(BOB_JID, false, false, 0, 0);
+
+        sessionStubAlice.addUser(bobUserInAliceSession);
+        aliceSequencer.registerUser(bobUserInAliceSession);
+
+        List<User> bob = Collections.singletonList(bobUserInAliceSession);
+
+        IProject project = EasyMock.createNiceMock(IProject.class);
+        IPath path = EasyMock.createNiceMock(IPath.class);
+        EasyMock.replay(project, path);
+
+        SPath file = new SPath(project, path);
+
+        IActivity nop0 = new NOPActivity(aliceUser, bobUserInAliceSession, 0);
+        IActivity checksum = new ChecksumActivity(aliceUser, file, 1, 1, null);
+        IActivity nop1 = new NOPActivity(aliceUser, bobUserInAliceSession, 1);
+        IActivity edit = new TextEditActivity(aliceUser, 0, "a", "", file);
+
+        aliceSequencer.sendActivity(bob, nop0);
+        transmitter.sending.await();
+
+        aliceSequencer.sendActivity(bob, checksum);
+        aliceSequencer.sendActivity(bob, nop1);
+        aliceSequencer.sendActivity(bob, edit);
+
+        transmitter.release.countDown();
+        aliceSequencer.flush(bobUserInAliceSession);
+
+        List<IActivity> expected = new ArrayList<IActivity>();
+        expected.add(checksum);
+        expected.add(nop1);
+        expected.add(edit);
+
+        assertEquals("a control activity was overtaken", expected,
+            transmitter.getSentActivities().get(1));
+    }
+
     @Test(timeout = 30000)
     public void testSendWithoutRegisteredUser() {
 
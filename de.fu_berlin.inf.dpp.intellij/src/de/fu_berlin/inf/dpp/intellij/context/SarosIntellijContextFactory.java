@@ -129,7 +129,7 @@ public class SarosIntellijContextFactory extends AbstractContextFactory {
 
         container.addComponent(BindKey.bindKey(String.class,
                 IContextKeyBindings.SarosVersion.class),
-            "14.1.31.DEVEL"); // todo
+            "14.2.1.DEVEL"); // todo
 
         container.addComponent(BindKey.bindKey(String.class,
                 IContextKeyBindings.PlatformVersion.class), "4.3.2"); // todo
@@ -0,0 +1,106 @@
+package de.fu_berlin.inf.dpp.intellij.project;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+
+import java.io.File;
+
+/**
+ * Describes a single change of a shared resource as reported by the virtual
+ * file system without carrying the content of the resource. The content of
+ * changed files is read from disk when the change is converted to an activity.
+ */
+final class FileSystemChange {
+
+    enum Kind {
+        /** a file was created or its content was replaced */
+        FILE_CREATED,
+        /** a file was removed */
+        FILE_REMOVED,
+        /** a file was moved or renamed */
+        FILE_MOVED,
+        /** a folder was created */
+        FOLDER_CREATED,
+        /** a folder was removed */
+        FOLDER_REMOVED
+    }
+
+    private final Kind kind;
+    private final SPath path;
+    private final SPath oldPath;
+    private final File file;
+    private final String charset;
+
+    private FileSystemChange(Kind kind, SPath path, SPath oldPath, File file,
+        String charset) {
+        this.kind = kind;
+        this.path = path;
+        this.oldPath = oldPath;
+        this.file = file;
+        this.charset = charset;
+    }
+
+    static FileSystemChange fileCreated(SPath path, File file,
+        String charset) {
+        return new FileSystemChange(Kind.FILE_CREATED, path, null, file,
+            charset);
+    }
+
+    static FileSystemChange fileRemoved(SPath path) {
+        return new FileSystemChange(Kind.FILE_REMOVED, path, null, null, null);
+    }
+
+    static FileSystemChange fileMoved(SPath path, SPath oldPath, File file,
+        String charset) {
+        return new FileSystemChange(Kind.FILE_MOVED, path, oldPath, file,
+            charset);
+    }
+
+    static FileSystemChange folderCreated(SPath path) {
+        return new FileSystemChange(Kind.FOLDER_CREATED, path, null, null,
+            null);
+    }
+
+    static FileSystemChange folderRemoved(SPath path) {
+        return new FileSystemChange(Kind.FOLDER_REMOVED, path, null, null,
+            null);
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    SPath getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the path the file was moved from or <code>null</code> if this
+     * change is not a move.
+     */
+    SPath getOldPath() {
+        return oldPath;
+    }
+
+    /**
+     * Returns the file on disk whose content has to be send or
+     * <code>null</code> if this change does not need the content.
+     */
+    File getFile() {
+        return file;
+    }
+
+    String getCharset() {
+        return charset;
+    }
+
+    boolean isFileChange() {
+        return kind == Kind.FILE_CREATED || kind == Kind.FILE_REMOVED
+            || kind == Kind.FILE_MOVED;
+    }
+
+    @Override
+    public String toString() {
+        return kind + "[" + (oldPath == null ? "" : oldPath + " -> ") + path
+            + "]";
+    }
+}
@@ -12,7 +12,6 @@ import de.fu_berlin.inf.dpp.activities.FolderCreatedActivity;
 import de.fu_berlin.inf.dpp.activities.FolderDeletedActivity;
 import de.fu_berlin.inf.dpp.activities.IActivity;
 import de.fu_berlin.inf.dpp.activities.SPath;
-import de.fu_berlin.inf.dpp.core.util.FileUtils;
 import de.fu_berlin.inf.dpp.filesystem.IFile;
 import de.fu_berlin.inf.dpp.filesystem.IFolder;
 import de.fu_berlin.inf.dpp.filesystem.IPath;
@@ -25,15 +24,23 @@ import de.fu_berlin.inf.dpp.intellij.project.filesystem.IntelliJFileImpl;
 import de.fu_berlin.inf.dpp.intellij.project.filesystem.IntelliJPathImpl;
 import de.fu_berlin.inf.dpp.intellij.project.filesystem.IntelliJProjectImpl;
 import de.fu_berlin.inf.dpp.session.User;
+import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
+import de.fu_berlin.inf.dpp.util.ThreadUtils;
+import org.apache.commons.io.IOUtils;
 import org.apache.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Virtual file system listener. It receives events for all files in all projects
@@ -41,19 +48,87 @@ import java.util.Set;
  * <p/>
  * It filters for files that are shared and calls the corresponding methods for
  * {@link IActivity}-creation on the {@link SharedResourcesManager}.
+ * <p/>
+ * The file system changes are not converted to activities one by one. A change
+ * that arrives after a quiet period is converted without delay, but all
+ * changes that follow within {@value #BATCH_DELAY} ms (e.g. during a VFS
+ * refresh after a branch switch) are collapsed into one
+ * {@link FileSystemChangeSet}. In both cases the content of the affected files
+ * is read by a background thread outside of the event dispatch thread and the
+ * resulting activities are fired as one batch.
  */
 public class FileSystemChangeListener extends AbstractStoppableListener
     implements VirtualFileListener {
 
     private static final Logger LOG = Logger
         .getLogger(FileSystemChangeListener.class);
+
+    /**
+     * Time in milliseconds to wait for further changes before a batch of
+     * changes is converted to activities.
+     */
+    private static final long BATCH_DELAY = 200;
+
+    /**
+     * Maximum number of changes that are converted to activities and fired at
+     * once, limits the amount of file content held in memory.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
     private final SharedResourcesManager resourceManager;
 
     //HACK: This list is used to filter events for files that were created from
     //remote, because we can not disable the listener for them
     private final List<File> incomingFilesToFilterFor = new ArrayList<File>();
 
-    private final Set<VirtualFile> newFiles = new HashSet<VirtualFile>();
+    /**
+     * Files that were send without content, their initial content (e.g. from
+     * templates) is send as soon as it is written.
+     */
+    private final Set<SPath> newFiles = Collections
+        .newSetFromMap(new ConcurrentHashMap<SPath, Boolean>());
+
+    /**
+     * Files that were send with the content read at flush time, their initial
+     * content must not be send again when it is written.
+     */
+    private final Set<SPath> filesCreatedWithContent = Collections
+        .newSetFromMap(new ConcurrentHashMap<SPath, Boolean>());
+
+    private final Object batchLock = new Object();
+
+    /**
+     * guarded by batchLock
+     */
+    private FileSystemChangeSet pendingChanges = new FileSystemChangeSet();
+
+    /**
+     * guarded by batchLock
+     */
+    private boolean isFlushScheduled;
+
+    /**
+     * guarded by batchLock
+     */
+    private boolean isFlushInProgress;
+
+    /**
+     * guarded by batchLock
+     */
+    private long lastChangeTime;
+
+    private ScheduledThreadPoolExecutor batchExecutor;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (batchLock) {
+                isFlushScheduled = false;
+            }
+
+            flushPendingChanges();
+        }
+    };
 
     public FileSystemChangeListener(SharedResourcesManager resourceManager,
         EditorManager editorManager) {
@@ -61,13 +136,202 @@ public class FileSystemChangeListener extends AbstractStoppableListener
         this.resourceManager = resourceManager;
     }
 
+    /**
+     * Starts the background thread that converts batched changes to
+     * activities.
+     */
+    void start() {
+        synchronized (batchLock) {
+            batchExecutor = new ScheduledThreadPoolExecutor(1,
+                new NamedThreadFactory("FileSystemChangeBatcher", false));
+            batchExecutor
+                .setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        }
+    }
+
+    /**
+     * Stops the background thread. Changes that were not converted to
+     * activities yet are discarded.
+     */
+    void stop() {
+        synchronized (batchLock) {
+            if (!pendingChanges.isEmpty()) {
+                LOG.warn("discarding " + pendingChanges.size()
+                    + " pending file system changes");
+            }
+
+            pendingChanges = new FileSystemChangeSet();
+            isFlushScheduled = false;
+
+            if (batchExecutor != null) {
+                batchExecutor.shutdownNow();
+                batchExecutor = null;
+            }
+        }
+
+        newFiles.clear();
+        filesCreatedWithContent.clear();
+    }
+
+    /**
+     * Records the given change. The change is converted to an activity by the
+     * background thread without delay if it follows a quiet period, otherwise
+     * it is added to the pending batch.
+     */
+    private void addChange(FileSystemChange change) {
+        // HACK for now
+        if (resourceManager.isReplacementInProgress())
+            return;
+
+        synchronized (batchLock) {
+            final long now = System.currentTimeMillis();
+
+            final boolean isBurst = batchExecutor != null && (
+                !pendingChanges.isEmpty() || isFlushInProgress
+                    || now - lastChangeTime < BATCH_DELAY);
+
+            lastChangeTime = now;
+            pendingChanges.add(change);
+
+            scheduleFlush(isBurst ? BATCH_DELAY : 0);
+        }
+    }
+
+    /**
+     * guarded by batchLock
+     */
+    private void scheduleFlush(long delay) {
+        if (isFlushScheduled || batchExecutor == null)
+            return;
+
+        batchExecutor.schedule(ThreadUtils.wrapSafe(LOG, flushTask), delay,
+            TimeUnit.MILLISECONDS);
+
+        isFlushScheduled = true;
+    }
+
+    private boolean isCreationPending(SPath path) {
+        synchronized (batchLock) {
+            return pendingChanges.isCreationPending(path);
+        }
+    }
+
+    /**
+     * Converts all pending changes to activities and fires them in batches.
+     */
+    private void flushPendingChanges() {
+        final List<FileSystemChange> changes;
+
+        synchronized (batchLock) {
+            if (pendingChanges.isEmpty())
+                return;
+
+            changes = pendingChanges.getChanges();
+            pendingChanges = new FileSystemChangeSet();
+            isFlushInProgress = true;
+        }
+
+        if (LOG.isTraceEnabled())
+            LOG.trace("flushing " + changes.size() + " file system changes");
+
+        try {
+            final User user = resourceManager.getSession().getLocalUser();
+
+            for (int i = 0; i < changes.size(); i += MAX_BATCH_SIZE) {
+                final List<FileSystemChange> batch = changes.subList(i,
+                    Math.min(changes.size(), i + MAX_BATCH_SIZE));
+
+                final List<IActivity> activities = new ArrayList<IActivity>(
+                    batch.size());
+
+                for (FileSystemChange change : batch) {
+                    final IActivity activity = createActivity(user, change);
+
+                    if (activity != null)
+                        activities.add(activity);
+                }
+
+                resourceManager.internalFireActivities(activities);
+            }
+        } finally {
+            synchronized (batchLock) {
+                isFlushInProgress = false;
+            }
+        }
+    }
+
+    private IActivity createActivity(User user, FileSystemChange change) {
+        final SPath path = change.getPath();
+
+        switch (change.getKind()) {
+        case FOLDER_CREATED:
+            return new FolderCreatedActivity(user, path);
+        case FOLDER_REMOVED:
+            return new FolderDeletedActivity(user, path);
+        case FILE_REMOVED:
+            newFiles.remove(path);
+            filesCreatedWithContent.remove(path);
+            return FileActivity
+                .removed(user, path, FileActivity.Purpose.ACTIVITY);
+        default:
+            break;
+        }
+
+        final byte[] content = readContent(change.getFile());
+
+        if (content == null) {
+            LOG.warn("skipping " + change + ", could not read content of file "
+                + change.getFile());
+            return null;
+        }
+
+        if (change.getKind() == FileSystemChange.Kind.FILE_MOVED) {
+            newFiles.remove(change.getOldPath());
+            filesCreatedWithContent.remove(change.getOldPath());
+            return new FileActivity(user, FileActivity.Type.MOVED, path,
+                change.getOldPath(), content, change.getCharset(),
+                FileActivity.Purpose.ACTIVITY);
+        }
+
+        //If the file was created with a template, it is filled only later
+        //so we check for newly created files' content in {@link #contentsChanged},
+        if (content.length == 0) {
+            newFiles.add(path);
+            filesCreatedWithContent.remove(path);
+        } else {
+            newFiles.remove(path);
+            filesCreatedWithContent.add(path);
+        }
+
+        return FileActivity.created(user, path, content, change.getCharset(),
+            FileActivity.Purpose.ACTIVITY);
+    }
+
+    /**
+     * Reads the content of the given file directly from disk, so this can be
+     * done outside of the event dispatch thread.
+     *
+     * @return the content or <code>null</code> if the file could not be read
+     */
+    private static byte[] readContent(File file) {
+        InputStream in = null;
+
+        try {
+            in = new FileInputStream(file);
+            return IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            LOG.warn("could not read content of file " + file, e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
     private void generateFolderMove(SPath oldSPath, SPath newSPath,
         boolean before) {
-        User user = resourceManager.getSession().getLocalUser();
         IntelliJProjectImpl project = (IntelliJProjectImpl) oldSPath
             .getProject();
-        IActivity createActivity = new FolderCreatedActivity(user, newSPath);
-        resourceManager.internalFireActivity(createActivity);
+        addChange(FileSystemChange.folderCreated(newSPath));
 
         IFolder folder = before ? oldSPath.getFolder() : newSPath.getFolder();
 
@@ -93,8 +357,7 @@ public class FileSystemChangeListener extends AbstractStoppableListener
             }
         }
 
-        IActivity removeActivity = new FolderDeletedActivity(user, oldSPath);
-        resourceManager.internalFireActivity(removeActivity);
+        addChange(FileSystemChange.folderRemoved(oldSPath));
 
         project.addFile(newSPath.getFile().getLocation().toFile());
         project.removeResource(oldSPath.getProjectRelativePath());
@@ -102,7 +365,6 @@ public class FileSystemChangeListener extends AbstractStoppableListener
 
     private void generateFileMove(SPath oldSPath, SPath newSPath,
         boolean before) {
-        User user = resourceManager.getSession().getLocalUser();
         IntelliJProjectImpl project = (IntelliJProjectImpl) newSPath
             .getProject();
         IntelliJProjectImpl oldProject = (IntelliJProjectImpl) oldSPath
@@ -127,12 +389,8 @@ public class FileSystemChangeListener extends AbstractStoppableListener
 
         oldProject.removeResource(oldSPath.getProjectRelativePath());
 
-        byte[] bytes = FileUtils.getLocalFileContent(file);
-        String charset = getEncoding(file);
-        IActivity activity = new FileActivity(user, FileActivity.Type.MOVED,
-            newSPath, oldSPath, bytes, charset, FileActivity.Purpose.ACTIVITY);
-
-        resourceManager.internalFireActivity(activity);
+        addChange(FileSystemChange.fileMoved(newSPath, oldSPath,
+            file.getLocation().toFile(), getEncoding(file)));
     }
 
     /**
@@ -160,12 +418,23 @@ public class FileSystemChangeListener extends AbstractStoppableListener
         IFile file = new IntelliJFileImpl(project,
             new File(virtualFile.getPath()));
 
+        SPath spath = new SPath(project, file.getProjectRelativePath());
+
         if (!resourceManager.getSession().isShared(file) && !newFiles
-            .remove(virtualFile)) {
+            .remove(spath)) {
             return;
         }
 
-        SPath spath = new SPath(project, file.getProjectRelativePath());
+        //The creation was not send yet, so the content is read when the
+        //pending changes are converted to activities
+        if (isCreationPending(spath)) {
+            return;
+        }
+
+        //The creation was send with the content that was already written
+        if (filesCreatedWithContent.remove(spath)) {
+            return;
+        }
 
         //FIXME does not work as it takes the file content, which has the wrong line separators
         //Files created from templates have initial content and are opened in
@@ -229,26 +498,18 @@ public class FileSystemChangeListener extends AbstractStoppableListener
         path = makeAbsolutePathProjectRelative(path, project);
 
         SPath spath = new SPath(project, path);
-        User user = resourceManager.getSession().getLocalUser();
-        IActivity activity;
+        FileSystemChange change;
 
         if (file.isFile()) {
-            byte[] bytes = new byte[0];
-            String charset;
-            charset = virtualFileEvent.getFile().getCharset().name();
-            activity = FileActivity.created(user, spath, bytes, charset,
-                FileActivity.Purpose.ACTIVITY);
-
-            //If the file was created with a template, it is filled only later
-            //so we check for newly created files' content in {@link #contentsChanged},
-            newFiles.add(virtualFileEvent.getFile());
+            String charset = virtualFileEvent.getFile().getCharset().name();
+            change = FileSystemChange.fileCreated(spath, file, charset);
         } else {
-            activity = new FolderCreatedActivity(user, spath);
+            change = FileSystemChange.folderCreated(spath);
         }
 
         project.addFile(file);
 
-        resourceManager.internalFireActivity(activity);
+        addChange(change);
     }
 
     @Override
@@ -275,20 +536,18 @@ public class FileSystemChangeListener extends AbstractStoppableListener
         path = makeAbsolutePathProjectRelative(path, project);
 
         SPath spath = new SPath(project, path);
-        User user = resourceManager.getSession().getLocalUser();
 
-        IActivity activity;
+        FileSystemChange change;
         if (virtualFileEvent.getFile().isDirectory()) {
-            activity = new FolderDeletedActivity(user, spath);
+            change = FileSystemChange.folderRemoved(spath);
         } else {
-            activity = FileActivity
-                .removed(user, spath, FileActivity.Purpose.ACTIVITY);
+            change = FileSystemChange.fileRemoved(spath);
         }
 
         project.removeResource(path);
         editorManager.removeAllEditorsForPath(spath);
 
-        resourceManager.internalFireActivity(activity);
+        addChange(change);
     }
 
     @Override
@@ -406,26 +665,10 @@ public class FileSystemChangeListener extends AbstractStoppableListener
 
         SPath spath = new SPath(project, path);
 
-        User user = resourceManager.getSession().getLocalUser();
-        IActivity activity;
-
-        byte[] bytes = new byte[0];
-        try {
-            bytes = virtualFileCopyEvent.getOriginalFile()
-                .contentsToByteArray();
-        } catch (IOException e) {
-            LOG.error("could not read content of original file "
-                + virtualFileCopyEvent.getOriginalFile(), e);
-            return;
-        }
-
-        activity = FileActivity
-            .created(user, spath, bytes, virtualFile.getCharset().name(),
-                FileActivity.Purpose.ACTIVITY);
-
         project.addFile(newFile);
 
-        resourceManager.internalFireActivity(activity);
+        addChange(FileSystemChange
+            .fileCreated(spath, newFile, virtualFile.getCharset().name()));
     }
 
     @Override
@@ -0,0 +1,123 @@
+package de.fu_berlin.inf.dpp.intellij.project;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.intellij.project.FileSystemChange.Kind;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collapses a sequence of file system changes into a minimal ordered set of
+ * changes. Consecutive changes of the same file are merged into one change that
+ * is placed at the position of the latest change, e.g a file that is created
+ * and filled with generated content results in one change and a file that is
+ * created and deleted again results in no change at all.
+ * <p/>
+ * Folder changes and file moves are never merged and act as a barrier for the
+ * involved paths, i.e changes before and after them are not merged.
+ * <p/>
+ * This class is <b>not</b> thread safe.
+ */
+final class FileSystemChangeSet {
+
+    /**
+     * the changes in order, merged changes are set to <code>null</code>
+     */
+    private final List<FileSystemChange> changes = new ArrayList<FileSystemChange>();
+
+    /**
+     * index of the latest mergeable change for every file
+     */
+    private final Map<SPath, Integer> fileChangeIndices = new HashMap<SPath, Integer>();
+
+    /**
+     * files that did not exist before the first change of this set
+     */
+    private final Set<SPath> newFiles = new HashSet<SPath>();
+
+    private int size;
+
+    /**
+     * Adds the given change and merges it with a previous change of the same
+     * file if possible.
+     */
+    void add(FileSystemChange change) {
+
+        if (!change.isFileChange()) {
+            append(change);
+            return;
+        }
+
+        final SPath path = change.getPath();
+
+        if (change.getKind() == Kind.FILE_MOVED) {
+            fileChangeIndices.remove(change.getOldPath());
+            fileChangeIndices.remove(path);
+            newFiles.remove(change.getOldPath());
+            newFiles.remove(path);
+            append(change);
+            return;
+        }
+
+        final Integer index = fileChangeIndices.remove(path);
+
+        if (index == null) {
+            if (change.getKind() == Kind.FILE_CREATED)
+                newFiles.add(path);
+
+            fileChangeIndices.put(path, append(change));
+            return;
+        }
+
+        changes.set(index, null);
+        size--;
+
+        if (change.getKind() == Kind.FILE_REMOVED && newFiles.remove(path))
+            return;
+
+        fileChangeIndices.put(path, append(change));
+    }
+
+    /**
+     * Returns <code>true</code> if this set contains a pending creation of the
+     * given file.
+     */
+    boolean isCreationPending(SPath path) {
+        final Integer index = fileChangeIndices.get(path);
+
+        return index != null
+            && changes.get(index).getKind() == Kind.FILE_CREATED;
+    }
+
+    /**
+     * Returns the collapsed changes in order.
+     */
+    List<FileSystemChange> getChanges() {
+        final List<FileSystemChange> result = new ArrayList<FileSystemChange>(
+            size);
+
+        for (FileSystemChange change : changes)
+            if (change != null)
+                result.add(change);
+
+        return result;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int append(FileSystemChange change) {
+        changes.add(change);
+        size++;
+        return changes.size() - 1;
+    }
+}
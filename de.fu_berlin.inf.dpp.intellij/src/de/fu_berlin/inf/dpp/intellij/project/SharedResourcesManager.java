@@ -31,6 +31,7 @@ import org.picocontainer.Startable;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * The SharedResourcesManager creates and handles file and folder activities.
@@ -59,6 +60,8 @@ public class SharedResourcesManager extends AbstractActivityProducer
 
     @Override
     public void start() {
+        fileSystemListener.start();
+
         ApplicationManager.getApplication().invokeAndWait(new Runnable() {
 
             @Override
@@ -84,6 +87,8 @@ public class SharedResourcesManager extends AbstractActivityProducer
                 sarosSession.removeActivityConsumer(consumer);
             }
         }, ModalityState.any());
+
+        fileSystemListener.stop();
     }
 
     public SharedResourcesManager(ISarosSession sarosSession,
@@ -320,12 +325,19 @@ public class SharedResourcesManager extends AbstractActivityProducer
         }
     }
 
-    void internalFireActivity(IActivity activity) {
-        // HACK for now
-        if (fileReplacementInProgressObservable.isReplacementInProgress())
+    /**
+     * Returns <code>true</code> while remote file system changes are applied
+     * locally. Changes made in the meantime must not be send back.
+     */
+    boolean isReplacementInProgress() {
+        return fileReplacementInProgressObservable.isReplacementInProgress();
+    }
+
+    void internalFireActivities(List<IActivity> activities) {
+        if (activities.isEmpty())
             return;
 
-        fireActivity(activity);
+        fireActivities(activities);
     }
 
     public ISarosSession getSession() {
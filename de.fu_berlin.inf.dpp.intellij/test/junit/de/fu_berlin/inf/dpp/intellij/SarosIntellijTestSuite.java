@@ -10,6 +10,8 @@ import org.junit.runners.Suite;
 
     de.fu_berlin.inf.dpp.intellij.editor.TestSuite.class,
 
+    de.fu_berlin.inf.dpp.intellij.project.TestSuite.class,
+
     de.fu_berlin.inf.dpp.intellij.project.filesystem.TestSuite.class,
 
     de.fu_berlin.inf.dpp.intellij.ui.swt_browser.TestSuite.class, })
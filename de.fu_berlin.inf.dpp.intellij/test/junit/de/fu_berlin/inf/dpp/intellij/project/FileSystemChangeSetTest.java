@@ -0,0 +1,137 @@
+package de.fu_berlin.inf.dpp.intellij.project;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.filesystem.IPath;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.intellij.project.FileSystemChange.Kind;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FileSystemChangeSetTest {
+
+    private static final String CHARSET = "UTF-8";
+
+    private IProject project;
+
+    private File file;
+
+    private SPath pathA;
+    private SPath pathB;
+    private SPath folder;
+
+    @Before
+    public void setUp() {
+        project = createMock(IProject.class);
+        replay(project);
+
+        file = new File("dummy");
+
+        pathA = createPath();
+        pathB = createPath();
+        folder = createPath();
+    }
+
+    private SPath createPath() {
+        IPath path = createNiceMock(IPath.class);
+        replay(path);
+        return new SPath(project, path);
+    }
+
+    @Test
+    public void testCreatedAndChangedFileIsMerged() {
+        FileSystemChangeSet set = new FileSystemChangeSet();
+
+        set.add(FileSystemChange.fileCreated(pathA, file, CHARSET));
+        set.add(FileSystemChange.fileCreated(pathB, file, CHARSET));
+        set.add(FileSystemChange.fileCreated(pathA, file, CHARSET));
+
+        List<FileSystemChange> changes = set.getChanges();
+
+        assertEquals(2, changes.size());
+        assertEquals(pathB, changes.get(0).getPath());
+        assertEquals(pathA, changes.get(1).getPath());
+        assertEquals(Kind.FILE_CREATED, changes.get(1).getKind());
+    }
+
+    @Test
+    public void testCreatedAndRemovedFileCancelsOut() {
+        FileSystemChangeSet set = new FileSystemChangeSet();
+
+        set.add(FileSystemChange.fileCreated(pathA, file, CHARSET));
+        assertTrue(set.isCreationPending(pathA));
+
+        set.add(FileSystemChange.fileCreated(pathA, file, CHARSET));
+        set.add(FileSystemChange.fileRemoved(pathA));
+
+        assertTrue(set.isEmpty());
+        assertFalse(set.isCreationPending(pathA));
+        assertEquals(0, set.getChanges().size());
+    }
+
+    @Test
+    public void testRemovedAndRecreatedFileIsKept() {
+        FileSystemChangeSet set = new FileSystemChangeSet();
+
+        set.add(FileSystemChange.fileRemoved(pathA));
+        set.add(FileSystemChange.fileCreated(pathA, file, CHARSET));
+
+        List<FileSystemChange> changes = set.getChanges();
+
+        assertEquals(1, changes.size());
+        assertEquals(Kind.FILE_CREATED, changes.get(0).getKind());
+
+        // the file existed before, so the removal must be send
+        set.add(FileSystemChange.fileRemoved(pathA));
+
+        changes = set.getChanges();
+
+        assertEquals(1, changes.size());
+        assertEquals(Kind.FILE_REMOVED, changes.get(0).getKind());
+    }
+
+    @Test
+    public void testMoveIsABarrier() {
+        FileSystemChangeSet set = new FileSystemChangeSet();
+
+        set.add(FileSystemChange.fileCreated(pathA, file, CHARSET));
+        set.add(FileSystemChange.fileMoved(pathB, pathA, file, CHARSET));
+        set.add(FileSystemChange.fileCreated(pathA, file, CHARSET));
+        set.add(FileSystemChange.fileRemoved(pathB));
+
+        List<FileSystemChange> changes = set.getChanges();
+
+        assertEquals(4, changes.size());
+        assertEquals(Kind.FILE_CREATED, changes.get(0).getKind());
+        assertEquals(Kind.FILE_MOVED, changes.get(1).getKind());
+        assertEquals(Kind.FILE_CREATED, changes.get(2).getKind());
+        assertEquals(Kind.FILE_REMOVED, changes.get(3).getKind());
+    }
+
+    @Test
+    public void testFolderChangesKeepTheirOrder() {
+        FileSystemChangeSet set = new FileSystemChangeSet();
+
+        set.add(FileSystemChange.folderCreated(folder));
+        set.add(FileSystemChange.fileCreated(pathA, file, CHARSET));
+        set.add(FileSystemChange.folderRemoved(folder));
+        set.add(FileSystemChange.folderCreated(folder));
+
+        List<FileSystemChange> changes = set.getChanges();
+
+        assertEquals(4, changes.size());
+        assertEquals(Kind.FOLDER_CREATED, changes.get(0).getKind());
+        assertEquals(Kind.FILE_CREATED, changes.get(1).getKind());
+        assertEquals(Kind.FOLDER_REMOVED, changes.get(2).getKind());
+        assertEquals(Kind.FOLDER_CREATED, changes.get(3).getKind());
+    }
+}
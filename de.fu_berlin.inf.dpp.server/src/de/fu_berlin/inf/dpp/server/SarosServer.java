@@ -34,7 +34,7 @@ public class SarosServer {
      * The Saros server's version.
      */
     // FIXME move to META-INF or config file
-    public static final String SAROS_VERSION = "14.11.28.DEVEL";
+    public static final String SAROS_VERSION = "14.12.19.DEVEL";
 
     /**
      * Initializes and starts a Saros server.
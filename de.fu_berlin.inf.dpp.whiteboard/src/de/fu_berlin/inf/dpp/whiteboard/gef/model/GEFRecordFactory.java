@@ -29,7 +29,8 @@ public class GEFRecordFactory extends SXEDefaultRecordFactory {
     @Override
     public ElementRecord createElementRecord(DocumentRecord documentRecord,
         String ns, String tag) {
-        if (documentRecord != null) {
+        // computing the whole state is expensive, only do it for debugging
+        if (documentRecord != null && log.isDebugEnabled()) {
             List<IRecord> state = documentRecord.getState();
             List<RecordDataObject> list = SXEUtils.toDataObjects(state);
             log.debug("new Documentstate: " + list);
@@ -11,6 +11,7 @@ import org.eclipse.draw2d.geometry.PointList;
 import org.eclipse.draw2d.geometry.Rectangle;
 
 import de.fu_berlin.inf.dpp.whiteboard.gef.util.ColorUtils;
+import de.fu_berlin.inf.dpp.whiteboard.gef.util.PointsEncoding;
 import de.fu_berlin.inf.dpp.whiteboard.sxe.records.DocumentRecord;
 import de.fu_berlin.inf.dpp.whiteboard.sxe.records.IRecord;
 
@@ -19,6 +20,10 @@ import de.fu_berlin.inf.dpp.whiteboard.sxe.records.IRecord;
  * on every access would be pretty expensive because this attribute quickly
  * grows to some thousand points.
  * 
+ * The points are stored delta encoded (see {@link PointsEncoding}). If the
+ * attribute only got further points appended, just these are decoded and
+ * added to the cache.
+ * 
  * 
  * @author jurke
  * 
@@ -47,7 +52,7 @@ public class SVGPolylineRecord extends LayoutElementRecord {
      */
     public List<IRecord> createPointsRecord(PointList points) {
         List<IRecord> l = new LinkedList<IRecord>();
-        String newPoints = generatePointsAttribute(points);
+        String newPoints = PointsEncoding.encode(points.toIntArray());
         l.add(createNewOrSetAttributeRecord(null,
             SVGConstants.SVG_POINTS_ATTRIBUTE, newPoints, false));
 
@@ -57,10 +62,6 @@ public class SVGPolylineRecord extends LayoutElementRecord {
         return l;
     }
 
-    protected static boolean isOdd(int x) {
-        return (x & 1) == 1;
-    }
-
     public PointList getPoints() {
         generatePointList();
         return points;
@@ -70,24 +71,33 @@ public class SVGPolylineRecord extends LayoutElementRecord {
      * initializes the local PointList cache
      */
     protected void generatePointList() {
-        if (points != null)
-            if (rawPoints == getAttributeValue(SVGConstants.SVG_POINTS_ATTRIBUTE))
+        String newRawPoints = getAttributeValue(
+            SVGConstants.SVG_POINTS_ATTRIBUTE);
+
+        if (points != null) {
+            if (rawPoints == newRawPoints)
                 return;
 
-        points = new PointList();
-        rawPoints = getAttributeValue(SVGConstants.SVG_POINTS_ATTRIBUTE);
-        if (rawPoints == null)
-            return;
-
-        String[] rawList = rawPoints.split(" ");
-        String[] tmpPoint = null;
-        for (String s : rawList) {
-            tmpPoint = s.split(",");
-            if (tmpPoint.length > 1)
-                points.addPoint(Integer.parseInt(tmpPoint[0]),
-                    Integer.parseInt(tmpPoint[1]));
+            if (points.size() > 0
+                && PointsEncoding.isAppendedTo(newRawPoints, rawPoints)) {
+                Point last = points.getLastPoint();
+
+                /*
+                 * copy because the previous list may still be in use by a
+                 * figure
+                 */
+                PointList appended = points.getCopy();
+                appended.addAll(new PointList(PointsEncoding.decode(
+                    newRawPoints, rawPoints.length(), last.x, last.y)));
+
+                points = appended;
+                rawPoints = newRawPoints;
+                return;
+            }
         }
 
+        rawPoints = newRawPoints;
+        points = new PointList(PointsEncoding.decode(rawPoints));
     }
 
     protected static int scaleMaintainPosition(int anchor, int x, double scale) {
@@ -114,24 +124,6 @@ public class SVGPolylineRecord extends LayoutElementRecord {
         return ps;
     }
 
-    /**
-     * 
-     * @param points
-     * @return the PointList as SVG point attribute String
-     */
-    protected static String generatePointsAttribute(PointList points) {
-        int[] rawInts = points.toIntArray();
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < rawInts.length; i++) {
-            sb.append(rawInts[i]);
-            if (isOdd(i))
-                sb.append(" ");
-            else
-                sb.append(",");
-        }
-        return sb.toString();
-    }
-
     /**
      * Returns the default points for empty PointList (when using drag and drop)
      * 
@@ -164,17 +156,27 @@ public class SVGPolylineRecord extends LayoutElementRecord {
         Dimension delta = bounds.getLocation()
             .getDifference(layout.getLocation()).negate();
 
-        // perform translate
-        points.translate(delta.width, delta.height);
-
         // calculate scale
         double sx = ((double) layout.width) / ((double) bounds.width);
         double sy = ((double) layout.height) / ((double) bounds.height);
 
-        // perform scale
-        points = performScale(points, sx, sy);
+        String newPoints;
+
+        if (sx == 1 && sy == 1 && this.points.size() > 0
+            && PointsEncoding.isEncoded(rawPoints)) {
+            // just moved, only the first point changes
+            newPoints = PointsEncoding.translate(rawPoints, delta.width,
+                delta.height);
+        } else {
+            // perform translate
+            points.translate(delta.width, delta.height);
+
+            // perform scale
+            points = performScale(points, sx, sy);
+
+            newPoints = PointsEncoding.encode(points.toIntArray());
+        }
 
-        String newPoints = generatePointsAttribute(points);
         List<IRecord> records = new ArrayList<IRecord>(1);
         records
             .add(createNewOrSetAttributeRecord(null,
@@ -0,0 +1,232 @@
+package de.fu_berlin.inf.dpp.whiteboard.gef.util;
+
+/**
+ * <p>
+ * Compact encoding of the points attribute of a polyline.
+ * </p>
+ *
+ * <p>
+ * Instead of the SVG notation "x1,y1 x2,y2 ..." every coordinate is stored as
+ * the difference to the respective coordinate of the previous point (the
+ * first point relative to 0,0). The differences are written as variable length
+ * quantities of five bits per character using the Base64 alphabet, so the
+ * small steps of a freehand stroke mostly take one character per coordinate
+ * and the result is still a valid chdata String.
+ * </p>
+ *
+ * <p>
+ * Because every point only depends on its predecessor, the encoding of a
+ * stroke that got further points starts with the previous encoding, so only
+ * the new points have to be decoded (see {@link #isAppendedTo}). Moving a
+ * stroke only changes the encoding of its first point, so it can be done
+ * without decoding and encoding the whole point list.
+ * </p>
+ *
+ * <p>
+ * Attributes in SVG notation are still understood by {@link #decode(String)}.
+ * </p>
+ */
+public class PointsEncoding {
+
+    /** first character of every encoded points attribute */
+    private static final char MARKER = '~';
+
+    private static final String DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ"
+        + "abcdefghijklmnopqrstuvwxyz0123456789+/";
+
+    private static final int CONTINUATION = 0x20;
+
+    private static final int DATA_MASK = 0x1f;
+
+    private static final int[] VALUES = new int[128];
+
+    static {
+        for (int i = 0; i < VALUES.length; i++)
+            VALUES[i] = -1;
+
+        for (int i = 0; i < DIGITS.length(); i++)
+            VALUES[DIGITS.charAt(i)] = i;
+    }
+
+    private PointsEncoding() {
+        // utility class
+    }
+
+    /**
+     * @return whether the attribute value is encoded by this class and not in
+     *         SVG notation
+     */
+    public static boolean isEncoded(String raw) {
+        return raw != null && raw.length() > 0 && raw.charAt(0) == MARKER;
+    }
+
+    /**
+     * @param points
+     *            the coordinates x1, y1, x2, y2, ...
+     * @return the encoded points attribute
+     */
+    public static String encode(int[] points) {
+        StringBuilder sb = new StringBuilder(points.length + 1);
+        sb.append(MARKER);
+        appendDeltas(sb, 0, 0, points);
+        return sb.toString();
+    }
+
+    /**
+     * Returns the given encoded attribute with all points moved by dx, dy.
+     * Only the first point has to be encoded again.
+     */
+    public static String translate(String encoded, int dx, int dy) {
+        checkEncoded(encoded);
+
+        if (encoded.length() == 1)
+            return encoded;
+
+        int end = skipValue(encoded, skipValue(encoded, 1));
+        int[] first = decode(encoded.substring(0, end));
+
+        StringBuilder sb = new StringBuilder(encoded.length() + 4);
+        sb.append(MARKER);
+        appendDeltas(sb, 0, 0, new int[] { first[0] + dx, first[1] + dy });
+        sb.append(encoded, end, encoded.length());
+        return sb.toString();
+    }
+
+    /**
+     * Returns whether the encoded attribute <code>raw</code> consists of
+     * <code>previous</code> with further points appended, i.e. whether
+     * {@link #decode(String, int, int, int)} can be used to decode the new
+     * points only.
+     */
+    public static boolean isAppendedTo(String raw, String previous) {
+        return isEncoded(previous) && raw != null
+            && raw.length() > previous.length() && raw.startsWith(previous);
+    }
+
+    /**
+     * @param raw
+     *            an encoded points attribute or one in SVG notation
+     * @return the coordinates x1, y1, x2, y2, ...
+     */
+    public static int[] decode(String raw) {
+        if (!isEncoded(raw))
+            return parseSVGPoints(raw);
+        return decode(raw, 1, 0, 0);
+    }
+
+    /**
+     * Decodes a part of an encoded points attribute.
+     *
+     * @param encoded
+     *            the encoded points attribute
+     * @param begin
+     *            the index of the first character to decode, has to be the
+     *            beginning of a point
+     * @param x
+     *            x of the point preceding begin
+     * @param y
+     *            y of the point preceding begin
+     * @return the coordinates of the points from begin on
+     */
+    public static int[] decode(String encoded, int begin, int x, int y) {
+        int count = 0;
+
+        for (int i = begin; i < encoded.length(); i++)
+            if ((valueOf(encoded.charAt(i)) & CONTINUATION) == 0)
+                count++;
+
+        if ((count & 1) == 1)
+            throw new IllegalArgumentException("incomplete point: " + encoded);
+
+        int[] points = new int[count];
+        int[] last = { x, y };
+        int index = begin;
+
+        for (int i = 0; i < count; i++) {
+            int value = 0;
+            int shift = 0;
+            int digit;
+
+            do {
+                digit = valueOf(encoded.charAt(index++));
+                value |= (digit & DATA_MASK) << shift;
+                shift += 5;
+            } while ((digit & CONTINUATION) != 0);
+
+            // undo zigzag encoding
+            last[i & 1] += (value >>> 1) ^ -(value & 1);
+            points[i] = last[i & 1];
+        }
+
+        return points;
+    }
+
+    private static void appendDeltas(StringBuilder sb, int x, int y,
+        int[] points) {
+        int[] last = { x, y };
+
+        for (int i = 0; i < points.length; i++) {
+            int delta = points[i] - last[i & 1];
+            last[i & 1] = points[i];
+
+            // zigzag encoding to keep small negative values short
+            int value = (delta << 1) ^ (delta >> 31);
+
+            do {
+                int digit = value & DATA_MASK;
+                value >>>= 5;
+
+                if (value != 0)
+                    digit |= CONTINUATION;
+
+                sb.append(DIGITS.charAt(digit));
+            } while (value != 0);
+        }
+    }
+
+    private static int skipValue(String encoded, int index) {
+        while ((valueOf(encoded.charAt(index++)) & CONTINUATION) != 0)
+            continue;
+        return index;
+    }
+
+    private static int valueOf(char c) {
+        int value = c < VALUES.length ? VALUES[c] : -1;
+
+        if (value == -1)
+            throw new IllegalArgumentException("illegal character '" + c
+                + "' in points attribute");
+
+        return value;
+    }
+
+    private static void checkEncoded(String encoded) {
+        if (!isEncoded(encoded))
+            throw new IllegalArgumentException(
+                "not an encoded points attribute: " + encoded);
+    }
+
+    private static int[] parseSVGPoints(String raw) {
+        if (raw == null)
+            return new int[0];
+
+        String[] rawList = raw.trim().split("\\s+");
+        int[] points = new int[rawList.length * 2];
+        int count = 0;
+
+        for (String s : rawList) {
+            String[] tmpPoint = s.split(",");
+            if (tmpPoint.length > 1) {
+                points[count++] = Integer.parseInt(tmpPoint[0]);
+                points[count++] = Integer.parseInt(tmpPoint[1]);
+            }
+        }
+
+        if (count == points.length)
+            return points;
+
+        int[] result = new int[count];
+        System.arraycopy(points, 0, result, 0, count);
+        return result;
+    }
+}
@@ -9,6 +9,9 @@ import de.fu_berlin.inf.dpp.whiteboard.sxe.net.SXEMessageWriter;
  * Very simple extension embedding an SXEMessage using the SXEMessageFactory to
  * convert it to a String.
  * 
+ * The String is created only once, so the same extension can be sent to
+ * several peers.
+ * 
  * @author jurke
  * 
  */
@@ -18,6 +21,8 @@ public class SXEExtension implements PacketExtension {
 
     protected SXEMessage message;
 
+    protected String xml;
+
     @Override
     public String getElementName() {
         return SXEMessage.SXE_TAG;
@@ -29,16 +34,19 @@ public class SXEExtension implements PacketExtension {
     }
 
     @Override
-    public String toXML() {
-        return msgFactory.getSXEMessageAsString(message);
+    public synchronized String toXML() {
+        if (xml == null)
+            xml = msgFactory.getSXEMessageAsString(message);
+        return xml;
     }
 
     public SXEMessage getMessage() {
         return message;
     }
 
-    public void setMessage(SXEMessage message) {
+    public synchronized void setMessage(SXEMessage message) {
         this.message = message;
+        this.xml = null;
     }
 
 }
@@ -1,10 +1,19 @@
 package de.fu_berlin.inf.dpp.whiteboard.net;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -36,7 +45,13 @@ import de.fu_berlin.inf.dpp.whiteboard.sxe.records.serializable.RecordDataObject
  * Uses Smack and Saros to establish the SXE communication.</br>
  * 
  * It maintains invitation and record listener as well as the extension
- * provider.
+ * provider.</br>
+ * 
+ * Records messages to all peers are collected for {@link #BATCH_INTERVAL}
+ * milliseconds and sent as one message. Every message is serialized only once
+ * and then passed to one sending queue per peer, so a slow peer does not
+ * delay the others. Messages that are sent synchronously, e.g during the
+ * invitation, go through the same queues and thus keep their order.
  * 
  * @author jurke
  * 
@@ -55,13 +70,30 @@ public class SarosSXETransmitter implements ISXETransmitter {
      */
     private static final long SXE_TIMEOUT_INTERVAL = 500L;
 
+    /**
+     * Time in milliseconds to collect records messages before sending them as
+     * one message
+     */
+    private static final long BATCH_INTERVAL = Integer.getInteger(
+        "de.fu_berlin.inf.dpp.whiteboard.SEND_BATCH_INTERVAL", 20);
+
     public static final Logger log = Logger
         .getLogger(SarosSXETransmitter.class);
 
     /* we don't want to block the GUI for sending */
-    protected ExecutorService sendingDispatch = Executors
-        .newSingleThreadExecutor(new NamedThreadFactory(
-            "Whiteboard-SXESending-Dispatch-"));
+    protected ScheduledExecutorService batchDispatch = Executors
+        .newSingleThreadScheduledExecutor(new NamedThreadFactory(
+            "Whiteboard-SXEBatch-Dispatch-"));
+
+    /* one queue per peer, accessed only while holding batchLock */
+    private final Map<JID, ExecutorService> sendingDispatch = new HashMap<JID, ExecutorService>();
+
+    private final Object batchLock = new Object();
+
+    /* the collected records messages to all peers */
+    private SXEMessage batch;
+
+    private boolean disposed;
 
     private final SXEExtensionProvider provider = SXEExtensionProvider
         .getInstance();
@@ -79,6 +111,13 @@ public class SarosSXETransmitter implements ISXETransmitter {
         this.sarosSession = sarosSession;
     }
 
+    SarosSXETransmitter(ISarosSession sarosSession, ITransmitter transmitter,
+        IReceiver receiver) {
+        this.sarosSession = sarosSession;
+        this.transmitter = transmitter;
+        this.receiver = receiver;
+    }
+
     private PacketListener invitationListener;
 
     private PacketListener recordListener;
@@ -114,28 +153,114 @@ public class SarosSXETransmitter implements ISXETransmitter {
 
     @Override
     public void sendAsync(final SXEMessage msg) {
-        sendingDispatch.submit(ThreadUtils.wrapSafe(log, new Runnable() {
+        synchronized (batchLock) {
+            if (disposed)
+                return;
+
+            if (msg.getTo() != null
+                || msg.getMessageType() != SXEMessageType.RECORDS) {
+                // keep the order of messages
+                flushBatch();
+                dispatch(msg);
+                return;
+            }
+
+            if (batch != null && !batch.getSession().equals(msg.getSession()))
+                flushBatch();
+
+            if (batch != null) {
+                batch.getRecords().addAll(msg.getRecords());
+                return;
+            }
+
+            batch = new SXEMessage(msg.getSession(), msg.getMessageId());
+            batch.setMessageType(SXEMessageType.RECORDS);
+            batch.setRecords(new ArrayList<RecordDataObject>(msg.getRecords()));
+
+            batchDispatch.schedule(ThreadUtils.wrapSafe(log, new Runnable() {
+
+                @Override
+                public void run() {
+                    synchronized (batchLock) {
+                        flushBatch();
+                    }
+                }
+            }), BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Dispatches the collected records, must be called while holding the
+     * batchLock
+     */
+    private void flushBatch() {
+        if (batch == null)
+            return;
+
+        SXEMessage msg = batch;
+        batch = null;
+        dispatch(msg);
+    }
+
+    /**
+     * Passes the message to the sending queues of its receivers, must be
+     * called while holding the batchLock
+     *
+     * @return the pending sends of the message
+     */
+    private List<Future<?>> dispatch(SXEMessage msg) {
+        final SXEExtension extension = new SXEExtension();
+        extension.setMessage(msg);
+
+        final List<Future<?>> pending = new ArrayList<Future<?>>();
+
+        if (msg.getTo() != null) {
+            pending.add(dispatch(new JID(msg.getTo()), extension));
+            return pending;
+        }
+
+        List<JID> peers = new ArrayList<JID>();
+
+        for (User u : sarosSession.getRemoteUsers()) {
+            peers.add(u.getJID());
+            pending.add(dispatch(u.getJID(), extension));
+        }
+
+        // drop the queues of peers that left the session
+        for (Iterator<Map.Entry<JID, ExecutorService>> it = sendingDispatch
+            .entrySet().iterator(); it.hasNext();) {
+            Map.Entry<JID, ExecutorService> entry = it.next();
+
+            if (!peers.contains(entry.getKey())) {
+                entry.getValue().shutdown();
+                it.remove();
+            }
+        }
+
+        return pending;
+    }
+
+    private Future<?> dispatch(final JID jid, final SXEExtension extension) {
+        ExecutorService queue = sendingDispatch.get(jid);
+
+        if (queue == null) {
+            queue = Executors.newSingleThreadExecutor(new NamedThreadFactory(
+                "Whiteboard-SXESending-Dispatch-" + jid.getBase() + "-"));
+            sendingDispatch.put(jid, queue);
+        }
+
+        return queue.submit(ThreadUtils.wrapSafe(log, new Runnable() {
 
             @Override
             public void run() {
-                sendWithoutDispatch(msg);
+                send(jid, extension);
             }
         }));
     }
 
-    protected void sendWithoutDispatch(SXEMessage msg) {
-        SXEExtension extension = new SXEExtension();
-        extension.setMessage(msg);
-
+    private void send(JID jid, SXEExtension extension) {
         try {
-            if (msg.getTo() == null) {
-                for (User u : sarosSession.getRemoteUsers()) {
-                    transmitter.send(u.getJID(), extension);
-                }
-            } else {
-                JID jid = new JID(msg.getTo());
-                transmitter.send(jid, extension);
-            }
+            transmitter.send(jid, extension);
         } catch (Exception e) {
             log.error(
                 prefix()
@@ -144,6 +269,51 @@ public class SarosSXETransmitter implements ISXETransmitter {
         }
     }
 
+    /**
+     * Sends the message and returns when it was sent. The pending records
+     * batch is flushed and the message is passed to the sending queues of its
+     * receivers, so it does not overtake any message that was sent before.
+     */
+    protected void sendSynchronously(SXEMessage msg) {
+        final List<Future<?>> pending;
+
+        synchronized (batchLock) {
+            if (disposed) {
+                pending = null;
+            } else {
+                flushBatch();
+                pending = dispatch(msg);
+            }
+        }
+
+        if (pending == null) {
+            // no queues anymore, there is nothing to overtake
+            SXEExtension extension = new SXEExtension();
+            extension.setMessage(msg);
+
+            if (msg.getTo() == null) {
+                for (User u : sarosSession.getRemoteUsers())
+                    send(u.getJID(), extension);
+            } else {
+                send(new JID(msg.getTo()), extension);
+            }
+
+            return;
+        }
+
+        try {
+            for (Future<?> future : pending)
+                future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error(prefix() + "sending whiteboard message failed",
+                e.getCause());
+        } catch (CancellationException e) {
+            // queue was shut down as the peer left the session
+        }
+    }
+
     @Override
     public synchronized SXEMessage sendAndAwait(IProgressMonitor monitor,
         SXEMessage msg, SXEMessageType... awaitFor) throws IOException {
@@ -159,7 +329,7 @@ public class SarosSXETransmitter implements ISXETransmitter {
         PacketCollector collector = receiver.createCollector(filter);
 
         try {
-            sendWithoutDispatch(msg);
+            sendSynchronously(msg);
             long startTime = System.currentTimeMillis();
 
             do {
@@ -248,7 +418,17 @@ public class SarosSXETransmitter implements ISXETransmitter {
     public void dispose() {
         disconnect();
         receiver.removePacketListener(invitationListener);
-        sendingDispatch.shutdown();
+        batchDispatch.shutdown();
+
+        synchronized (batchLock) {
+            disposed = true;
+            batch = null;
+
+            for (ExecutorService queue : sendingDispatch.values())
+                queue.shutdown();
+
+            sendingDispatch.clear();
+        }
     }
 
     protected String prefix() {
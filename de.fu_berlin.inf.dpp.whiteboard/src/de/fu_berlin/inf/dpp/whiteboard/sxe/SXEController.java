@@ -67,6 +67,9 @@ public class SXEController extends AbstractSXEMessageHandler {
 
     protected List<SXEMessage> queuedMessagesWhileSynchronizing = new LinkedList<SXEMessage>();
 
+    /** whether a part of a remote state was applied already */
+    private boolean receivingState = false;
+
     /*
      * TODO remove after time X and inform peers or request missing record from
      * peer
@@ -124,11 +127,32 @@ public class SXEController extends AbstractSXEMessageHandler {
         connectionState = State.CONNECTED;
     }
 
+    /**
+     * Applies a part of a remote state that was split into several state
+     * messages. The first part discards the previous content. Local listeners
+     * are not notified until the last part is applied by
+     * {@link #startSession(SXEMessage)}.
+     * 
+     * @param message
+     *            a state message that does not end the document
+     */
+    public void applyState(SXEMessage message) {
+        if (!(connectionState == State.CONNECTING)) {
+            log.error("Received state while not in connecting state");
+            return;
+        }
+
+        applyStateRecords(message);
+    }
+
     /**
      * Accepts a remote state and applies it to this controller, discarding the
-     * previous content. </br>
+     * previous content. If the state was split into several messages, this is
+     * the last one and the others were applied with
+     * {@link #applyState(SXEMessage)} before. </br>
      * 
      * Queues messages will be applied afterwards and the lists is cleared.
+     * Local listeners are notified once after all records are applied.
      * 
      * @param message
      *            the state message
@@ -141,17 +165,15 @@ public class SXEController extends AbstractSXEMessageHandler {
             return;
         }
 
-        document.clear();
+        applyStateRecords(message);
+
+        receivingState = false;
 
-        if (message.getRecords().isEmpty()) {
+        if (document.isEmpty()) {
             log.warn("Received empty list of state records. Unsupported. ");
             assert (false);
         }
 
-        for (RecordDataObject r : message.getRecords()) {
-            apply(r);
-        }
-
         connectionState = State.CONNECTED;
 
         if (unappliedBigVersionSetRecords.size() != 0)
@@ -175,6 +197,20 @@ public class SXEController extends AbstractSXEMessageHandler {
 
     }
 
+    private void applyStateRecords(SXEMessage message) {
+        if (!receivingState || message.isDocumentBegin()) {
+            document.clear();
+            receivingState = true;
+        }
+
+        if (message.getRecords() == null)
+            return;
+
+        for (RecordDataObject r : message.getRecords()) {
+            apply(r);
+        }
+    }
+
     /**
      * This method attempts to convert a RecordDataObject to the corresponding
      * record that will be applied then.</br>
@@ -538,6 +574,7 @@ public class SXEController extends AbstractSXEMessageHandler {
             + State.CONNECTING);
         connectionState = State.CONNECTING;
         this.session = session;
+        receivingState = false;
 
         transmitter.installRecordReceiver(this);
 
@@ -551,6 +588,7 @@ public class SXEController extends AbstractSXEMessageHandler {
     public void dispose() {
         document.clear();
         queuedMessagesWhileSynchronizing.clear();
+        receivingState = false;
     }
 
     /**
@@ -86,10 +86,36 @@ public class SXEIncomingSynchronizationProcess extends SXESynchronization {
 
                     log.debug(prefix() + "queue incoming records from now");
 
-                    final SXEMessage stateMessage = controller.getTransmitter()
+                    SXEMessage stateMessage = controller.getTransmitter()
                         .sendAndAwait(new NullProgressMonitor(), msg,
                             SXEMessageType.STATE);
 
+                    /*
+                     * a large state is split into several messages, apply each
+                     * one while the next one is transferred
+                     */
+                    while (stateMessage != null
+                        && !stateMessage.isDocumentEnd()) {
+
+                        final SXEMessage chunk = stateMessage;
+
+                        SWTUtils.runSafeSWTAsync(log, new Runnable() {
+
+                            @Override
+                            public void run() {
+                                controller.applyState(chunk);
+                            }
+
+                        });
+
+                        msg = session.getNextMessage(SXEMessageType.ACK_STATE,
+                            peer);
+
+                        stateMessage = controller.getTransmitter()
+                            .sendAndAwait(new NullProgressMonitor(), msg,
+                                SXEMessageType.STATE);
+                    }
+
                     if (stateMessage == null) {
                         log.debug(prefix()
                             + "Whitebaord synchronization canceled locally");
@@ -98,11 +124,13 @@ public class SXEIncomingSynchronizationProcess extends SXESynchronization {
 
                     log.debug(prefix() + "state received");
 
+                    final SXEMessage lastStateMessage = stateMessage;
+
                     SWTUtils.runSafeSWTSync(log, new Runnable() {
 
                         @Override
                         public void run() {
-                            controller.startSession(stateMessage);
+                            controller.startSession(lastStateMessage);
                         }
 
                     });
@@ -30,6 +30,13 @@ public class SXEMessage {
     private String from;
     private String to;
 
+    /*
+     * A state may be split into several state messages. Only the first one
+     * begins and only the last one ends the document.
+     */
+    private boolean documentBegin = true;
+    private boolean documentEnd = true;
+
     // private String sessionName;
 
     public SXEMessage(SXESession sessionId, String msgId) {
@@ -77,6 +84,30 @@ public class SXEMessage {
         this.records = records;
     }
 
+    /**
+     * @return whether this state message contains the beginning of the
+     *         document
+     */
+    public boolean isDocumentBegin() {
+        return documentBegin;
+    }
+
+    public void setDocumentBegin(boolean documentBegin) {
+        this.documentBegin = documentBegin;
+    }
+
+    /**
+     * @return whether this state message contains the end of the document,
+     *         i.e. it is the last state message of the synchronization
+     */
+    public boolean isDocumentEnd() {
+        return documentEnd;
+    }
+
+    public void setDocumentEnd(boolean documentEnd) {
+        this.documentEnd = documentEnd;
+    }
+
     @Override
     public String toString() {
         String out = "";
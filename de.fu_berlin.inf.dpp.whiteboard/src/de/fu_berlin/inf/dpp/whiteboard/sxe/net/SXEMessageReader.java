@@ -104,6 +104,8 @@ public class SXEMessageReader {
         IOException {
         XmlPullParser xpp = new MXParser();
         xpp.setInput(new ByteArrayInputStream(raw.getBytes("UTF-8")), "UTF-8");
+        // move to the sxe tag
+        xpp.next();
         return parseMessage(xpp);
     }
 
@@ -112,6 +114,8 @@ public class SXEMessageReader {
 
         SXEMessage message;
         SXEMessageType messageType = null;
+        boolean documentBegin = false;
+        boolean documentEnd = false;
         int eventType = xpp.getEventType();
 
         if (!xpp.getName().equals(SXEMessage.SXE_TAG)) {
@@ -141,6 +145,10 @@ public class SXEMessageReader {
                 if (isRecord(xpp.getName())) {
                     message.setRecords(getRecords(xpp));
                     eventType = xpp.getEventType();
+
+                    // the records may be followed by the document-end
+                    if (eventType == XmlPullParser.START_TAG)
+                        continue;
                 } else if (xpp.getName().equals("description")) {
                     // TODO read description
                     if (messageType != SXEMessageType.STATE_OFFER)
@@ -148,12 +156,14 @@ public class SXEMessageReader {
                             + ". Only allowed in " + SXEMessageType.STATE_OFFER
                             + " message.");
                 } else if (xpp.getName().equals("document-begin")) {
+                    documentBegin = true;
 
                     if (messageType != SXEMessageType.STATE)
                         log.warn("Wrong entry 'document-begin' in "
                             + messageType + ". Only allowed in "
                             + SXEMessageType.STATE + " message.");
                 } else if (xpp.getName().equals("document-end")) {
+                    documentEnd = true;
 
                     if (messageType != SXEMessageType.STATE)
                         log.warn("Wrong entry 'document-end' in " + messageType
@@ -176,6 +186,11 @@ public class SXEMessageReader {
 
         message.setMessageType(messageType);
 
+        if (messageType == SXEMessageType.STATE) {
+            message.setDocumentBegin(documentBegin);
+            message.setDocumentEnd(documentEnd);
+        }
+
         return message;
     }
 }
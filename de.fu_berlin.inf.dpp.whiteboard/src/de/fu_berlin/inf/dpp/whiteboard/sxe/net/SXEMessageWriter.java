@@ -64,11 +64,15 @@ public class SXEMessageWriter {
             case ACCEPT_STATE:
                 writer.writeAcceptState();
                 break;
+            case ACK_STATE:
+                writer.writeAckState();
+                break;
             case RECORDS:
                 writer.writeRecords(rdos);
                 break;
             case STATE:
-                writer.writeState(rdos);
+                writer.writeState(rdos, msg.isDocumentBegin(),
+                    msg.isDocumentEnd());
                 break;
             case STATE_OFFER:
                 writer.writeStateOffer();
@@ -160,6 +164,11 @@ public class SXEMessageWriter {
             handler.endElement("", "", "accept-state");
         }
 
+        public void writeAckState() throws SAXException {
+            handler.startElement("", "", "ack-state", null);
+            handler.endElement("", "", "ack-state");
+        }
+
         public void writeRecords(List<RecordDataObject> rdos)
             throws SAXException {
             for (RecordDataObject record : rdos) {
@@ -169,19 +178,33 @@ public class SXEMessageWriter {
 
         public void writeState(List<RecordDataObject> records)
             throws SAXException {
+            writeState(records, true, true);
+        }
+
+        /**
+         * Writes a state message. A state that is split into several messages
+         * only has a document-begin in the first and a document-end in the
+         * last message.
+         */
+        public void writeState(List<RecordDataObject> records,
+            boolean documentBegin, boolean documentEnd) throws SAXException {
             handler.startElement("", "", "state", null);
 
             // TODO prolog
-            handler.startElement("", "", "document-begin", null);
-            handler.endElement("", "", "document-begin");
+            if (documentBegin) {
+                handler.startElement("", "", "document-begin", null);
+                handler.endElement("", "", "document-begin");
+            }
 
             for (RecordDataObject record : records) {
                 writeRecord(record);
             }
 
             // TODO last-sender, last-id
-            handler.startElement("", "", "document-end", null);
-            handler.endElement("", "", "document-end");
+            if (documentEnd) {
+                handler.startElement("", "", "document-end", null);
+                handler.endElement("", "", "document-end");
+            }
 
             handler.endElement("", "", "state");
         }
@@ -10,8 +10,7 @@ import org.eclipse.core.runtime.IProgressMonitor;
 import de.fu_berlin.inf.dpp.ui.util.SWTUtils;
 import de.fu_berlin.inf.dpp.whiteboard.sxe.SXEController;
 import de.fu_berlin.inf.dpp.whiteboard.sxe.constants.SXEMessageType;
-import de.fu_berlin.inf.dpp.whiteboard.sxe.records.IRecord;
-import de.fu_berlin.inf.dpp.whiteboard.sxe.util.SXEUtils;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.records.serializable.RecordDataObject;
 
 /**
  * <p>
@@ -36,6 +35,12 @@ public class SXEOutgoingSynchronizationProcess extends SXESynchronization {
     public static final Logger log = Logger
         .getLogger(SXEOutgoingSynchronizationProcess.class);
 
+    /**
+     * Maximum number of records sent in one state message
+     */
+    private static final int STATE_CHUNK_SIZE = Math.max(1, Integer.getInteger(
+        "de.fu_berlin.inf.dpp.whiteboard.STATE_CHUNK_SIZE", 500));
+
     public SXEOutgoingSynchronizationProcess(SXEController controller,
         ISXETransmitter sxe, String to) {
         super(controller, controller.getSession(), to);
@@ -70,26 +75,24 @@ public class SXEOutgoingSynchronizationProcess extends SXESynchronization {
                 log.debug(prefix() + peer + " accepted state-offer");
 
                 try {
-                    List<IRecord> state = SWTUtils
-                        .runSWTSync(new Callable<List<IRecord>>() {
+                    List<RecordDataObject> state = SWTUtils
+                        .runSWTSync(new Callable<List<RecordDataObject>>() {
 
                             @Override
-                            public List<IRecord> call() throws Exception {
+                            public List<RecordDataObject> call()
+                                throws Exception {
                                 return controller.getDocumentRecord()
-                                    .getState();
+                                    .getCompactedState();
                             }
 
                         });
 
                     /* send state */
 
-                    msg = session.getNextMessage(SXEMessageType.STATE, peer);
-                    msg.setRecords(SXEUtils.toDataObjects(state));
-
-                    log.debug(prefix() + "Sending state to " + msg.getTo());
+                    log.debug(prefix() + "Sending state of " + state.size()
+                        + " records to " + peer);
 
-                    log.debug("Send message: " + msg);
-                    controller.getTransmitter().sendAsync(msg);
+                    sendState(monitor, state);
 
                     /*
                      * TODO we might want to send an ack here to confirm that
@@ -123,4 +126,40 @@ public class SXEOutgoingSynchronizationProcess extends SXESynchronization {
 
     }
 
+    /**
+     * Sends the state in chunks of {@link #STATE_CHUNK_SIZE} records. The
+     * invitee acknowledges every chunk but the last one with an ack-state
+     * message before the next one is sent, so it can apply the received
+     * records while the next chunk is transferred.
+     */
+    private void sendState(IProgressMonitor monitor,
+        List<RecordDataObject> state) throws IOException {
+
+        int offset = 0;
+
+        do {
+            int end = Math.min(state.size(), offset + STATE_CHUNK_SIZE);
+
+            SXEMessage msg = session.getNextMessage(SXEMessageType.STATE,
+                peer);
+            msg.setRecords(state.subList(offset, end));
+            msg.setDocumentBegin(offset == 0);
+            msg.setDocumentEnd(end == state.size());
+
+            if (msg.isDocumentEnd()) {
+                controller.getTransmitter().sendAsync(msg);
+                return;
+            }
+
+            if (controller.getTransmitter().sendAndAwait(monitor, msg,
+                SXEMessageType.ACK_STATE) == null) {
+                log.debug(prefix()
+                    + "Whitebaord synchronization canceled locally");
+                return;
+            }
+
+            offset = end;
+
+        } while (true);
+    }
 }
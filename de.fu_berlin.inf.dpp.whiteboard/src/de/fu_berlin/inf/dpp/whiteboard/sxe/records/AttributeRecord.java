@@ -1,7 +1,9 @@
 package de.fu_berlin.inf.dpp.whiteboard.sxe.records;
 
 import de.fu_berlin.inf.dpp.whiteboard.sxe.constants.NodeType;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.constants.RecordEntry;
 import de.fu_berlin.inf.dpp.whiteboard.sxe.exceptions.CommittedRecordException;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.records.serializable.RecordDataObject;
 
 /**
  * <p>
@@ -97,6 +99,13 @@ public class AttributeRecord extends NodeRecord {
         return newParent.getAttributes().nextPrimaryWeight();
     }
 
+    @Override
+    public RecordDataObject getStateDataObject() {
+        RecordDataObject rdo = super.getStateDataObject();
+        rdo.putValue(RecordEntry.CHDATA, getChdata());
+        return rdo;
+    }
+
     @Override
     protected SetRecord getCurrentMutableFields() {
         SetRecord currentState = super.getCurrentMutableFields();
@@ -1,5 +1,6 @@
 package de.fu_berlin.inf.dpp.whiteboard.sxe.records;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -8,6 +9,7 @@ import org.apache.log4j.Logger;
 
 import de.fu_berlin.inf.dpp.whiteboard.sxe.SXEController;
 import de.fu_berlin.inf.dpp.whiteboard.sxe.exceptions.MissingRecordException;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.records.serializable.RecordDataObject;
 
 /**
  * <p>
@@ -160,6 +162,47 @@ public class DocumentRecord {
         return records;
     }
 
+    /**
+     * <p>
+     * Provides the current state of this shared XML document as compacted list
+     * of new-records, one for each NodeRecord with its current values and
+     * version (see {@link NodeRecord#getStateDataObject()}). The SetRecords
+     * that lead to this state are left out, so the size of the state depends
+     * on the number of records instead of the length of the session.
+     * </p>
+     * 
+     * <p>
+     * The records are ordered by a depth-first traversal starting at the root,
+     * so every parent is contained before its children. Removed records are
+     * contained as well because they may be recreated later, e.g. on undo.
+     * </p>
+     * 
+     * @return the data objects defining the current state of the XML document
+     */
+    public List<RecordDataObject> getCompactedState() {
+        List<RecordDataObject> records = new ArrayList<RecordDataObject>(
+            newRecords.size());
+
+        ElementRecord root = getRoot();
+
+        if (root != null)
+            addStateDataObjects(root, records);
+
+        return records;
+    }
+
+    private void addStateDataObjects(ElementRecord element,
+        List<RecordDataObject> records) {
+
+        records.add(element.getStateDataObject());
+
+        for (AttributeRecord attribute : element.getAttributes())
+            records.add(attribute.getStateDataObject());
+
+        for (ElementRecord child : element.getChildElements())
+            addStateDataObjects(child, records);
+    }
+
     public boolean contains(NodeRecord r) {
         return newRecords.containsKey(r.getRid());
     }
@@ -248,6 +248,18 @@ public abstract class NodeRecord extends AbstractRecord implements
         if (isCommitted())
             throw new CommittedRecordException();
         this.version = version;
+        initialSet.setVersion(version);
+    }
+
+    /**
+     * Returns the version this record was created with. For records received
+     * as part of a compacted state it includes all SetRecords that were
+     * applied on the sender before.
+     * 
+     * @see #getStateDataObject()
+     */
+    public int getInitialVersion() {
+        return initialSet.getVersion();
     }
 
     public String getNs() {
@@ -272,6 +284,20 @@ public abstract class NodeRecord extends AbstractRecord implements
 
     /* mutable record attributes */
 
+    /**
+     * Method for remote records that were already removed when the sender
+     * created the state.
+     * 
+     * @param visible
+     *            the initial visibility
+     */
+    public void setVisible(boolean visible) {
+        if (isCommitted())
+            throw new CommittedRecordException();
+        this.visible = visible;
+        initialSet.setSetVisibilityTo(visible);
+    }
+
     public ElementRecord getParent() {
         return currentParent;
     }
@@ -533,6 +559,37 @@ public abstract class NodeRecord extends AbstractRecord implements
         return rdo;
     }
 
+    /**
+     * <p>
+     * Returns a new-record with the current values and version of this record.
+     * </p>
+     * 
+     * <p>
+     * Unlike {@link #getRecordDataObject()} it does not have to be followed by
+     * the SetRecords of this record, so it is used to transfer the document
+     * state without its history.
+     * </p>
+     * 
+     * @return the current state of this record as new-record
+     */
+    public RecordDataObject getStateDataObject() {
+        RecordDataObject rdo = new NewRecordDataObject();
+
+        rdo.putValue(RecordEntry.TYPE, getNodeType().toString());
+        rdo.putValue(RecordEntry.RID, getRid());
+        rdo.putValue(RecordEntry.VERSION, getVersion());
+        if (getParent() != null)
+            rdo.putValue(RecordEntry.PARENT, getParent().getRid());
+        rdo.putValue(RecordEntry.VISIBLE, isVisible());
+        rdo.putValue(RecordEntry.PRIMARY_WEIGHT, getPrimaryWeight());
+        rdo.putValue(RecordEntry.NAME, getName());
+        rdo.putValue(RecordEntry.NS, getNs());
+        rdo.putValue(RecordEntry.CREATOR, getCreator());
+        rdo.putValue(RecordEntry.LAST_MODIFIED_BY, getLastModifiedBy());
+
+        return rdo;
+    }
+
     /**
      * 
      * @return a new-record as copy of this one, without set-records and with a
@@ -76,6 +76,11 @@ public class NewRecordDataObject extends RecordDataObject {
             pw = 0f;
         record.setPrimaryWeight(pw);
 
+        // records of a compacted state may have been removed already
+        Boolean visible = getBoolean(RecordEntry.VISIBLE);
+        if (visible != null)
+            record.setVisible(visible);
+
         tmp = getString(RecordEntry.NAME);
         if (tmp != null)
             record.setName(tmp);
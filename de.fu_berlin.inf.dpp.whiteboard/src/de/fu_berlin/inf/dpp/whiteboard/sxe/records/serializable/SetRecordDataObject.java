@@ -73,6 +73,14 @@ public class SetRecordDataObject extends RecordDataObject {
     public boolean isAlreadyApplied(DocumentRecord document)
         throws MissingRecordException {
         NodeRecord record = document.getRecordById(getTargetRid());
+
+        /*
+         * the target was received as part of a compacted state that already
+         * contains this SetRecord
+         */
+        if (getInt(RecordEntry.VERSION) <= record.getInitialVersion())
+            return true;
+
         IRecord setRecord = getIRecord(document);
         return record.getSetRecords().contains(setRecord);
     }
@@ -0,0 +1,95 @@
+package de.fu_berlin.inf.dpp.whiteboard.gef.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PointsEncodingTest {
+
+    private static final int[] STROKE = { 100, 200, 101, 203, 99, 210, 99,
+        210, -5, 4000, Integer.MAX_VALUE, Integer.MIN_VALUE };
+
+    @Test
+    public void testEncodeDecode() {
+        String encoded = PointsEncoding.encode(STROKE);
+
+        assertTrue(PointsEncoding.isEncoded(encoded));
+        assertArrayEquals(STROKE, PointsEncoding.decode(encoded));
+        assertArrayEquals(new int[0],
+            PointsEncoding.decode(PointsEncoding.encode(new int[0])));
+    }
+
+    @Test
+    public void testFreehandStrokeIsSmallerThanSVGNotation() {
+        Random random = new Random(42);
+        int[] points = new int[2000];
+        StringBuilder svg = new StringBuilder();
+
+        int x = 500;
+        int y = 500;
+
+        for (int i = 0; i < points.length; i += 2) {
+            x += random.nextInt(7) - 3;
+            y += random.nextInt(7) - 3;
+            points[i] = x;
+            points[i + 1] = y;
+            svg.append(x).append(',').append(y).append(' ');
+        }
+
+        String encoded = PointsEncoding.encode(points);
+
+        assertArrayEquals(points, PointsEncoding.decode(encoded));
+        assertTrue(encoded.length() * 3 < svg.length());
+    }
+
+    @Test
+    public void testAppendOnlyDecodesNewPoints() {
+        int[] first = { 10, 10, 12, 15 };
+        int[] second = { 11, 20, 30, 2 };
+
+        String encoded = PointsEncoding.encode(first);
+        String appended = PointsEncoding.encode(new int[] { 10, 10, 12, 15,
+            11, 20, 30, 2 });
+
+        assertTrue(PointsEncoding.isAppendedTo(appended, encoded));
+        assertFalse(PointsEncoding.isAppendedTo(encoded, appended));
+        assertArrayEquals(second,
+            PointsEncoding.decode(appended, encoded.length(), 12, 15));
+        assertArrayEquals(new int[] { 10, 10, 12, 15, 11, 20, 30, 2 },
+            PointsEncoding.decode(appended));
+    }
+
+    @Test
+    public void testTranslateOnlyChangesFirstPoint() {
+        String encoded = PointsEncoding.encode(STROKE);
+        String moved = PointsEncoding.translate(encoded, -300, 7);
+
+        int[] expected = STROKE.clone();
+        for (int i = 0; i < expected.length; i += 2) {
+            expected[i] -= 300;
+            expected[i + 1] += 7;
+        }
+
+        assertArrayEquals(expected, PointsEncoding.decode(moved));
+        assertEquals(encoded.substring(encoded.length() - 10),
+            moved.substring(moved.length() - 10));
+    }
+
+    @Test
+    public void testDecodeSVGNotation() {
+        assertArrayEquals(new int[] { 0, 0, 100, -100 },
+            PointsEncoding.decode("0,0 100,-100 "));
+        assertFalse(PointsEncoding.isEncoded("0,0 100,100 "));
+        assertArrayEquals(new int[0], PointsEncoding.decode(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIllegalCharacter() {
+        PointsEncoding.decode("~AB,C");
+    }
+}
@@ -0,0 +1,178 @@
+package de.fu_berlin.inf.dpp.whiteboard.net;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.jivesoftware.smack.packet.PacketExtension;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.net.IReceiver;
+import de.fu_berlin.inf.dpp.net.ITransmitter;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.User;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.constants.SXEMessageType;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.net.SXEMessage;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.net.SXESession;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.records.serializable.RecordDataObject;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.records.serializable.SetRecordDataObject;
+
+public class SarosSXETransmitterTest {
+
+    private static final JID BOB = new JID("bob@test/Saros");
+
+    private final SXESession session = new SXESession("1");
+
+    /* the sent messages in order, as "<type>:<number of records>" */
+    private final List<String> sent = Collections
+        .synchronizedList(new ArrayList<String>());
+
+    private CountDownLatch sendAllowed;
+
+    private SarosSXETransmitter sxeTransmitter;
+
+    @Before
+    public void setUp() throws Exception {
+        sendAllowed = new CountDownLatch(0);
+
+        ITransmitter transmitter = EasyMock.createMock(ITransmitter.class);
+
+        transmitter.send(EasyMock.eq(BOB),
+            EasyMock.isA(PacketExtension.class));
+
+        EasyMock.expectLastCall().andStubAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                sendAllowed.await();
+
+                SXEMessage msg = ((SXEExtension) EasyMock
+                    .getCurrentArguments()[1]).getMessage();
+
+                sent.add(msg.getMessageType().name() + ":"
+                    + (msg.getRecords() == null ? 0 : msg.getRecords().size()));
+
+                return null;
+            }
+        });
+
+        ISarosSession sarosSession = EasyMock
+            .createMock(ISarosSession.class);
+
+        EasyMock.expect(sarosSession.getRemoteUsers()).andStubReturn(
+            Collections.singletonList(new User(BOB, false, false, 0, 0)));
+
+        EasyMock.replay(transmitter, sarosSession);
+
+        sxeTransmitter = new SarosSXETransmitter(sarosSession, transmitter,
+            EasyMock.createNiceMock(IReceiver.class));
+    }
+
+    @After
+    public void tearDown() {
+        sxeTransmitter.dispose();
+    }
+
+    @Test(timeout = 10000)
+    public void testRecordsAreBatched() throws Exception {
+        sxeTransmitter.sendAsync(createRecords(2));
+        sxeTransmitter.sendAsync(createRecords(3));
+
+        // does not leave the batch but is sent after it
+        sxeTransmitter.sendSynchronously(createMessage(SXEMessageType.STATE,
+            BOB));
+
+        assertEquals(Arrays.asList("RECORDS:5", "STATE:0"), sent);
+    }
+
+    @Test(timeout = 10000)
+    public void testRecordsOfAnotherSessionAreNotBatched() throws Exception {
+        sxeTransmitter.sendAsync(createRecords(2));
+
+        SXEMessage other = new SXEMessage(new SXESession("2"), "2");
+        other.setMessageType(SXEMessageType.RECORDS);
+        other.setRecords(createRecordList(3));
+
+        sxeTransmitter.sendAsync(other);
+
+        sxeTransmitter.sendSynchronously(createMessage(SXEMessageType.STATE,
+            BOB));
+
+        assertEquals(Arrays.asList("RECORDS:2", "RECORDS:3", "STATE:0"), sent);
+    }
+
+    @Test(timeout = 10000)
+    public void testSynchronousMessageDoesNotOvertakeQueuedRecords()
+        throws Exception {
+
+        // stall the sending queue of the peer
+        sendAllowed = new CountDownLatch(1);
+
+        sxeTransmitter.sendAsync(createRecords(1));
+        sxeTransmitter.sendAsync(createMessage(SXEMessageType.ACK_STATE, BOB));
+        sxeTransmitter.sendAsync(createRecords(2));
+
+        Thread sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sxeTransmitter.sendSynchronously(createMessage(
+                    SXEMessageType.STATE, BOB));
+            }
+        });
+
+        sender.start();
+
+        // give the synchronous message the chance to overtake
+        sender.join(200);
+        sendAllowed.countDown();
+        sender.join();
+
+        assertEquals(
+            Arrays.asList("RECORDS:1", "ACK_STATE:0", "RECORDS:2", "STATE:0"),
+            sent);
+    }
+
+    @Test(timeout = 10000)
+    public void testBatchIsFlushedAfterInterval() throws Exception {
+        sxeTransmitter.sendAsync(createRecords(4));
+
+        while (sent.isEmpty())
+            TimeUnit.MILLISECONDS.sleep(10);
+
+        assertEquals(Arrays.asList("RECORDS:4"), sent);
+    }
+
+    private SXEMessage createRecords(int count) {
+        SXEMessage msg = createMessage(SXEMessageType.RECORDS, null);
+        msg.setRecords(createRecordList(count));
+        return msg;
+    }
+
+    private SXEMessage createMessage(SXEMessageType type, JID to) {
+        SXEMessage msg = new SXEMessage(session, "1");
+        msg.setMessageType(type);
+
+        if (to != null)
+            msg.setTo(to.toString());
+
+        return msg;
+    }
+
+    private static List<RecordDataObject> createRecordList(int count) {
+        List<RecordDataObject> records = new ArrayList<RecordDataObject>();
+
+        for (int i = 0; i < count; i++)
+            records.add(new SetRecordDataObject());
+
+        return records;
+    }
+}
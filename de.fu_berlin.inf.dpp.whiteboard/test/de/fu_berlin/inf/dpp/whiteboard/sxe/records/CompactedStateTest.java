@@ -0,0 +1,165 @@
+package de.fu_berlin.inf.dpp.whiteboard.sxe.records;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.whiteboard.sxe.SXEController;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.constants.RecordType;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.constants.SXEMessageType;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.net.SXEMessage;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.net.SXEMessageReader;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.net.SXEMessageWriter;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.net.SXENetworkMock;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.net.SXESession;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.records.serializable.RecordDataObject;
+import de.fu_berlin.inf.dpp.whiteboard.sxe.util.SXEUtils;
+
+public class CompactedStateTest {
+
+    private final SXEDefaultRecordFactory recordFactory = new SXEDefaultRecordFactory();
+
+    private final SXESession session = new SXESession("1");
+
+    private SXEController host;
+
+    private ElementRecord rect;
+
+    private AttributeRecord width;
+
+    private ElementRecord removed;
+
+    @Before
+    public void setUp() {
+        host = new SXEController(recordFactory);
+        DocumentRecord document = host.getDocumentRecord();
+        ElementRecord root = document.getRoot();
+
+        rect = root.createNewElementRecord(null, "rect");
+        rect.apply(document);
+
+        width = rect.createNewAttributeRecord(null, "width", "0");
+        width.apply(document);
+
+        for (int i = 1; i <= 50; i++)
+            width.createSetRecord(String.valueOf(i)).apply(document);
+
+        removed = root.createNewElementRecord(null, "ellipse");
+        removed.apply(document);
+        removed.createNewAttributeRecord(null, "rx", "5").apply(document);
+        removed.getRemoveRecord().apply(document);
+    }
+
+    @Test
+    public void testStateContainsOneRecordPerNode() {
+        List<RecordDataObject> state = host.getDocumentRecord()
+            .getCompactedState();
+
+        assertEquals(5, state.size());
+
+        for (RecordDataObject rdo : state)
+            assertEquals(RecordType.NEW, rdo.getRecordType());
+    }
+
+    @Test
+    public void testChunkedStateEqualsDocument() throws Exception {
+        SXEController invitee = synchronize(2);
+        DocumentRecord document = invitee.getDocumentRecord();
+
+        List<RecordDataObject> expected = host.getDocumentRecord()
+            .getCompactedState();
+        List<RecordDataObject> actual = document.getCompactedState();
+
+        assertEquals(expected.size(), actual.size());
+
+        // the received root gets a primary-weight, so skip it
+        for (int i = 1; i < expected.size(); i++)
+            assertEquals(expected.get(i).getValuePairs(), actual.get(i)
+                .getValuePairs());
+
+        AttributeRecord receivedWidth = (AttributeRecord) document
+            .getRecordById(width.getRid());
+
+        assertEquals("50", receivedWidth.getChdata());
+        assertEquals(width.getVersion(), receivedWidth.getVersion());
+        assertTrue(receivedWidth.getSetRecords().isEmpty());
+
+        assertFalse(document.getRecordById(removed.getRid()).isVisible());
+        assertTrue(document.getRecordById(removed.getRid()).getRecreateRecord()
+            .apply(document));
+    }
+
+    @Test
+    public void testLaterSetRecordsApply() throws Exception {
+        SXEController invitee = synchronize(500);
+
+        SetRecord old = (SetRecord) width.getSetRecords().getLast();
+
+        SetRecord next = width.createSetRecord("51");
+        next.apply(host.getDocumentRecord());
+
+        SXEMessage message = session.getNextMessage(SXEMessageType.RECORDS);
+        message.setRecords(SXEUtils.toDataObjects(Collections
+            .<IRecord> singletonList(old)));
+        invitee.executeRemoteRecords(message);
+
+        message = session.getNextMessage(SXEMessageType.RECORDS);
+        message.setRecords(SXEUtils.toDataObjects(Collections
+            .<IRecord> singletonList(next)));
+        invitee.executeRemoteRecords(message);
+
+        AttributeRecord receivedWidth = (AttributeRecord) invitee
+            .getDocumentRecord().getRecordById(width.getRid());
+
+        assertEquals("51", receivedWidth.getChdata());
+        assertEquals(width.getVersion(), receivedWidth.getVersion());
+    }
+
+    /**
+     * Transfers the state of the host to a new controller in messages of the
+     * given number of records
+     */
+    private SXEController synchronize(int chunkSize) throws Exception {
+        SXEMessageWriter writer = new SXEMessageWriter();
+        SXEMessageReader reader = new SXEMessageReader();
+
+        SXEController invitee = new SXEController(recordFactory);
+        invitee.initNetwork(new SXENetworkMock().getClientMock());
+        assertTrue(invitee.switchToConnectingState(session));
+
+        List<RecordDataObject> state = host.getDocumentRecord()
+            .getCompactedState();
+
+        for (int offset = 0; offset < state.size(); offset += chunkSize) {
+            int end = Math.min(state.size(), offset + chunkSize);
+
+            SXEMessage msg = session.getNextMessage(SXEMessageType.STATE);
+            msg.setRecords(new ArrayList<RecordDataObject>(state.subList(
+                offset, end)));
+            msg.setDocumentBegin(offset == 0);
+            msg.setDocumentEnd(end == state.size());
+
+            SXEMessage received = reader.parseMessage(writer
+                .getSXEMessageAsString(msg));
+
+            assertEquals(msg.isDocumentBegin(), received.isDocumentBegin());
+            assertEquals(msg.isDocumentEnd(), received.isDocumentEnd());
+
+            if (received.isDocumentEnd())
+                invitee.startSession(received);
+            else
+                invitee.applyState(received);
+        }
+
+        assertTrue(invitee.isConnected());
+
+        return invitee;
+    }
+}
@@ -25,6 +25,7 @@ import de.fu_berlin.inf.dpp.filesystem.EclipseWorkspaceImpl;
 import de.fu_berlin.inf.dpp.filesystem.EclipseWorkspaceRootImpl;
 import de.fu_berlin.inf.dpp.filesystem.FileContentNotifierBridge;
 import de.fu_berlin.inf.dpp.filesystem.IChecksumCache;
+import de.fu_berlin.inf.dpp.filesystem.IFileContentChangedNotifier;
 import de.fu_berlin.inf.dpp.filesystem.IPathFactory;
 import de.fu_berlin.inf.dpp.filesystem.IWorkspace;
 import de.fu_berlin.inf.dpp.filesystem.IWorkspaceRoot;
@@ -94,8 +95,11 @@ public class SarosEclipseContextFactory extends AbstractContextFactory {
              * if we are the delegate and depends on components that are only
              * available after we added all our context stuff or vice versa
              */
-            Component.create(IChecksumCache.class, new FileSystemChecksumCache(
-                new FileContentNotifierBridge())),
+            Component.create(IFileContentChangedNotifier.class,
+                FileContentNotifierBridge.class),
+
+            Component.create(IChecksumCache.class,
+                FileSystemChecksumCache.class),
 
             Component.create(IWorkspace.class, new EclipseWorkspaceImpl(
                 ResourcesPlugin.getWorkspace())),
@@ -3,7 +3,9 @@ package de.fu_berlin.inf.dpp.editor;
 import java.io.FileNotFoundException;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
@@ -16,7 +18,10 @@ import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.NullProgressMonitor;
 import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentRewriteSession;
+import org.eclipse.jface.text.DocumentRewriteSessionType;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.source.Annotation;
 import org.eclipse.jface.text.source.IAnnotationModel;
@@ -41,6 +46,7 @@ import de.fu_berlin.inf.dpp.activities.TextEditActivity;
 import de.fu_berlin.inf.dpp.activities.TextSelectionActivity;
 import de.fu_berlin.inf.dpp.activities.ViewportActivity;
 import de.fu_berlin.inf.dpp.annotations.Component;
+import de.fu_berlin.inf.dpp.editor.TextEditBatch.Region;
 import de.fu_berlin.inf.dpp.editor.annotations.ContributionAnnotation;
 import de.fu_berlin.inf.dpp.editor.annotations.RemoteCursorAnnotation;
 import de.fu_berlin.inf.dpp.editor.annotations.RemoteCursorStrategy;
@@ -64,6 +70,7 @@ import de.fu_berlin.inf.dpp.observables.FileReplacementInProgressObservable;
 import de.fu_berlin.inf.dpp.session.AbstractActivityConsumer;
 import de.fu_berlin.inf.dpp.session.AbstractActivityProducer;
 import de.fu_berlin.inf.dpp.session.AbstractSessionListener;
+import de.fu_berlin.inf.dpp.session.IActivityBatchConsumer;
 import de.fu_berlin.inf.dpp.session.IActivityConsumer;
 import de.fu_berlin.inf.dpp.session.IActivityConsumer.Priority;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
@@ -112,6 +119,18 @@ public class EditorManager extends AbstractActivityProducer implements
 
     private static final Logger LOG = Logger.getLogger(EditorManager.class);
 
+    /**
+     * Maximum number of documents that stay connected after remote text edits
+     * were applied to them.
+     */
+    private static final int MAX_CONNECTED_DOCUMENTS = 32;
+
+    /**
+     * Batches with more edits use a rewrite session for large changes, so the
+     * viewers redraw their content completely afterwards.
+     */
+    private static final int LARGE_BATCH_SIZE = 100;
+
     boolean hasWriteAccess;
 
     boolean isLocked;
@@ -144,6 +163,28 @@ public class EditorManager extends AbstractActivityProducer implements
     /** all files that have connected document providers */
     private final Set<IFile> connectedFiles = new HashSet<IFile>();
 
+    /**
+     * Inputs of the documents that remote text edits were applied to. They
+     * stay connected until the session ends, so consecutive edits do not have
+     * to connect to the document provider again.
+     */
+    private final Map<SPath, FileEditorInput> remotelyEditedDocuments = new LinkedHashMap<SPath, FileEditorInput>(
+        16, 0.75F, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<SPath, FileEditorInput> eldest) {
+
+            if (size() <= MAX_CONNECTED_DOCUMENTS)
+                return false;
+
+            EditorAPI.disconnect(eldest.getValue());
+            return true;
+        }
+    };
+
     private AnnotationModelHelper annotationModelHelper;
     private LocationAnnotationManager locationAnnotationManager;
     private ContributionAnnotationManager contributionAnnotationManager;
@@ -159,7 +200,16 @@ public class EditorManager extends AbstractActivityProducer implements
         }
     };
 
-    private final IActivityConsumer consumer = new AbstractActivityConsumer() {
+    /**
+     * Activity consumer that is able to apply consecutive remote text edits in
+     * one step.
+     */
+    private abstract static class BatchActivityConsumer extends
+        AbstractActivityConsumer implements IActivityBatchConsumer {
+        // NOP
+    }
+
+    private final IActivityConsumer consumer = new BatchActivityConsumer() {
         @Override
         public void exec(IActivity activity) {
             /**
@@ -180,19 +230,61 @@ public class EditorManager extends AbstractActivityProducer implements
 
             assert SWTUtils.isSWT();
 
+            if (!prepare(activity))
+                return;
+
+            super.exec(activity);
+        }
+
+        @Override
+        public void exec(List<IActivity> activities) {
+            assert SWTUtils.isSWT();
+
+            if (!(activities.get(0) instanceof TextEditActivity)) {
+                for (IActivity activity : activities)
+                    exec(activity);
+
+                return;
+            }
+
+            TextEditBatch batch = null;
+
+            for (IActivity activity : activities) {
+                if (!prepare(activity))
+                    continue;
+
+                TextEditActivity textEdit = (TextEditActivity) activity;
+
+                if (batch != null && batch.add(textEdit))
+                    continue;
+
+                if (batch != null)
+                    execTextEdits(batch);
+
+                batch = new TextEditBatch(textEdit.getPath(),
+                    textEdit.getSource());
+
+                batch.add(textEdit);
+            }
+
+            if (batch != null)
+                execTextEdits(batch);
+        }
+
+        private boolean prepare(IActivity activity) {
             User sender = activity.getSource();
             if (!sender.isInSession()) {
                 LOG.warn("skipping execution of activity " + activity
                     + " for user " + sender
                     + " who is not in the current session");
-                return;
+                return false;
             }
 
             // First let the remote manager update itself based on the
             // Activity
             remoteWriteAccessManager.exec(activity);
 
-            super.exec(activity);
+            return true;
         }
 
         @Override
@@ -202,7 +294,11 @@ public class EditorManager extends AbstractActivityProducer implements
 
         @Override
         public void receive(TextEditActivity textEditActivity) {
-            execTextEdit(textEditActivity);
+            TextEditBatch batch = new TextEditBatch(textEditActivity.getPath(),
+                textEditActivity.getSource());
+
+            batch.add(textEditActivity);
+            execTextEdits(batch);
         }
 
         @Override
@@ -323,6 +419,8 @@ public class EditorManager extends AbstractActivityProducer implements
 
         @Override
         public void userLeft(final User user) {
+            locationAnnotationManager.removeUser(user);
+
             Predicate<Annotation> annotationsOfGoneUser = new Predicate<Annotation>() {
                 @Override
                 public boolean evaluate(Annotation annotation) {
@@ -726,21 +824,22 @@ public class EditorManager extends AbstractActivityProducer implements
         }
     }
 
-    private void execTextEdit(TextEditActivity textEdit) {
+    private void execTextEdits(TextEditBatch batch) {
 
-        LOG.trace(".execTextEdit invoked");
+        LOG.trace(".execTextEdits invoked: " + batch);
 
-        SPath path = textEdit.getPath();
+        SPath path = batch.getPath();
         IFile file = ((EclipseFileImpl) path.getFile()).getDelegate();
 
         if (!file.exists()) {
             LOG.error("TextEditActivity refers to file which"
-                + " is not available locally: " + textEdit);
+                + " is not available locally: " + batch.getEdits().get(0));
             // TODO A consistency check can be started here
+            disconnectRemotelyEditedDocument(path);
             return;
         }
 
-        User user = textEdit.getSource();
+        User user = batch.getSource();
 
         /*
          * Disable documentListener temporarily to avoid being notified of the
@@ -749,10 +848,14 @@ public class EditorManager extends AbstractActivityProducer implements
          */
         editorPool.setDocumentListenerEnabled(false);
 
-        replaceText(path, textEdit.getOffset(), textEdit.getReplacedText(),
-            textEdit.getText(), user);
+        try {
+            replaceText(batch);
+        } finally {
+            editorPool.setDocumentListenerEnabled(true);
+        }
 
-        editorPool.setDocumentListenerEnabled(true);
+        List<TextEditActivity> edits = batch.getEdits();
+        TextEditActivity lastEdit = edits.get(edits.size() - 1);
 
         /*
          * TODO Find out whether this is actually necessary. If we receive a
@@ -760,11 +863,8 @@ public class EditorManager extends AbstractActivityProducer implements
          * listen for edits as well.
          */
         /*
-         * If the text edit ends in the visible region of a local editor, set
-         * the cursor annotation.
-         *
-         * TODO Performance optimization in case of batch operation might make
-         * sense. Problem: How to recognize batch operations?
+         * If the last text edit of the batch ends in the visible region of a
+         * local editor, set the cursor annotation.
          */
         for (IEditorPart editorPart : editorPool.getEditors(path)) {
             ITextViewer viewer = EditorAPI.getViewer(editorPart);
@@ -772,8 +872,8 @@ public class EditorManager extends AbstractActivityProducer implements
                 // No text viewer for the editorPart found.
                 continue;
             }
-            int cursorOffset = textEdit.getOffset()
-                + textEdit.getText().length();
+            int cursorOffset = lastEdit.getOffset()
+                + lastEdit.getText().length();
 
             if (viewer.getTopIndexStartOffset() <= cursorOffset
                 && cursorOffset <= viewer.getBottomIndexEndOffset()) {
@@ -784,9 +884,8 @@ public class EditorManager extends AbstractActivityProducer implements
             }
         }
 
-        // inform all registered ISharedEditorListeners about this text edit
-        editorListenerDispatch.textEdited(user, path, textEdit.getOffset(),
-            textEdit.getReplacedText(), textEdit.getText());
+        // inform all registered ISharedEditorListeners about each text edit
+        batch.notifyTextEdited(editorListenerDispatch);
     }
 
     @Override
@@ -920,6 +1019,22 @@ public class EditorManager extends AbstractActivityProducer implements
             customAnnotationManager.installPainter((ISourceViewer) viewer);
     }
 
+    /**
+     * Called when a part of the local user became visible, e.g because it was
+     * brought to front. (called by EditorPartListener)
+     */
+    void partVisible(IEditorPart editorPart) {
+
+        LOG.trace(".partVisible invoked");
+
+        /*
+         * the locations of remote users are not updated while the editor is
+         * hidden
+         */
+        if (editorPool.isManaged(editorPart))
+            locationAnnotationManager.applyPendingUpdates(editorPart);
+    }
+
     /**
      * Called if the IEditorInput of the IEditorPart is now something different
      * than before! Probably when renaming. (called by EditorPartListener)
@@ -975,6 +1090,7 @@ public class EditorManager extends AbstractActivityProducer implements
 
     private void partClosedOfPath(IEditorPart editorPart, SPath path) {
         editorPool.remove(editorPart);
+        locationAnnotationManager.removeEditor(editorPart);
         openEditorPaths.remove(path);
 
         ITextViewer viewer = EditorAPI.getViewer(editorPart);
@@ -1052,74 +1168,64 @@ public class EditorManager extends AbstractActivityProducer implements
     }
 
     /**
-     * This method is called when a remote text edit has been received over the
-     * network to apply the change to the local files.
-     *
-     * @param path
-     *            The path in which the change should be made.
-     * @param offset
-     *            The position into the document of the given file, where the
-     *            change started.
-     *
-     * @param replacedText
-     *            The text which is to be replaced by this operation at the
-     *            given offset (is "" if this operation is only inserting text)
+     * Applies the text edits of the given batch to the document of the file
+     * they refer to and records the changed regions in the batch. The edits
+     * are applied in one rewrite session if the document supports it.
      *
-     * @param text
-     *            The text which is to be inserted at the given offset instead
-     *            of the replaced text (is "" if this operation is only deleting
-     *            text)
-     * @param source
-     *            The User who caused this change.
+     * @param batch
+     *            the text edits of one user in one file
      */
-    private void replaceText(SPath path, int offset, String replacedText,
-        String text, User source) {
+    private void replaceText(TextEditBatch batch) {
 
-        IFile file = ((EclipseFileImpl) path.getFile()).getDelegate();
-        FileEditorInput input = new FileEditorInput(file);
-        IDocumentProvider provider = EditorAPI.connect(input);
+        SPath path = batch.getPath();
+        FileEditorInput input = connectRemotelyEditedDocument(path);
 
-        if (provider == null) {
+        if (input == null) {
             // TODO Trigger a consistency recovery
             return;
         }
 
+        IDocumentProvider provider = EditorAPI.getDocumentProvider(input);
+        IDocument doc = provider.getDocument(input);
+
+        if (doc == null) {
+            LOG.error("Could not connect document provider for file: "
+                + input.getFile().toString(), new StackTrace());
+            disconnectRemotelyEditedDocument(path);
+            // TODO Trigger a consistency recovery
+            return;
+        }
+
+        List<TextEditActivity> edits = batch.getEdits();
+        DocumentRewriteSession rewriteSession = null;
+
+        if (edits.size() > 1 && doc instanceof IDocumentExtension4) {
+            DocumentRewriteSessionType type = DocumentRewriteSessionType.UNRESTRICTED_SMALL;
+
+            if (edits.size() > LARGE_BATCH_SIZE)
+                type = DocumentRewriteSessionType.UNRESTRICTED;
+
+            rewriteSession = ((IDocumentExtension4) doc)
+                .startRewriteSession(type);
+        }
+
         try {
-            IDocument doc = provider.getDocument(input);
-            if (doc == null) {
-                LOG.error("Could not connect document provider for file: "
-                    + file.toString(), new StackTrace());
-                // TODO Trigger a consistency recovery
-                return;
-            }
+            for (TextEditActivity edit : edits)
+                replaceText(doc, batch, edit);
+        } finally {
+            if (rewriteSession != null)
+                ((IDocumentExtension4) doc).stopRewriteSession(rewriteSession);
+        }
 
-            // Check if the replaced text is really there.
-            if (LOG.isDebugEnabled()) {
-                String is;
-                try {
-                    is = doc.get(offset, replacedText.length());
-                    if (!is.equals(replacedText)) {
-                        LOG.error("replaceText should be '"
-                            + StringEscapeUtils.escapeJava(replacedText)
-                            + "' is '" + StringEscapeUtils.escapeJava(is) + "'");
-                    }
-                } catch (BadLocationException e) {
-                    // Ignore, because this is going to fail again just below
-                }
-            }
+        /*
+         * Insert one contribution annotation per changed region, consecutive
+         * edits (e.g. a paste split into several operations) are merged
+         */
+        User source = batch.getSource();
 
-            // Try to replace
-            try {
-                doc.replace(offset, replacedText.length(), text);
-            } catch (BadLocationException e) {
-                LOG.error(String.format(
-                    "Could not apply TextEdit at %d-%d of document "
-                        + "with length %d.\nWas supposed to replace"
-                        + " '%s' with '%s'.", offset,
-                    offset + replacedText.length(), doc.getLength(),
-                    replacedText, text));
-                return;
-            }
+        for (Region region : batch.getRegions()) {
+            int offset = region.getOffset();
+            int length = region.getText().length();
 
             for (IEditorPart editorPart : editorPool.getEditors(path)) {
 
@@ -1128,18 +1234,97 @@ public class EditorManager extends AbstractActivityProducer implements
                     IAnnotationModel model = textEditor.getDocumentProvider()
                         .getAnnotationModel(textEditor.getEditorInput());
                     contributionAnnotationManager.insertAnnotation(model,
-                        offset, text.length(), source);
+                        offset, length, source);
                 }
             }
 
             IAnnotationModel model = provider.getAnnotationModel(input);
             contributionAnnotationManager.insertAnnotation(model, offset,
-                text.length(), source);
-        } finally {
-            provider.disconnect(input);
+                length, source);
         }
     }
 
+    /**
+     * Replaces the text in the given document as described by the given
+     * {@link TextEditActivity} and records the change in the given batch.
+     */
+    private void replaceText(IDocument doc, TextEditBatch batch,
+        TextEditActivity edit) {
+
+        int offset = edit.getOffset();
+        String replacedText = edit.getReplacedText();
+        String text = edit.getText();
+
+        // Check if the replaced text is really there.
+        if (LOG.isDebugEnabled()) {
+            String is;
+            try {
+                is = doc.get(offset, replacedText.length());
+                if (!is.equals(replacedText)) {
+                    LOG.error("replaceText should be '"
+                        + StringEscapeUtils.escapeJava(replacedText) + "' is '"
+                        + StringEscapeUtils.escapeJava(is) + "'");
+                }
+            } catch (BadLocationException e) {
+                // Ignore, because this is going to fail again just below
+            }
+        }
+
+        // Try to replace
+        try {
+            doc.replace(offset, replacedText.length(), text);
+        } catch (BadLocationException e) {
+            LOG.error(String.format(
+                "Could not apply TextEdit at %d-%d of document "
+                    + "with length %d.\nWas supposed to replace"
+                    + " '%s' with '%s'.", offset,
+                offset + replacedText.length(), doc.getLength(), replacedText,
+                text));
+            return;
+        }
+
+        batch.applied(offset, replacedText, text);
+    }
+
+    /**
+     * Returns the input of the document of the given file, connecting the
+     * document provider if the document is not already connected. The
+     * document stays connected until the session ends or too many other
+     * documents were edited remotely.
+     *
+     * @return the connected input or <code>null</code> if the document
+     *         provider could not be connected
+     */
+    private FileEditorInput connectRemotelyEditedDocument(SPath path) {
+        FileEditorInput input = remotelyEditedDocuments.get(path);
+
+        if (input != null)
+            return input;
+
+        IFile file = ((EclipseFileImpl) path.getFile()).getDelegate();
+        input = new FileEditorInput(file);
+
+        if (EditorAPI.connect(input) == null)
+            return null;
+
+        remotelyEditedDocuments.put(path, input);
+        return input;
+    }
+
+    private void disconnectRemotelyEditedDocument(SPath path) {
+        FileEditorInput input = remotelyEditedDocuments.remove(path);
+
+        if (input != null)
+            EditorAPI.disconnect(input);
+    }
+
+    private void disconnectRemotelyEditedDocuments() {
+        for (FileEditorInput input : remotelyEditedDocuments.values())
+            EditorAPI.disconnect(input);
+
+        remotelyEditedDocuments.clear();
+    }
+
     /**
      * Save file denoted by the given project relative path if necessary
      * according to isDirty(IPath) and call saveText(IPath) if necessary in the
@@ -1841,6 +2026,8 @@ public class EditorManager extends AbstractActivityProducer implements
 
         editorPool.removeAllEditors();
 
+        disconnectRemotelyEditedDocuments();
+
         customAnnotationManager.uninstallAllPainters(true);
 
         assert session != null;
@@ -1851,6 +2038,7 @@ public class EditorManager extends AbstractActivityProducer implements
         session = null;
 
         annotationModelHelper = null;
+        locationAnnotationManager.dispose();
         locationAnnotationManager = null;
         contributionAnnotationManager.dispose();
         contributionAnnotationManager = null;
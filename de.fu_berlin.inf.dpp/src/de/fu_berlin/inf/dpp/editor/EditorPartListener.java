@@ -73,7 +73,10 @@ public final class EditorPartListener implements IPartListener2 {
 
     @Override
     public void partVisible(IWorkbenchPartReference partRef) {
-        // do nothing
+        final IWorkbenchPart part = partRef.getPart(false);
+
+        if (part instanceof IEditorPart)
+            editorManager.partVisible((IEditorPart) part);
     }
 
     @Override
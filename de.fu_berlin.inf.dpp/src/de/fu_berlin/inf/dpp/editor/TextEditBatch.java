@@ -0,0 +1,211 @@
+package de.fu_berlin.inf.dpp.editor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.session.User;
+
+/**
+ * Consecutive remote text edits of one user in one file that are applied to
+ * the document in one step.
+ * <p>
+ * While the edits are applied the batch merges every edit that overlaps or
+ * touches an already changed region of the document into that region. After
+ * all edits were applied each {@link Region} describes one contiguous change
+ * in the coordinates of the resulting document, so annotations only have to be
+ * created once per region instead of once per edit. Applying the regions in
+ * ascending order to the original document yields the same result as applying
+ * all edits of the batch.
+ * <p>
+ * Listeners are still notified once per edit, see
+ * {@link #notifyTextEdited(ISharedEditorListener)}.
+ */
+final class TextEditBatch {
+
+    /**
+     * A contiguous region of the document that was changed by one or more
+     * edits of the batch.
+     */
+    static final class Region {
+        private int offset;
+        private final StringBuilder replacedText;
+        private final StringBuilder text;
+
+        private Region(final int offset) {
+            this.offset = offset;
+            this.replacedText = new StringBuilder();
+            this.text = new StringBuilder();
+        }
+
+        /** Returns the offset of the region in the resulting document. */
+        int getOffset() {
+            return offset;
+        }
+
+        /** Returns the text the region contained before the batch. */
+        String getReplacedText() {
+            return replacedText.toString();
+        }
+
+        /** Returns the text the region contains after the batch. */
+        String getText() {
+            return text.toString();
+        }
+
+        private int getEnd() {
+            return offset + text.length();
+        }
+
+        @Override
+        public String toString() {
+            return "Region [offset=" + offset + ", replaced="
+                + replacedText.length() + ", inserted=" + text.length() + "]";
+        }
+    }
+
+    private final SPath path;
+
+    private final User source;
+
+    private final List<TextEditActivity> edits = new ArrayList<TextEditActivity>();
+
+    /** sorted by offset, never overlapping or touching each other */
+    private final List<Region> regions = new ArrayList<Region>();
+
+    TextEditBatch(final SPath path, final User source) {
+        this.path = path;
+        this.source = source;
+    }
+
+    SPath getPath() {
+        return path;
+    }
+
+    User getSource() {
+        return source;
+    }
+
+    /**
+     * Adds the given edit to this batch.
+     *
+     * @return <code>false</code> if the edit belongs to another file or user
+     *         and was not added
+     */
+    boolean add(final TextEditActivity edit) {
+        if (!path.equals(edit.getPath()) || !source.equals(edit.getSource()))
+            return false;
+
+        edits.add(edit);
+        return true;
+    }
+
+    /** Returns the edits of this batch in the order they must be applied. */
+    List<TextEditActivity> getEdits() {
+        return Collections.unmodifiableList(edits);
+    }
+
+    /**
+     * Records that the given edit was applied to the document. Edits must be
+     * recorded in the order they were applied.
+     *
+     * @param offset
+     *            the offset of the edit in the current document
+     * @param replacedText
+     *            the text that was replaced
+     * @param text
+     *            the text that was inserted
+     */
+    void applied(final int offset, final String replacedText,
+        final String text) {
+
+        final int end = offset + replacedText.length();
+
+        int first = 0;
+
+        while (first < regions.size() && regions.get(first).getEnd() < offset)
+            first++;
+
+        int last = first;
+
+        while (last < regions.size() && regions.get(last).offset <= end)
+            last++;
+
+        if (first == last)
+            regions.add(first, new Region(offset));
+        else
+            last--;
+
+        final Region region = regions.get(first);
+
+        /*
+         * Extend the region so it covers the replaced range. Text in between
+         * the merged regions is unchanged, so it is the same before and after
+         * the batch and can be taken from the replaced text of the edit.
+         */
+        if (offset < region.offset) {
+            final String prefix = replacedText.substring(0, region.offset
+                - offset);
+
+            region.replacedText.insert(0, prefix);
+            region.text.insert(0, prefix);
+            region.offset = offset;
+        }
+
+        for (int i = first + 1; i <= last; i++) {
+            final Region next = regions.get(i);
+
+            final String gap = replacedText.substring(region.getEnd()
+                - offset, next.offset - offset);
+
+            region.replacedText.append(gap).append(next.replacedText);
+            region.text.append(gap).append(next.text);
+        }
+
+        regions.subList(first + 1, last + 1).clear();
+
+        if (end > region.getEnd()) {
+            final String suffix = replacedText.substring(region.getEnd()
+                - offset);
+
+            region.replacedText.append(suffix);
+            region.text.append(suffix);
+        }
+
+        final int start = offset - region.offset;
+
+        region.text.replace(start, start + replacedText.length(), text);
+
+        final int delta = text.length() - replacedText.length();
+
+        for (int i = first + 1; i < regions.size(); i++)
+            regions.get(i).offset += delta;
+    }
+
+    /**
+     * Returns the changed regions of the document in ascending order.
+     */
+    List<Region> getRegions() {
+        return Collections.unmodifiableList(regions);
+    }
+
+    /**
+     * Notifies the given listener about every edit of this batch in the order
+     * the edits were applied. The regions are not used for this as listeners
+     * like the feedback statistics evaluate the size of each single edit, e.g.
+     * a burst of typed characters must not be taken for a paste.
+     */
+    void notifyTextEdited(final ISharedEditorListener listener) {
+        for (TextEditActivity edit : edits)
+            listener.textEdited(source, path, edit.getOffset(),
+                edit.getReplacedText(), edit.getText());
+    }
+
+    @Override
+    public String toString() {
+        return "TextEditBatch [path=" + path + ", source=" + source
+            + ", edits=" + edits.size() + ", regions=" + regions.size() + "]";
+    }
+}
@@ -18,8 +18,21 @@ public class SelectionAnnotation extends SarosAnnotation {
     protected static final String TYPE = "de.fu_berlin.inf.dpp.annotations.selection";
 
     public SelectionAnnotation(User source, boolean isCursor) {
-        super(SelectionAnnotation.TYPE, true, ModelFormatUtils.format(
+        super(SelectionAnnotation.TYPE, true, createText(source, isCursor),
+            source);
+    }
+
+    /**
+     * Updates the text of this annotation when it is reused for a cursor
+     * instead of a selection or vice versa.
+     */
+    public void setCursor(boolean isCursor) {
+        setText(createText(getSource(), isCursor));
+    }
+
+    private static String createText(User source, boolean isCursor) {
+        return ModelFormatUtils.format(
             isCursor ? Messages.SelectionAnnotation_cursor_of
-                : Messages.SelectionAnnotation_selection_of, source), source);
+                : Messages.SelectionAnnotation_selection_of, source);
     }
 }
@@ -22,6 +22,15 @@ public class SelectionFillUpAnnotation extends SarosAnnotation {
         this.length = length;
     }
 
+    /**
+     * Updates the selection this annotation fills up when it is moved to
+     * another position.
+     */
+    public void setSelection(int offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
     public int getLength() {
         return length;
     }
@@ -1,14 +1,12 @@
 package de.fu_berlin.inf.dpp.editor.internal;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Queue;
 
 import org.apache.log4j.Logger;
 import org.eclipse.jface.preference.IPreferenceStore;
@@ -30,6 +28,12 @@ import de.fu_berlin.inf.dpp.ui.util.SWTUtils;
 /**
  * This class keeps a history of added {@link ContributionAnnotation}s and
  * removes old ones.
+ * <p>
+ * The annotations of each annotation model are indexed by
+ * {@link ContributionRanges}, so inserting and splitting annotations does not
+ * iterate over all annotations of the model. Text inserted directly before,
+ * inside or after an annotation of the same user extends that annotation
+ * instead of adding a new one.
  */
 public class ContributionAnnotationManager {
 
@@ -40,6 +44,8 @@ public class ContributionAnnotationManager {
 
     private final Map<User, LinkedList<ContributionAnnotation>> sourceToHistory = new HashMap<User, LinkedList<ContributionAnnotation>>();
 
+    private final Map<IAnnotationModel, ContributionRanges> modelToRanges = new HashMap<IAnnotationModel, ContributionRanges>();
+
     private final ISarosSession sarosSession;
 
     private final IPreferenceStore preferenceStore;
@@ -54,6 +60,9 @@ public class ContributionAnnotationManager {
              * the EditorManager from the editors.
              */
             sourceToHistory.remove(user);
+
+            for (ContributionRanges ranges : modelToRanges.values())
+                ranges.removeUser(user);
         }
     };
 
@@ -91,9 +100,10 @@ public class ContributionAnnotationManager {
     }
 
     /**
-     * Inserts a contribution annotation to given model if there is not already
-     * a contribution annotation at given position. This method should be called
-     * after the text has changed.
+     * Inserts a contribution annotation to given model. If the given range
+     * overlaps or touches contribution annotations of the same user, these
+     * annotations are merged into one annotation that covers the range. This
+     * method should be called after the text has changed.
      * 
      * @param model
      *            to add the annotation to.
@@ -104,7 +114,6 @@ public class ContributionAnnotationManager {
      * @param source
      *            of the annotation.
      */
-    @SuppressWarnings("unchecked")
     public void insertAnnotation(IAnnotationModel model, int offset,
         int length, User source) {
 
@@ -114,86 +123,104 @@ public class ContributionAnnotationManager {
         if (length < 0) // why is 0 len allowed ?
             return;
 
-        /* Return early if there already is an annotation at that offset */
-        for (Iterator<Annotation> it = model.getAnnotationIterator(); it
-            .hasNext();) {
-            Annotation annotation = it.next();
+        final ContributionRanges ranges = getRanges(model);
 
-            if (annotation instanceof ContributionAnnotation
-                && model.getPosition(annotation).includes(offset)
-                && ((ContributionAnnotation) annotation).getSource().equals(
-                    source)) {
-                return;
-            }
+        final List<ContributionAnnotation> touching = ranges.getTouching(
+            source, offset, length);
+
+        if (touching.isEmpty()) {
+            addContributionAnnotation(ranges, new ContributionAnnotation(
+                source, model), new Position(offset, length));
+            return;
+        }
+
+        final ContributionAnnotation annotation = touching.get(0);
+
+        final Position first = ranges.getPosition(annotation);
+        final Position last = ranges.getPosition(touching.get(touching
+            .size() - 1));
+
+        final int start = Math.min(offset, first.offset);
+        final int end = Math.max(offset + length, last.offset + last.length);
+
+        final List<ContributionAnnotation> annotationsToRemove = new ArrayList<ContributionAnnotation>(
+            touching);
+
+        for (final ContributionAnnotation merged : touching.subList(1,
+            touching.size())) {
+            getHistory(source).remove(merged);
+            ranges.remove(merged);
         }
 
-        addContributionAnnotation(new ContributionAnnotation(source, model),
-            new Position(offset, length));
+        if (start != first.offset || end != first.offset + first.length
+            || touching.size() > 1) {
+            replaceAnnotations(model, annotationsToRemove, Collections
+                .singletonMap(annotation, new Position(start, end - start)));
+        }
+
+        // the extended annotation is now the newest one of the user
+        final LinkedList<ContributionAnnotation> history = getHistory(source);
+        history.remove(annotation);
+        history.add(annotation);
     }
 
     /**
      * Splits the contribution annotation at given position, so that the
      * following text change won't expand the annotation. This needs to be
-     * called before the text is changed.
+     * called before the text is changed. Both parts keep the age of the split
+     * annotation in the history.
      * 
      * @param model
      *            to search for annotations to split.
      * @param offset
      *            at which annotations should be splitted.
      */
-    /*
-     * FIXME that method is broken, it does not honor the history, i.e Alice
-     * insert text ranges a, b, c, d ... now we split a into a0, a1 and as a
-     * result a0 and a1 are now the newest entries instead the oldest
-     * 
-     * See also http://sourceforge.net/p/dpp/bugs/757/ that includes also
-     * another defect which is part of this behavior
-     */
-    @SuppressWarnings("unchecked")
     public void splitAnnotation(final IAnnotationModel model, final int offset) {
 
         if (!contribtionAnnotationsEnabled)
             return;
 
-        final List<ContributionAnnotation> annotationsToRemove = new ArrayList<ContributionAnnotation>();
-        final Map<ContributionAnnotation, Position> annotationsToAdd = new HashMap<ContributionAnnotation, Position>();
+        final ContributionRanges ranges = modelToRanges.get(model);
 
-        for (Iterator<Annotation> it = model.getAnnotationIterator(); it
-            .hasNext();) {
+        if (ranges == null)
+            return;
 
-            final Annotation annotation = it.next();
+        for (final User source : new ArrayList<User>(ranges.getUsers())) {
 
-            if (!(annotation instanceof ContributionAnnotation))
+            final ContributionAnnotation annotation = ranges.getContaining(
+                source, offset);
+
+            if (annotation == null)
                 continue;
 
-            final ContributionAnnotation contributionAnnotation = (ContributionAnnotation) annotation;
-            final User source = contributionAnnotation.getSource();
+            final Position pos = ranges.getPosition(annotation);
 
-            final Position pos = model.getPosition(contributionAnnotation);
+            final Position before = new Position(pos.offset, offset
+                - pos.offset);
 
-            if ((offset > pos.offset) && (offset < pos.offset + pos.length)) {
+            final Position after = new Position(offset, pos.length
+                - (offset - pos.offset));
 
-                Position before = new Position(pos.offset, offset - pos.offset);
+            final ContributionAnnotation split = new ContributionAnnotation(
+                source, model);
 
-                Position after = new Position(offset, pos.length
-                    - (offset - pos.offset));
+            final Map<ContributionAnnotation, Position> annotationsToAdd = new HashMap<ContributionAnnotation, Position>();
 
-                annotationsToRemove.add(contributionAnnotation);
+            annotationsToAdd.put(annotation, before);
+            annotationsToAdd.put(split, after);
 
-                annotationsToAdd.put(new ContributionAnnotation(source, model),
-                    before);
+            replaceAnnotations(model,
+                Collections.singletonList(annotation), annotationsToAdd);
 
-                annotationsToAdd.put(new ContributionAnnotation(source, model),
-                    after);
-            }
-        }
+            ranges.add(split);
 
-        for (final ContributionAnnotation annotation : annotationsToRemove)
-            removeFromHistory(annotation);
+            final LinkedList<ContributionAnnotation> history = getHistory(source);
+            final int index = history.indexOf(annotation);
 
-        for (final Entry<ContributionAnnotation, Position> entry : annotationsToAdd
-            .entrySet()) {
-            addContributionAnnotation(entry.getKey(), entry.getValue());
+            history.add(index + 1, split);
+
+            if (history.size() > MAX_HISTORY_LENGTH)
+                removeFromHistory(history.peek());
         }
     }
 
@@ -204,26 +231,18 @@ public class ContributionAnnotationManager {
      * @param model
      *            the annotation model that should be refreshed
      */
-    @SuppressWarnings("unchecked")
     public void refreshAnnotations(IAnnotationModel model) {
-        List<Annotation> annotationsToRemove = new ArrayList<Annotation>();
-        Map<Annotation, Position> annotationsToAdd = new HashMap<Annotation, Position>();
-
-        for (Iterator<Annotation> it = model.getAnnotationIterator(); it
-            .hasNext();) {
+        final ContributionRanges ranges = modelToRanges.get(model);
 
-            Annotation annotation = it.next();
+        if (ranges == null)
+            return;
 
-            if (!(annotation instanceof ContributionAnnotation))
-                continue;
+        final List<ContributionAnnotation> annotationsToRemove = ranges
+            .getAnnotations();
 
-            Position position = model.getPosition(annotation);
+        final Map<ContributionAnnotation, Position> annotationsToAdd = new HashMap<ContributionAnnotation, Position>();
 
-            if (position == null) {
-                log.warn("annotation could not be found in the current model: "
-                    + annotation);
-                continue;
-            }
+        for (final ContributionAnnotation annotation : annotationsToRemove) {
 
             /*
              * we rely on the fact the a user object is unique during a running
@@ -231,39 +250,33 @@ public class ContributionAnnotationManager {
              * reinserting the annotations would not refresh the colors as the
              * color id of the user has not changed
              */
-            annotationsToRemove.add(annotation);
-            ContributionAnnotation annotationToAdd = new ContributionAnnotation(
-                ((ContributionAnnotation) annotation).getSource(), model);
+            final ContributionAnnotation annotationToAdd = new ContributionAnnotation(
+                annotation.getSource(), model);
 
-            annotationsToAdd.put(annotationToAdd, position);
+            annotationsToAdd.put(annotationToAdd,
+                ranges.getPosition(annotation));
 
-            replaceInHistory((ContributionAnnotation) annotation,
-                annotationToAdd);
+            replaceInHistory(annotation, annotationToAdd);
         }
 
         if (annotationsToRemove.isEmpty())
             return;
 
-        if (model instanceof IAnnotationModelExtension) {
-            ((IAnnotationModelExtension) model).replaceAnnotations(
-                annotationsToRemove.toArray(new Annotation[0]),
-                annotationsToAdd);
-
-            return;
-        }
+        for (final ContributionAnnotation annotation : annotationsToRemove)
+            ranges.remove(annotation);
 
-        for (Annotation annotation : annotationsToRemove)
-            model.removeAnnotation(annotation);
+        replaceAnnotations(model, annotationsToRemove, annotationsToAdd);
 
-        for (Map.Entry<Annotation, Position> entry : annotationsToAdd
-            .entrySet())
-            model.addAnnotation(entry.getKey(), entry.getValue());
+        for (final ContributionAnnotation annotation : annotationsToAdd
+            .keySet())
+            ranges.add(annotation);
     }
 
     public void dispose() {
         sarosSession.removeListener(sessionListener);
         preferenceStore.removePropertyChangeListener(propertyChangeListener);
         sourceToHistory.clear();
+        modelToRanges.clear();
     }
 
     /**
@@ -273,7 +286,7 @@ public class ContributionAnnotationManager {
      *            source of the user who's history we want.
      * @return the history of source.
      */
-    private Queue<ContributionAnnotation> getHistory(User source) {
+    private LinkedList<ContributionAnnotation> getHistory(User source) {
         LinkedList<ContributionAnnotation> result = sourceToHistory.get(source);
         if (result == null) {
             result = new LinkedList<ContributionAnnotation>();
@@ -282,23 +295,31 @@ public class ContributionAnnotationManager {
         return result;
     }
 
+    private ContributionRanges getRanges(IAnnotationModel model) {
+        ContributionRanges ranges = modelToRanges.get(model);
+        if (ranges == null) {
+            ranges = new ContributionRanges(model);
+            modelToRanges.put(model, ranges);
+        }
+        return ranges;
+    }
+
     /**
      * Add a contribution annotation to the annotation model and store it into
      * the history of the associated user. Old entries are removed from the
      * history and the annotation model.
      */
-    private void addContributionAnnotation(ContributionAnnotation annotation,
-        Position position) {
+    private void addContributionAnnotation(ContributionRanges ranges,
+        ContributionAnnotation annotation, Position position) {
 
         annotation.getModel().addAnnotation(annotation, position);
+        ranges.add(annotation);
 
-        Queue<ContributionAnnotation> history = getHistory(annotation
+        LinkedList<ContributionAnnotation> history = getHistory(annotation
             .getSource());
         history.add(annotation);
-        while (history.size() > MAX_HISTORY_LENGTH) {
-            ContributionAnnotation oldAnnotation = history.remove();
-            oldAnnotation.getModel().removeAnnotation(oldAnnotation);
-        }
+        while (history.size() > MAX_HISTORY_LENGTH)
+            removeFromHistory(history.peek());
     }
 
     /**
@@ -309,6 +330,16 @@ public class ContributionAnnotationManager {
     private void removeFromHistory(ContributionAnnotation annotation) {
         getHistory(annotation.getSource()).remove(annotation);
         annotation.getModel().removeAnnotation(annotation);
+
+        ContributionRanges ranges = modelToRanges.get(annotation.getModel());
+
+        if (ranges == null)
+            return;
+
+        ranges.remove(annotation);
+
+        if (ranges.isEmpty())
+            modelToRanges.remove(annotation.getModel());
     }
 
     /**
@@ -346,8 +377,33 @@ public class ContributionAnnotationManager {
     }
 
     private void removeAllAnnotations() {
-        for (Queue<ContributionAnnotation> queue : sourceToHistory.values())
+        for (LinkedList<ContributionAnnotation> queue : sourceToHistory
+            .values())
             while (!queue.isEmpty())
                 removeFromHistory(queue.peek());
     }
+
+    /**
+     * Removes and adds the given annotations with one model change if the
+     * model supports it.
+     */
+    private static void replaceAnnotations(IAnnotationModel model,
+        List<? extends Annotation> annotationsToRemove,
+        Map<? extends Annotation, Position> annotationsToAdd) {
+
+        if (model instanceof IAnnotationModelExtension) {
+            ((IAnnotationModelExtension) model).replaceAnnotations(
+                annotationsToRemove.toArray(new Annotation[0]),
+                annotationsToAdd);
+
+            return;
+        }
+
+        for (Annotation annotation : annotationsToRemove)
+            model.removeAnnotation(annotation);
+
+        for (Map.Entry<? extends Annotation, Position> entry : annotationsToAdd
+            .entrySet())
+            model.addAnnotation(entry.getKey(), entry.getValue());
+    }
 }
@@ -0,0 +1,206 @@
+package de.fu_berlin.inf.dpp.editor.internal;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.eclipse.jface.text.Position;
+import org.eclipse.jface.text.source.IAnnotationModel;
+
+import de.fu_berlin.inf.dpp.editor.annotations.ContributionAnnotation;
+import de.fu_berlin.inf.dpp.session.User;
+
+/**
+ * Index of the {@link ContributionAnnotation}s of one annotation model.
+ * <p>
+ * The annotations of each user never overlap and are kept sorted by their
+ * offset. Their positions are updated in place by the model when the document
+ * changes, which never changes their order, so the annotations at a given
+ * offset are found with a binary search on the current positions instead of
+ * iterating over all annotations of the model.
+ */
+final class ContributionRanges {
+
+    private final IAnnotationModel model;
+
+    private final Map<User, List<ContributionAnnotation>> annotations = new HashMap<User, List<ContributionAnnotation>>();
+
+    ContributionRanges(final IAnnotationModel model) {
+        this.model = model;
+    }
+
+    IAnnotationModel getModel() {
+        return model;
+    }
+
+    boolean isEmpty() {
+        return annotations.isEmpty();
+    }
+
+    Set<User> getUsers() {
+        return annotations.keySet();
+    }
+
+    /**
+     * Returns the current position of the given annotation or
+     * <code>null</code> if it is no longer part of the model.
+     */
+    Position getPosition(final ContributionAnnotation annotation) {
+        final Position position = model.getPosition(annotation);
+
+        return position == null || position.isDeleted() ? null : position;
+    }
+
+    /**
+     * Returns all annotations of the index.
+     */
+    List<ContributionAnnotation> getAnnotations() {
+        final List<ContributionAnnotation> result = new ArrayList<ContributionAnnotation>();
+
+        for (final User user : annotations.keySet())
+            result.addAll(get(user));
+
+        return result;
+    }
+
+    /**
+     * Returns the annotations of the given user that overlap or touch the
+     * given range in ascending order.
+     */
+    List<ContributionAnnotation> getTouching(final User user, final int offset,
+        final int length) {
+
+        final List<ContributionAnnotation> list = get(user);
+        final List<ContributionAnnotation> result = new ArrayList<ContributionAnnotation>();
+
+        for (int i = indexOfEnd(list, offset); i < list.size(); i++) {
+            final ContributionAnnotation annotation = list.get(i);
+
+            if (model.getPosition(annotation).offset > offset + length)
+                break;
+
+            result.add(annotation);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the annotation of the given user that contains the given offset
+     * but does not start at it.
+     *
+     * @return the annotation or <code>null</code>
+     */
+    ContributionAnnotation getContaining(final User user, final int offset) {
+        final List<ContributionAnnotation> list = get(user);
+
+        final int index = indexOfEnd(list, offset + 1);
+
+        if (index == list.size())
+            return null;
+
+        final ContributionAnnotation annotation = list.get(index);
+
+        return model.getPosition(annotation).offset < offset ? annotation
+            : null;
+    }
+
+    /**
+     * Adds the given annotation which must already be part of the model and
+     * must not overlap any other annotation of the same user.
+     */
+    void add(final ContributionAnnotation annotation) {
+        final User user = annotation.getSource();
+        final int offset = model.getPosition(annotation).offset;
+
+        final List<ContributionAnnotation> list = get(user);
+
+        int low = 0;
+        int high = list.size();
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+
+            if (model.getPosition(list.get(mid)).offset <= offset)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        list.add(low, annotation);
+
+        if (list.size() == 1)
+            annotations.put(user, list);
+    }
+
+    void remove(final ContributionAnnotation annotation) {
+        final List<ContributionAnnotation> list = annotations.get(annotation
+            .getSource());
+
+        if (list == null)
+            return;
+
+        for (final Iterator<ContributionAnnotation> it = list.iterator(); it
+            .hasNext();) {
+            if (it.next() == annotation) {
+                it.remove();
+                break;
+            }
+        }
+
+        if (list.isEmpty())
+            annotations.remove(annotation.getSource());
+    }
+
+    void removeUser(final User user) {
+        annotations.remove(user);
+    }
+
+    /**
+     * Returns the annotations of the given user after dropping the ones that
+     * are no longer part of the model, e.g because their text was deleted.
+     */
+    private List<ContributionAnnotation> get(final User user) {
+        final List<ContributionAnnotation> list = annotations.get(user);
+
+        if (list == null)
+            return new ArrayList<ContributionAnnotation>();
+
+        for (final Iterator<ContributionAnnotation> it = list.iterator(); it
+            .hasNext();) {
+            if (getPosition(it.next()) == null)
+                it.remove();
+        }
+
+        if (list.isEmpty())
+            annotations.remove(user);
+
+        return list;
+    }
+
+    /**
+     * Returns the index of the first annotation that ends at or after the
+     * given offset.
+     */
+    private int indexOfEnd(final List<ContributionAnnotation> list,
+        final int offset) {
+
+        int low = 0;
+        int high = list.size();
+
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            final Position position = model.getPosition(list.get(mid));
+
+            if (position.offset + position.length < offset)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+
+        return low;
+    }
+}
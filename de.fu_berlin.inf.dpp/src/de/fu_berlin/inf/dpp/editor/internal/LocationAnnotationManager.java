@@ -1,8 +1,13 @@
 package de.fu_berlin.inf.dpp.editor.internal;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.apache.log4j.Logger;
 import org.eclipse.jface.preference.IPreferenceStore;
@@ -12,15 +17,16 @@ import org.eclipse.jface.text.ITextViewer;
 import org.eclipse.jface.text.Position;
 import org.eclipse.jface.text.source.Annotation;
 import org.eclipse.jface.text.source.IAnnotationModel;
+import org.eclipse.jface.text.source.IAnnotationModelExtension;
 import org.eclipse.jface.text.source.ISourceViewer;
 import org.eclipse.jface.util.PropertyChangeEvent;
 import org.eclipse.ui.IEditorInput;
 import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IWorkbenchPartSite;
 import org.eclipse.ui.texteditor.IDocumentProvider;
 import org.eclipse.ui.texteditor.ITextEditor;
 
 import de.fu_berlin.inf.dpp.editor.annotations.RemoteCursorAnnotation;
-import de.fu_berlin.inf.dpp.editor.annotations.SarosAnnotation;
 import de.fu_berlin.inf.dpp.editor.annotations.SelectionAnnotation;
 import de.fu_berlin.inf.dpp.editor.annotations.SelectionFillUpAnnotation;
 import de.fu_berlin.inf.dpp.editor.annotations.ViewportAnnotation;
@@ -30,6 +36,7 @@ import de.fu_berlin.inf.dpp.preferences.EclipsePreferenceConstants;
 import de.fu_berlin.inf.dpp.session.User;
 import de.fu_berlin.inf.dpp.ui.util.SWTUtils;
 import de.fu_berlin.inf.dpp.util.Predicate;
+import de.fu_berlin.inf.dpp.util.ThreadUtils;
 
 /**
  * This class is responsible for managing annotations related with other users'
@@ -40,10 +47,56 @@ public class LocationAnnotationManager {
     private static final Logger LOG = Logger
         .getLogger(LocationAnnotationManager.class);
 
+    /**
+     * Interval in milliseconds in which the pending updates are applied to the
+     * editors, i.e about once per frame of a 60 Hz display.
+     */
+    private static final int UPDATE_INTERVAL = 16;
+
+    /** The location annotations of one user in one annotation model. */
+    private static final class UserAnnotations {
+        private SelectionAnnotation selection;
+        private RemoteCursorAnnotation cursor;
+        private SelectionFillUpAnnotation fillUp;
+        private ViewportAnnotation viewport;
+    }
+
+    /** The latest location of one user that is not shown in an editor yet. */
+    private static final class PendingUpdate {
+        private TextSelection selection;
+        private LineRange viewport;
+    }
+
     private AnnotationModelHelper annotationModelHelper;
 
     private boolean fillUpEnabled;
 
+    /**
+     * The location annotations of each user in each annotation model. The
+     * models are weakly referenced as they are owned by the document
+     * providers.
+     */
+    private final Map<IAnnotationModel, Map<User, UserAnnotations>> annotations = new WeakHashMap<IAnnotationModel, Map<User, UserAnnotations>>();
+
+    private final Map<IEditorPart, Map<User, PendingUpdate>> pendingUpdates = new LinkedHashMap<IEditorPart, Map<User, PendingUpdate>>();
+
+    private boolean updateScheduled;
+
+    private boolean disposed;
+
+    private final Runnable updateRunnable = ThreadUtils.wrapSafe(LOG,
+        new Runnable() {
+            @Override
+            public void run() {
+                updateScheduled = false;
+
+                if (disposed)
+                    return;
+
+                applyPendingUpdates();
+            }
+        });
+
     public LocationAnnotationManager(IPreferenceStore preferenceStore) {
         annotationModelHelper = new AnnotationModelHelper();
 
@@ -88,6 +141,12 @@ public class LocationAnnotationManager {
                         annotationModelHelper.removeAnnotationsFromEditor(
                             editorPart, predicate);
                     }
+
+                    for (Map<User, UserAnnotations> users : annotations
+                        .values()) {
+                        for (UserAnnotations userAnnotations : users.values())
+                            userAnnotations.fillUp = null;
+                    }
                 }
             }
         });
@@ -96,6 +155,9 @@ public class LocationAnnotationManager {
     /**
      * Create or update the annotations that represent a user's viewport
      * (visible lines of code).
+     * <p>
+     * The update is not applied immediately but with the next pending updates,
+     * see {@link #setSelection}.
      * 
      * @param user
      *            The remote user whose viewport should be visualized.
@@ -108,62 +170,8 @@ public class LocationAnnotationManager {
     public void setViewportForUser(final User user, IEditorPart editorPart,
         LineRange lineRange) {
 
-        ITextViewer viewer = EditorAPI.getViewer(editorPart);
-        if (!(viewer instanceof ISourceViewer)) {
-            return;
-        }
-
-        IDocument document = viewer.getDocument();
-        IAnnotationModel model = ((ISourceViewer) viewer).getAnnotationModel();
-
-        if (model == null) {
-            return;
-        }
-
-        // TODO Make use of AnnotationModelHelper.replaceAnnotationsInModel()
-
-        int top = lineRange.getStartLine();
-        int bottom = top + lineRange.getNumberOfLines();
-
-        // Clean-up. Remove any existing ViewportAnnotations of the given user
-        annotationModelHelper.removeAnnotationsFromModel(model,
-            new Predicate<Annotation>() {
-                @Override
-                public boolean evaluate(Annotation annotation) {
-                    return (annotation instanceof ViewportAnnotation)
-                        && ((SarosAnnotation) annotation).getSource().equals(
-                            user);
-                }
-            });
-
-        // Calculate the position of the new ViewportAnnotation and then add it
-        // to the model
-        try {
-            int lines = document.getNumberOfLines();
-            top = Math.max(0, Math.min(lines - 1, top));
-            bottom = Math.max(0, Math.min(lines - 1, bottom));
-
-            int start = document.getLineOffset(top);
-            int end = document.getLineOffset(bottom);
-
-            if (start == -1)
-                throw new BadLocationException("Start line -1");
-
-            if (end == -1 || end < start)
-                throw new BadLocationException("End line -1 or less than start");
-
-            ViewportAnnotation va = new ViewportAnnotation(user);
-
-            if (lines > 1)
-                va.setMoreThanOneLine(true);
-
-            // TODO Is there a reason *not* to use "va"?
-            SarosAnnotation annotation = va;
-            Position position = new Position(start, end - start);
-            model.addAnnotation(annotation, position);
-        } catch (BadLocationException e) {
-            LOG.warn("Internal Error:", e);
-        }
+        getPendingUpdate(editorPart, user).viewport = lineRange;
+        scheduleUpdate();
     }
 
     /**
@@ -174,22 +182,20 @@ public class LocationAnnotationManager {
      * @param editorPart
      */
     public void clearViewportForUser(final User user, IEditorPart editorPart) {
-        IAnnotationModel model = annotationModelHelper
-            .retrieveAnnotationModel(editorPart);
+        PendingUpdate update = getPendingUpdates(editorPart).get(user);
 
-        if (model == null) {
+        if (update != null)
+            update.viewport = null;
+
+        IAnnotationModel model = getViewerAnnotationModel(editorPart);
+
+        if (model == null)
             return;
-        }
 
-        annotationModelHelper.removeAnnotationsFromModel(model,
-            new Predicate<Annotation>() {
-                @Override
-                public boolean evaluate(Annotation annotation) {
-                    return (annotation instanceof ViewportAnnotation)
-                        && ((SarosAnnotation) annotation).getSource().equals(
-                            user);
-                }
-            });
+        UserAnnotations annotations = getUserAnnotations(model, user);
+
+        removeAnnotation(model, annotations.viewport);
+        annotations.viewport = null;
     }
 
     /**
@@ -201,6 +207,13 @@ public class LocationAnnotationManager {
      * text cursor. If the selection includes multiple lines an additional
      * element will be created to highlight the space between a line's last
      * character and the right margin.
+     * <p>
+     * Remote users may send many selections per second. Only the latest
+     * selection and viewport of each user is remembered and applied to the
+     * editor at most once every {@value #UPDATE_INTERVAL} milliseconds, which
+     * moves the existing annotations of the user instead of replacing them.
+     * Updates for editors that are currently not visible are kept until the
+     * editor becomes visible again, see {@link #applyPendingUpdates}.
      * 
      * @param source
      *            The remote user who made the text selection (or to whom the
@@ -217,6 +230,181 @@ public class LocationAnnotationManager {
         if (!(editorPart instanceof ITextEditor))
             return;
 
+        if (selection.isEmpty()) {
+            clearSelectionForUser(source, editorPart);
+            return;
+        }
+
+        getPendingUpdate(editorPart, source).selection = selection;
+        scheduleUpdate();
+    }
+
+    /**
+     * Removes all selection-related annotations of a user inside the given
+     * {@link IEditorPart}.
+     * 
+     * @param user
+     *            The originator of the annotations to be deleted.
+     * @param editorPart
+     */
+    public void clearSelectionForUser(final User user, IEditorPart editorPart) {
+        PendingUpdate update = getPendingUpdates(editorPart).get(user);
+
+        if (update != null)
+            update.selection = null;
+
+        IAnnotationModel model = annotationModelHelper
+            .retrieveAnnotationModel(editorPart);
+
+        if (model == null) {
+            return;
+        }
+
+        UserAnnotations annotations = getUserAnnotations(model, user);
+
+        removeAnnotation(model, annotations.selection);
+        removeAnnotation(model, annotations.cursor);
+        removeAnnotation(model, annotations.fillUp);
+
+        annotations.selection = null;
+        annotations.cursor = null;
+        annotations.fillUp = null;
+    }
+
+    /**
+     * Applies the pending selection and viewport updates of the given editor,
+     * e.g because it just became visible.
+     */
+    public void applyPendingUpdates(IEditorPart editorPart) {
+        Map<User, PendingUpdate> updates = pendingUpdates.remove(editorPart);
+
+        if (updates != null)
+            applyUpdates(editorPart, updates);
+    }
+
+    /**
+     * Discards the pending updates of the given editor because it was closed.
+     */
+    public void removeEditor(IEditorPart editorPart) {
+        pendingUpdates.remove(editorPart);
+    }
+
+    /**
+     * Discards the pending updates of the given user and forgets the
+     * annotations of the user because the user left the session. The
+     * annotations that were already added to the editors are not removed.
+     */
+    public void removeUser(User user) {
+        for (Iterator<Map<User, PendingUpdate>> it = pendingUpdates.values()
+            .iterator(); it.hasNext();) {
+
+            Map<User, PendingUpdate> updates = it.next();
+            updates.remove(user);
+
+            if (updates.isEmpty())
+                it.remove();
+        }
+
+        for (Map<User, UserAnnotations> users : annotations.values())
+            users.remove(user);
+    }
+
+    /**
+     * Discards all pending updates. Annotations that were already added to the
+     * editors are not removed.
+     */
+    public void dispose() {
+        disposed = true;
+        pendingUpdates.clear();
+        annotations.clear();
+    }
+
+    private void scheduleUpdate() {
+        if (updateScheduled || disposed)
+            return;
+
+        updateScheduled = true;
+        SWTUtils.getDisplay().timerExec(UPDATE_INTERVAL, updateRunnable);
+    }
+
+    private void applyPendingUpdates() {
+        for (Iterator<Entry<IEditorPart, Map<User, PendingUpdate>>> it = pendingUpdates
+            .entrySet().iterator(); it.hasNext();) {
+
+            Entry<IEditorPart, Map<User, PendingUpdate>> entry = it.next();
+
+            if (!isVisible(entry.getKey()))
+                continue;
+
+            it.remove();
+            applyUpdates(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void applyUpdates(IEditorPart editorPart,
+        Map<User, PendingUpdate> updates) {
+
+        for (Entry<User, PendingUpdate> entry : updates.entrySet()) {
+            PendingUpdate update = entry.getValue();
+
+            if (update.viewport != null)
+                updateViewport(entry.getKey(), editorPart, update.viewport);
+
+            if (update.selection != null)
+                updateSelection(entry.getKey(), editorPart, update.selection);
+        }
+    }
+
+    private void updateViewport(User user, IEditorPart editorPart,
+        LineRange lineRange) {
+
+        ITextViewer viewer = EditorAPI.getViewer(editorPart);
+        if (!(viewer instanceof ISourceViewer)) {
+            return;
+        }
+
+        IDocument document = viewer.getDocument();
+        IAnnotationModel model = ((ISourceViewer) viewer).getAnnotationModel();
+
+        if (model == null) {
+            return;
+        }
+
+        int top = lineRange.getStartLine();
+        int bottom = top + lineRange.getNumberOfLines();
+
+        UserAnnotations annotations = getUserAnnotations(model, user);
+
+        // Calculate the position of the ViewportAnnotation and then move it
+        try {
+            int lines = document.getNumberOfLines();
+            top = Math.max(0, Math.min(lines - 1, top));
+            bottom = Math.max(0, Math.min(lines - 1, bottom));
+
+            int start = document.getLineOffset(top);
+            int end = document.getLineOffset(bottom);
+
+            if (start == -1)
+                throw new BadLocationException("Start line -1");
+
+            if (end == -1 || end < start)
+                throw new BadLocationException("End line -1 or less than start");
+
+            if (annotations.viewport == null)
+                annotations.viewport = new ViewportAnnotation(user);
+
+            annotations.viewport.setMoreThanOneLine(lines > 1);
+
+            setPosition(model, annotations.viewport, new Position(start, end
+                - start));
+        } catch (BadLocationException e) {
+            LOG.warn("Internal Error:", e);
+        }
+    }
+
+    private void updateSelection(User source, IEditorPart editorPart,
+        TextSelection selection) {
+
         ITextEditor textEditor = (ITextEditor) editorPart;
         IDocumentProvider docProvider = textEditor.getDocumentProvider();
 
@@ -229,20 +417,16 @@ public class LocationAnnotationManager {
         if (model == null)
             return;
 
-        if (selection.isEmpty()) {
-            clearSelectionForUser(source, editorPart);
-            return;
-        }
-
         int offset = selection.getOffset();
         int length = selection.getLength();
         boolean isCursor = length == 0;
 
-        // TODO For better performance: Currently, all selection-related
-        // annotations are created and replaced individually. Since the access
-        // to the annotation model tends to be slow and the replacement may take
-        // place in batches, one could first create all new selection-related
-        // annotations and replace them at once.
+        UserAnnotations annotations = getUserAnnotations(model, source);
+
+        if (annotations.selection == null)
+            annotations.selection = new SelectionAnnotation(source, isCursor);
+        else
+            annotations.selection.setCursor(isCursor);
 
         if (isCursor) {
             if (offset > 0) {
@@ -250,24 +434,23 @@ public class LocationAnnotationManager {
                  * Highlight the character left of the cursor in the light color
                  * of the user.
                  */
-                setSelectionAnnotation(source, isCursor, new Position(
-                    offset - 1, 1), model);
+                setPosition(model, annotations.selection, new Position(
+                    offset - 1, 1));
             } else {
                 /*
                  * We have to draw this "highlight" even though it's not visible
                  * at all. This is to prevent ghosting of the highlight when
                  * jumping to the beginning of the file (offset == 0).
                  */
-                setSelectionAnnotation(source, isCursor, new Position(0, 0),
-                    model);
+                setPosition(model, annotations.selection, new Position(0, 0));
             }
         } else {
             /*
              * Highlight the selection of a remote user in the remote user's
              * light color.
              */
-            setSelectionAnnotation(source, isCursor, new Position(offset,
-                length), model);
+            setPosition(model, annotations.selection, new Position(offset,
+                length));
         }
 
         /*
@@ -275,108 +458,118 @@ public class LocationAnnotationManager {
          * session. When there is a selection, the cursor will be shown at the
          * end of it.
          */
-        setRemoteCursorAnnotation(source, new Position(offset + length), model);
+        if (annotations.cursor == null)
+            annotations.cursor = new RemoteCursorAnnotation(source);
+
+        setPosition(model, annotations.cursor, new Position(offset + length));
 
         if (fillUpEnabled) {
-            setFillUpAnnotation(source, new Position(offset, length), model);
+            /*
+             * Highlight the empty space between a line's last character and
+             * the right margin (see SelectionFillUpAnnotation).
+             */
+            if (annotations.fillUp == null)
+                annotations.fillUp = new SelectionFillUpAnnotation(source,
+                    offset, length);
+            else
+                annotations.fillUp.setSelection(offset, length);
+
+            setPosition(model, annotations.fillUp,
+                new Position(offset, length));
         }
     }
 
     /**
-     * Removes all selection-related annotations of a user inside the given
-     * {@link IEditorPart}.
-     * 
-     * @param user
-     *            The originator of the annotations to be deleted.
-     * @param editorPart
+     * Moves the given annotation to the given position or adds it to the model
+     * if it is not part of the model yet, e.g because it was removed by a
+     * refresh of the editor. The position the model already stores for the
+     * annotation is updated in place, so the painters only have to redraw the
+     * old and the new range of the annotation instead of reacting to the
+     * removal of the old and the addition of a new annotation.
      */
-    public void clearSelectionForUser(final User user, IEditorPart editorPart) {
-        IAnnotationModel model = annotationModelHelper
-            .retrieveAnnotationModel(editorPart);
+    private static void setPosition(IAnnotationModel model,
+        Annotation annotation, Position position) {
 
-        if (model == null) {
+        if (model instanceof IAnnotationModelExtension) {
+            ((IAnnotationModelExtension) model).modifyAnnotationPosition(
+                annotation, position);
             return;
         }
 
-        annotationModelHelper.removeAnnotationsFromModel(model,
-            new Predicate<Annotation>() {
-                @Override
-                public boolean evaluate(Annotation annotation) {
-                    return (annotation instanceof SelectionAnnotation
-                        || annotation instanceof SelectionFillUpAnnotation || annotation instanceof RemoteCursorAnnotation)
-                        && ((SarosAnnotation) annotation).getSource().equals(
-                            user);
-                }
-            });
+        LOG.trace("AnnotationModel does not "
+            + "support IAnnotationModelExtension: " + model);
+
+        model.removeAnnotation(annotation);
+        model.addAnnotation(annotation, position);
     }
 
-    /**
-     * Helper function to create and add an annotation that highlights the
-     * selected text (see {@link SelectionAnnotation}).
-     */
-    private void setSelectionAnnotation(User user, boolean isCursor,
-        Position position, IAnnotationModel annotationModel) {
+    private static void removeAnnotation(IAnnotationModel model,
+        Annotation annotation) {
 
-        setAnnotationForSelection(new SelectionAnnotation(user, isCursor),
-            position, annotationModel);
+        if (annotation != null)
+            model.removeAnnotation(annotation);
     }
 
-    /**
-     * Helper function to create an additional annotation that highlights the
-     * empty space between a line's last character an the right margin (see
-     * {@link SelectionFillUpAnnotation}).
-     */
-    private void setFillUpAnnotation(User user, Position position,
-        IAnnotationModel annotationModel) {
+    private static boolean isVisible(IEditorPart editorPart) {
+        IWorkbenchPartSite site = editorPart.getSite();
 
-        setAnnotationForSelection(new SelectionFillUpAnnotation(user,
-            position.offset, position.length), position, annotationModel);
+        return site != null && site.getPage() != null
+            && site.getPage().isPartVisible(editorPart);
     }
 
-    /**
-     * Helper function to create an add an annotation that marks the current
-     * text cursor position (see {@link RemoteCursorAnnotation}).
-     */
-    private void setRemoteCursorAnnotation(User user, Position position,
-        IAnnotationModel annotationModel) {
+    private static IAnnotationModel getViewerAnnotationModel(
+        IEditorPart editorPart) {
+
+        ITextViewer viewer = EditorAPI.getViewer(editorPart);
+
+        if (!(viewer instanceof ISourceViewer))
+            return null;
 
-        setAnnotationForSelection(new RemoteCursorAnnotation(user), position,
-            annotationModel);
+        return ((ISourceViewer) viewer).getAnnotationModel();
     }
 
-    /**
-     * Sets annotations related to selections made by remote users.
-     * 
-     * @param newAnnotation
-     *            {@link SarosAnnotation} that is set during this call.
-     * @param position
-     *            {@link Position} at which the annotation is replaced, removed,
-     *            or updated.
-     * @param model
-     *            {@link IAnnotationModel} that maintains the annotations for
-     *            the opened document.
-     */
-    private void setAnnotationForSelection(final SarosAnnotation newAnnotation,
-        Position position, IAnnotationModel model) {
+    private UserAnnotations getUserAnnotations(IAnnotationModel model,
+        User user) {
+
+        Map<User, UserAnnotations> users = annotations.get(model);
 
-        if (newAnnotation == null || position == null) {
-            throw new IllegalArgumentException(
-                "Both newAnnotation and position must not be null");
+        if (users == null) {
+            users = new HashMap<User, UserAnnotations>();
+            annotations.put(model, users);
         }
 
-        Predicate<Annotation> predicate = new Predicate<Annotation>() {
-            @Override
-            public boolean evaluate(Annotation annotation) {
-                return annotation.getType().equals(newAnnotation.getType())
-                    && ((SarosAnnotation) annotation).getSource().equals(
-                        newAnnotation.getSource());
-            }
-        };
+        UserAnnotations result = users.get(user);
+
+        if (result == null) {
+            result = new UserAnnotations();
+            users.put(user, result);
+        }
 
-        Map<Annotation, Position> replacement = Collections.singletonMap(
-            (Annotation) newAnnotation, position);
+        return result;
+    }
+
+    private Map<User, PendingUpdate> getPendingUpdates(IEditorPart editorPart) {
+        Map<User, PendingUpdate> updates = pendingUpdates.get(editorPart);
+
+        return updates != null ? updates : Collections
+            .<User, PendingUpdate> emptyMap();
+    }
+
+    private PendingUpdate getPendingUpdate(IEditorPart editorPart, User user) {
+        Map<User, PendingUpdate> updates = pendingUpdates.get(editorPart);
+
+        if (updates == null) {
+            updates = new LinkedHashMap<User, PendingUpdate>();
+            pendingUpdates.put(editorPart, updates);
+        }
+
+        PendingUpdate update = updates.get(user);
+
+        if (update == null) {
+            update = new PendingUpdate();
+            updates.put(user, update);
+        }
 
-        annotationModelHelper.replaceAnnotationsInModel(model, predicate,
-            replacement);
+        return update;
     }
 }
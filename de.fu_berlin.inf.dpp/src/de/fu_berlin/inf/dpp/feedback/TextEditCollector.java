@@ -1,11 +1,6 @@
 package de.fu_berlin.inf.dpp.feedback;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
 
 import org.apache.commons.lang.StringEscapeUtils;
@@ -55,6 +50,12 @@ import de.fu_berlin.inf.dpp.session.User;
  * editor) are counted as well. And refactorings can produce quite a large
  * number of characters that are counted. <br>
  * <p>
+ * The edits are not stored but aggregated as they occur, so the memory used by
+ * this collector does not grow with the length of the session. Only the local
+ * edits since the last remote edit that are younger than the largest sample
+ * interval are kept, because a following remote edit may still make them
+ * parallel.
+ * <p>
  * Fixed: The number of non parallel edits was set to 100% if there are no
  * concurrent edits, which is fine. But if there are no edits at all, the non
  * parallel edits are still set to 100% even though this should rather be 0%.
@@ -106,14 +107,11 @@ public class TextEditCollector extends AbstractStatisticCollector {
     private static final String KEY_REMOTE_USER = "textedits.remote.user";
     private static final String KEY_LOCAL_USER = "textedits.local";
 
-    private static class EditEvent {
-        private long time;
-        private int chars;
-
-        public EditEvent(long time, int chars) {
-            this.time = time;
-            this.chars = chars;
-        }
+    /** Counters of the text edits of one remote user */
+    private static class RemoteUserEdits {
+        private long chars;
+        private int pastes;
+        private long pasteChars;
     }
 
     /**
@@ -124,8 +122,14 @@ public class TextEditCollector extends AbstractStatisticCollector {
     private static final int[] sampleIntervals = { 1000, 2000, 5000, 10000,
         15000 };
 
+    private static final int MAX_SAMPLE_INTERVAL = sampleIntervals[sampleIntervals.length - 1];
+
     private long charsWritten = 0;
 
+    private int localPastes = 0;
+
+    private long localPasteChars = 0;
+
     /**
      * This threshold is the upper limit that is believed to have been produced
      * by "hand". If a single text edit activity contains more characters than
@@ -135,32 +139,32 @@ public class TextEditCollector extends AbstractStatisticCollector {
      */
     private int pasteThreshold = 16;
 
-    private User localUser = null;
-
-    /** List to contain local {@link EditEvent}s */
-    private final List<EditEvent> localEvents = Collections
-        .synchronizedList(new ArrayList<EditEvent>());
-
-    /** List to contain remote {@link EditEvent}s */
-    private final List<EditEvent> remoteEvents = Collections
-        .synchronizedList(new ArrayList<EditEvent>());
+    /**
+     * Chars of the local edits per sample interval, an edit is only counted
+     * for the smallest interval it was parallel to
+     */
+    private final long[] parallelTextEdits = new long[sampleIntervals.length];
 
-    /** Maps sample interval to chars written in this interval */
-    private final Map<Integer, Integer> parallelTextEdits = new HashMap<Integer, Integer>();
-    /** Maps sample interval to number of edits in this interval */
-    private final Map<Integer, Integer> parallelTextEditsCount = new HashMap<Integer, Integer>();
+    /** Number of the local edits per sample interval */
+    private final int[] parallelTextEditsCount = new int[sampleIntervals.length];
 
-    /** A map which should possible detect auto generation and paste actions */
-    private final Map<User, Integer> pastes = new HashMap<User, Integer>();
+    private long nonParallelTextEdits = 0;
 
-    /** A map which accumulates the characters produced within paste actions */
-    private final Map<User, Integer> pastesCharCount = new HashMap<User, Integer>();
+    /** time of the last remote edit or -1 if there was none */
+    private long lastRemoteEditTime = -1;
 
-    /**
-     * for each key {@link User} an Integer is stored which represents the total
-     * chars edited.
+    /*
+     * Local edits since the last remote edit that may still become parallel to
+     * a following remote edit, stored as ring buffer to avoid an allocation per
+     * edit
      */
-    private final Map<User, Integer> remoteCharCount = new HashMap<User, Integer>();
+    private long[] pendingTimes = new long[64];
+    private int[] pendingChars = new int[64];
+    private int pendingStart = 0;
+    private int pendingSize = 0;
+
+    /** Counters for each remote user that edited at least one character */
+    private final Map<User, RemoteUserEdits> remoteUserEdits = new HashMap<User, RemoteUserEdits>();
 
     private final IEditorManager editorManager;
 
@@ -177,62 +181,13 @@ public class TextEditCollector extends AbstractStatisticCollector {
              */
             int textLength = StringUtils.deleteWhitespace(text).length();
 
-            EditEvent event = new EditEvent(System.currentTimeMillis(),
-                textLength);
-
-            /*
-             * if the edit activity text length exceeds the threshold for
-             * possible pastes store this as a possible paste and file it for
-             * the user who made that possible paste. Moreover, store the number
-             * of characters that were "pasted" or auto generated.
-             */
-            if (textLength > pasteThreshold) {
-                Integer currentPasteCount = pastes.get(user);
-                if (currentPasteCount == null) {
-                    currentPasteCount = 0;
-                }
-                pastes.put(user, currentPasteCount + 1);
-
-                Integer currentPasteChars = pastesCharCount.get(user);
-                if (currentPasteChars == null) {
-                    currentPasteChars = 0;
-                }
-                pastesCharCount.put(user, currentPasteChars + textLength);
-
-            }
-
             if (log.isTraceEnabled()) {
                 log.trace(String.format("Received chars written from %s "
                     + "(whitespaces omitted): %s [%s]", user, textLength,
                     StringEscapeUtils.escapeJava(text)));
             }
 
-            if (textLength > 0) {
-                if (user.isLocal()) {
-                    /*
-                     * accumulate the written chars of the local user and store
-                     * the time and text length of this Activity
-                     */
-                    addToCharsWritten(textLength);
-                    localEvents.add(event);
-                } else {
-                    /*
-                     * store all remote text edits for future comparison. As
-                     * those text edits are remote it needs to be determined,
-                     * who made the edit and to increase the appropriate edited
-                     * character count. The total text edit count is increased
-                     * by one for each TextEditActivity received.
-                     */
-                    remoteEvents.add(event);
-                    Integer currentCharCount = remoteCharCount.get(user);
-                    if (currentCharCount == null) {
-                        currentCharCount = 0;
-                    }
-                    remoteCharCount.put(user, currentCharCount + textLength);
-
-                }
-
-            }
+            addTextEdit(user, textLength, System.currentTimeMillis());
         }
 
     };
@@ -244,173 +199,192 @@ public class TextEditCollector extends AbstractStatisticCollector {
         this.editorManager = editorManager;
     }
 
-    private synchronized void addToCharsWritten(int chars) {
-        charsWritten += chars;
-    }
+    synchronized void addTextEdit(User user, int textLength, long time) {
 
-    private synchronized long getCharsWritten() {
-        return charsWritten;
-    }
+        RemoteUserEdits remoteEdits = null;
 
-    @Override
-    protected void processGatheredData() {
+        if (!user.isLocal() && textLength > 0) {
+            remoteEdits = remoteUserEdits.get(user);
+
+            if (remoteEdits == null) {
+                remoteEdits = new RemoteUserEdits();
+                remoteUserEdits.put(user, remoteEdits);
+            }
+        }
 
         /*
-         * a variable to distinguish between users and assign a number to each
-         * of these users.
+         * if the edit activity text length exceeds the threshold for possible
+         * pastes store this as a possible paste and file it for the user who
+         * made that possible paste. Moreover, store the number of characters
+         * that were "pasted" or auto generated.
          */
-        int userNumber = 1;
-
-        // store C&P statistic for remote users
+        if (textLength > pasteThreshold) {
+            if (remoteEdits == null) {
+                localPastes++;
+                localPasteChars += textLength;
+            } else {
+                remoteEdits.pastes++;
+                remoteEdits.pasteChars += textLength;
+            }
+        }
 
-        for (Map.Entry<User, Integer> entry : remoteCharCount.entrySet()) {
+        if (textLength == 0)
+            return;
 
-            User currentId = entry.getKey();
-            int charCount = entry.getValue();
+        expirePendingEdits(time);
 
-            int pasteCount = 0;
-            int pasteChars = 0;
+        if (remoteEdits == null) {
+            // accumulate the written chars of the local user
+            charsWritten += textLength;
+            addLocalEdit(time, textLength);
+        } else {
+            /*
+             * the pending local edits have found their nearest following remote
+             * edit, later ones can only be farther away
+             */
+            while (pendingSize > 0)
+                countPendingEdit(time);
 
-            if (pastes.get(currentId) != null) {
-                pasteCount = pastes.get(currentId);
-                pasteChars = pastesCharCount.get(currentId);
-            }
+            remoteEdits.chars += textLength;
+            lastRemoteEditTime = time;
+        }
+    }
 
-            storeRemoteUserTextEditsStatistic(userNumber, pasteCount,
-                pasteChars, charCount);
+    private void addLocalEdit(long time, int chars) {
+        long distance = getDistanceToLastRemoteEdit(time);
 
-            // increment userNumber (so that next remote peer gets a different
-            // number)
-            userNumber++;
+        // nothing that happens later can move it to a smaller interval
+        if (distance <= sampleIntervals[0]) {
+            countEdit(distance, chars);
+            return;
         }
 
-        final long totalCharsWritten = getCharsWritten();
+        if (pendingSize == pendingTimes.length) {
+            long[] times = new long[pendingTimes.length * 2];
+            int[] charCounts = new int[times.length];
 
-        // store C&P statistic for local user
-
-        int pasteCount = 0;
-        int pasteChars = 0;
+            for (int i = 0; i < pendingSize; i++) {
+                int index = (pendingStart + i) % pendingTimes.length;
+                times[i] = pendingTimes[index];
+                charCounts[i] = pendingChars[index];
+            }
 
-        if (pastes.get(localUser) != null) {
-            pasteCount = pastes.get(localUser);
-            pasteChars = pastesCharCount.get(localUser);
+            pendingTimes = times;
+            pendingChars = charCounts;
+            pendingStart = 0;
         }
 
-        storeLocalUserTextEditsStatistic(pasteCount, pasteChars,
-            totalCharsWritten);
-
-        // generate and store parallel text edits
+        int index = (pendingStart + pendingSize) % pendingTimes.length;
+        pendingTimes[index] = time;
+        pendingChars[index] = chars;
+        pendingSize++;
+    }
 
-        // process(...) modifies localEvents collection !
-        for (int interval : sampleIntervals)
-            process(interval);
+    /**
+     * Counts all pending local edits that are too old to be parallel to an
+     * edit at the given time.
+     */
+    private void expirePendingEdits(long time) {
+        while (pendingSize > 0
+            && time - pendingTimes[pendingStart] > MAX_SAMPLE_INTERVAL)
+            countPendingEdit(Long.MAX_VALUE);
+    }
 
-        // all in the localEvents list remaining events were non-parallel
-        long nonParallelTextEdits = 0;
+    /**
+     * Counts the oldest pending local edit.
+     * 
+     * @param remoteEditTime
+     *            time of the remote edit following it or
+     *            {@link Long#MAX_VALUE} if there is none
+     */
+    private void countPendingEdit(long remoteEditTime) {
+        long time = pendingTimes[pendingStart];
+        int chars = pendingChars[pendingStart];
 
-        for (EditEvent local : localEvents)
-            nonParallelTextEdits += local.chars;
+        pendingStart = (pendingStart + 1) % pendingTimes.length;
+        pendingSize--;
 
-        storeNonParallelTextEditsStatistic(nonParallelTextEdits,
-            totalCharsWritten);
+        long distance = getDistanceToLastRemoteEdit(time);
 
-        if (parallelTextEditsCount.isEmpty())
-            return;
+        if (remoteEditTime != Long.MAX_VALUE)
+            distance = Math.min(distance, Math.abs(remoteEditTime - time));
 
-        assert (parallelTextEdits.size() == parallelTextEditsCount.size());
-        assert (parallelTextEdits.keySet().equals(parallelTextEditsCount
-            .keySet()));
+        countEdit(distance, chars);
+    }
 
-        final List<Integer> intervalRanges = Arrays.asList(parallelTextEdits
-            .keySet().toArray(new Integer[0]));
+    private long getDistanceToLastRemoteEdit(long time) {
+        if (lastRemoteEditTime == -1)
+            return Long.MAX_VALUE;
 
-        for (int intervalRange : intervalRanges) {
-            storeParallelTextEditsStatistic(intervalRange,
-                parallelTextEditsCount.get(intervalRange),
-                parallelTextEdits.get(intervalRange), totalCharsWritten);
-        }
+        return Math.abs(time - lastRemoteEditTime);
     }
 
     /**
-     * Processes the given interval width, i.e. the local and remote edit events
-     * are iterated until a pair is found that fulfills the condition: <br>
-     * <code>local.time is element of [lastRemote.time - intervalWidth,
-     * lastRemote.time + intervalWidth].</code><br>
-     * <br>
-     * This local edit is than counted as a parallel one.
-     * 
-     * @param intervalWidth
-     *            the width of the interval to be considered
+     * Counts a local edit for the smallest sample interval that contains the
+     * given distance to the nearest remote edit or as non-parallel edit if
+     * there is none.
      */
-    private void process(int intervalWidth) {
+    private void countEdit(long distance, int chars) {
+        for (int i = 0; i < sampleIntervals.length; i++) {
+            if (distance <= sampleIntervals[i]) {
+                parallelTextEdits[i] += chars;
+                parallelTextEditsCount[i]++;
+                return;
+            }
+        }
 
-        // FIXME synchronized(remoteEvents) { synchronized(localEvents) { ...
-        Iterator<EditEvent> remote = remoteEvents.iterator();
-        EditEvent lastRemote = (remote.hasNext() ? remote.next() : null);
+        nonParallelTextEdits += chars;
+    }
 
-        for (Iterator<EditEvent> localIterator = localEvents.iterator(); localIterator
-            .hasNext();) {
-            EditEvent local = localIterator.next();
+    @Override
+    protected synchronized void processGatheredData() {
 
-            /*
-             * FIXME why is this done in the for loop when the iterator is only
-             * obtained once ?! If this is intended either move the while loop
-             * out of the for loop or correct this, which may lead to another
-             * serious performance issue for very long sessions. O(n^2)
-             * performance
-             */
-            // Skip all remote events too far in the past
-            while (lastRemote != null
-                && local.time > lastRemote.time + intervalWidth) {
-                lastRemote = (remote.hasNext() ? remote.next() : null);
-            }
+        // no remote edit will follow anymore
+        while (pendingSize > 0)
+            countPendingEdit(Long.MAX_VALUE);
 
-            if (lastRemote != null
-                && local.time >= lastRemote.time - intervalWidth) {
-                /*
-                 * This local edit occurred inside the time frame
-                 * [lastRemote.time - intervalWidth, lastRemote.time +
-                 * intervalWidth]. Therefore count it as a parallel text edit
-                 * and remove it from the list, because we are done with it.
-                 */
-                int intervalSeconds = (int) Math.round(intervalWidth / 1000.0);
-                addToMap(parallelTextEdits, intervalSeconds, local.chars);
-                addToMap(parallelTextEditsCount, intervalSeconds, 1);
-                localIterator.remove();
-            }
-            /*
-             * Else: This local edit is non-parallel for the current
-             * intervalWidth but it might be parallel to a larger interval. Just
-             * leave it in the map and accumulate all remaining events as
-             * non-parallel at the end.
-             */
+        /*
+         * a variable to distinguish between users and assign a number to each
+         * of these users.
+         */
+        int userNumber = 1;
+
+        // store C&P statistic for remote users
+
+        for (RemoteUserEdits edits : remoteUserEdits.values()) {
+
+            storeRemoteUserTextEditsStatistic(userNumber, edits.pastes,
+                edits.pasteChars, edits.chars);
+
+            // increment userNumber (so that next remote peer gets a different
+            // number)
+            userNumber++;
         }
-    }
 
-    /**
-     * Stores the given value for the given key in the map. If there is a
-     * previous value for this key, the old value is added to the new one and
-     * the result is stored in the map.
-     * 
-     * @param map
-     * @param key
-     * @param value
-     */
-    private static void addToMap(Map<Integer, Integer> map, Integer key,
-        Integer value) {
-        Integer oldValue = map.get(key);
+        // store C&P statistic for local user
+
+        storeLocalUserTextEditsStatistic(localPastes, localPasteChars,
+            charsWritten);
+
+        // store parallel text edits
+
+        storeNonParallelTextEditsStatistic(nonParallelTextEdits, charsWritten);
+
+        for (int i = 0; i < sampleIntervals.length; i++) {
+            if (parallelTextEditsCount[i] == 0)
+                continue;
+
+            int intervalSeconds = (int) Math
+                .round(sampleIntervals[i] / 1000.0);
 
-        if (oldValue != null) {
-            value += oldValue;
+            storeParallelTextEditsStatistic(intervalSeconds,
+                parallelTextEditsCount[i], parallelTextEdits[i], charsWritten);
         }
-        map.put(key, value);
     }
 
     @Override
     protected void doOnSessionStart(ISarosSession sarosSession) {
         editorManager.addSharedEditorListener(editorListener);
-        // set local users JID at the beginning of the session
-        localUser = sarosSession.getLocalUser();
     }
 
     @Override
@@ -3,7 +3,6 @@ package de.fu_berlin.inf.dpp.project;
 import java.util.ArrayList;
 import java.util.List;
 
-import org.apache.log4j.Logger;
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
@@ -12,56 +11,46 @@ import org.eclipse.core.resources.IResourceDeltaVisitor;
 import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.IPath;
 
-import de.fu_berlin.inf.dpp.activities.FileActivity;
-import de.fu_berlin.inf.dpp.activities.FileActivity.Purpose;
-import de.fu_berlin.inf.dpp.activities.FolderCreatedActivity;
-import de.fu_berlin.inf.dpp.activities.FolderDeletedActivity;
-import de.fu_berlin.inf.dpp.activities.IResourceActivity;
 import de.fu_berlin.inf.dpp.activities.SPath;
 import de.fu_berlin.inf.dpp.editor.EditorManager;
 import de.fu_berlin.inf.dpp.filesystem.ResourceAdapterFactory;
+import de.fu_berlin.inf.dpp.project.ResourceChange.Kind;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
-import de.fu_berlin.inf.dpp.session.User;
-import de.fu_berlin.inf.dpp.util.FileUtils;
 
 /**
- * Visits the resource changes in a shared project.
+ * Visits the resource changes in a shared project. The visitor only records
+ * which resources have changed, it does <b>not</b> read the content of the
+ * changed files.
  * <p>
  * <b>Note:</b> The visitor has to be reset in order to be reused.
  */
 final class ProjectDeltaVisitor implements IResourceDeltaVisitor {
 
-    private static final Logger LOG = Logger
-        .getLogger(ProjectDeltaVisitor.class);
-
     private static final int CAPACITY_THRESHOLD = 128;
 
     private final EditorManager editorManager;
 
-    private final User user;
-
     private final ISarosSession session;
 
-    private List<IResourceActivity> resourceActivities = new ArrayList<IResourceActivity>(
+    private List<ResourceChange> resourceChanges = new ArrayList<ResourceChange>(
         CAPACITY_THRESHOLD);
 
     public ProjectDeltaVisitor(ISarosSession session,
         EditorManager editorManager) {
         this.session = session;
         this.editorManager = editorManager;
-        this.user = session.getLocalUser();
     }
 
-    public List<IResourceActivity> getActivities() {
-        return sort(resourceActivities);
+    public List<ResourceChange> getChanges() {
+        return sort(resourceChanges);
     }
 
     public void reset() {
-        if (resourceActivities.size() > CAPACITY_THRESHOLD) {
-            resourceActivities = new ArrayList<IResourceActivity>(
+        if (resourceChanges.size() > CAPACITY_THRESHOLD) {
+            resourceChanges = new ArrayList<ResourceChange>(
                 CAPACITY_THRESHOLD);
         } else {
-            resourceActivities.clear();
+            resourceChanges.clear();
         }
     }
 
@@ -181,20 +170,10 @@ final class ProjectDeltaVisitor implements IResourceDeltaVisitor {
         final SPath spath = new SPath(ResourceAdapterFactory.create(resource));
 
         if (isFile(resource)) {
-            byte[] content = FileUtils.getLocalFileContent((IFile) resource
-                .getAdapter(IFile.class));
-
-            if (content == null) {
-                logResourceReadError(resource);
-                return;
-            }
-
-            // TODO add encoding
-            addActivity(FileActivity.created(user, spath, content, null,
-                Purpose.ACTIVITY));
-
+            addChange(ResourceChange.fileAdded(spath,
+                (IFile) resource.getAdapter(IFile.class)));
         } else if (isFolder(resource)) {
-            addActivity(new FolderCreatedActivity(user, spath));
+            addChange(ResourceChange.folderAdded(spath));
         } else {
             assert false : "cannot handle resource of IResource#getType() = "
                 + resource.getType();
@@ -204,42 +183,29 @@ final class ProjectDeltaVisitor implements IResourceDeltaVisitor {
     private void generateMoved(IResource resource, IPath oldFullPath,
         IProject oldProject, boolean contentChange) {
 
-        byte[] content = null;
-
-        if (contentChange) {
-            assert resource.getType() == IResource.FILE;
-
-            content = FileUtils.getLocalFileContent((IFile) resource
-                .getAdapter(IFile.class));
-
-            if (content == null) {
-                logResourceReadError(resource);
-                return;
-            }
-        }
+        assert resource.getType() == IResource.FILE;
 
-        // TODO add encoding
-        addActivity(FileActivity.moved(
-            user,
+        addChange(ResourceChange.fileMoved(
             new SPath(ResourceAdapterFactory.create(resource)),
             new SPath(ResourceAdapterFactory.create(oldProject),
                 ResourceAdapterFactory.create(oldFullPath
-                    .removeFirstSegments(1))), content, null));
+                    .removeFirstSegments(1))),
+            (IFile) resource.getAdapter(IFile.class), contentChange));
     }
 
     private void generateRemoved(IResource resource) {
 
+        final SPath spath = new SPath(ResourceAdapterFactory.create(resource));
+
         if (resource instanceof IFile) {
-            addActivity(FileActivity.removed(user, new SPath(
-                ResourceAdapterFactory.create(resource)), Purpose.ACTIVITY));
+            addChange(ResourceChange.fileRemoved(spath));
         } else {
-            addActivity(new FolderDeletedActivity(user, new SPath(
-                ResourceAdapterFactory.create(resource))));
+            addChange(ResourceChange.folderRemoved(spath));
         }
     }
 
     /**
-     * Adds a FileActivity.created if the file is currently not managed by the
+     * Adds a content change if the file is currently not managed by the
      * EditorManager. We ignore managed files because otherwise we might send
      * CHANGED events for files that are also handled by the editor manager.
      * <p>
@@ -261,19 +227,12 @@ final class ProjectDeltaVisitor implements IResourceDeltaVisitor {
                 .isManaged((IFile) resource.getAdapter(IFile.class)))
             return;
 
-        byte[] content = FileUtils.getLocalFileContent((IFile) resource
-            .getAdapter(IFile.class));
-
-        if (content == null)
-            logResourceReadError(resource);
-        // TODO add encoding
-        else
-            addActivity(FileActivity.created(user, spath, content, null,
-                Purpose.ACTIVITY));
+        addChange(ResourceChange.fileChanged(spath,
+            (IFile) resource.getAdapter(IFile.class)));
     }
 
-    private void addActivity(IResourceActivity activity) {
-        resourceActivities.add(activity);
+    private void addChange(ResourceChange change) {
+        resourceChanges.add(change);
     }
 
     // Utility methods
@@ -310,46 +269,39 @@ final class ProjectDeltaVisitor implements IResourceDeltaVisitor {
     }
 
     /**
-     * Sorts the given resource activities, ensuring that folders are always
+     * Sorts the given resource changes, ensuring that folders are always
      * created before files and files are always deleted before folders.
      */
-    private static List<IResourceActivity> sort(
-        final List<IResourceActivity> resourceActivities) {
+    private static List<ResourceChange> sort(
+        final List<ResourceChange> resourceChanges) {
         /*
          * haferburg: Sorting is not necessary, because activities are already
          * sorted enough (activity on parent comes before activity on child).
          * All we need to do is make sure that folders are created first and
          * deleted last. The sorting stuff was introduced with 1742 (1688).
          */
-        List<IResourceActivity> fileActivities = new ArrayList<IResourceActivity>();
-        List<IResourceActivity> folderCreateActivities = new ArrayList<IResourceActivity>();
-        List<IResourceActivity> folderRemoveActivities = new ArrayList<IResourceActivity>();
-        List<IResourceActivity> otherActivities = new ArrayList<IResourceActivity>();
-
-        // Split all collectedActivities.
-        for (IResourceActivity activity : resourceActivities) {
-            if (activity instanceof FileActivity) {
-                fileActivities.add(activity);
-            } else if (activity instanceof FolderCreatedActivity) {
-                folderCreateActivities.add(activity);
-            } else if (activity instanceof FolderDeletedActivity) {
-                folderRemoveActivities.add(activity);
+        List<ResourceChange> fileChanges = new ArrayList<ResourceChange>();
+        List<ResourceChange> folderCreateChanges = new ArrayList<ResourceChange>();
+        List<ResourceChange> folderRemoveChanges = new ArrayList<ResourceChange>();
+
+        // Split all collected changes.
+        for (ResourceChange change : resourceChanges) {
+            if (change.isFileChange()) {
+                fileChanges.add(change);
+            } else if (change.getKind() == Kind.FOLDER_ADDED) {
+                folderCreateChanges.add(change);
             } else {
-                otherActivities.add(activity);
+                folderRemoveChanges.add(change);
             }
         }
 
-        // Add activities to the result.
-        List<IResourceActivity> result = new ArrayList<IResourceActivity>();
-        result.addAll(folderCreateActivities);
-        result.addAll(fileActivities);
-        result.addAll(folderRemoveActivities);
-        result.addAll(otherActivities);
+        // Add changes to the result.
+        List<ResourceChange> result = new ArrayList<ResourceChange>(
+            resourceChanges.size());
+        result.addAll(folderCreateChanges);
+        result.addAll(fileChanges);
+        result.addAll(folderRemoveChanges);
 
         return result;
     }
-
-    private static void logResourceReadError(IResource resource) {
-        LOG.error("could not read contents of file: " + resource.getFullPath());
-    }
 }
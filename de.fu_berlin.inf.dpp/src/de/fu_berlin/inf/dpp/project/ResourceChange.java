@@ -0,0 +1,104 @@
+package de.fu_berlin.inf.dpp.project;
+
+import org.eclipse.core.resources.IFile;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+
+/**
+ * Describes a single change of a shared resource without carrying the content
+ * of the resource. The content of changed files is read when the change is
+ * converted to an activity.
+ */
+final class ResourceChange {
+
+    enum Kind {
+        /** a file that did not exist before was added */
+        FILE_ADDED,
+        /** the content of an existing file has changed */
+        FILE_CHANGED,
+        /** a file was removed */
+        FILE_REMOVED,
+        /** a file was moved, its content may have changed too */
+        FILE_MOVED,
+        /** a folder was added */
+        FOLDER_ADDED,
+        /** a folder was removed */
+        FOLDER_REMOVED
+    }
+
+    private final Kind kind;
+    private final SPath path;
+    private final SPath oldPath;
+    private final IFile file;
+    private final boolean contentChange;
+
+    private ResourceChange(Kind kind, SPath path, SPath oldPath, IFile file,
+        boolean contentChange) {
+        this.kind = kind;
+        this.path = path;
+        this.oldPath = oldPath;
+        this.file = file;
+        this.contentChange = contentChange;
+    }
+
+    static ResourceChange fileAdded(SPath path, IFile file) {
+        return new ResourceChange(Kind.FILE_ADDED, path, null, file, true);
+    }
+
+    static ResourceChange fileChanged(SPath path, IFile file) {
+        return new ResourceChange(Kind.FILE_CHANGED, path, null, file, true);
+    }
+
+    static ResourceChange fileRemoved(SPath path) {
+        return new ResourceChange(Kind.FILE_REMOVED, path, null, null, false);
+    }
+
+    static ResourceChange fileMoved(SPath path, SPath oldPath, IFile file,
+        boolean contentChange) {
+        return new ResourceChange(Kind.FILE_MOVED, path, oldPath, file,
+            contentChange);
+    }
+
+    static ResourceChange folderAdded(SPath path) {
+        return new ResourceChange(Kind.FOLDER_ADDED, path, null, null, false);
+    }
+
+    static ResourceChange folderRemoved(SPath path) {
+        return new ResourceChange(Kind.FOLDER_REMOVED, path, null, null, false);
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    SPath getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the path the file was moved from or <code>null</code> if this
+     * change is not a move.
+     */
+    SPath getOldPath() {
+        return oldPath;
+    }
+
+    /**
+     * Returns the file whose content has to be read or <code>null</code> if
+     * this change does not need the content of the resource.
+     */
+    IFile getFile() {
+        return contentChange ? file : null;
+    }
+
+    boolean isFileChange() {
+        return kind == Kind.FILE_ADDED || kind == Kind.FILE_CHANGED
+            || kind == Kind.FILE_REMOVED || kind == Kind.FILE_MOVED;
+    }
+
+    @Override
+    public String toString() {
+        return kind + "[" + (oldPath == null ? "" : oldPath + " -> ") + path
+            + "]";
+    }
+}
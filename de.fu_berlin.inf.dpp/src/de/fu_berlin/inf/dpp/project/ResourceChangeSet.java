@@ -0,0 +1,129 @@
+package de.fu_berlin.inf.dpp.project;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.project.ResourceChange.Kind;
+
+/**
+ * Collapses the resource changes of multiple resource deltas into a minimal
+ * ordered set of changes. Consecutive changes of the same file are merged into
+ * one change that is placed at the position of the latest change, e.g a file
+ * that is modified several times results in one change and a file that is
+ * added and removed again results in no change at all.
+ * <p>
+ * Folder changes and file moves are never merged and act as a barrier, i.e
+ * changes before and after them are not merged. A file move is a barrier for
+ * its old and new path. A folder change is a barrier for all files, as it may
+ * affect every file below the folder.
+ * <p>
+ * This class is <b>not</b> thread safe.
+ */
+final class ResourceChangeSet {
+
+    /** the changes in order, merged changes are set to <code>null</code> */
+    private final List<ResourceChange> changes = new ArrayList<ResourceChange>();
+
+    /** index of the latest mergeable change for every file */
+    private final Map<SPath, Integer> fileChangeIndices = new HashMap<SPath, Integer>();
+
+    private int size;
+
+    /**
+     * Adds the given changes in the given order.
+     */
+    void addAll(List<ResourceChange> resourceChanges) {
+        for (ResourceChange change : resourceChanges)
+            add(change);
+    }
+
+    /**
+     * Adds the given change and merges it with a previous change of the same
+     * file if possible.
+     */
+    void add(ResourceChange change) {
+
+        if (!change.isFileChange()) {
+            fileChangeIndices.clear();
+            append(change);
+            return;
+        }
+
+        final SPath path = change.getPath();
+
+        if (change.getKind() == Kind.FILE_MOVED) {
+            fileChangeIndices.remove(change.getOldPath());
+            fileChangeIndices.remove(path);
+            append(change);
+            return;
+        }
+
+        final Integer index = fileChangeIndices.remove(path);
+
+        if (index == null) {
+            fileChangeIndices.put(path, append(change));
+            return;
+        }
+
+        final ResourceChange previous = changes.set(index, null);
+        size--;
+
+        final ResourceChange merged = merge(previous, change);
+
+        if (merged != null)
+            fileChangeIndices.put(path, append(merged));
+    }
+
+    /**
+     * Returns the collapsed changes in order.
+     */
+    List<ResourceChange> getChanges() {
+        final List<ResourceChange> result = new ArrayList<ResourceChange>(size);
+
+        for (ResourceChange change : changes)
+            if (change != null)
+                result.add(change);
+
+        return result;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int append(ResourceChange change) {
+        changes.add(change);
+        size++;
+        return changes.size() - 1;
+    }
+
+    /**
+     * Merges two changes of the same file. Neither change is a move.
+     *
+     * @return the merged change or <code>null</code> if both changes cancel
+     *         each other out
+     */
+    private static ResourceChange merge(ResourceChange previous,
+        ResourceChange current) {
+
+        final boolean existedBefore = previous.getKind() != Kind.FILE_ADDED;
+
+        if (current.getKind() == Kind.FILE_REMOVED)
+            return existedBefore ? current : null;
+
+        /*
+         * the content has to be send anyway, but if the file did not exist
+         * before the change set a later removal cancels it out
+         */
+        return existedBefore ? ResourceChange.fileChanged(current.getPath(),
+            current.getFile()) : ResourceChange.fileAdded(current.getPath(),
+            current.getFile());
+    }
+}
@@ -4,9 +4,17 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.log4j.Logger;
 import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResourceChangeEvent;
 import org.eclipse.core.resources.IResourceChangeListener;
@@ -19,8 +27,11 @@ import org.eclipse.core.runtime.jobs.Job;
 import org.picocontainer.Startable;
 import org.picocontainer.annotations.Inject;
 
+import de.fu_berlin.inf.dpp.activities.FileActivity;
+import de.fu_berlin.inf.dpp.activities.FileActivity.Purpose;
+import de.fu_berlin.inf.dpp.activities.FolderCreatedActivity;
+import de.fu_berlin.inf.dpp.activities.FolderDeletedActivity;
 import de.fu_berlin.inf.dpp.activities.IActivity;
-import de.fu_berlin.inf.dpp.activities.IResourceActivity;
 import de.fu_berlin.inf.dpp.annotations.Component;
 import de.fu_berlin.inf.dpp.editor.EditorManager;
 import de.fu_berlin.inf.dpp.filesystem.ResourceAdapterFactory;
@@ -29,8 +40,13 @@ import de.fu_berlin.inf.dpp.session.AbstractActivityProducer;
 import de.fu_berlin.inf.dpp.session.AbstractSessionListener;
 import de.fu_berlin.inf.dpp.session.ISarosSession;
 import de.fu_berlin.inf.dpp.session.ISessionListener;
+import de.fu_berlin.inf.dpp.session.User;
 import de.fu_berlin.inf.dpp.synchronize.Blockable;
 import de.fu_berlin.inf.dpp.synchronize.StopManager;
+import de.fu_berlin.inf.dpp.ui.util.SWTUtils;
+import de.fu_berlin.inf.dpp.util.FileUtils;
+import de.fu_berlin.inf.dpp.util.NamedThreadFactory;
+import de.fu_berlin.inf.dpp.util.ThreadUtils;
 
 /**
  * This manager is responsible for handling all resource changes that aren't
@@ -38,6 +54,12 @@ import de.fu_berlin.inf.dpp.synchronize.StopManager;
  * entering text in a text editor. It produces and consumes file and folder
  * activities.
  * <p>
+ * Large resource changes are not converted to activities inside the resource
+ * change notification. The changes of all resource deltas that arrive within
+ * {@value #BATCH_DELAY} ms are collapsed into one {@link ResourceChangeSet},
+ * the content of the changed files is read in the background and the
+ * resulting activities are fired as one batch.
+ * <p>
  * TODO Extract AbstractActivityProducer/Consumer functionality in another
  * classes ResourceActivityProducer/Consumer, rename to
  * SharedResourceChangeListener.
@@ -71,11 +93,35 @@ public class SharedResourcesManager extends AbstractActivityProducer implements
     private static final Logger log = Logger
         .getLogger(SharedResourcesManager.class);
 
+    /**
+     * Time in milliseconds resource changes are collected before they are
+     * converted to activities.
+     */
+    private static final long BATCH_DELAY = 200;
+
+    /**
+     * Resource deltas with up to this number of changes are converted to
+     * activities immediately if no batch is pending, so small changes, e.g a
+     * file created by a wizard that is opened right after, keep their order
+     * relative to the activities of other producers.
+     */
+    private static final int IMMEDIATE_THRESHOLD = 16;
+
+    /**
+     * Maximum number of resource changes that are converted to activities and
+     * fired at once, limits the amount of file content held in memory.
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
+    /** Maximum number of files whose content is read concurrently. */
+    private static final int MAX_CONTENT_READERS = Math.max(1,
+        Math.min(4, Runtime.getRuntime().availableProcessors()));
+
     /**
      * If the StopManager has paused the project, the SharedResourcesManager
      * doesn't react to resource changes.
      */
-    private boolean pause = false;
+    private volatile boolean pause = false;
 
     private final ISarosSession sarosSession;
 
@@ -93,6 +139,27 @@ public class SharedResourcesManager extends AbstractActivityProducer implements
     /** map that holds the current open or closed state for every shared project */
     private final Map<IProject, Boolean> projectStates = new HashMap<IProject, Boolean>();
 
+    private final Object batchLock = new Object();
+
+    /** changes not yet converted to activities, guarded by batchLock */
+    private ResourceChangeSet pendingChanges = new ResourceChangeSet();
+
+    /** guarded by batchLock */
+    private boolean isFlushScheduled;
+
+    /** guarded by batchLock */
+    private boolean isFlushInProgress;
+
+    /**
+     * <code>true</code> while activities are fired, {@link Blockable#block()}
+     * waits until it is reset, guarded by batchLock
+     */
+    private boolean isFiring;
+
+    private ScheduledThreadPoolExecutor batchExecutor;
+
+    private ExecutorService contentReader;
+
     private final ISessionListener sessionListener = new AbstractSessionListener() {
 
         @Override
@@ -121,16 +188,49 @@ public class SharedResourcesManager extends AbstractActivityProducer implements
         @Override
         public void unblock() {
             SharedResourcesManager.this.pause = false;
+
+            synchronized (batchLock) {
+                if (!pendingChanges.isEmpty())
+                    scheduleFlush();
+            }
         }
 
+        /**
+         * Waits until activities that are currently fired are passed to the
+         * session. Activities are only fired on the UI thread, so this never
+         * waits if called from the UI thread.
+         */
         @Override
         public void block() {
-            SharedResourcesManager.this.pause = true;
+            boolean interrupted = false;
+
+            synchronized (batchLock) {
+                SharedResourcesManager.this.pause = true;
+
+                while (isFiring) {
+                    try {
+                        batchLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
         }
     };
 
     @Override
     public void start() {
+        batchExecutor = new ScheduledThreadPoolExecutor(1,
+            new NamedThreadFactory("ResourceChangeBatcher", false));
+
+        batchExecutor.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+
+        contentReader = Executors.newFixedThreadPool(MAX_CONTENT_READERS,
+            new NamedThreadFactory("ResourceContentReader-"));
+
         sarosSession.addListener(sessionListener);
         sarosSession.addActivityProducer(this);
         stopManager.addBlockable(stopManagerListener);
@@ -144,6 +244,17 @@ public class SharedResourcesManager extends AbstractActivityProducer implements
         stopManager.removeBlockable(stopManagerListener);
         sarosSession.removeActivityProducer(this);
         sarosSession.removeListener(sessionListener);
+
+        synchronized (batchLock) {
+            if (!pendingChanges.isEmpty())
+                log.warn("discarding " + pendingChanges.size()
+                    + " resource changes as the session is stopped");
+
+            pendingChanges = new ResourceChangeSet();
+        }
+
+        batchExecutor.shutdown();
+        contentReader.shutdownNow();
     }
 
     public SharedResourcesManager(ISarosSession sarosSession,
@@ -236,7 +347,7 @@ public class SharedResourcesManager extends AbstractActivityProducer implements
 
         assert delta.getResource() instanceof IWorkspaceRoot;
 
-        final List<IResourceActivity> resourceActivities = new ArrayList<IResourceActivity>();
+        final List<ResourceChange> resourceChanges = new ArrayList<ResourceChange>();
 
         for (IResourceDelta projectDelta : delta.getAffectedChildren()) {
 
@@ -275,21 +386,242 @@ public class SharedResourcesManager extends AbstractActivityProducer implements
                     e);
             }
 
-            resourceActivities.addAll(projectDeltaVisitor.getActivities());
+            resourceChanges.addAll(projectDeltaVisitor.getChanges());
         }
 
         if (log.isTraceEnabled()) {
-            log.trace("generated resource activities for current resource delta '"
-                + delta + "' : " + resourceActivities);
+            log.trace("generated resource changes for current resource delta '"
+                + delta + "' : " + resourceChanges);
+        }
+
+        if (resourceChanges.isEmpty())
+            return;
+
+        final ResourceChangeSet changeSet;
+
+        synchronized (batchLock) {
+            if (!pendingChanges.isEmpty() || isFlushInProgress
+                || resourceChanges.size() > IMMEDIATE_THRESHOLD) {
+                pendingChanges.addAll(resourceChanges);
+                scheduleFlush();
+                return;
+            }
+
+            changeSet = new ResourceChangeSet();
+            changeSet.addAll(resourceChanges);
+        }
+
+        final List<ResourceChange> changes = changeSet.getChanges();
+        final List<IActivity> activities = createActivities(changes);
+
+        if (activities != null)
+            fireUnlessBlocked(changes, activities);
+    }
+
+    // guarded by batchLock
+    private void scheduleFlush() {
+        if (isFlushScheduled || batchExecutor.isShutdown())
+            return;
+
+        isFlushScheduled = true;
+
+        batchExecutor.schedule(ThreadUtils.wrapSafe(log, new Runnable() {
+            @Override
+            public void run() {
+                flushPendingChanges();
+            }
+        }), BATCH_DELAY, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Converts all pending resource changes to activities and fires them. Does
+     * nothing if the session is currently paused, the changes will be flushed
+     * as soon as the session is unblocked. If the session is paused during the
+     * flush the remaining changes are kept for the next flush.
+     */
+    private void flushPendingChanges() {
+        final List<ResourceChange> changes;
+
+        synchronized (batchLock) {
+            isFlushScheduled = false;
+
+            if (pause)
+                return;
+
+            changes = pendingChanges.getChanges();
+            pendingChanges = new ResourceChangeSet();
+            isFlushInProgress = true;
+        }
+
+        if (log.isTraceEnabled())
+            log.trace("flushing " + changes.size() + " resource changes");
+
+        try {
+            for (int i = 0; i < changes.size(); i += MAX_BATCH_SIZE) {
+                final List<ResourceChange> batch = changes.subList(i,
+                    Math.min(changes.size(), i + MAX_BATCH_SIZE));
+
+                final List<IActivity> activities = createActivities(batch);
+
+                if (activities == null)
+                    return;
+
+                if (!fireUnlessBlocked(changes.subList(i, changes.size()),
+                    activities))
+                    return;
+            }
+        } finally {
+            synchronized (batchLock) {
+                isFlushInProgress = false;
+            }
         }
+    }
+
+    /**
+     * Fires the given activities on the UI thread unless the session was paused
+     * in the meantime. In that case the given changes are put in front of the
+     * pending changes and flushed as soon as the session is unblocked.
+     * 
+     * @param changes
+     *            the changes the activities were created for, followed by the
+     *            changes that are not yet converted
+     * @return <code>true</code> if the activities were fired
+     */
+    private boolean fireUnlessBlocked(final List<ResourceChange> changes,
+        final List<IActivity> activities) {
+
+        final boolean[] fired = new boolean[1];
 
         /*
-         * TODO for every activity have to synchronize on the GUI thread, maybe
-         * offer a bulk method ?
+         * The StopManager blocks on the UI thread when it executes a lock
+         * request, so firing on the UI thread serializes the check with the
+         * block and block() never has to wait for the UI thread
          */
-        for (final IActivity activity : resourceActivities)
-            fireActivity(activity);
+        SWTUtils.runSafeSWTSync(log, new Runnable() {
+            @Override
+            public void run() {
+                synchronized (batchLock) {
+                    if (pause) {
+                        final ResourceChangeSet requeued = new ResourceChangeSet();
+                        requeued.addAll(changes);
+                        requeued.addAll(pendingChanges.getChanges());
+                        pendingChanges = requeued;
+                        return;
+                    }
+
+                    isFiring = true;
+                }
+
+                try {
+                    fireActivities(activities);
+                    fired[0] = true;
+                } finally {
+                    synchronized (batchLock) {
+                        isFiring = false;
+                        batchLock.notifyAll();
+                    }
+                }
+            }
+        });
+
+        return fired[0];
+    }
+
+    /**
+     * Creates the activities for the given changes. The content of the changed
+     * files is read concurrently.
+     * 
+     * @return the activities in the order of the changes or <code>null</code>
+     *         if the current thread was interrupted
+     */
+    private List<IActivity> createActivities(
+        final List<ResourceChange> changes) {
+
+        final List<Future<byte[]>> contents = new ArrayList<Future<byte[]>>(
+            changes.size());
+
+        for (ResourceChange change : changes) {
+            final IFile file = change.getFile();
+
+            if (file == null) {
+                contents.add(null);
+                continue;
+            }
+
+            contents.add(contentReader.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return FileUtils.getLocalFileContent(file);
+                }
+            }));
+        }
+
+        final User user = sarosSession.getLocalUser();
+
+        final List<IActivity> activities = new ArrayList<IActivity>(
+            changes.size());
+
+        for (int i = 0; i < changes.size(); i++) {
+            final ResourceChange change = changes.get(i);
+
+            byte[] content = null;
+
+            if (contents.get(i) != null) {
+                try {
+                    content = contents.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancel(contents);
+                    return null;
+                } catch (ExecutionException e) {
+                    log.error("reading the content of file "
+                        + change.getPath() + " failed", e.getCause());
+                }
+
+                if (content == null) {
+                    /*
+                     * most likely the file was deleted in the meantime and the
+                     * deletion will be part of the next batch
+                     */
+                    log.warn("could not read contents of file: "
+                        + change.getPath());
+                    continue;
+                }
+            }
+
+            // TODO add encoding
+            switch (change.getKind()) {
+            case FILE_ADDED:
+            case FILE_CHANGED:
+                activities.add(FileActivity.created(user, change.getPath(),
+                    content, null, Purpose.ACTIVITY));
+                break;
+            case FILE_REMOVED:
+                activities.add(FileActivity.removed(user, change.getPath(),
+                    Purpose.ACTIVITY));
+                break;
+            case FILE_MOVED:
+                activities.add(FileActivity.moved(user, change.getPath(),
+                    change.getOldPath(), content, null));
+                break;
+            case FOLDER_ADDED:
+                activities.add(new FolderCreatedActivity(user, change
+                    .getPath()));
+                break;
+            case FOLDER_REMOVED:
+                activities.add(new FolderDeletedActivity(user, change
+                    .getPath()));
+                break;
+            }
+        }
+
+        return activities;
+    }
 
+    private static void cancel(List<Future<byte[]>> futures) {
+        for (Future<byte[]> future : futures)
+            if (future != null)
+                future.cancel(true);
     }
 
     private boolean checkOpenClosed(IProject project) {
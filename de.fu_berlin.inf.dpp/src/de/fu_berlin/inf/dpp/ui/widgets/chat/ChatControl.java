@@ -86,6 +86,17 @@ public final class ChatControl extends Composite {
 
     private static final Logger LOG = Logger.getLogger(ChatControl.class);
 
+    /**
+     * Maximum number of history entries that are displayed when the control is
+     * created.
+     */
+    private static final int MAX_DISPLAYED_HISTORY_ENTRIES = 500;
+
+    /**
+     * Number of history entries that are fetched at once.
+     */
+    private static final int HISTORY_PAGE_SIZE = 100;
+
     /*
      * This should be configurable by the user so we do not have to think about
      * the "perfect colors" for color blind people.
@@ -390,8 +401,7 @@ public final class ChatControl extends Composite {
                 this.session.addListener(sessionListener);
         }
 
-        for (ChatElement chatElement : this.chat.getHistory())
-            addChatLine(chatElement);
+        addChatLinesFromHistory();
 
         missedMessages = 0;
 
@@ -676,6 +686,31 @@ public final class ChatControl extends Composite {
         return XMPPUtils.getNickname(connectionService, jid, jid.getBase());
     }
 
+    /**
+     * Adds the most recent entries of the chat history page by page, so the
+     * history does not have to be copied at once.
+     */
+    private void addChatLinesFromHistory() {
+        long startIndex = chat.getHistoryStartIndex();
+        long endIndex = startIndex + chat.getHistorySize();
+
+        long index = Math.max(startIndex, endIndex
+            - MAX_DISPLAYED_HISTORY_ENTRIES);
+
+        while (index < endIndex) {
+            List<ChatElement> page = chat.getHistory(index,
+                (int) Math.min(HISTORY_PAGE_SIZE, endIndex - index));
+
+            if (page.isEmpty())
+                break;
+
+            for (ChatElement chatElement : page)
+                addChatLine(chatElement);
+
+            index += page.size();
+        }
+    }
+
     private Collection<JID> getChatJIDsFromHistory() {
         /*
          * FIXME: MUC JIDs are returned with perspective
@@ -689,8 +724,8 @@ public final class ChatControl extends Composite {
 
         Set<JID> jids = new HashSet<JID>();
 
-        for (ChatElement element : chat.getHistory())
-            jids.add(element.getSender().getBareJID());
+        for (JID sender : chat.getHistorySenders())
+            jids.add(sender.getBareJID());
 
         return jids;
     }
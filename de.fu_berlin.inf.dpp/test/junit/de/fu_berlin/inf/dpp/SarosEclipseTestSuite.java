@@ -8,6 +8,8 @@ import org.junit.runners.Suite;
 
 de.fu_berlin.inf.dpp.concurrent.undo.TestSuite.class,
 
+de.fu_berlin.inf.dpp.editor.TestSuite.class,
+
 de.fu_berlin.inf.dpp.editor.internal.TestSuite.class,
 
 de.fu_berlin.inf.dpp.feedback.TestSuite.class,
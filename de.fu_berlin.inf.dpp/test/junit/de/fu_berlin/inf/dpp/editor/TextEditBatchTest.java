@@ -0,0 +1,187 @@
+package de.fu_berlin.inf.dpp.editor;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.activities.TextEditActivity;
+import de.fu_berlin.inf.dpp.editor.TextEditBatch.Region;
+import de.fu_berlin.inf.dpp.filesystem.IPath;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.session.User;
+
+public class TextEditBatchTest {
+
+    private SPath path;
+
+    private User alice;
+
+    private StringBuilder document;
+
+    private TextEditBatch batch;
+
+    @Before
+    public void setUp() {
+        IProject project = createMock(IProject.class);
+        IPath projectRelativePath = createNiceMock(IPath.class);
+        replay(project, projectRelativePath);
+
+        path = new SPath(project, projectRelativePath);
+        alice = new User(new JID("alice@test"), false, false, 0, 0);
+
+        document = new StringBuilder("0123456789abcdefghij");
+        batch = new TextEditBatch(path, alice);
+    }
+
+    @Test
+    public void testAcceptsOnlySamePathAndSource() {
+        User bob = new User(new JID("bob@test"), false, false, 1, 1);
+
+        assertTrue(batch.add(new TextEditActivity(alice, 0, "x", "", path)));
+        assertFalse(batch.add(new TextEditActivity(bob, 0, "x", "", path)));
+        assertEquals(1, batch.getEdits().size());
+    }
+
+    @Test
+    public void testAdjacentInsertionsAreMerged() {
+        apply(5, 0, "a");
+        apply(6, 0, "b");
+        apply(7, 0, "c");
+
+        List<Region> regions = batch.getRegions();
+
+        assertEquals(1, regions.size());
+        assertEquals(5, regions.get(0).getOffset());
+        assertEquals("", regions.get(0).getReplacedText());
+        assertEquals("abc", regions.get(0).getText());
+    }
+
+    @Test
+    public void testBackspacesAreMerged() {
+        apply(9, 1, "");
+        apply(8, 1, "");
+        apply(7, 1, "");
+
+        List<Region> regions = batch.getRegions();
+
+        assertEquals(1, regions.size());
+        assertEquals(7, regions.get(0).getOffset());
+        assertEquals("789", regions.get(0).getReplacedText());
+        assertEquals("", regions.get(0).getText());
+    }
+
+    @Test
+    public void testDisjointEditsAreShifted() {
+        apply(15, 2, "XYZ");
+        apply(2, 0, "--");
+
+        List<Region> regions = batch.getRegions();
+
+        assertEquals(2, regions.size());
+        assertEquals(2, regions.get(0).getOffset());
+        assertEquals(17, regions.get(1).getOffset());
+        assertEquals("fg", regions.get(1).getReplacedText());
+        assertEquals("XYZ", regions.get(1).getText());
+    }
+
+    @Test
+    public void testEditSpanningRegionsMergesThem() {
+        apply(2, 1, "A");
+        apply(6, 1, "B");
+        apply(10, 0, "C");
+        apply(1, 9, "-");
+
+        List<Region> regions = batch.getRegions();
+
+        assertEquals(1, regions.size());
+        assertEquals(1, regions.get(0).getOffset());
+        assertEquals("123456789", regions.get(0).getReplacedText());
+        assertEquals("-C", regions.get(0).getText());
+        assertReplayEqualsDocument();
+    }
+
+    @Test
+    public void testRandomEditsReplayToSameDocument() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < 500; i++) {
+            int offset = random.nextInt(document.length() + 1);
+            int length = random.nextInt(Math.min(4,
+                document.length() - offset + 1));
+
+            String text = random.nextInt(3) == 0 ? "" : Integer.toString(
+                random.nextInt(1000), 36);
+
+            apply(offset, length, text);
+        }
+
+        assertReplayEqualsDocument();
+    }
+
+    @Test
+    public void testListenersAreNotifiedPerEdit() {
+        ISharedEditorListener listener = createStrictMock(
+            ISharedEditorListener.class);
+
+        // a burst of typed characters, the last one is deleted again
+        for (int i = 0; i < 20; i++)
+            listener.textEdited(alice, path, 5 + i, "", "x");
+
+        listener.textEdited(alice, path, 24, "x", "");
+
+        replay(listener);
+
+        for (int i = 0; i < 20; i++)
+            addAndApply(5 + i, 0, "x");
+
+        addAndApply(24, 1, "");
+
+        assertEquals(1, batch.getRegions().size());
+
+        batch.notifyTextEdited(listener);
+
+        verify(listener);
+    }
+
+    private void apply(int offset, int length, String text) {
+        String replacedText = document.substring(offset, offset + length);
+        document.replace(offset, offset + length, text);
+        batch.applied(offset, replacedText, text);
+    }
+
+    private void addAndApply(int offset, int length, String text) {
+        String replacedText = document.substring(offset, offset + length);
+        batch.add(new TextEditActivity(alice, offset, text, replacedText,
+            path));
+        apply(offset, length, text);
+    }
+
+    private void assertReplayEqualsDocument() {
+        StringBuilder replay = new StringBuilder("0123456789abcdefghij");
+
+        for (Region region : batch.getRegions()) {
+            int offset = region.getOffset();
+
+            assertEquals(region.getReplacedText(), replay.substring(offset,
+                offset + region.getReplacedText().length()));
+
+            replay.replace(offset, offset + region.getReplacedText().length(),
+                region.getText());
+        }
+
+        assertEquals(document.toString(), replay.toString());
+    }
+}
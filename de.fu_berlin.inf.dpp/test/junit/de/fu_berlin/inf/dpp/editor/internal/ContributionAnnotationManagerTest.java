@@ -54,14 +54,16 @@ public class ContributionAnnotationManagerTest {
 
         AnnotationModel model = new AnnotationModel();
 
+        // leave a gap, adjacent annotations of the same user are merged
         for (int i = 0; i <= ContributionAnnotationManager.MAX_HISTORY_LENGTH; i++)
-            manager.insertAnnotation(model, i, 1, alice);
+            manager.insertAnnotation(model, i * 2, 1, alice);
 
         assertEquals(ContributionAnnotationManager.MAX_HISTORY_LENGTH,
             getAnnotationCount(model));
 
         manager.insertAnnotation(model,
-            ContributionAnnotationManager.MAX_HISTORY_LENGTH + 1, 1, alice);
+            (ContributionAnnotationManager.MAX_HISTORY_LENGTH + 1) * 2, 1,
+            alice);
 
         assertEquals(ContributionAnnotationManager.MAX_HISTORY_LENGTH,
             getAnnotationCount(model));
@@ -76,13 +78,15 @@ public class ContributionAnnotationManagerTest {
 
         AnnotationModel model = new AnnotationModel();
 
+        // leave a gap, adjacent annotations of the same user are merged
         for (int i = 0; i <= ContributionAnnotationManager.MAX_HISTORY_LENGTH; i++)
-            manager.insertAnnotation(model, i, 1, alice);
+            manager.insertAnnotation(model, i * 2, 1, alice);
 
         manager.refreshAnnotations(model);
 
         manager.insertAnnotation(model,
-            ContributionAnnotationManager.MAX_HISTORY_LENGTH + 1, 1, alice);
+            (ContributionAnnotationManager.MAX_HISTORY_LENGTH + 1) * 2, 1,
+            alice);
 
         assertFalse("oldest annotation was not removed after refresh",
             getAnnotationPositions(model).contains(new Position(0, 1)));
@@ -122,6 +126,59 @@ public class ContributionAnnotationManagerTest {
             positions.contains(expectB1));
     }
 
+    @Test
+    public void testAdjacentAnnotationsAreMerged() {
+        final User alice = new User(new JID("alice@test"), false, false, 0, 0);
+        final User bob = new User(new JID("bob@test"), false, false, 0, 0);
+
+        final AnnotationModel model = new AnnotationModel();
+
+        manager.insertAnnotation(model, 5, 1, alice);
+        manager.insertAnnotation(model, 6, 1, alice);
+        manager.insertAnnotation(model, 4, 1, alice);
+        manager.insertAnnotation(model, 7, 1, bob);
+
+        final List<Position> positions = getAnnotationPositions(model);
+
+        assertEquals(2, getAnnotationCount(model));
+        assertTrue(positions.contains(new Position(4, 3)));
+        assertTrue(positions.contains(new Position(7, 1)));
+
+        // bridges the gap between both annotations of alice
+        manager.insertAnnotation(model, 10, 1, alice);
+        manager.insertAnnotation(model, 7, 3, alice);
+
+        assertEquals(2, getAnnotationCount(model));
+        assertTrue(getAnnotationPositions(model).contains(
+            new Position(4, 7)));
+    }
+
+    @Test
+    public void testSplitAnnotationsKeepTheirAge() {
+        final User alice = new User(new JID("alice@test"), false, false, 0, 0);
+
+        final AnnotationModel model = new AnnotationModel();
+
+        manager.insertAnnotation(model, 0, 10, alice);
+
+        for (int i = 1; i < ContributionAnnotationManager.MAX_HISTORY_LENGTH - 1; i++)
+            manager.insertAnnotation(model, 10 + i * 2, 1, alice);
+
+        manager.splitAnnotation(model, 5);
+
+        assertEquals(ContributionAnnotationManager.MAX_HISTORY_LENGTH,
+            getAnnotationCount(model));
+
+        manager.insertAnnotation(model, 100, 1, alice);
+
+        final List<Position> positions = getAnnotationPositions(model);
+
+        assertFalse("oldest annotation was not removed",
+            positions.contains(new Position(0, 5)));
+        assertTrue("newer annotation was removed",
+            positions.contains(new Position(12, 1)));
+    }
+
     @SuppressWarnings("unchecked")
     private int getAnnotationCount(AnnotationModel model) {
         int count = 0;
@@ -0,0 +1,135 @@
+package de.fu_berlin.inf.dpp.editor.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.easymock.EasyMock;
+import org.eclipse.jface.text.source.Annotation;
+import org.eclipse.jface.text.source.AnnotationModel;
+import org.eclipse.swt.widgets.Display;
+import org.eclipse.ui.IEditorInput;
+import org.eclipse.ui.texteditor.IDocumentProvider;
+import org.eclipse.ui.texteditor.ITextEditor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.powermock.api.easymock.PowerMock;
+import org.powermock.core.classloader.annotations.PrepareForTest;
+import org.powermock.modules.junit4.PowerMockRunner;
+
+import de.fu_berlin.inf.dpp.editor.annotations.SarosAnnotation;
+import de.fu_berlin.inf.dpp.editor.text.TextSelection;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.session.User;
+import de.fu_berlin.inf.dpp.test.util.EclipseMemoryPreferenceStore;
+import de.fu_berlin.inf.dpp.ui.util.SWTUtils;
+
+@RunWith(PowerMockRunner.class)
+@PrepareForTest({ User.class, SWTUtils.class })
+public class LocationAnnotationManagerTest {
+
+    private LocationAnnotationManager manager;
+
+    private AnnotationModel model;
+
+    private ITextEditor editor;
+
+    private User alice;
+
+    private User bob;
+
+    @Before
+    public void setUp() {
+        // the pending updates are applied manually
+        PowerMock.mockStaticPartial(SWTUtils.class, "getDisplay");
+        EasyMock.expect(SWTUtils.getDisplay()).andStubReturn(
+            PowerMock.createNiceMock(Display.class));
+        PowerMock.replayAll();
+
+        manager = new LocationAnnotationManager(
+            new EclipseMemoryPreferenceStore());
+
+        model = new AnnotationModel();
+
+        IEditorInput input = EasyMock.createNiceMock(IEditorInput.class);
+
+        IDocumentProvider documentProvider = EasyMock
+            .createNiceMock(IDocumentProvider.class);
+        EasyMock.expect(documentProvider.getAnnotationModel(input))
+            .andStubReturn(model);
+
+        editor = EasyMock.createNiceMock(ITextEditor.class);
+        EasyMock.expect(editor.getDocumentProvider()).andStubReturn(
+            documentProvider);
+        EasyMock.expect(editor.getEditorInput()).andStubReturn(input);
+
+        EasyMock.replay(input, documentProvider, editor);
+
+        alice = new User(new JID("alice@test"), false, false, 0, 0);
+        bob = new User(new JID("bob@test"), false, false, 1, 1);
+    }
+
+    @Test
+    public void testPendingUpdatesOfRemovedUserAreDiscarded() {
+        manager.setSelection(editor, new TextSelection(0, 1), alice);
+        manager.setSelection(editor, new TextSelection(1, 1), bob);
+
+        manager.removeUser(alice);
+        manager.applyPendingUpdates(editor);
+
+        assertFalse("annotations of a removed user were added",
+            hasAnnotationsOf(alice));
+
+        assertTrue(hasAnnotationsOf(bob));
+    }
+
+    @Test
+    public void testAnnotationsOfRemovedUserAreNotReused() {
+        manager.setSelection(editor, new TextSelection(0, 1), alice);
+        manager.applyPendingUpdates(editor);
+
+        final List<Annotation> before = getAnnotationsOf(alice);
+
+        assertFalse(before.isEmpty());
+
+        // as done by the EditorManager when the user left
+        for (Annotation annotation : before)
+            model.removeAnnotation(annotation);
+
+        manager.removeUser(alice);
+
+        manager.setSelection(editor, new TextSelection(0, 1), alice);
+        manager.applyPendingUpdates(editor);
+
+        final List<Annotation> after = getAnnotationsOf(alice);
+
+        assertEquals(before.size(), after.size());
+
+        for (Annotation annotation : after)
+            assertFalse("annotation of a removed user was reused",
+                before.contains(annotation));
+    }
+
+    private boolean hasAnnotationsOf(User user) {
+        return !getAnnotationsOf(user).isEmpty();
+    }
+
+    private List<Annotation> getAnnotationsOf(User user) {
+        final List<Annotation> result = new ArrayList<Annotation>();
+
+        for (Iterator<?> it = model.getAnnotationIterator(); it.hasNext();) {
+            final Annotation annotation = (Annotation) it.next();
+
+            if (annotation instanceof SarosAnnotation
+                && ((SarosAnnotation) annotation).getSource().equals(user))
+                result.add(annotation);
+        }
+
+        return result;
+    }
+}
@@ -0,0 +1,261 @@
+package de.fu_berlin.inf.dpp.feedback;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.easymock.EasyMock;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.editor.IEditorManager;
+import de.fu_berlin.inf.dpp.net.xmpp.JID;
+import de.fu_berlin.inf.dpp.session.ISarosSession;
+import de.fu_berlin.inf.dpp.session.User;
+
+/**
+ * Compares the {@link TextEditCollector} with the algorithm it used before the
+ * edits were aggregated as they occur.
+ */
+public class TextEditCollectorTest {
+
+    private static final long SEED = 4711;
+
+    private static final int ROUNDS = 200;
+
+    private User localUser;
+
+    private List<User> users;
+
+    @Before
+    public void setUp() {
+        localUser = new User(new JID("alice@test"), true, true, 0, 0);
+
+        users = new ArrayList<User>();
+        users.add(localUser);
+        users.add(new User(new JID("bob@test"), false, false, 1, 1));
+        users.add(new User(new JID("carl@test"), false, false, 2, 2));
+        users.add(new User(new JID("dave@test"), false, false, 3, 3));
+    }
+
+    @Test
+    public void testNoEdits() {
+        assertSameStatistic(createCollector(), new ReferenceCollector());
+    }
+
+    @Test
+    public void testCompareWithReferenceAlgorithm() {
+        final Random random = new Random(SEED);
+
+        for (int round = 0; round < ROUNDS; round++) {
+            final TextEditCollector collector = createCollector();
+            final ReferenceCollector reference = new ReferenceCollector();
+
+            long time = 1000000;
+
+            final int edits = random.nextInt(400);
+
+            for (int i = 0; i < edits; i++) {
+                // mostly short pauses, sometimes longer than any interval
+                if (random.nextInt(20) == 0)
+                    time += random.nextInt(60000);
+                else
+                    time += random.nextInt(3000);
+
+                final User user = users.get(random.nextInt(users.size()));
+
+                // whitespace only edits, typing and pastes
+                final int textLength = random.nextInt(5) == 0 ? 0 : random
+                    .nextInt(30);
+
+                collector.addTextEdit(user, textLength, time);
+                reference.addTextEdit(user, textLength, time);
+            }
+
+            assertSameStatistic(collector, reference);
+        }
+    }
+
+    private void assertSameStatistic(TextEditCollector collector,
+        ReferenceCollector reference) {
+
+        collector.processGatheredData();
+
+        SessionStatistic expected = new SessionStatistic();
+        reference.processGatheredData(expected);
+
+        assertEquals(getEntries(expected), getEntries(collector.data));
+    }
+
+    private TextEditCollector createCollector() {
+        StatisticManager statisticManager = EasyMock
+            .createNiceMock(StatisticManager.class);
+
+        ISarosSession session = EasyMock.createNiceMock(ISarosSession.class);
+        EasyMock.expect(session.getLocalUser()).andStubReturn(localUser);
+
+        IEditorManager editorManager = EasyMock
+            .createNiceMock(IEditorManager.class);
+
+        EasyMock.replay(statisticManager, session, editorManager);
+
+        return new TextEditCollector(statisticManager, session, editorManager);
+    }
+
+    private static SortedSet<String> getEntries(SessionStatistic statistic) {
+        SortedSet<String> entries = new TreeSet<String>();
+
+        for (String line : statistic.toString().split("\\r?\\n")) {
+            // skip the header and time stamp comments
+            if (!line.startsWith("#"))
+                entries.add(line);
+        }
+
+        return entries;
+    }
+
+    /**
+     * The former algorithm of the {@link TextEditCollector} that stores all
+     * edits and compares them at the end of the session.
+     */
+    private class ReferenceCollector {
+
+        private final int[] sampleIntervals = { 1000, 2000, 5000, 10000,
+            15000 };
+
+        private final int pasteThreshold = 16;
+
+        private long charsWritten = 0;
+
+        private final List<long[]> localEvents = new ArrayList<long[]>();
+
+        private final List<long[]> remoteEvents = new ArrayList<long[]>();
+
+        private final Map<Integer, Integer> parallelTextEdits = new HashMap<Integer, Integer>();
+
+        private final Map<Integer, Integer> parallelTextEditsCount = new HashMap<Integer, Integer>();
+
+        private final Map<User, Integer> pastes = new HashMap<User, Integer>();
+
+        private final Map<User, Integer> pastesCharCount = new HashMap<User, Integer>();
+
+        private final Map<User, Integer> remoteCharCount = new HashMap<User, Integer>();
+
+        private void addTextEdit(User user, int textLength, long time) {
+            long[] event = new long[] { time, textLength };
+
+            if (textLength > pasteThreshold) {
+                addToMap(pastes, user, 1);
+                addToMap(pastesCharCount, user, textLength);
+            }
+
+            if (textLength == 0)
+                return;
+
+            if (user.isLocal()) {
+                charsWritten += textLength;
+                localEvents.add(event);
+            } else {
+                remoteEvents.add(event);
+                addToMap(remoteCharCount, user, textLength);
+            }
+        }
+
+        private void processGatheredData(SessionStatistic data) {
+            int userNumber = 1;
+
+            for (Map.Entry<User, Integer> entry : remoteCharCount.entrySet()) {
+                User user = entry.getKey();
+
+                data.put("textedits.remote.user", entry.getValue(),
+                    userNumber, "chars");
+                data.put("textedits.remote.user", getValue(pastes, user),
+                    userNumber, "pastes");
+                data.put("textedits.remote.user",
+                    getValue(pastesCharCount, user), userNumber, "pastes",
+                    "chars");
+
+                userNumber++;
+            }
+
+            data.put("textedits.local", charsWritten, "chars");
+            data.put("textedits.local", getValue(pastes, localUser), "pastes");
+            data.put("textedits.local", getValue(pastesCharCount, localUser),
+                "pastes", "chars");
+
+            for (int interval : sampleIntervals)
+                process(interval);
+
+            long nonParallelTextEdits = 0;
+
+            for (long[] local : localEvents)
+                nonParallelTextEdits += local[1];
+
+            data.put("textedits.nonparallel", nonParallelTextEdits, "chars");
+            data.put("textedits.nonparallel",
+                getPercentage(nonParallelTextEdits, charsWritten), "percent");
+
+            for (Map.Entry<Integer, Integer> entry : parallelTextEdits
+                .entrySet()) {
+                int interval = entry.getKey();
+                long chars = entry.getValue();
+
+                data.put("textedits.parallel.interval", chars, interval,
+                    "chars");
+                data.put("textedits.parallel.interval",
+                    getPercentage(chars, charsWritten), interval, "percent");
+                data.put("textedits.parallel.interval",
+                    getValue(parallelTextEditsCount, interval), interval,
+                    "count");
+            }
+        }
+
+        private void process(int intervalWidth) {
+            Iterator<long[]> remote = remoteEvents.iterator();
+            long[] lastRemote = (remote.hasNext() ? remote.next() : null);
+
+            for (Iterator<long[]> localIterator = localEvents.iterator(); localIterator
+                .hasNext();) {
+                long[] local = localIterator.next();
+
+                while (lastRemote != null
+                    && local[0] > lastRemote[0] + intervalWidth) {
+                    lastRemote = (remote.hasNext() ? remote.next() : null);
+                }
+
+                if (lastRemote != null
+                    && local[0] >= lastRemote[0] - intervalWidth) {
+                    int intervalSeconds = (int) Math
+                        .round(intervalWidth / 1000.0);
+                    addToMap(parallelTextEdits, intervalSeconds,
+                        (int) local[1]);
+                    addToMap(parallelTextEditsCount, intervalSeconds, 1);
+                    localIterator.remove();
+                }
+            }
+        }
+
+        private int getPercentage(long value, long totalValue) {
+            if (totalValue == 0)
+                return 0;
+
+            return (int) Math.round(((double) value / totalValue) * 100);
+        }
+
+        private <K> int getValue(Map<K, Integer> map, K key) {
+            Integer value = map.get(key);
+            return value == null ? 0 : value;
+        }
+
+        private <K> void addToMap(Map<K, Integer> map, K key, int value) {
+            map.put(key, getValue(map, key) + value);
+        }
+    }
+}
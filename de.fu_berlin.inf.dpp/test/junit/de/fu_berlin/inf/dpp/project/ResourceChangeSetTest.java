@@ -0,0 +1,150 @@
+package de.fu_berlin.inf.dpp.project;
+
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.eclipse.core.resources.IFile;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.fu_berlin.inf.dpp.activities.SPath;
+import de.fu_berlin.inf.dpp.filesystem.IPath;
+import de.fu_berlin.inf.dpp.filesystem.IProject;
+import de.fu_berlin.inf.dpp.project.ResourceChange.Kind;
+
+public class ResourceChangeSetTest {
+
+    private IProject project;
+
+    private IFile file;
+
+    private SPath pathA;
+    private SPath pathB;
+    private SPath folder;
+
+    @Before
+    public void setUp() {
+        project = createMock(IProject.class);
+        file = createMock(IFile.class);
+        replay(project, file);
+
+        pathA = createPath();
+        pathB = createPath();
+        folder = createPath();
+    }
+
+    private SPath createPath() {
+        IPath path = createNiceMock(IPath.class);
+        replay(path);
+        return new SPath(project, path);
+    }
+
+    @Test
+    public void testMultipleChangesAreMerged() {
+        ResourceChangeSet set = new ResourceChangeSet();
+
+        set.add(ResourceChange.fileChanged(pathA, file));
+        set.add(ResourceChange.fileChanged(pathB, file));
+        set.add(ResourceChange.fileChanged(pathA, file));
+        set.add(ResourceChange.fileChanged(pathA, file));
+
+        List<ResourceChange> changes = set.getChanges();
+
+        assertEquals(2, changes.size());
+        assertEquals(pathB, changes.get(0).getPath());
+        assertEquals(pathA, changes.get(1).getPath());
+        assertEquals(Kind.FILE_CHANGED, changes.get(1).getKind());
+    }
+
+    @Test
+    public void testAddedAndRemovedFileCancelsOut() {
+        ResourceChangeSet set = new ResourceChangeSet();
+
+        set.add(ResourceChange.fileAdded(pathA, file));
+        set.add(ResourceChange.fileChanged(pathA, file));
+        set.add(ResourceChange.fileRemoved(pathA));
+
+        assertTrue(set.isEmpty());
+        assertEquals(0, set.getChanges().size());
+    }
+
+    @Test
+    public void testRemovedAndAddedFileBecomesChange() {
+        ResourceChangeSet set = new ResourceChangeSet();
+
+        set.add(ResourceChange.fileRemoved(pathA));
+        set.add(ResourceChange.fileAdded(pathA, file));
+
+        List<ResourceChange> changes = set.getChanges();
+
+        assertEquals(1, changes.size());
+        assertEquals(Kind.FILE_CHANGED, changes.get(0).getKind());
+
+        // the file existed before, so the removal must be kept
+        set.add(ResourceChange.fileRemoved(pathA));
+
+        changes = set.getChanges();
+
+        assertEquals(1, changes.size());
+        assertEquals(Kind.FILE_REMOVED, changes.get(0).getKind());
+    }
+
+    @Test
+    public void testFolderChangeIsABarrier() {
+        ResourceChangeSet set = new ResourceChangeSet();
+
+        set.add(ResourceChange.fileRemoved(pathA));
+        set.add(ResourceChange.folderRemoved(folder));
+        set.add(ResourceChange.folderAdded(folder));
+        set.add(ResourceChange.fileAdded(pathA, file));
+
+        List<ResourceChange> changes = set.getChanges();
+
+        assertEquals(4, changes.size());
+        assertEquals(Kind.FILE_REMOVED, changes.get(0).getKind());
+        assertEquals(Kind.FOLDER_REMOVED, changes.get(1).getKind());
+        assertEquals(Kind.FOLDER_ADDED, changes.get(2).getKind());
+        assertEquals(Kind.FILE_ADDED, changes.get(3).getKind());
+    }
+
+    @Test
+    public void testFileChangesAreNotMergedAcrossFolderChanges() {
+        ResourceChangeSet set = new ResourceChangeSet();
+
+        // pathA may be located in the added folder
+        set.add(ResourceChange.fileChanged(pathA, file));
+        set.add(ResourceChange.fileChanged(pathB, file));
+        set.add(ResourceChange.folderAdded(folder));
+        set.add(ResourceChange.fileChanged(pathA, file));
+        set.add(ResourceChange.fileChanged(pathA, file));
+
+        List<ResourceChange> changes = set.getChanges();
+
+        assertEquals(4, changes.size());
+        assertEquals(pathA, changes.get(0).getPath());
+        assertEquals(pathB, changes.get(1).getPath());
+        assertEquals(Kind.FOLDER_ADDED, changes.get(2).getKind());
+        assertEquals(pathA, changes.get(3).getPath());
+    }
+
+    @Test
+    public void testMoveIsABarrier() {
+        ResourceChangeSet set = new ResourceChangeSet();
+
+        set.add(ResourceChange.fileAdded(pathA, file));
+        set.add(ResourceChange.fileMoved(pathB, pathA, file, false));
+        set.add(ResourceChange.fileAdded(pathA, file));
+        set.add(ResourceChange.fileChanged(pathB, file));
+
+        List<ResourceChange> changes = set.getChanges();
+
+        assertEquals(4, changes.size());
+        assertEquals(Kind.FILE_MOVED, changes.get(1).getKind());
+        assertEquals(pathA, changes.get(1).getOldPath());
+    }
+}